@@ -40,6 +40,7 @@
 #include <string.h>
 
 #include <openssl/conf.h>
+#include <openssl/crypto.h>
 #include <openssl/bio.h>
 #include <openssl/buffer.h>
 #include <openssl/rand.h>
@@ -58,24 +59,36 @@ unsigned char *i_key_pad;
 unsigned char *o_key_pad;
 
 size_t md_block_size;
+size_t md_size;
 
 char * hmac_layer_buffer_calc(hmac_layer_buffer *buffer, char *output);
 
+// Calcula los bloques de la clave con ipad y opad
+static void hmac_layer_calcpads() {
+	int32_t i;
+	for ( i = 0 ; i<md_block_size; i++ ) {
+		i_key_pad[i] = 0x36 ^ hmac_key[i];
+		o_key_pad[i] = 0x5c ^ hmac_key[i];
+	}
+}
+
 void hmac_layer_init(EVP_MD_CTX *mdctx_parameter, const EVP_MD *md_parameter) {
 	mdctx = mdctx_parameter;
 	md = md_parameter;
 	md_block_size = EVP_MD_block_size(md);
+	md_size = EVP_MD_size(md);
 	hmac_key = malloc(md_block_size*3);
 	RAND_bytes( (unsigned char *) hmac_key, md_block_size);
-	i_key_pad = &hmac_key[md_block_size*2];
-	o_key_pad = &hmac_key[md_block_size*3];
+	i_key_pad = &hmac_key[md_block_size];
+	o_key_pad = &hmac_key[md_block_size*2];
 
-	int32_t i;
-	for ( i = 0 ; i<md_block_size; i++ ) {
-		i_key_pad[i] = 0x36 ^ hmac_key[i];
-		o_key_pad[i] = 0x5c ^ hmac_key[i];
-	}
-	free(hmac_key);
+	hmac_layer_calcpads();
+}
+
+// Reemplaza la clave generada por la especificada, del tamaño de bloque del resumen
+void hmac_layer_setkey(const char *key) {
+	memcpy(hmac_key, key, md_block_size);
+	hmac_layer_calcpads();
 }
 
 char *hmac_layer_getkey(size_t *size) {
@@ -87,6 +100,7 @@ hmac_layer_buffer * hmac_layer_createbuffer() {
 	hmac_layer_buffer *buffer = malloc(sizeof(hmac_layer_buffer));
 	buffer->messageSize = 0;
 	buffer->buffer = NULL;
+	return buffer;
 }
 
 char * hmac_layer_buffer_allocmessage(hmac_layer_buffer *buffer, size_t size) {
@@ -96,10 +110,11 @@ char * hmac_layer_buffer_allocmessage(hmac_layer_buffer *buffer, size_t size) {
 	}
 
 	buffer->buffer = malloc(size + md_block_size*3);
+	return buffer->buffer;
 }
 
 char * hmac_layer_buffer_calc(hmac_layer_buffer *buffer, char *output) {
-	int md_length;
+	unsigned int md_length;
 	
 	// hash(i_key_pad || message)
 	EVP_DigestInit_ex(mdctx, md, NULL);
@@ -107,18 +122,19 @@ char * hmac_layer_buffer_calc(hmac_layer_buffer *buffer, char *output) {
 	EVP_DigestUpdate(mdctx, buffer->buffer, buffer->messageSize);
 
 	char *tmp_md = (char *) &buffer->buffer[buffer->messageSize + md_block_size];
-	EVP_DigestFinal_ex(mdctx, tmp_md, &md_length);
+	EVP_DigestFinal_ex(mdctx, (unsigned char *) tmp_md, &md_length);
 	
 	// hash(o_key_pad || hash(i_key_pad || message))
 	EVP_DigestInit_ex(mdctx, md, NULL);
 	EVP_DigestUpdate(mdctx, o_key_pad, md_block_size);
-	EVP_DigestUpdate(mdctx, tmp_md, md_block_size);
-	EVP_DigestFinal_ex(mdctx, output, &md_length);
+	EVP_DigestUpdate(mdctx, tmp_md, md_length);
+	EVP_DigestFinal_ex(mdctx, (unsigned char *) output, &md_length);
+	return output;
 }
 
 char * hmac_layer_buffer_encode(hmac_layer_buffer *buffer, size_t *encode_size) {
 	hmac_layer_buffer_calc(buffer, (char *) &buffer->buffer[buffer->messageSize]);
-	*encode_size = buffer->messageSize + md_block_size;
+	*encode_size = buffer->messageSize + md_size;
 	return buffer->buffer;
 }
 
@@ -127,7 +143,7 @@ char * hmac_layer_buffer_decode(hmac_layer_buffer *buffer, size_t *messageSize)
 	char *calculated_hmac = (char *) &buffer->buffer[buffer->messageSize+md_block_size*2];
 	hmac_layer_buffer_calc(buffer, calculated_hmac);
 
-	if ( memcmp(buffer_hmac, calculated_hmac, md_block_size) == 0 ) {
+	if ( CRYPTO_memcmp(buffer_hmac, calculated_hmac, md_size) == 0 ) {
 		return buffer->buffer;
 	}
 	else {
@@ -138,6 +154,7 @@ char * hmac_layer_buffer_decode(hmac_layer_buffer *buffer, size_t *messageSize)
 void hmac_layer_buffer_destroy(hmac_layer_buffer *buffer) {
 	if ( buffer->buffer != NULL )
 		free(buffer->buffer);
+	free(buffer);
 }
 
 void hmac_layer_destroy() {
@@ -45,6 +45,7 @@ typedef struct hmac_layer_buffer hmac_layer_buffer;
 
 void hmac_layer_init(EVP_MD_CTX *mdctx_parameter, const EVP_MD *md_parameter);
 char *hmac_layer_getkey(size_t *size);
+void hmac_layer_setkey(const char *key);
 hmac_layer_buffer * hmac_layer_createbuffer();
 char * hmac_layer_buffer_allocmessage(hmac_layer_buffer *buffer, size_t size);
 char * hmac_layer_buffer_encode(hmac_layer_buffer *buffer, size_t *encode_size);
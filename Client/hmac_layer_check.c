@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Verificación de la capa de HMAC - Cliente de Dynarmor
+ *
+ * Verifica los vectores conocidos del servidor (Server/test/hmac-frame-vectors.txt),
+ * que también verifica HMACFrameCodecCheck, contra la capa de HMAC y contra
+ * HMAC de OpenSSL. Se compila y ejecuta con "make check"
+ */
+
+#include <stdlib.h>
+#include <stdio.h>
+#include <stdbool.h>
+#include <string.h>
+
+#include <openssl/evp.h>
+#include <openssl/hmac.h>
+
+#include "hmac_layer.h"
+
+#define MAX_LINE_SIZE 8192
+
+// Convierte el texto hexadecimal especificado ("-" si está vacío), y devuelve la cantidad de bytes
+static size_t fromhex(const char *hex, unsigned char *output) {
+	size_t size = 0;
+	unsigned int value;
+
+	if ( strcmp(hex, "-") == 0 ) {
+		return 0;
+	}
+
+	while ( ( hex[size*2] != '\0' ) && ( sscanf(&hex[size*2], "%2x", &value) == 1 ) ) {
+		output[size++] = (unsigned char) value;
+	}
+
+	return size;
+}
+
+// Verifica un vector, y devuelve si es correcto
+static bool checkvector(hmac_layer_buffer *buffer, const unsigned char *key, size_t key_size, const unsigned char *message, size_t message_size, const unsigned char *tag, size_t tag_size) {
+	unsigned char reference_tag[EVP_MAX_MD_SIZE];
+	unsigned int reference_tag_size;
+	size_t encode_size;
+	size_t decoded_size;
+	char *frame;
+
+	HMAC(EVP_sha512(), key, key_size, message, message_size, reference_tag, &reference_tag_size);
+	if ( ( reference_tag_size != tag_size ) || ( memcmp(reference_tag, tag, tag_size) != 0 ) ) {
+		fprintf(stderr, "Vector of %zu bytes: Does not match OpenSSL HMAC\n", message_size);
+		return false;
+	}
+
+	memcpy(hmac_layer_buffer_allocmessage(buffer, message_size), message, message_size);
+	frame = hmac_layer_buffer_encode(buffer, &encode_size);
+	if ( ( encode_size != message_size + tag_size ) || ( memcmp(&frame[message_size], tag, tag_size) != 0 ) ) {
+		fprintf(stderr, "Vector of %zu bytes: Wrong tag\n", message_size);
+		return false;
+	}
+
+	if ( hmac_layer_buffer_decode(buffer, &decoded_size) == NULL ) {
+		fprintf(stderr, "Vector of %zu bytes: Authentic frame rejected\n", message_size);
+		return false;
+	}
+
+	// Modificar la etiqueta y, si hay, el mensaje
+	frame[message_size + tag_size - 1] ^= 1;
+	if ( hmac_layer_buffer_decode(buffer, &decoded_size) != NULL ) {
+		fprintf(stderr, "Vector of %zu bytes: Tampered tag accepted\n", message_size);
+		return false;
+	}
+	frame[message_size + tag_size - 1] ^= 1;
+
+	if ( message_size != 0 ) {
+		frame[message_size / 2] ^= 1;
+		if ( hmac_layer_buffer_decode(buffer, &decoded_size) != NULL ) {
+			fprintf(stderr, "Vector of %zu bytes: Tampered message accepted\n", message_size);
+			return false;
+		}
+	}
+
+	return true;
+}
+
+int main(int argc, char **argv) {
+	const char *vectors_file_name = ( argc > 1 ) ? argv[1] : "../Server/test/hmac-frame-vectors.txt";
+	static char line[MAX_LINE_SIZE];
+	static char first[MAX_LINE_SIZE];
+	static char second[MAX_LINE_SIZE];
+	static unsigned char key[MAX_LINE_SIZE/2];
+	static unsigned char message[MAX_LINE_SIZE/2];
+	static unsigned char tag[MAX_LINE_SIZE/2];
+	size_t key_size = 0;
+	size_t layer_key_size;
+	int checks = 0;
+	bool success = true;
+
+	FILE *vectors_file = fopen(vectors_file_name, "r");
+	if ( vectors_file == NULL ) {
+		fprintf(stderr, "Cannot open vectors file '%s'\n", vectors_file_name);
+		return EXIT_FAILURE;
+	}
+
+	EVP_MD_CTX *mdctx = EVP_MD_CTX_new();
+	hmac_layer_init(mdctx, EVP_sha512());
+	hmac_layer_getkey(&layer_key_size);
+	hmac_layer_buffer *buffer = hmac_layer_createbuffer();
+
+	while ( success && ( fgets(line, sizeof(line), vectors_file) != NULL ) ) {
+		if ( ( line[0] == '#' ) || ( line[0] == '\n' ) ) {
+			continue;
+		}
+
+		if ( sscanf(line, "%s %s", first, second) != 2 ) {
+			fprintf(stderr, "Invalid vector line\n");
+			success = false;
+		}
+		else if ( strcmp(first, "key") == 0 ) {
+			key_size = fromhex(second, key);
+			if ( key_size != layer_key_size ) {
+				fprintf(stderr, "Invalid key size %zu\n", key_size);
+				success = false;
+			}
+			else {
+				hmac_layer_setkey((const char *) key);
+			}
+		}
+		else if ( key_size == 0 ) {
+			fprintf(stderr, "Missing key\n");
+			success = false;
+		}
+		else {
+			size_t message_size = fromhex(first, message);
+			size_t tag_size = fromhex(second, tag);
+
+			success = checkvector(buffer, key, key_size, message, message_size, tag, tag_size);
+			checks++;
+		}
+	}
+
+	fclose(vectors_file);
+	hmac_layer_buffer_destroy(buffer);
+	hmac_layer_destroy();
+	EVP_MD_CTX_free(mdctx);
+
+	if ( success && ( checks == 0 ) ) {
+		fprintf(stderr, "Missing vectors\n");
+		success = false;
+	}
+
+	if ( success ) {
+		printf("HMAC layer: %d vectors passed\n", checks);
+		return EXIT_SUCCESS;
+	}
+	else {
+		return EXIT_FAILURE;
+	}
+}
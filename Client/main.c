@@ -108,7 +108,11 @@ bool initial_setup() {
 				reterror = 6;
 			}
 			else {
-				if ( returnValue != 0 ) {
+				if ( returnValue == 2 ) {
+					fprintf(stderr, "Server busy, try again later\n");
+					reterror = 13;
+				}
+				else if ( returnValue != 0 ) {
 					fprintf(stderr, "Invalid protocol version, outdated client\n");
 					reterror = 11;
 				}
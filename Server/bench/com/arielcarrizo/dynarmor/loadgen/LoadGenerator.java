@@ -0,0 +1,576 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+
+/**
+ * Generador de carga del servidor de Dynarmor
+ * 
+ * Implementa el mismo protocolo que el cliente en C (Versión 0),
+ * pero sin interacción: la clave pública del servidor se fija con
+ * un archivo, o se fija la primera que se recibe.
+ * 
+ * Cada conexión concurrente es un hilo que establece sesiones una
+ * detrás de otra, o a la tasa especificada. Los hilos empiezan
+ * escalonados durante la rampa de subida, y terminan escalonados
+ * durante la rampa de bajada
+ * @author ariel
+ *
+ */
+public final class LoadGenerator {
+	private final static byte[] MAGICPROTOCOLHEADER = { (byte) 0xAF, (byte) 0xEA, (byte) 0x39, (byte) 0xE0, (byte) 0x67, (byte) 0x10, (byte) 0x20, (byte) 0xC9, (byte) 0x2F, (byte) 0xEB };
+	private final static int PROTOCOLVERSION = 0;
+	private final static byte SERVER_BUSY = 2;
+	private final static int DEFAULTPORT = 2250;
+	
+	private final static int MAX_PUBLIC_KEY_SIZE = 1024 * 10;
+	
+	private final static String RSA_SETUP = "RSA/ECB/PKCS1Padding";
+	private final static String MESSAGE_DIGEST_ALGORITHM = "SHA-512";
+	private final static int AES_KEY_IV_LENGTH = ( 256 + 128 ) / 8;
+	
+	/**
+	 * Resultado de un intento de establecimiento de sesión
+	 */
+	private enum Outcome {
+		SUCCESS,
+		CONNECT_FAILED,
+		TIMEOUT,
+		INVALID_PROTOCOL,
+		SERVER_BUSY,
+		VERSION_REJECTED,
+		INVALID_PUBLIC_KEY,
+		KEY_MISMATCH,
+		NO_CLIENT_PROGRAM,
+		CONNECTION_ERROR
+	}
+	
+	/**
+	 * Latencias registradas por un hilo, en microsegundos
+	 */
+	private final static class LatencyRecorder {
+		private long[] values;
+		private int count;
+		
+		public LatencyRecorder() {
+			this.values = new long[1024];
+			this.count = 0;
+		}
+		
+		/**
+		 * @post Registra la latencia especificada en nanosegundos
+		 */
+		public void record(long nanos) {
+			if ( this.count == this.values.length ) {
+				this.values = Arrays.copyOf(this.values, this.values.length * 2);
+			}
+			
+			this.values[this.count++] = TimeUnit.NANOSECONDS.toMicros(nanos);
+		}
+		
+		/**
+		 * @post Devuelve las latencias de los registros especificados, ordenadas
+		 */
+		public static long[] merge(LatencyRecorder[] recorders) {
+			int count = 0;
+			for ( LatencyRecorder eachRecorder : recorders ) {
+				count += eachRecorder.count;
+			}
+			
+			long[] values = new long[count];
+			int offset = 0;
+			for ( LatencyRecorder eachRecorder : recorders ) {
+				System.arraycopy(eachRecorder.values, 0, values, offset, eachRecorder.count);
+				offset += eachRecorder.count;
+			}
+			
+			Arrays.sort(values);
+			return values;
+		}
+	}
+	
+	private final InetSocketAddress address;
+	private final int concurrency;
+	private final long rampUpTime;
+	private final long sustainedTime;
+	private final long rampDownTime;
+	private final long maxHandshakes;
+	private final double rate;
+	private final int timeout;
+	
+	private final AtomicReference<byte[]> pinnedPublicKey;
+	
+	private final AtomicLongArray outcomes;
+	private final AtomicLong remainingHandshakes;
+	private final AtomicInteger activeWorkers;
+	private final AtomicLong lastStopTime;
+	
+	private final LatencyRecorder[] handshakeLatencies;
+	private final LatencyRecorder[] totalLatencies;
+	
+	/**
+	 * @pre La concurrencia tiene que ser positiva
+	 * @post Crea el generador de carga con la dirección del servidor, la clave
+	 * 		 pública fijada (Puede ser nula para fijar la primera recibida),
+	 * 		 la cantidad de conexiones concurrentes, la duración de las rampas
+	 * 		 de subida y bajada y de la carga sostenida en nanosegundos, el máximo
+	 * 		 de establecimientos de sesión (0 si no hay), la tasa total en
+	 * 		 establecimientos por segundo (0 si no hay) y el tiempo de espera
+	 * 		 de las conexiones en milisegundos especificados
+	 */
+	public LoadGenerator(InetSocketAddress address, byte[] pinnedPublicKey, int concurrency, long rampUpTime, long sustainedTime, long rampDownTime, long maxHandshakes, double rate, int timeout) {
+		if ( concurrency < 1 ) {
+			throw new IllegalArgumentException("Invalid concurrency");
+		}
+		
+		this.address = address;
+		this.concurrency = concurrency;
+		this.rampUpTime = rampUpTime;
+		this.sustainedTime = sustainedTime;
+		this.rampDownTime = rampDownTime;
+		this.maxHandshakes = maxHandshakes;
+		this.rate = rate;
+		this.timeout = timeout;
+		
+		this.pinnedPublicKey = new AtomicReference<byte[]>(pinnedPublicKey);
+		
+		this.outcomes = new AtomicLongArray(Outcome.values().length);
+		this.remainingHandshakes = new AtomicLong(maxHandshakes);
+		this.activeWorkers = new AtomicInteger(0);
+		this.lastStopTime = new AtomicLong(System.nanoTime());
+		
+		this.handshakeLatencies = new LatencyRecorder[concurrency];
+		this.totalLatencies = new LatencyRecorder[concurrency];
+		for ( int i = 0 ; i < concurrency ; i++ ) {
+			this.handshakeLatencies[i] = new LatencyRecorder();
+			this.totalLatencies[i] = new LatencyRecorder();
+		}
+	}
+	
+	/**
+	 * Conexión concurrente
+	 */
+	private final class Worker implements Runnable {
+		private final int index;
+		private final long startTime;
+		private final long stopTime;
+		private final SecureRandom random;
+		private final MessageDigest messageDigest;
+		private final byte[] buffer;
+		
+		private Cipher cipher;
+		private byte[] cipherPublicKey;
+		
+		public Worker(int index, long startTime, long stopTime) throws GeneralSecurityException {
+			this.index = index;
+			this.startTime = startTime;
+			this.stopTime = stopTime;
+			this.random = new SecureRandom();
+			this.messageDigest = MessageDigest.getInstance(MESSAGE_DIGEST_ALGORITHM);
+			this.buffer = new byte[16384];
+		}
+		
+		/**
+		 * @post Devuelve los datos de la clave de sesión cifrados con la clave pública especificada
+		 */
+		private byte[] encryptSessionKey(byte[] publicKeyData) throws GeneralSecurityException {
+			if ( !Arrays.equals(publicKeyData, this.cipherPublicKey) ) {
+				PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKeyData));
+				this.cipher = Cipher.getInstance(RSA_SETUP);
+				this.cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+				this.cipherPublicKey = publicKeyData;
+			}
+			
+			byte[] aesKey_iv = new byte[AES_KEY_IV_LENGTH];
+			this.random.nextBytes(aesKey_iv);
+			
+			this.cipher.update(aesKey_iv);
+			return this.cipher.doFinal(this.messageDigest.digest(aesKey_iv));
+		}
+		
+		/**
+		 * @post Establece una sesión con el tiempo de inicio especificado,
+		 * 		 registra las latencias si tiene éxito y devuelve el resultado
+		 */
+		private Outcome handshake(long startTime) {
+			Socket socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(LoadGenerator.this.timeout);
+				
+				try {
+					socket.connect(LoadGenerator.this.address, LoadGenerator.this.timeout);
+				} catch (SocketTimeoutException e) {
+					return Outcome.TIMEOUT;
+				} catch (IOException e) {
+					return Outcome.CONNECT_FAILED;
+				}
+				
+				DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				
+				// Cadena mágica y versión del protocolo
+				byte[] serverMagicHeader = new byte[MAGICPROTOCOLHEADER.length];
+				input.readFully(serverMagicHeader);
+				if ( !Arrays.equals(serverMagicHeader, MAGICPROTOCOLHEADER) ) {
+					return Outcome.INVALID_PROTOCOL;
+				}
+				
+				output.writeInt(PROTOCOLVERSION);
+				output.flush();
+				
+				byte returnValue = input.readByte();
+				if ( returnValue == SERVER_BUSY ) {
+					return Outcome.SERVER_BUSY;
+				}
+				else if ( returnValue != 0 ) {
+					return Outcome.VERSION_REJECTED;
+				}
+				
+				// Clave pública
+				int publicKeySize = input.readInt();
+				if ( ( publicKeySize < 1 ) || ( publicKeySize > MAX_PUBLIC_KEY_SIZE ) ) {
+					return Outcome.INVALID_PUBLIC_KEY;
+				}
+				
+				byte[] publicKeyData = new byte[publicKeySize];
+				input.readFully(publicKeyData);
+				
+				if ( LoadGenerator.this.pinnedPublicKey.compareAndSet(null, publicKeyData) ) {
+					System.out.println("Pinned server public key: " + toHex(MessageDigest.getInstance("SHA-256").digest(publicKeyData)));
+				}
+				else if ( !Arrays.equals(publicKeyData, LoadGenerator.this.pinnedPublicKey.get()) ) {
+					return Outcome.KEY_MISMATCH;
+				}
+				
+				// Clave de sesión
+				byte[] encryptedSessionKeyData;
+				try {
+					encryptedSessionKeyData = this.encryptSessionKey(publicKeyData);
+				} catch (GeneralSecurityException e) {
+					return Outcome.INVALID_PUBLIC_KEY;
+				}
+				
+				output.writeInt(encryptedSessionKeyData.length);
+				output.write(encryptedSessionKeyData);
+				output.flush();
+				
+				// El servidor sólo envía el programa del cliente si aceptó la clave de sesión
+				if ( input.read() == -1 ) {
+					return Outcome.NO_CLIENT_PROGRAM;
+				}
+				long handshakeTime = System.nanoTime() - startTime;
+				
+				while ( input.read(this.buffer) != -1 );
+				long totalTime = System.nanoTime() - startTime;
+				
+				LoadGenerator.this.handshakeLatencies[this.index].record(handshakeTime);
+				LoadGenerator.this.totalLatencies[this.index].record(totalTime);
+				return Outcome.SUCCESS;
+			} catch (SocketTimeoutException e) {
+				return Outcome.TIMEOUT;
+			} catch (IOException e) {
+				return Outcome.CONNECTION_ERROR;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// No importa
+				}
+			}
+		}
+		
+		@Override
+		public void run() {
+			sleepUntil(this.startTime);
+			LoadGenerator.this.activeWorkers.incrementAndGet();
+			
+			try {
+				// Con tasa fija cada intento tiene un inicio programado, y la latencia
+				// se mide desde ese inicio, para no ocultar las esperas del servidor
+				long interval = ( LoadGenerator.this.rate > 0 ) ? (long) ( LoadGenerator.this.concurrency * 1e9 / LoadGenerator.this.rate ) : 0;
+				long scheduledTime = System.nanoTime();
+				
+				while ( System.nanoTime() - this.stopTime < 0 ) {
+					if ( ( LoadGenerator.this.maxHandshakes != 0 ) && ( LoadGenerator.this.remainingHandshakes.decrementAndGet() < 0 ) ) {
+						break;
+					}
+					
+					long startTime;
+					if ( interval != 0 ) {
+						sleepUntil(scheduledTime);
+						startTime = scheduledTime;
+						scheduledTime += interval;
+					}
+					else {
+						startTime = System.nanoTime();
+					}
+					
+					LoadGenerator.this.outcomes.incrementAndGet(this.handshake(startTime).ordinal());
+				}
+			} finally {
+				LoadGenerator.this.lastStopTime.set(System.nanoTime());
+				LoadGenerator.this.activeWorkers.decrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * @post Espera hasta el tiempo especificado
+	 */
+	private static void sleepUntil(long time) {
+		long remaining;
+		while ( ( remaining = time - System.nanoTime() ) > 0 ) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	private static String toHex(byte[] data) {
+		StringBuilder string = new StringBuilder();
+		for ( byte eachByte : data ) {
+			string.append(String.format("%02x", eachByte));
+		}
+		return string.toString();
+	}
+	
+	/**
+	 * @post Devuelve el percentil especificado de las latencias ordenadas especificadas
+	 */
+	private static long percentile(long[] latencies, double percentile) {
+		if ( latencies.length == 0 ) {
+			return 0;
+		}
+		
+		return latencies[(int) Math.min(latencies.length - 1, Math.ceil(latencies.length * percentile / 100) - 1)];
+	}
+	
+	private static String latencySummary(String name, long[] latencies) {
+		return String.format(Locale.ROOT, "%-10s p50 %8.2f ms   p90 %8.2f ms   p99 %8.2f ms   p999 %8.2f ms   max %8.2f ms", name,
+				percentile(latencies, 50) / 1000.0, percentile(latencies, 90) / 1000.0, percentile(latencies, 99) / 1000.0,
+				percentile(latencies, 99.9) / 1000.0, percentile(latencies, 100) / 1000.0);
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de intentos registrados hasta el momento
+	 */
+	private long attempts() {
+		long attempts = 0;
+		for ( int i = 0 ; i < this.outcomes.length() ; i++ ) {
+			attempts += this.outcomes.get(i);
+		}
+		return attempts;
+	}
+	
+	/**
+	 * @post Genera la carga, informando el progreso cada segundo, y muestra el resumen
+	 */
+	public void run() throws GeneralSecurityException {
+		long startTime = System.nanoTime();
+		long sustainedEndTime = startTime + this.rampUpTime + this.sustainedTime;
+		
+		Thread[] threads = new Thread[this.concurrency];
+		for ( int i = 0 ; i < this.concurrency ; i++ ) {
+			// El último en empezar es el primero en terminar
+			long workerStartTime = startTime + this.rampUpTime * i / this.concurrency;
+			long workerStopTime = sustainedEndTime + this.rampDownTime * ( this.concurrency - 1 - i ) / this.concurrency;
+			
+			threads[i] = new Thread(new Worker(i, workerStartTime, workerStopTime), "loadgen-worker-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		
+		// Progreso
+		long previousSuccesses = 0;
+		long previousAttempts = 0;
+		int second = 0;
+		while ( true ) {
+			long nextReportTime = startTime + TimeUnit.SECONDS.toNanos(++second);
+			boolean alive = true;
+			
+			// Esperar el próximo informe, o a que terminen todos los hilos
+			while ( alive && ( System.nanoTime() - nextReportTime < 0 ) ) {
+				alive = false;
+				for ( Thread eachThread : threads ) {
+					alive |= eachThread.isAlive();
+				}
+				
+				if ( alive ) {
+					sleepUntil(Math.min(nextReportTime, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10)));
+				}
+			}
+			
+			long successes = this.outcomes.get(Outcome.SUCCESS.ordinal());
+			long attempts = this.attempts();
+			System.out.println(String.format(Locale.ROOT, "%5ds  active %5d   handshakes/s %8d   errors/s %8d   total %10d", second, this.activeWorkers.get(),
+					successes - previousSuccesses, ( attempts - successes ) - ( previousAttempts - previousSuccesses ), attempts));
+			previousSuccesses = successes;
+			previousAttempts = attempts;
+			
+			if ( !alive ) {
+				break;
+			}
+		}
+		
+		double elapsedSeconds = ( this.lastStopTime.get() - startTime ) / 1e9;
+		
+		// Resumen
+		long attempts = this.attempts();
+		long successes = this.outcomes.get(Outcome.SUCCESS.ordinal());
+		
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "Attempts %d, successful %d (%.2f%%) in %.1f s: %.1f handshakes/s",
+				attempts, successes, ( attempts != 0 ) ? successes * 100.0 / attempts : 0.0, elapsedSeconds, successes / elapsedSeconds));
+		System.out.println(latencySummary("Handshake", LatencyRecorder.merge(this.handshakeLatencies)));
+		System.out.println(latencySummary("Total", LatencyRecorder.merge(this.totalLatencies)));
+		
+		if ( attempts != successes ) {
+			System.out.println("Errors:");
+			for ( Outcome eachOutcome : Outcome.values() ) {
+				long count = this.outcomes.get(eachOutcome.ordinal());
+				if ( ( eachOutcome != Outcome.SUCCESS ) && ( count != 0 ) ) {
+					System.out.println(String.format(Locale.ROOT, "  %-20s %10d (%.2f%%)", eachOutcome, count, count * 100.0 / attempts));
+				}
+			}
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		InetSocketAddress address = null;
+		byte[] pinnedPublicKey = null;
+		int concurrency = 16;
+		long rampUpTime = 0;
+		long sustainedTime = TimeUnit.SECONDS.toNanos(10);
+		long rampDownTime = 0;
+		long maxHandshakes = 0;
+		double rate = 0;
+		int timeout = 10000;
+		
+		try {
+			for ( int i = 0 ; i < args.length ; i++ ) {
+				switch ( args[i] ) {
+				case "-k":
+					pinnedPublicKey = Files.readAllBytes(new File(args[++i]).toPath());
+					break;
+				case "-c":
+					concurrency = Integer.parseInt(args[++i]);
+					break;
+				case "-u":
+					rampUpTime = TimeUnit.MILLISECONDS.toNanos((long) ( Double.parseDouble(args[++i]) * 1000 ));
+					break;
+				case "-d":
+					sustainedTime = TimeUnit.MILLISECONDS.toNanos((long) ( Double.parseDouble(args[++i]) * 1000 ));
+					break;
+				case "-D":
+					rampDownTime = TimeUnit.MILLISECONDS.toNanos((long) ( Double.parseDouble(args[++i]) * 1000 ));
+					break;
+				case "-n":
+					maxHandshakes = Long.parseLong(args[++i]);
+					sustainedTime = Long.MAX_VALUE / 4;
+					break;
+				case "-r":
+					rate = Double.parseDouble(args[++i]);
+					break;
+				case "-t":
+					timeout = Integer.parseInt(args[++i]);
+					break;
+				default:
+					if ( args[i].startsWith("-") || ( address != null ) ) {
+						throw new IllegalArgumentException(args[i]);
+					}
+					
+					int separator = args[i].lastIndexOf(':');
+					if ( separator != -1 ) {
+						address = new InetSocketAddress(args[i].substring(0, separator), Integer.parseInt(args[i].substring(separator + 1)));
+					}
+					else {
+						address = new InetSocketAddress(args[i], DEFAULTPORT);
+					}
+				}
+			}
+			
+			if ( address == null ) {
+				throw new IllegalArgumentException("Missing host");
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Invalid parameters: " + e.getMessage());
+			System.out.println(
+					"Usage: LoadGenerator [options] <hostname>:[port number]\n\n" +
+					"Options:\n" +
+					"-k file		pinned server public key in DER format (Default: pins the first received)\n" +
+					"-c count		concurrent connections (Default: 16)\n" +
+					"-u seconds		ramp-up time (Default: 0)\n" +
+					"-d seconds		sustained load time (Default: 10)\n" +
+					"-D seconds		ramp-down time (Default: 0)\n" +
+					"-n count		stops after the specified handshakes instead of the sustained time\n" +
+					"-r rate		total handshakes per second (Default: as fast as possible)\n" +
+					"-t millis		connect and read timeout (Default: 10000)"
+			);
+			System.exit(1);
+			return;
+		}
+		
+		new LoadGenerator(address, pinnedPublicKey, concurrency, rampUpTime, sustainedTime, rampDownTime, maxHandshakes, rate, timeout).run();
+	}
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Ejecutor de benchmarks
+ * 
+ * Mide el throughput de una operación con la cantidad de hilos especificada,
+ * en iteraciones de duración fija precedidas por iteraciones de calentamiento
+ * que no se registran (Como el modo "thrpt" de JMH).
+ * Cada hilo tiene su propia instancia de la operación, y el resultado de cada
+ * ejecución se guarda para que el compilador no la elimine
+ * @author ariel
+ *
+ */
+final class BenchmarkRunner {
+	/**
+	 * Operación medida
+	 */
+	public interface Operation {
+		/**
+		 * @post Ejecuta la operación y devuelve su resultado
+		 */
+		public Object run() throws Exception;
+	}
+	
+	/**
+	 * Benchmark
+	 */
+	public interface Benchmark {
+		/**
+		 * @post Crea una instancia de la operación para un hilo
+		 */
+		public Operation newOperation() throws Exception;
+	}
+	
+	/**
+	 * Resultado de un benchmark
+	 */
+	public final static class Result {
+		private final String name;
+		private final int threads;
+		private final double[] samples;
+		
+		private Result(String name, int threads, double[] samples) {
+			this.name = name;
+			this.threads = threads;
+			this.samples = samples;
+		}
+		
+		/**
+		 * @post Devuelve el nombre del benchmark
+		 */
+		public String getName() {
+			return this.name;
+		}
+		
+		/**
+		 * @post Devuelve la cantidad de hilos
+		 */
+		public int getThreads() {
+			return this.threads;
+		}
+		
+		/**
+		 * @post Devuelve el throughput medio, en operaciones por segundo
+		 */
+		public double getScore() {
+			double sum = 0;
+			for ( double eachSample : this.samples ) {
+				sum += eachSample;
+			}
+			
+			return sum / this.samples.length;
+		}
+		
+		/**
+		 * @post Devuelve el desvío estándar del throughput entre iteraciones
+		 */
+		public double getStdev() {
+			if ( this.samples.length < 2 ) {
+				return 0;
+			}
+			
+			double score = this.getScore();
+			double sum = 0;
+			for ( double eachSample : this.samples ) {
+				sum += ( eachSample - score ) * ( eachSample - score );
+			}
+			
+			return Math.sqrt(sum / ( this.samples.length - 1 ));
+		}
+		
+		/**
+		 * @post Devuelve el tiempo medio por operación de cada hilo, en microsegundos
+		 */
+		public double getMicrosPerOperation() {
+			return this.threads * 1e6 / this.getScore();
+		}
+		
+		/**
+		 * @post Devuelve el resultado como un objeto JSON en una línea
+		 */
+		public String toJSON() {
+			StringBuilder samples = new StringBuilder();
+			for ( double eachSample : this.samples ) {
+				if ( samples.length() != 0 ) {
+					samples.append(',');
+				}
+				samples.append(String.format(Locale.ROOT, "%.3f", eachSample));
+			}
+			
+			return String.format(Locale.ROOT, "{\"benchmark\":\"%s\",\"threads\":%d,\"mode\":\"thrpt\",\"unit\":\"ops/s\",\"score\":%.3f,\"stdev\":%.3f,\"usPerOp\":%.3f,\"samples\":[%s]}",
+					this.name, this.threads, this.getScore(), this.getStdev(), this.getMicrosPerOperation(), samples);
+		}
+		
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%-36s %4d %14.1f +- %10.1f ops/s %12.3f us/op", this.name, this.threads, this.getScore(), this.getStdev(), this.getMicrosPerOperation());
+		}
+	}
+	
+	// Espaciado entre contadores de hilos distintos, para que no compartan línea de caché
+	private final static int COUNTER_STRIDE = 16;
+	
+	private final int warmUpIterations;
+	private final int measurementIterations;
+	private final long iterationTime;
+	
+	/**
+	 * @pre Las iteraciones no pueden ser negativas, tiene que haber al menos una
+	 * 		iteración de medición, y la duración tiene que ser positiva
+	 * @post Crea el ejecutor con la cantidad de iteraciones de calentamiento,
+	 * 		 la cantidad de iteraciones de medición y la duración de cada
+	 * 		 iteración en milisegundos especificadas
+	 */
+	public BenchmarkRunner(int warmUpIterations, int measurementIterations, long iterationTime) {
+		if ( ( warmUpIterations < 0 ) || ( measurementIterations < 1 ) || ( iterationTime < 1 ) ) {
+			throw new IllegalArgumentException();
+		}
+		
+		this.warmUpIterations = warmUpIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationTime = iterationTime;
+	}
+	
+	/**
+	 * @pre El nombre y el benchmark no pueden ser nulos, y tiene que haber al menos un hilo
+	 * @post Mide el benchmark especificado con la cantidad de hilos especificada,
+	 * 		 y devuelve el resultado.
+	 * 		 Si la operación falla en algún hilo, lanza la excepción
+	 */
+	public Result run(String name, int threads, Benchmark benchmark) throws Exception {
+		final Operation[] operations = new Operation[threads];
+		for ( int i = 0 ; i < threads ; i++ ) {
+			operations[i] = benchmark.newOperation();
+		}
+		
+		final AtomicLongArray counters = new AtomicLongArray(threads * COUNTER_STRIDE);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>(null);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		
+		// Último resultado de cada hilo, para que el compilador no elimine las operaciones
+		final Object[] results = new Object[threads * COUNTER_STRIDE];
+		
+		Thread[] workers = new Thread[threads];
+		for ( int i = 0 ; i < threads ; i++ ) {
+			final int index = i;
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Operation operation = operations[index];
+					long count = 0;
+					
+					try {
+						while ( !stop.get() ) {
+							results[index * COUNTER_STRIDE] = operation.run();
+							counters.lazySet(index * COUNTER_STRIDE, ++count);
+						}
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, "benchmark-" + name + "-" + i);
+			workers[i].setDaemon(true);
+		}
+		
+		for ( Thread eachWorker : workers ) {
+			eachWorker.start();
+		}
+		
+		double[] samples = new double[this.measurementIterations];
+		try {
+			for ( int i = -this.warmUpIterations ; i < this.measurementIterations ; i++ ) {
+				long startCount = sum(counters, threads);
+				long startTime = System.nanoTime();
+				
+				Thread.sleep(this.iterationTime);
+				
+				long completedOperations = sum(counters, threads) - startCount;
+				long elapsedTime = System.nanoTime() - startTime;
+				
+				if ( failure.get() != null ) {
+					throw failure.get();
+				}
+				
+				if ( i >= 0 ) {
+					samples[i] = completedOperations * 1e9 / elapsedTime;
+				}
+			}
+		} finally {
+			stop.set(true);
+			
+			for ( Thread eachWorker : workers ) {
+				eachWorker.join();
+			}
+		}
+		
+		return new Result(name, threads, samples);
+	}
+	
+	private static long sum(AtomicLongArray counters, int threads) {
+		long sum = 0;
+		for ( int i = 0 ; i < threads ; i++ ) {
+			sum += counters.get(i * COUNTER_STRIDE);
+		}
+		
+		return sum;
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Verificación del codificador de tramas autenticadas con HMAC
+ * (Ver HMACFrameCodec)
+ * 
+ * Verifica los vectores conocidos del archivo especificado, que comparte
+ * con la verificación de la capa de HMAC del cliente (hmac_layer_check.c),
+ * y etiquetas de mensajes aleatorios, contra javax.crypto.Mac HmacSHA512.
+ * También verifica que se rechacen las tramas modificadas o cortas, y los
+ * buffers sin lugar para la etiqueta. Se compila junto con el servidor y
+ * se ejecuta con:
+ * 
+ * javac -d out $(find src bench -name '*.java')
+ * java -cp out com.arielcarrizo.dynarmor.server.HMACFrameCodecCheck [test/hmac-frame-vectors.txt]
+ * 
+ * Si falla termina con una excepción que indica el caso
+ * @author ariel
+ *
+ */
+public final class HMACFrameCodecCheck {
+	private final static String MAC_ALGORITHM = "HmacSHA512";
+	
+	private final static int RANDOM_MESSAGES = 1000;
+	private final static int MAX_RANDOM_SIZE = 4096;
+	
+	// Lugar libre antes de la trama en los buffers verificados
+	private final static int FRAME_OFFSET = 7;
+	
+	private int checks;
+	
+	private HMACFrameCodecCheck() {
+		this.checks = 0;
+	}
+	
+	/**
+	 * @post Devuelve los bytes del texto hexadecimal especificado
+	 */
+	private static byte[] fromHex(String hex) {
+		if ( hex.equals("-") ) {
+			return new byte[0];
+		}
+		
+		byte[] bytes = new byte[hex.length() / 2];
+		for ( int i = 0 ; i < bytes.length ; i++ ) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * @post Devuelve un buffer, directo o no según se especifique, con el
+	 * 		 mensaje especificado entre la posición y el límite, lugar libre
+	 * 		 antes y lugar para la etiqueta después
+	 */
+	private static ByteBuffer frameBuffer(byte[] message, boolean isDirect) {
+		int capacity = FRAME_OFFSET + HMACFrameCodec.getFrameSize(message.length);
+		ByteBuffer frame = isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		
+		frame.position(FRAME_OFFSET);
+		frame.put(message);
+		frame.limit(frame.position());
+		frame.position(FRAME_OFFSET);
+		
+		return frame;
+	}
+	
+	/**
+	 * @post Verifica que el codificador especificado codifique el mensaje
+	 * 		 especificado con la etiqueta especificada, que la trama sea
+	 * 		 auténtica y que cualquier byte modificado la invalide
+	 */
+	private void check(String name, HMACFrameCodec codec, byte[] message, byte[] expectedTag) {
+		for ( boolean isDirect : new boolean[] { false, true } ) {
+			String caseName = name + ( isDirect ? " (Direct)" : " (Heap)" );
+			
+			ByteBuffer frame = frameBuffer(message, isDirect);
+			codec.encode(frame);
+			
+			if ( ( frame.position() != FRAME_OFFSET ) || ( frame.remaining() != HMACFrameCodec.getFrameSize(message.length) ) ) {
+				throw new IllegalStateException(caseName + ": Wrong encoded frame bounds");
+			}
+			
+			byte[] tag = new byte[HMACFrameCodec.TAG_SIZE];
+			for ( int i = 0 ; i < tag.length ; i++ ) {
+				tag[i] = frame.get(FRAME_OFFSET + message.length + i);
+			}
+			
+			if ( !Arrays.equals(tag, expectedTag) ) {
+				throw new IllegalStateException(caseName + ": Wrong tag");
+			}
+			
+			// Modificar cada byte, de la etiqueta y de algunas posiciones del mensaje
+			for ( int i = 0 ; i < frame.remaining() ; i += ( i < message.length ) ? Math.max(1, message.length / 16) : 1 ) {
+				int index = FRAME_OFFSET + i;
+				
+				frame.put(index, (byte) ( frame.get(index) ^ 1 ));
+				boolean isAuthentic = codec.decode(frame);
+				frame.put(index, (byte) ( frame.get(index) ^ 1 ));
+				
+				if ( isAuthentic || ( frame.remaining() != HMACFrameCodec.getFrameSize(message.length) ) ) {
+					throw new IllegalStateException(caseName + ": Tampered frame accepted or modified at " + i);
+				}
+			}
+			
+			if ( !codec.decode(frame) || ( frame.position() != FRAME_OFFSET ) || ( frame.remaining() != message.length ) ) {
+				throw new IllegalStateException(caseName + ": Authentic frame rejected");
+			}
+			
+			this.checks++;
+		}
+	}
+	
+	/**
+	 * @post Verifica los vectores del archivo especificado
+	 */
+	private void checkVectors(File vectorsFile) throws Exception {
+		byte[] key = null;
+		List<String[]> vectors = new ArrayList<String[]>();
+		
+		for ( String eachLine : Files.readAllLines(vectorsFile.toPath(), StandardCharsets.UTF_8) ) {
+			eachLine = eachLine.trim();
+			
+			if ( eachLine.isEmpty() || eachLine.startsWith("#") ) {
+				continue;
+			}
+			
+			String[] fields = eachLine.split(" ");
+			if ( fields.length != 2 ) {
+				throw new IllegalStateException("Invalid vector line: '" + eachLine + "'");
+			}
+			
+			if ( fields[0].equals("key") ) {
+				key = fromHex(fields[1]);
+			}
+			else {
+				vectors.add(fields);
+			}
+		}
+		
+		if ( ( key == null ) || vectors.isEmpty() ) {
+			throw new IllegalStateException("Missing key or vectors");
+		}
+		
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+		
+		HMACFrameCodec codec = new HMACFrameCodec(key);
+		
+		for ( String[] eachVector : vectors ) {
+			byte[] message = fromHex(eachVector[0]);
+			byte[] tag = fromHex(eachVector[1]);
+			String name = "Vector of " + message.length + " bytes";
+			
+			if ( !Arrays.equals(mac.doFinal(message), tag) ) {
+				throw new IllegalStateException(name + ": Does not match " + MAC_ALGORITHM);
+			}
+			
+			this.check(name, codec, message, tag);
+		}
+		
+		codec.destroy();
+	}
+	
+	/**
+	 * @post Verifica mensajes aleatorios contra Mac, con la semilla especificada
+	 */
+	private void checkRandom(long seed) throws Exception {
+		Random random = new Random(seed);
+		
+		byte[] key = new byte[HMACFrameCodec.KEY_SIZE];
+		random.nextBytes(key);
+		
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+		
+		HMACFrameCodec codec = new HMACFrameCodec(key);
+		
+		for ( int i = 0 ; i < RANDOM_MESSAGES ; i++ ) {
+			byte[] message = new byte[random.nextInt(MAX_RANDOM_SIZE)];
+			random.nextBytes(message);
+			
+			this.check("Random message " + i + " of " + message.length + " bytes", codec, message, mac.doFinal(message));
+		}
+		
+		// Trama más corta que la etiqueta
+		if ( codec.decode(ByteBuffer.allocate(HMACFrameCodec.TAG_SIZE - 1)) ) {
+			throw new IllegalStateException("Short frame accepted");
+		}
+		
+		// Sin lugar para la etiqueta
+		{
+			ByteBuffer frame = ByteBuffer.allocate(HMACFrameCodec.getFrameSize(16) - 1);
+			frame.limit(16);
+			
+			try {
+				codec.encode(frame);
+				throw new IllegalStateException("Frame without room for the tag encoded");
+			} catch ( IllegalArgumentException e ) {
+				if ( frame.limit() != 16 ) {
+					throw new IllegalStateException("Frame without room for the tag modified");
+				}
+			}
+		}
+		
+		codec.destroy();
+		this.checks += 2;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		File vectorsFile = new File( ( args.length != 0 ) ? args[0] : "test/hmac-frame-vectors.txt" );
+		
+		HMACFrameCodecCheck check = new HMACFrameCodecCheck();
+		check.checkVectors(vectorsFile);
+		check.checkRandom(1);
+		
+		System.out.println("HMAC frame codec: " + check.checks + " checks passed");
+	}
+}
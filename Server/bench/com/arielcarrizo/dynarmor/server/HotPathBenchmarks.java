@@ -0,0 +1,599 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.interfaces.XECPublicKey;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.arielcarrizo.dynarmor.server.BenchmarkRunner.Benchmark;
+import com.arielcarrizo.dynarmor.server.BenchmarkRunner.Operation;
+import com.arielcarrizo.dynarmor.server.BenchmarkRunner.Result;
+import com.arielcarrizo.dynarmor.server.Configuration.ShedPolicy;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramDelta;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramDeltaCache;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramGenerator;
+import com.arielcarrizo.dynarmor.server.clientprogram.MaskedClientProgramGenerator;
+
+/**
+ * Benchmarks de los caminos críticos del establecimiento de sesión
+ * 
+ * Se compila junto con el servidor y se ejecuta con:
+ * 
+ * javac -d out $(find src bench -name '*.java')
+ * java -cp out com.arielcarrizo.dynarmor.server.HotPathBenchmarks -k test/keys -o results.jsonl
+ * 
+ * Los resultados se escriben como líneas JSON, y se pueden comparar con
+ * los de otro commit con la opción -c
+ * @author ariel
+ *
+ */
+public final class HotPathBenchmarks {
+	private final static byte[] HKDF_INFO = "dynarmor session v1".getBytes(StandardCharsets.US_ASCII);
+	
+	private final static int AES_KEY_IV_LENGTH = (SessionEncryptionSettings.AES_SESSION_KEY_BITS_SIZE + SessionEncryptionSettings.AES_SESSION_IV_BITS_SIZE) / 8;
+	
+	// Tamaño del programa del cliente enviado en el establecimiento de sesión completo
+	private final static int CLIENT_PROGRAM_SIZE = 4096;
+	
+	// Tamaño del mensaje de las tramas autenticadas con HMAC
+	private final static int HMAC_FRAME_MESSAGE_SIZE = 256;
+	
+	// Bytes reemplazados e insertados en la versión nueva del programa del cliente
+	private final static int CLIENT_PROGRAM_PATCH_SIZE = 64;
+	
+	private final static Pattern RESULT_PATTERN = Pattern.compile("\"benchmark\":\"([^\"]*)\",\"threads\":(\\d+).*\"score\":([0-9.]+)");
+	
+	private HotPathBenchmarks() {};
+	
+	/**
+	 * @post Devuelve los datos de la clave de sesión cifrados con la clave pública
+	 * 		 especificada, como los envía el cliente en la versión 0 del protocolo
+	 */
+	private static byte[] encryptSessionKey(KeyPair keyPair) throws Exception {
+		byte[] aesKey_iv = new byte[AES_KEY_IV_LENGTH];
+		new SecureRandom().nextBytes(aesKey_iv);
+		
+		Cipher cipher = Cipher.getInstance(SessionEncryptionSettings.RSA_SETUP);
+		cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+		cipher.update(aesKey_iv);
+		return cipher.doFinal(SessionEncryptionSettings.newMessageDigest().digest(aesKey_iv));
+	}
+	
+	/**
+	 * @post Crea el archivo de configuración para las claves del directorio
+	 * 		 y el programa del cliente especificados
+	 */
+	private static File writeConfiguration(File keysDirectory, File clientProgramFile) throws IOException {
+		File configurationFile = File.createTempFile("dynarmor-bench", ".conf");
+		configurationFile.deleteOnExit();
+		
+		StringBuilder configuration = new StringBuilder();
+		configuration.append("ListenAddress localhost\n");
+		configuration.append("PublicRSAKeyFile ").append(new File(keysDirectory, "publickey.der")).append('\n');
+		configuration.append("PrivateRSAKeyFile ").append(new File(keysDirectory, "privatekey.der")).append('\n');
+		
+		if ( new File(keysDirectory, "ed25519privatekey.der").exists() ) {
+			configuration.append("PublicEd25519KeyFile ").append(new File(keysDirectory, "ed25519publickey.der")).append('\n');
+			configuration.append("PrivateEd25519KeyFile ").append(new File(keysDirectory, "ed25519privatekey.der")).append('\n');
+		}
+		
+		configuration.append("ClientProgramFile ").append(clientProgramFile).append('\n');
+		configuration.append("WarmUpIterations 0\n");
+		
+		Files.write(configurationFile.toPath(), configuration.toString().getBytes(StandardCharsets.US_ASCII));
+		return configurationFile;
+	}
+	
+	/**
+	 * Cliente de establecimiento de sesión completo contra el servidor local.
+	 * Reutiliza los datos que dependen sólo de las claves del servidor, para
+	 * que el costo medido sea el del servidor
+	 */
+	private final static class LoopbackClient implements Operation {
+		private final InetAddress address;
+		private final int port;
+		private final int protocolVersion;
+		private final byte[] encryptedSessionKeyData;
+		
+		private KeyPairGenerator keyPairGenerator;
+		private KeyAgreement keyAgreement;
+		private Mac mac;
+		private byte[] serverPublicKey;
+		private byte[] clientPublicKey;
+		private byte[] confirmation;
+		
+		public LoopbackClient(InetAddress address, int port, int protocolVersion, KeyPair keyPair) throws Exception {
+			this.address = address;
+			this.port = port;
+			this.protocolVersion = protocolVersion;
+			this.encryptedSessionKeyData = encryptSessionKey(keyPair);
+			
+			if ( protocolVersion == MultiThreadedServer.PROTOCOLVERSION_ECDH ) {
+				this.keyPairGenerator = KeyPairGenerator.getInstance(SessionEncryptionSettings.KEY_EXCHANGE_ALGORITHM);
+				this.keyAgreement = KeyAgreement.getInstance(SessionEncryptionSettings.KEY_EXCHANGE_ALGORITHM);
+				this.mac = Mac.getInstance(SessionEncryptionSettings.MAC_ALGORITHM);
+			}
+		}
+		
+		/**
+		 * @post Calcula la clave pública del cliente y la confirmación para
+		 * 		 la clave pública efímera del servidor especificada
+		 */
+		private void keyExchange(byte[] serverPublicKey) throws Exception {
+			KeyPair clientKeyPair = this.keyPairGenerator.generateKeyPair();
+			byte[] clientPublicKey = ECDHKeyExchange.encodePublicKey( (XECPublicKey) clientKeyPair.getPublic() );
+			
+			this.keyAgreement.init(clientKeyPair.getPrivate());
+			this.keyAgreement.doPhase(ECDHKeyExchange.decodePublicKey(serverPublicKey), true);
+			
+			byte[] salt = new byte[ECDHKeyExchange.PUBLIC_KEY_LENGTH * 2];
+			System.arraycopy(serverPublicKey, 0, salt, 0, ECDHKeyExchange.PUBLIC_KEY_LENGTH);
+			System.arraycopy(clientPublicKey, 0, salt, ECDHKeyExchange.PUBLIC_KEY_LENGTH, ECDHKeyExchange.PUBLIC_KEY_LENGTH);
+			
+			byte[] keyMaterial = HKDF.derive(this.mac, salt, this.keyAgreement.generateSecret(), HKDF_INFO, AES_KEY_IV_LENGTH + ECDHKeyExchange.CONFIRMATION_LENGTH);
+			this.mac.init(new SecretKeySpec(keyMaterial, AES_KEY_IV_LENGTH, ECDHKeyExchange.CONFIRMATION_LENGTH, SessionEncryptionSettings.MAC_ALGORITHM));
+			
+			this.serverPublicKey = serverPublicKey;
+			this.clientPublicKey = clientPublicKey;
+			this.confirmation = this.mac.doFinal(salt);
+		}
+		
+		@Override
+		public Object run() throws Exception {
+			Socket socket = new Socket(this.address, this.port);
+			try {
+				socket.setTcpNoDelay(true);
+				DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				
+				input.readFully(new byte[MultiThreadedServer.MAGICPROTOCOLHEADER.length]);
+				output.writeInt(this.protocolVersion);
+				output.flush();
+				
+				if ( input.readByte() != 0 ) {
+					throw new IOException("Protocol version rejected");
+				}
+				
+				input.readFully(new byte[input.readInt()]);
+				
+				if ( this.protocolVersion == MultiThreadedServer.PROTOCOLVERSION_ECDH ) {
+					byte[] serverPublicKey = new byte[ECDHKeyExchange.PUBLIC_KEY_LENGTH];
+					input.readFully(serverPublicKey);
+					input.readFully(new byte[ECDHKeyExchange.SIGNATURE_LENGTH]);
+					
+					if ( !Arrays.equals(serverPublicKey, this.serverPublicKey) ) {
+						this.keyExchange(serverPublicKey);
+					}
+					
+					output.write(this.clientPublicKey);
+					output.write(this.confirmation);
+				}
+				else {
+					output.writeInt(this.encryptedSessionKeyData.length);
+					output.write(this.encryptedSessionKeyData);
+				}
+				output.flush();
+				
+				// Recibir el programa del cliente cifrado hasta que el servidor cierre la conexión
+				long received = 0;
+				byte[] buffer = new byte[SealedChunkEncoder.MAX_RECORD_SIZE];
+				int count;
+				while ( ( count = input.read(buffer) ) != -1 ) {
+					received += count;
+				}
+				
+				if ( received < CLIENT_PROGRAM_SIZE ) {
+					throw new IOException("Handshake failed");
+				}
+				
+				return buffer;
+			} finally {
+				socket.close();
+			}
+		}
+	}
+	
+	/**
+	 * @post Compara los resultados especificados con los del archivo de
+	 * 		 resultados especificado, y muestra la variación
+	 */
+	private static void compare(List<Result> results, File baselineFile, PrintStream output) throws IOException {
+		Map<String, Double> baseline = new HashMap<String, Double>();
+		for ( String eachLine : Files.readAllLines(baselineFile.toPath(), StandardCharsets.UTF_8) ) {
+			Matcher matcher = RESULT_PATTERN.matcher(eachLine);
+			if ( matcher.find() ) {
+				baseline.put(matcher.group(1) + "/" + matcher.group(2), Double.parseDouble(matcher.group(3)));
+			}
+		}
+		
+		output.println();
+		output.println(String.format(Locale.ROOT, "%-36s %4s %14s %14s %8s", "Benchmark", "Thr", "Baseline", "Current", "Change"));
+		for ( Result eachResult : results ) {
+			Double baselineScore = baseline.get(eachResult.getName() + "/" + eachResult.getThreads());
+			if ( baselineScore != null ) {
+				output.println(String.format(Locale.ROOT, "%-36s %4d %14.1f %14.1f %+7.1f%%", eachResult.getName(), eachResult.getThreads(), baselineScore, eachResult.getScore(), ( eachResult.getScore() / baselineScore - 1 ) * 100));
+			}
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		File keysDirectory = new File("test/keys");
+		File outputFile = null;
+		File baselineFile = null;
+		Pattern filter = Pattern.compile(".*");
+		int warmUpIterations = 3;
+		int measurementIterations = 5;
+		long iterationTime = 1000;
+		
+		for ( int i = 0 ; i < args.length ; i++ ) {
+			switch ( args[i] ) {
+			case "-k":
+				keysDirectory = new File(args[++i]);
+				break;
+			case "-o":
+				outputFile = new File(args[++i]);
+				break;
+			case "-c":
+				baselineFile = new File(args[++i]);
+				break;
+			case "-b":
+				filter = Pattern.compile(args[++i]);
+				break;
+			case "-wi":
+				warmUpIterations = Integer.parseInt(args[++i]);
+				break;
+			case "-i":
+				measurementIterations = Integer.parseInt(args[++i]);
+				break;
+			case "-r":
+				iterationTime = Long.parseLong(args[++i]);
+				break;
+			default:
+				System.out.println(
+						"Usage: HotPathBenchmarks [options]\n\n" +
+						"Options:\n" +
+						"-k dir			key pair directory (Default: test/keys)\n" +
+						"-o file		writes the results as JSON lines\n" +
+						"-c file		compares the results with a previous results file\n" +
+						"-b regex		runs only the matching benchmarks\n" +
+						"-wi count		warm-up iterations (Default: 3)\n" +
+						"-i count		measurement iterations (Default: 5)\n" +
+						"-r millis		iteration time (Default: 1000)"
+				);
+				System.exit(1);
+			}
+		}
+		
+		// Los errores de conexión esperados no son parte de la medición
+		Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).setLevel(Level.SEVERE);
+		
+		File clientProgramFile = File.createTempFile("dynarmor-bench", ".bin");
+		clientProgramFile.deleteOnExit();
+		final byte[] clientProgram = new byte[CLIENT_PROGRAM_SIZE];
+		new SecureRandom().nextBytes(clientProgram);
+		Files.write(clientProgramFile.toPath(), clientProgram);
+		
+		Configuration.load(writeConfiguration(keysDirectory, clientProgramFile));
+		final Configuration configuration = Configuration.instance();
+		final CryptoContextPool cryptoContextPool = configuration.getCryptoContextPool();
+		final KeyPair keyPair = configuration.getKeyPair();
+		configuration.startClientProgramPools();
+		
+		// Servidor local
+		final ServerSocket serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+		MultiThreadedServer server = new MultiThreadedServer(serverSocket, WorkerExecutors.threadPerTask(), ShedPolicy.REJECT, ServerServices.defaults());
+		new Thread(server, "benchmark-server").start();
+		
+		final int cores = Runtime.getRuntime().availableProcessors();
+		final byte[] encryptedSessionKeyData = encryptSessionKey(keyPair);
+		
+		BenchmarkRunner runner = new BenchmarkRunner(warmUpIterations, measurementIterations, iterationTime);
+		List<Result> results = new ArrayList<Result>();
+		
+		Map<String, Benchmark> benchmarks = new LinkedHashMap<String, Benchmark>();
+		Map<String, int[]> benchmarkThreads = new HashMap<String, int[]>();
+		
+		// Descifrado RSA-PKCS1 de los datos de la clave de sesión
+		benchmarks.put("rsaSessionKeyDecrypt", new Benchmark() {
+			@Override
+			public Operation newOperation() throws Exception {
+				final CryptoContext cryptoContext = cryptoContextPool.acquire();
+				return new Operation() {
+					@Override
+					public Object run() throws Exception {
+						return cryptoContext.getRSADecryptCipher().doFinal(encryptedSessionKeyData);
+					}
+				};
+			}
+		});
+		
+		// Verificación con SHA-512 de la clave y el IV descifrados
+		benchmarks.put("sessionKeyVerify", new Benchmark() {
+			@Override
+			public Operation newOperation() throws Exception {
+				final MessageDigest messageDigest = SessionEncryptionSettings.newMessageDigest();
+				final byte[] decryptedSessionKeyData = cryptoContextPool.acquire().getRSADecryptCipher().doFinal(encryptedSessionKeyData);
+				
+				return new Operation() {
+					@Override
+					public Object run() throws Exception {
+						byte[] aesKey_iv = Arrays.copyOfRange(decryptedSessionKeyData, 0, AES_KEY_IV_LENGTH);
+						byte[] hash = Arrays.copyOfRange(decryptedSessionKeyData, AES_KEY_IV_LENGTH, AES_KEY_IV_LENGTH + messageDigest.getDigestLength());
+						
+						if ( !Arrays.equals(hash, messageDigest.digest(aesKey_iv)) ) {
+							throw new IllegalStateException("Verification failed");
+						}
+						
+						return aesKey_iv;
+					}
+				};
+			}
+		});
+		
+		// Descifrado y verificación, como en el establecimiento de sesión
+		benchmarks.put("sessionKeyDecode", new Benchmark() {
+			@Override
+			public Operation newOperation() throws Exception {
+				final CryptoContext cryptoContext = cryptoContextPool.acquire();
+				return new Operation() {
+					@Override
+					public Object run() throws Exception {
+						return SessionKeyDecoder.decode(cryptoContext, null, encryptedSessionKeyData);
+					}
+				};
+			}
+		});
+		
+		// Codificación de la clave pública RSA en la respuesta de la versión 0
+		benchmarks.put("rsaPublicKeyEncoding", new Benchmark() {
+			@Override
+			public Operation newOperation() throws Exception {
+				return new Operation() {
+					@Override
+					public Object run() throws Exception {
+						byte[] publicKeyData = keyPair.getPublic().getEncoded();
+						return ByteBuffer.allocate(1 + 4 + publicKeyData.length)
+								.put((byte) 0)
+								.putInt(publicKeyData.length)
+								.put(publicKeyData)
+								.array();
+					}
+				};
+			}
+		});
+		
+		// Codificación de la clave pública efímera X25519 de la versión 1
+		benchmarks.put("x25519PublicKeyEncoding", new Benchmark() {
+			@Override
+			public Operation newOperation() throws Exception {
+				final XECPublicKey publicKey = (XECPublicKey) KeyPairGenerator.getInstance(SessionEncryptionSettings.KEY_EXCHANGE_ALGORITHM).generateKeyPair().getPublic();
+				return new Operation() {
+					@Override
+					public Object run() throws Exception {
+						return ECDHKeyExchange.encodePublicKey(publicKey);
+					}
+				};
+			}
+		});
+		
+		// Codificación y verificación de tramas autenticadas con HMAC
+		final byte[] hmacKey = new byte[HMACFrameCodec.KEY_SIZE];
+		new SecureRandom().nextBytes(hmacKey);
+		
+		benchmarks.put("hmacFrameEncode", new Benchmark() {
+			@Override
+			public Operation newOperation() throws Exception {
+				final HMACFrameCodec codec = new HMACFrameCodec(hmacKey);
+				final ByteBuffer frame = ByteBuffer.allocate(HMACFrameCodec.getFrameSize(HMAC_FRAME_MESSAGE_SIZE));
+				
+				return new Operation() {
+					@Override
+					public Object run() throws Exception {
+						frame.position(0);
+						frame.limit(HMAC_FRAME_MESSAGE_SIZE);
+						codec.encode(frame);
+						return frame;
+					}
+				};
+			}
+		});
+		
+		benchmarks.put("hmacFrameDecode", new Benchmark() {
+			@Override
+			public Operation newOperation() throws Exception {
+				final HMACFrameCodec codec = new HMACFrameCodec(hmacKey);
+				final ByteBuffer frame = ByteBuffer.allocate(HMACFrameCodec.getFrameSize(HMAC_FRAME_MESSAGE_SIZE));
+				frame.limit(HMAC_FRAME_MESSAGE_SIZE);
+				codec.encode(frame);
+				
+				return new Operation() {
+					@Override
+					public Object run() throws Exception {
+						frame.position(0);
+						frame.limit(frame.capacity());
+						
+						if ( !codec.decode(frame) ) {
+							throw new IllegalStateException("Verification failed");
+						}
+						
+						return frame;
+					}
+				};
+			}
+		});
+		
+		// Programa del cliente completo y codificado respecto de la versión anterior,
+		// con un tramo reemplazado y otro insertado
+		final byte[] nextClientProgram = new byte[CLIENT_PROGRAM_SIZE + CLIENT_PROGRAM_PATCH_SIZE];
+		{
+			int patchPosition = CLIENT_PROGRAM_SIZE / 2;
+			byte[] patch = new byte[CLIENT_PROGRAM_PATCH_SIZE * 2];
+			new SecureRandom().nextBytes(patch);
+			
+			ByteBuffer.wrap(nextClientProgram)
+					.put(clientProgram, 0, patchPosition)
+					.put(patch)
+					.put(clientProgram, patchPosition + CLIENT_PROGRAM_PATCH_SIZE, CLIENT_PROGRAM_SIZE - patchPosition - CLIENT_PROGRAM_PATCH_SIZE);
+		}
+		
+		final byte[] clientProgramHash = ClientProgramDeltaCache.newMessageDigest().digest(clientProgram);
+		{
+			byte[] delta = ClientProgramDelta.encode(clientProgram, nextClientProgram, ClientProgramDeltaCache.newMessageDigest().digest(nextClientProgram));
+			if ( !Arrays.equals(ClientProgramDelta.apply(clientProgram, delta), nextClientProgram) ) {
+				throw new IllegalStateException("Client program delta verification failed");
+			}
+			
+			System.out.println("Client program delta: " + delta.length + " bytes for " + nextClientProgram.length + " bytes");
+		}
+		
+		final ClientProgramDeltaCache clientProgramDeltaCache = new ClientProgramDeltaCache(1, CLIENT_PROGRAM_SIZE * 4);
+		clientProgramDeltaCache.setCurrent(Collections.singletonList(ByteBuffer.wrap(clientProgram)), -1);
+		clientProgramDeltaCache.setCurrent(Collections.singletonList(ByteBuffer.wrap(nextClientProgram)), -1);
+		
+		benchmarks.put("clientProgramFull", new Benchmark() {
+			@Override
+			public Operation newOperation() throws Exception {
+				final ClientProgramGenerator generator = new MaskedClientProgramGenerator(Collections.singletonList(ByteBuffer.wrap(nextClientProgram)));
+				return new Operation() {
+					@Override
+					public Object run() throws Exception {
+						return generator.generate();
+					}
+				};
+			}
+		});
+		
+		benchmarks.put("clientProgramDelta", new Benchmark() {
+			@Override
+			public Operation newOperation() throws Exception {
+				return new Operation() {
+					@Override
+					public Object run() throws Exception {
+						return clientProgramDeltaCache.takeDelta(clientProgramHash, false);
+					}
+				};
+			}
+		});
+		
+		// Establecimiento de sesión completo por loopback
+		final int[] handshakeThreads = ( cores > 1 ) ? new int[] { 1, cores, cores * 4 } : new int[] { 1, 4 };
+		
+		benchmarks.put("loopbackHandshakeV0", new Benchmark() {
+			@Override
+			public Operation newOperation() throws Exception {
+				return new LoopbackClient(serverSocket.getInetAddress(), serverSocket.getLocalPort(), MultiThreadedServer.PROTOCOLVERSION, keyPair);
+			}
+		});
+		benchmarkThreads.put("loopbackHandshakeV0", handshakeThreads);
+		
+		if ( configuration.getSigningKeyPair() != null ) {
+			benchmarks.put("loopbackHandshakeV1", new Benchmark() {
+				@Override
+				public Operation newOperation() throws Exception {
+					return new LoopbackClient(serverSocket.getInetAddress(), serverSocket.getLocalPort(), MultiThreadedServer.PROTOCOLVERSION_ECDH, keyPair);
+				}
+			});
+			benchmarkThreads.put("loopbackHandshakeV1", handshakeThreads);
+		}
+		
+		PrintStream resultsOutput = null;
+		if ( outputFile != null ) {
+			resultsOutput = new PrintStream(new FileOutputStream(outputFile), true, "UTF-8");
+			resultsOutput.println(String.format(Locale.ROOT, "{\"java\":\"%s\",\"vm\":\"%s\",\"cores\":%d,\"timestamp\":\"%s\"}",
+					System.getProperty("java.version"), System.getProperty("java.vm.name"), cores, Instant.now()));
+		}
+		
+		System.out.println(String.format(Locale.ROOT, "%-36s %4s %14s   %10s       %12s", "Benchmark", "Thr", "Score", "Stdev", "Time"));
+		for ( Map.Entry<String, Benchmark> eachBenchmark : benchmarks.entrySet() ) {
+			if ( filter.matcher(eachBenchmark.getKey()).find() ) {
+				int[] threads = benchmarkThreads.containsKey(eachBenchmark.getKey()) ? benchmarkThreads.get(eachBenchmark.getKey()) : new int[] { 1 };
+				
+				for ( int eachThreads : threads ) {
+					Result result = runner.run(eachBenchmark.getKey(), eachThreads, eachBenchmark.getValue());
+					results.add(result);
+					System.out.println(result);
+					
+					if ( resultsOutput != null ) {
+						resultsOutput.println(result.toJSON());
+					}
+				}
+			}
+		}
+		
+		if ( resultsOutput != null ) {
+			resultsOutput.close();
+		}
+		
+		if ( baselineFile != null ) {
+			compare(results, baselineFile, System.out);
+		}
+		
+		server.stop();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server.clientprogram;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Verificación de ida y vuelta de la codificación diferencial del programa
+ * del cliente (Ver ClientProgramDelta y ClientProgramDeltaCache)
+ * 
+ * Codifica y reconstruye pares de versiones en los casos límite (Programa
+ * base vacío, programas más cortos que un bloque, versiones iguales) y en
+ * pares aleatorios, y verifica que la reconstrucción sea igual a la versión
+ * destino, también con las codificaciones de la caché con distintas memorias
+ * máximas. Se compila junto con el servidor y se ejecuta con:
+ * 
+ * javac -d out $(find src bench -name '*.java')
+ * java -cp out com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramDeltaCheck [semilla]
+ * 
+ * Si falla termina con una excepción que indica el caso
+ * @author ariel
+ *
+ */
+public final class ClientProgramDeltaCheck {
+	// Longitud de los bloques indexados del programa base (Ver ClientProgramDelta)
+	private final static int MATCH_SIZE = 16;
+	
+	private final static int RANDOM_PAIRS = 2000;
+	private final static int MAX_RANDOM_SIZE = 4096;
+	
+	private final Random random;
+	private int checks;
+	
+	private ClientProgramDeltaCheck(long seed) {
+		this.random = new Random(seed);
+		this.checks = 0;
+	}
+	
+	/**
+	 * @post Devuelve bytes aleatorios de la longitud especificada
+	 */
+	private byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		this.random.nextBytes(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * @post Devuelve la concatenación de los arreglos especificados
+	 */
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for ( byte[] eachPart : parts ) {
+			length += eachPart.length;
+		}
+		
+		ByteBuffer result = ByteBuffer.allocate(length);
+		for ( byte[] eachPart : parts ) {
+			result.put(eachPart);
+		}
+		
+		return result.array();
+	}
+	
+	/**
+	 * @post Devuelve una versión derivada del programa especificado, con
+	 * 		 porciones copiadas de posiciones arbitrarias e inserciones aleatorias
+	 */
+	private byte[] mutate(byte[] base) {
+		ByteBuffer result = ByteBuffer.allocate(MAX_RANDOM_SIZE * 2);
+		
+		while ( result.remaining() > MAX_RANDOM_SIZE ) {
+			int length = this.random.nextInt(MATCH_SIZE * 8);
+			
+			if ( ( base.length != 0 ) && this.random.nextBoolean() ) {
+				int offset = this.random.nextInt(base.length);
+				result.put(base, offset, Math.min(length, base.length - offset));
+			}
+			else {
+				result.put(this.randomBytes(length));
+			}
+			
+			if ( this.random.nextInt(8) == 0 ) {
+				break;
+			}
+		}
+		
+		return Arrays.copyOf(result.array(), result.position());
+	}
+	
+	/**
+	 * @post Verifica que la codificación de la versión destino respecto de la
+	 * 		 versión base especificadas la reconstruya, y devuelve la codificación
+	 */
+	private byte[] check(String name, byte[] base, byte[] target) {
+		byte[] hash = ClientProgramDeltaCache.newMessageDigest().digest(target);
+		byte[] delta = ClientProgramDelta.encode(base, target, hash);
+		
+		if ( !Arrays.equals(Arrays.copyOf(delta, ClientProgramDelta.HASH_SIZE), hash) ) {
+			throw new IllegalStateException(name + ": Wrong target hash");
+		}
+		
+		if ( !Arrays.equals(ClientProgramDelta.apply(base, delta), target) ) {
+			throw new IllegalStateException(name + ": Round trip failed (base " + base.length + " bytes, target " + target.length + " bytes)");
+		}
+		
+		this.checks++;
+		return delta;
+	}
+	
+	/**
+	 * @post Desenmascara el programa especificado como lo hace el cargador
+	 * 		 del cliente
+	 */
+	private static byte[] unmask(ClientProgram clientProgram) throws Exception {
+		ByteBuffer code = clientProgram.getCode();
+		
+		byte[] seed = new byte[MaskedClientProgramGenerator.SEED_LENGTH];
+		code.get(seed);
+		
+		byte[] masked = new byte[code.remaining()];
+		code.get(masked);
+		
+		Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(seed, "AES"), new IvParameterSpec(new byte[16]));
+		return cipher.doFinal(masked);
+	}
+	
+	/**
+	 * @post Verifica que la codificación enviada por la caché especificada
+	 * 		 al cliente con la versión base especificada reconstruya la versión
+	 * 		 destino especificada
+	 */
+	private void checkCache(String name, ClientProgramDeltaCache cache, byte[] base, byte[] target) throws Exception {
+		ClientProgram clientProgram = cache.takeDelta(ClientProgramDeltaCache.newMessageDigest().digest(base), false);
+		
+		if ( clientProgram == null ) {
+			throw new IllegalStateException(name + ": No delta");
+		}
+		
+		if ( !Arrays.equals(ClientProgramDelta.apply(base, unmask(clientProgram)), target) ) {
+			throw new IllegalStateException(name + ": Round trip failed");
+		}
+		
+		this.checks++;
+	}
+	
+	private void run() throws Exception {
+		final byte[] program = this.randomBytes(MAX_RANDOM_SIZE);
+		final byte[] shortProgram = this.randomBytes(MATCH_SIZE - 1);
+		final byte[] empty = new byte[0];
+		
+		// Programa base vacío
+		this.check("Empty base and target", empty, empty);
+		this.check("Empty base", empty, program);
+		this.check("Empty base, short target", empty, shortProgram);
+		this.check("Empty target", program, empty);
+		
+		// Versión destino más corta que un bloque
+		this.check("Short target", program, Arrays.copyOfRange(program, 100, 100 + MATCH_SIZE - 1));
+		this.check("Short unrelated target", program, shortProgram);
+		this.check("Target of one block", program, Arrays.copyOfRange(program, 100, 100 + MATCH_SIZE));
+		
+		// Programa base más corto que un bloque
+		this.check("Short base", shortProgram, concat(shortProgram, program, shortProgram));
+		this.check("Short base and target", shortProgram, shortProgram);
+		this.check("Base of one block", Arrays.copyOf(program, MATCH_SIZE), program);
+		
+		// Versiones iguales, que se codifican con una sola copia
+		{
+			byte[] delta = this.check("Identical versions", program, program);
+			if ( delta.length != ClientProgramDelta.HEADER_SIZE + 1 + 4 + 4 ) {
+				throw new IllegalStateException("Identical versions: Not a single copy (" + delta.length + " bytes)");
+			}
+		}
+		
+		// Desplazamientos no alineados con los bloques
+		for ( int i = 1 ; i < MATCH_SIZE ; i++ ) {
+			this.check("Shift " + i, program, concat(this.randomBytes(i), program));
+			this.check("Truncation " + i, program, Arrays.copyOfRange(program, i, program.length - i));
+		}
+		
+		// Pares aleatorios
+		for ( int i = 0 ; i < RANDOM_PAIRS ; i++ ) {
+			byte[] base = ( i % 16 == 0 ) ? this.randomBytes(this.random.nextInt(MATCH_SIZE * 2)) : this.mutate(program);
+			this.check("Random pair " + i, base, this.mutate(base));
+		}
+		
+		// Caché, con la versión actual vuelta a establecer
+		{
+			byte[] nextProgram = concat(Arrays.copyOf(program, 1000), this.randomBytes(64), Arrays.copyOfRange(program, 1000, program.length));
+			
+			ClientProgramDeltaCache cache = new ClientProgramDeltaCache(1, MAX_RANDOM_SIZE * 4);
+			cache.setCurrent(Collections.singletonList(ByteBuffer.wrap(program)), -1);
+			cache.setCurrent(Collections.singletonList(ByteBuffer.wrap(nextProgram)), -1);
+			cache.setCurrent(Collections.singletonList(ByteBuffer.wrap(nextProgram)), -1);
+			
+			this.checkCache("Cache previous version", cache, program, nextProgram);
+			this.checkCache("Cache identical version", cache, nextProgram, nextProgram);
+			
+			// Con la memoria máxima, desde que no entra la versión actual hasta que entran todas las codificaciones
+			for ( long maxMemory = program.length ; maxMemory <= ( program.length + nextProgram.length ) * 2 ; maxMemory += 16 ) {
+				ClientProgramDeltaCache boundedCache = new ClientProgramDeltaCache(1, maxMemory);
+				boundedCache.setCurrent(Collections.singletonList(ByteBuffer.wrap(program)), -1);
+				boundedCache.setCurrent(Collections.singletonList(ByteBuffer.wrap(nextProgram)), -1);
+				
+				if ( boundedCache.getRetainedBytes() > maxMemory ) {
+					throw new IllegalStateException("Cache max memory " + maxMemory + ": Retained " + boundedCache.getRetainedBytes() + " bytes");
+				}
+				
+				if ( boundedCache.takeDelta(ClientProgramDeltaCache.newMessageDigest().digest(program), false) != null ) {
+					this.checkCache("Cache max memory " + maxMemory, boundedCache, program, nextProgram);
+				}
+				else if ( maxMemory >= ( program.length + nextProgram.length ) * 2 ) {
+					throw new IllegalStateException("Cache max memory " + maxMemory + ": No delta");
+				}
+			}
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		long seed = ( args.length != 0 ) ? Long.parseLong(args[0]) : 1;
+		
+		ClientProgramDeltaCheck check = new ClientProgramDeltaCheck(seed);
+		check.run();
+		
+		System.out.println("Client program delta: " + check.checks + " checks passed (seed " + seed + ")");
+	}
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Handler de logs asincrónico
+ * 
+ * Los registros se encolan en un buffer circular acotado sin bloqueos,
+ * y un único hilo los formatea y los escribe con el handler destino.
+ * De esa forma los hilos de las conexiones no esperan la E/S ni el
+ * bloqueo del handler destino. Si el buffer está lleno, el registro
+ * se descarta y se informa la cantidad de descartados.
+ * 
+ * Las advertencias idénticas que se repiten dentro del intervalo de
+ * supresión se escriben una sola vez, y al terminar el intervalo se
+ * informa cuántas se suprimieron
+ * @author ariel
+ *
+ */
+final class AsyncLogHandler extends Handler {
+	// Cantidad máxima de mensajes distintos cuyas repeticiones se siguen
+	private final static int MAX_TRACKED_MESSAGES = 1024;
+	
+	// Espera máxima del hilo escritor sin registros
+	private final static long WRITER_IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	/**
+	 * Repeticiones de un mensaje dentro del intervalo de supresión
+	 */
+	private final static class Repetition {
+		private final LogRecord record;
+		private final String message;
+		private final long startTime;
+		private long suppressed;
+		
+		public Repetition(LogRecord record, String message, long startTime) {
+			this.record = record;
+			this.message = message;
+			this.startTime = startTime;
+			this.suppressed = 0;
+		}
+	}
+	
+	private final Handler target;
+	private final long suppressionInterval;
+	
+	// Buffer circular con números de secuencia por posición (Ver "Bounded MPMC queue", Dmitry Vyukov)
+	private final AtomicReferenceArray<LogRecord> records;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail;
+	private long head;
+	
+	private final AtomicLong dropped;
+	
+	// Sólo los usa el hilo escritor
+	private final Formatter messageFormatter;
+	private final Map<String, Repetition> repetitions;
+	
+	private final Thread writer;
+	private volatile boolean writerWaiting;
+	private volatile boolean closed;
+	
+	/**
+	 * @pre El handler destino no puede ser nulo, la capacidad tiene que ser
+	 * 		positiva y no mayor que 2^30, y el intervalo de supresión no puede ser negativo
+	 * @post Crea el handler con el handler destino, la capacidad del buffer
+	 * 		 (Se redondea a una potencia de dos) y el intervalo de supresión
+	 * 		 de advertencias repetidas en nanosegundos (0 para no suprimirlas)
+	 * 		 especificados, y arranca el hilo escritor
+	 */
+	public AsyncLogHandler(Handler target, int capacity, long suppressionInterval) {
+		if ( target == null ) {
+			throw new NullPointerException();
+		}
+		
+		if ( ( capacity < 1 ) || ( capacity > ( 1 << 30 ) ) || ( suppressionInterval < 0 ) ) {
+			throw new IllegalArgumentException();
+		}
+		
+		capacity = ( capacity > 2 ) ? Integer.highestOneBit(capacity - 1) << 1 : 2;
+		
+		this.target = target;
+		this.suppressionInterval = suppressionInterval;
+		
+		this.records = new AtomicReferenceArray<LogRecord>(capacity);
+		this.sequences = new AtomicLongArray(capacity);
+		for ( int i = 0 ; i < capacity ; i++ ) {
+			this.sequences.set(i, i);
+		}
+		this.mask = capacity - 1;
+		this.tail = new AtomicLong(0);
+		this.head = 0;
+		
+		this.dropped = new AtomicLong(0);
+		
+		this.messageFormatter = new SimpleFormatter();
+		this.repetitions = new HashMap<String, Repetition>();
+		
+		this.writerWaiting = false;
+		this.closed = false;
+		
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				AsyncLogHandler.this.write();
+			}
+		}, "dynarmor-log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+	
+	/**
+	 * @post Encola el registro especificado, o lo descarta si el buffer está lleno
+	 */
+	private boolean offer(LogRecord record) {
+		long position = this.tail.get();
+		
+		for (;;) {
+			int index = (int) ( position & this.mask );
+			long difference = this.sequences.get(index) - position;
+			
+			if ( difference == 0 ) {
+				if ( this.tail.compareAndSet(position, position + 1) ) {
+					this.records.lazySet(index, record);
+					this.sequences.set(index, position + 1);
+					return true;
+				}
+				else {
+					position = this.tail.get();
+				}
+			}
+			else if ( difference < 0 ) {
+				return false;
+			}
+			else {
+				position = this.tail.get();
+			}
+		}
+	}
+	
+	/**
+	 * @pre Sólo puede ser llamado por el hilo escritor
+	 * @post Desencola el siguiente registro, o devuelve null si no hay
+	 */
+	private LogRecord poll() {
+		int index = (int) ( this.head & this.mask );
+		
+		if ( this.sequences.get(index) != this.head + 1 ) {
+			return null;
+		}
+		
+		LogRecord record = this.records.get(index);
+		this.records.lazySet(index, null);
+		this.sequences.set(index, this.head + this.mask + 1);
+		this.head++;
+		
+		return record;
+	}
+	
+	@Override
+	public void publish(LogRecord record) {
+		if ( this.closed || !this.isLoggable(record) ) {
+			return;
+		}
+		
+		if ( this.offer(record) ) {
+			if ( this.writerWaiting ) {
+				LockSupport.unpark(this.writer);
+			}
+		}
+		else {
+			this.dropped.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * @post Escribe el resumen de las repeticiones suprimidas especificadas, si hay
+	 */
+	private void writeSuppressed(Repetition repetition, long now) {
+		if ( repetition.suppressed != 0 ) {
+			LogRecord summary = new LogRecord(repetition.record.getLevel(), "Suppressed {0} repeated messages in the last {1} s: ''{2}''");
+			summary.setLoggerName(repetition.record.getLoggerName());
+			summary.setParameters(new Object[] { repetition.suppressed, TimeUnit.NANOSECONDS.toSeconds(now - repetition.startTime), repetition.message });
+			this.target.publish(summary);
+		}
+	}
+	
+	/**
+	 * @pre Sólo puede ser llamado por el hilo escritor
+	 * @post Escribe el registro especificado, salvo que sea una advertencia
+	 * 		 repetida dentro del intervalo de supresión
+	 */
+	private void write(LogRecord record, long now) {
+		if ( ( this.suppressionInterval != 0 ) && ( record.getLevel().intValue() >= Level.WARNING.intValue() ) ) {
+			String message = this.messageFormatter.formatMessage(record);
+			String key = record.getLevel().getName() + ":" + message;
+			Repetition repetition = this.repetitions.get(key);
+			
+			if ( ( repetition != null ) && ( now - repetition.startTime < this.suppressionInterval ) ) {
+				repetition.suppressed++;
+				return;
+			}
+			
+			if ( repetition != null ) {
+				this.writeSuppressed(repetition, now);
+				this.repetitions.remove(key);
+			}
+			
+			if ( this.repetitions.size() < MAX_TRACKED_MESSAGES ) {
+				this.repetitions.put(key, new Repetition(record, message, now));
+			}
+		}
+		
+		this.target.publish(record);
+	}
+	
+	/**
+	 * @pre Sólo puede ser llamado por el hilo escritor
+	 * @post Escribe los resúmenes de las repeticiones cuyo intervalo terminó,
+	 * 		 o de todas si se especifica
+	 */
+	private void expireRepetitions(long now, boolean all) {
+		Iterator<Repetition> iterator = this.repetitions.values().iterator();
+		while ( iterator.hasNext() ) {
+			Repetition eachRepetition = iterator.next();
+			if ( all || ( now - eachRepetition.startTime >= this.suppressionInterval ) ) {
+				this.writeSuppressed(eachRepetition, now);
+				iterator.remove();
+			}
+		}
+	}
+	
+	/**
+	 * @post Escribe los registros encolados hasta que se cierra el handler
+	 */
+	private void write() {
+		long lastExpiration = System.nanoTime();
+		
+		for (;;) {
+			boolean closed = this.closed;
+			boolean written = false;
+			
+			LogRecord record;
+			while ( ( record = this.poll() ) != null ) {
+				this.write(record, System.nanoTime());
+				written = true;
+			}
+			
+			long now = System.nanoTime();
+			
+			long droppedRecords = this.dropped.getAndSet(0);
+			if ( droppedRecords != 0 ) {
+				LogRecord summary = new LogRecord(Level.WARNING, "Log buffer full, {0} records dropped");
+				summary.setParameters(new Object[] { droppedRecords });
+				this.target.publish(summary);
+				written = true;
+			}
+			
+			if ( closed || ( now - lastExpiration >= TimeUnit.SECONDS.toNanos(1) ) ) {
+				int size = this.repetitions.size();
+				this.expireRepetitions(now, closed);
+				written |= ( this.repetitions.size() != size );
+				lastExpiration = now;
+			}
+			
+			if ( written ) {
+				this.target.flush();
+			}
+			
+			if ( closed ) {
+				break;
+			}
+			
+			this.writerWaiting = true;
+			if ( this.sequences.get((int) ( this.head & this.mask )) != this.head + 1 ) {
+				LockSupport.parkNanos(this, WRITER_IDLE_WAIT);
+			}
+			this.writerWaiting = false;
+		}
+	}
+	
+	@Override
+	public void flush() {
+		LockSupport.unpark(this.writer);
+	}
+	
+	/**
+	 * @post Escribe los registros encolados, detiene el hilo escritor
+	 * 		 y cierra el handler destino
+	 */
+	@Override
+	public void close() {
+		if ( this.closed ) {
+			return;
+		}
+		this.closed = true;
+		
+		LockSupport.unpark(this.writer);
+		try {
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		this.target.close();
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool de buffers de tamaño fijo para el establecimiento de sesión
+ * 
+ * Evita reservar los buffers de lectura y escritura en cada conexión.
+ * Como el pool de contextos criptográficos, sólo acota los buffers libres
+ * @author ariel
+ *
+ */
+final class ByteBufferPool {
+	private final int bufferSize;
+	private final int capacity;
+	
+	private final Queue<ByteBuffer> idleBuffers;
+	private final AtomicInteger idleBuffersCount;
+	
+	/**
+	 * @pre El tamaño de los buffers y la capacidad tienen que ser positivos
+	 * @post Crea el pool con el tamaño de los buffers y el número máximo
+	 * 		 de buffers libres especificados
+	 */
+	public ByteBufferPool(int bufferSize, int capacity) {
+		if ( bufferSize < 1 ) {
+			throw new IllegalArgumentException("Invalid buffer size");
+		}
+		
+		if ( capacity < 1 ) {
+			throw new IllegalArgumentException("Invalid capacity");
+		}
+		
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+		this.idleBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.idleBuffersCount = new AtomicInteger(0);
+	}
+	
+	/**
+	 * @post Devuelve el tamaño de los buffers
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+	
+	/**
+	 * @post Obtiene un buffer libre vacío, o crea uno nuevo si no hay
+	 * 		 ninguno. Hay que devolverlo con release() al terminar de usarlo
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = this.idleBuffers.poll();
+		
+		if ( buffer != null ) {
+			this.idleBuffersCount.decrementAndGet();
+			buffer.clear();
+		}
+		else {
+			buffer = ByteBuffer.allocate(this.bufferSize);
+		}
+		
+		return buffer;
+	}
+	
+	/**
+	 * @pre El buffer no puede ser usado después de devolverlo
+	 * @post Devuelve el buffer al pool, o lo descarta si el pool está lleno
+	 * 		 o no es del tamaño del pool
+	 */
+	public void release(ByteBuffer buffer) {
+		if ( buffer.capacity() != this.bufferSize ) {
+			return;
+		}
+		
+		if ( this.idleBuffersCount.incrementAndGet() <= this.capacity ) {
+			this.idleBuffers.add(buffer);
+		}
+		else {
+			this.idleBuffersCount.decrementAndGet();
+		}
+	}
+}
@@ -40,23 +40,37 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
 import java.security.spec.EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.logging.ConsoleHandler;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
+import java.util.zip.Deflater;
+
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramCompressor;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramDeltaCache;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramPool;
+import com.arielcarrizo.dynarmor.server.clientprogram.FragmentStore;
+import com.arielcarrizo.dynarmor.server.clientprogram.MaskedClientProgramGenerator;
 
 /**
  * Configuración del servidor
@@ -100,25 +114,208 @@ public class Configuration {
 		}
 	}
 	
+	/**
+	 * Motor del servidor
+	 */
+	public enum ServerEngine {
+		/**
+		 * Un hilo por conexión, con E/S bloqueante
+		 */
+		THREADS,
+		
+		/**
+		 * Un hilo virtual por conexión, con E/S bloqueante
+		 * (Requiere Java 21 o superior)
+		 */
+		VIRTUAL_THREADS,
+		
+		/**
+		 * E/S no bloqueante, con un número reducido de hilos
+		 * con selectores
+		 */
+		SELECTOR
+	}
+	
+	/**
+	 * Dirección y puerto de escucha, con el número de hilos que aceptan
+	 * conexiones en él
+	 */
+	public final static class ListenEndpoint {
+		private final InetAddress address;
+		private final int port;
+		private final int acceptors;
+		
+		/**
+		 * @pre La dirección no puede ser nula, y el número de hilos tiene que ser positivo
+		 * @post Crea el punto de escucha con la dirección, el puerto y el número
+		 * 		 de hilos que aceptan conexiones especificados
+		 */
+		public ListenEndpoint(InetAddress address, int port, int acceptors) {
+			if ( address == null ) {
+				throw new NullPointerException();
+			}
+			
+			if ( acceptors < 1 ) {
+				throw new IllegalArgumentException("Invalid acceptors number");
+			}
+			
+			this.address = address;
+			this.port = port;
+			this.acceptors = acceptors;
+		}
+		
+		/**
+		 * @post Devuelve la dirección de escucha
+		 */
+		public InetAddress getAddress() {
+			return this.address;
+		}
+		
+		/**
+		 * @post Devuelve el puerto de escucha
+		 */
+		public int getPort() {
+			return this.port;
+		}
+		
+		/**
+		 * @post Devuelve el número de hilos que aceptan conexiones,
+		 * 		 cada uno con su propio socket si el sistema soporta SO_REUSEPORT
+		 */
+		public int getAcceptors() {
+			return this.acceptors;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if ( other instanceof ListenEndpoint ) {
+				ListenEndpoint otherEndpoint = (ListenEndpoint) other;
+				return this.address.equals(otherEndpoint.address) && ( this.port == otherEndpoint.port ) && ( this.acceptors == otherEndpoint.acceptors );
+			}
+			else {
+				return false;
+			}
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.address, this.port, this.acceptors);
+		}
+		
+		@Override
+		public String toString() {
+			return this.address.getHostAddress() + ":" + this.port;
+		}
+	}
+	
+	/**
+	 * Política de descarte de conexiones cuando el servidor está saturado
+	 */
+	public enum ShedPolicy {
+		/**
+		 * Envía la cadena "mágica" y el código de servidor ocupado,
+		 * y cierra la conexión
+		 */
+		REJECT,
+		
+		/**
+		 * Cierra la conexión sin enviar nada
+		 */
+		CLOSE
+	}
+	
 	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 	
-	private static Configuration instance = null;
+	// Se reemplaza entera al recargarla, y cada conexión termina con
+	// la configuración con la que empezó
+	private static volatile Configuration instance = null;
+	
+	private final File serverConfigFile;
+	private final List<File> sourceFiles;
+	private final List<File> mappedSourceFiles;
+	
+	private final List<ListenEndpoint> listenEndpoints;
+	
+	private final String logFile;
+	private final int logBufferSize;
+	private final int logRepeatSuppressionInterval;
+	
+	private final KeyPair keyPair;
+	private final KeyPair signingKeyPair;
+	
+	private final ServerEngine serverEngine;
+	private final int selectorThreads;
+	
+	private final int backlog;
+	private final int maxWorkers;
+	private final int maxQueuedHandshakes;
+	private final ShedPolicy shedPolicy;
+	
+	private final int maxConnectionRate;
+	private final int maxConnectionsPerAddress;
+	private final int maxHandshakeRate;
+	private final int handshakeFailurePenalty;
+	
+	private final int handshakeTimeout;
+	private final int handshakePhaseTimeout;
+	private final int drainTimeout;
+	
+	private final int sessionIdleTimeout;
+	private final int sessionFrameBudget;
+	private final int maxSessionStreams;
+	
+	private final CryptoContextPool cryptoContextPool;
+	private final CryptoContextPool retiredCryptoContextPool;
+	private final long retiredCryptoContextPoolDeadline;
+	private final int cryptoThreads;
 	
-	private File serverConfigFile;
+	private final int bufferPoolSize;
 	
-	private InetAddress listenAddress;
-	private int listenPort;
+	private final ClientProgramPool clientProgramPool;
+	private final ClientProgramPool compressedClientProgramPool;
 	
-	private KeyPair keyPair;
+	// Se conserva entre recargas mientras no cambien la cantidad de versiones ni la memoria máxima
+	private final ClientProgramDeltaCache clientProgramDeltaCache;
+	private final List<ByteBuffer> clientProgramFragments;
+	private final int compressedClientProgramSize;
+	
+	private final int sessionCacheSize;
+	private final int sessionLifetime;
+	
+	private final int metricsLogInterval;
+	
+	private final int warmUpIterations;
 	
 	/**
 	 * @pre La configuración no puede volverse a crear y el archivo
 	 * 		tiene que ser legible
 	 * @post Crea la configuración, con el archivo de configuración especificado
 	 */
-	public static void load(File serverConfigFile) throws LoadException, ParseError {
+	public static synchronized void load(File serverConfigFile) throws LoadException, ParseError {
 		if ( instance == null ) {
-			instance = new Configuration(serverConfigFile);
+			Configuration configuration = new Configuration(serverConfigFile, null);
+			
+			if ( configuration.logFile != null ) {
+				// Suprimir la salida de consola, que es del logger raíz
+				LOGGER.setUseParentHandlers(false);
+				
+				// Agregar la salida por archivo de logs
+				Handler asciiFileHandler;
+				try {
+					asciiFileHandler = new FileHandler(configuration.logFile);
+				} catch (IOException e) {
+					throw new LoadException(e);
+				}
+				{
+					SimpleFormatter asciiFileFormatter = new SimpleFormatter();
+					asciiFileHandler.setFormatter(asciiFileFormatter);
+				}
+				
+				// Escribir desde un hilo aparte, para no demorar las conexiones
+				LOGGER.addHandler(new AsyncLogHandler(asciiFileHandler, configuration.logBufferSize, TimeUnit.SECONDS.toNanos(configuration.logRepeatSuppressionInterval)));
+			}
+			
+			instance = configuration;
 		}
 		else {
 			throw new IllegalStateException("Attemped to reload configuration");
@@ -127,14 +324,97 @@ public class Configuration {
 	
 	/**
 	 * @pre La configuración tiene que haber sido cargada anteriormente
-	 * @post Recarga la configuración
-	 * @param serverConfigFile
-	 * @throws IOException
-	 * @throws ParseError
+	 * @post Recarga la configuración del mismo archivo, inicia sus pools de
+	 * 		 programas del cliente, la publica y detiene los de la anterior.
+	 * 		 Devuelve la configuración nueva.
+	 * 		 Si no es válida o falla al verificar las claves o al iniciar los
+	 * 		 pools, la anterior sigue vigente y se detienen los de la nueva.
+	 * 		 Los cambios en el archivo de logs, el motor del servidor, los hilos,
+	 * 		 los límites de trabajadores, la política de descarte, los buffers,
+	 * 		 la caché de sesiones y el registro de métricas se aplican al reiniciar
+	 */
+	public static synchronized Configuration reload() throws LoadException, ParseError {
+		Configuration previousConfiguration = instance();
+		Configuration configuration = new Configuration(previousConfiguration.serverConfigFile, previousConfiguration);
+		
+		boolean isPublished = false;
+		try {
+			// Verificar las claves nuevas y dejar contextos libres antes de publicarlas
+			if ( configuration.cryptoContextPool != previousConfiguration.cryptoContextPool ) {
+				try {
+					HandshakeWarmUp.run(configuration.cryptoContextPool, 0);
+				} catch (GeneralSecurityException e) {
+					throw new LoadException(e);
+				}
+			}
+			
+			configuration.startClientProgramPools();
+			instance = configuration;
+			isPublished = true;
+		} finally {
+			if ( !isPublished ) {
+				configuration.shutdownClientProgramPools();
+			}
+		}
+		
+		previousConfiguration.shutdownClientProgramPools();
+		
+		return configuration;
+	}
+	
+	/**
+	 * @post Agrega el archivo con el nombre especificado a los archivos
+	 * 		 leídos, y lo devuelve
+	 */
+	private static File sourceFile(List<File> sourceFiles, String fileName) {
+		File file = new File(fileName);
+		sourceFiles.add(file);
+		return file;
+	}
+	
+	/**
+	 * @post Agrega el archivo con el nombre especificado a los archivos
+	 * 		 leídos y a los mapeados en memoria, y lo devuelve
+	 */
+	private static File mappedSourceFile(List<File> sourceFiles, List<File> mappedSourceFiles, String fileName) {
+		File file = sourceFile(sourceFiles, fileName);
+		mappedSourceFiles.add(file);
+		return file;
+	}
+	
+	/**
+	 * @post Devuelve la fábrica de claves de firma
+	 */
+	private static KeyFactory signingKeyFactory() {
+		try {
+			return KeyFactory.getInstance(SessionEncryptionSettings.SIGNATURE_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * @post Interpreta el único parámetro de la directiva como un número entero,
+	 * 		 que no puede ser menor que el mínimo especificado
 	 */
-	public static void reload() throws LoadException, ParseError {
-		Configuration oldConfiguration = instance();
-		instance = new Configuration(oldConfiguration.serverConfigFile);
+	private static int parseIntegerParameter(List<String> parameters, int lineNumber, int minimum, String errorMessage) throws ParseError {
+		if ( parameters.size() == 2 ) {
+			final int value;
+			try {
+				value = Integer.parseInt(parameters.get(1));
+			} catch ( NumberFormatException e ) {
+				throw new ParseError(lineNumber, errorMessage);
+			}
+			
+			if ( value < minimum ) {
+				throw new ParseError(lineNumber, errorMessage);
+			}
+			
+			return value;
+		}
+		else {
+			throw new ParseError(lineNumber, "Expected one parameter");
+		}
 	}
 	
 	private static byte[] readFile(File fileName) throws IOException {
@@ -150,7 +430,15 @@ public class Configuration {
 		return binaryData;
 	}
 	
-	private Configuration(File serverConfigFile) throws LoadException, ParseError {
+	/**
+	 * @pre El archivo tiene que ser legible
+	 * @post Crea la configuración con el archivo de configuración especificado.
+	 * 		 Si se especifica la configuración anterior, reutiliza su pool de
+	 * 		 contextos criptográficos si las claves no cambiaron, y si cambió
+	 * 		 el par de claves RSA sigue aceptando la clave anterior durante
+	 * 		 el período de gracia
+	 */
+	private Configuration(File serverConfigFile, Configuration previousConfiguration) throws LoadException, ParseError {
 		final KeyFactory keyFactory;
 		try {
 			keyFactory = KeyFactory.getInstance("RSA");
@@ -161,6 +449,9 @@ public class Configuration {
 		PublicKey publicKey = null;
 		PrivateKey privateKey = null;
 		
+		PublicKey signingPublicKey = null;
+		PrivateKey signingPrivateKey = null;
+		
 		BufferedReader bufferedReader;
 		try {
 			bufferedReader = new BufferedReader(new FileReader(serverConfigFile));
@@ -168,15 +459,69 @@ public class Configuration {
 			throw new LoadException(e);
 		}
 		
+		// Archivos leídos, para detectar cambios
+		final List<File> sourceFiles = new ArrayList<File>();
+		sourceFiles.add(serverConfigFile);
+		final List<File> mappedSourceFiles = new ArrayList<File>();
+		
 		try {
 			int lineNumber = 1;
 			
+			InetAddress listenAddress;
 			try {
-				this.listenAddress = InetAddress.getLocalHost();
+				listenAddress = InetAddress.getLocalHost();
 			} catch (UnknownHostException e) {
 				throw new RuntimeException(e);
 			}
-			this.listenPort = 2250;
+			int listenPort = 2250;
+			int acceptorThreads = 1;
+			
+			// Los puntos de escucha sin número de hilos usan el de AcceptorThreads
+			List<InetSocketAddress> listenAddresses = new ArrayList<InetSocketAddress>();
+			List<Integer> listenAcceptors = new ArrayList<Integer>();
+			String logFile = null;
+			int logBufferSize = 8192;
+			int logRepeatSuppressionInterval = 10;
+			ServerEngine serverEngine = ServerEngine.THREADS;
+			int selectorThreads = Runtime.getRuntime().availableProcessors();
+			int backlog = 10;
+			int maxWorkers = 0;
+			int maxQueuedHandshakes = 0;
+			ShedPolicy shedPolicy = ShedPolicy.REJECT;
+			int maxConnectionRate = 0;
+			int maxConnectionsPerAddress = 0;
+			int maxHandshakeRate = 0;
+			int handshakeFailurePenalty = 4;
+			int handshakeTimeout = 30;
+			int handshakePhaseTimeout = 10;
+			int drainTimeout = 30;
+			int sessionIdleTimeout = 60;
+			int sessionFrameBudget = 10000;
+			int maxSessionStreams = 16;
+			
+			int cryptoThreads = Runtime.getRuntime().availableProcessors();
+			int bufferPoolSize = 256;
+			ClientProgramPool clientProgramPool = null;
+			ClientProgramPool compressedClientProgramPool = null;
+			ClientProgramDeltaCache clientProgramDeltaCache = null;
+			int compressedClientProgramSize = -1;
+			int sessionCacheSize = 0;
+			int sessionLifetime = 3600;
+			int metricsLogInterval = 0;
+			int keyRotationGracePeriod = 300;
+			int warmUpIterations = 500;
+			
+			int cryptoContextPoolSize = Runtime.getRuntime().availableProcessors() * 2;
+			int ephemeralKeyLifetime = 60;
+			
+			List<ByteBuffer> clientProgramFragments = null;
+			int clientProgramPoolLowWatermark = 8;
+			int clientProgramPoolHighWatermark = 32;
+			int clientProgramGeneratorThreads = 1;
+			int clientProgramCompressionLevel = 0;
+			ByteBuffer clientProgramCompressionDictionary = null;
+			int clientProgramDeltaVersions = 0;
+			int clientProgramDeltaMaxMemory = 64;
 			
 			String line;
 			
@@ -198,7 +543,7 @@ public class Configuration {
 					case "ListenAddress":
 						if ( parameters.size() == 2 ) {
 							try {
-								this.listenAddress = InetAddress.getByName(parameters.get(1));
+								listenAddress = InetAddress.getByName(parameters.get(1));
 							}
 							catch ( UnknownHostException e ) {
 								throw new ParseError(lineNumber, "Invalid listen address");
@@ -211,7 +556,7 @@ public class Configuration {
 					case "Port":
 						if ( parameters.size() == 2 ) {
 							try {
-								this.listenPort = Integer.parseInt(parameters.get(1));
+								listenPort = Integer.parseInt(parameters.get(1));
 							} catch ( NumberFormatException e ) {
 								throw new ParseError(lineNumber, "Invalid port number");
 							}
@@ -220,35 +565,65 @@ public class Configuration {
 							throw new ParseError(lineNumber, "Expected one parameter");
 						}
 						break;
-					case "LogFile":
-						if ( parameters.size() == 2 ) {
-							final String fileName = parameters.get(1);
-							File logFile = new File(fileName);
-							if ( !logFile.exists() || !logFile.canWrite() ) {
-								throw new ParseError(lineNumber, "Log file doesn't exists or cannot written");
+					case "Listen":
+						if ( ( parameters.size() == 3 ) || ( parameters.size() == 4 ) ) {
+							try {
+								listenAddresses.add(new InetSocketAddress(InetAddress.getByName(parameters.get(1)), Integer.parseInt(parameters.get(2))));
+							} catch ( UnknownHostException e ) {
+								throw new ParseError(lineNumber, "Invalid listen address");
+							} catch ( IllegalArgumentException e ) {
+								throw new ParseError(lineNumber, "Invalid port number");
 							}
 							
-							// Suprimir la salida de consola
-							Handler[] handlers = LOGGER.getHandlers();
-							if ( handlers[0] instanceof ConsoleHandler ) {
-								LOGGER.removeHandler(handlers[0]);
+							if ( parameters.size() == 4 ) {
+								final int acceptors;
+								try {
+									acceptors = Integer.parseInt(parameters.get(3));
+								} catch ( NumberFormatException e ) {
+									throw new ParseError(lineNumber, "Invalid acceptor threads number");
+								}
+								
+								if ( acceptors < 1 ) {
+									throw new ParseError(lineNumber, "Invalid acceptor threads number");
+								}
+								
+								listenAcceptors.add(acceptors);
 							}
-							
-							// Agregar la salida por archivo de logs
-							Handler asciiFileHandler = new FileHandler(fileName);
-							{
-								SimpleFormatter asciiFileFormatter = new SimpleFormatter();
-								asciiFileHandler.setFormatter(asciiFileFormatter);
+							else {
+								listenAcceptors.add(null);
+							}
+						}
+						else {
+							throw new ParseError(lineNumber, "Expected address, port and optionally acceptor threads");
+						}
+						break;
+					case "AcceptorThreads":
+						acceptorThreads = parseIntegerParameter(parameters, lineNumber, 1, "Invalid acceptor threads number");
+						break;
+					case "LogFile":
+						if ( parameters.size() == 2 ) {
+							logFile = parameters.get(1);
+							if ( !new File(logFile).exists() || !new File(logFile).canWrite() ) {
+								throw new ParseError(lineNumber, "Log file doesn't exists or cannot written");
 							}
-							LOGGER.addHandler(asciiFileHandler);
 						}
 						else {
 							throw new ParseError(lineNumber, "Expected one parameter");
 						}
 						break;
+					case "LogBufferSize":
+						logBufferSize = parseIntegerParameter(parameters, lineNumber, 1, "Invalid log buffer size");
+						
+						if ( logBufferSize > ( 1 << 20 ) ) {
+							throw new ParseError(lineNumber, "Invalid log buffer size");
+						}
+						break;
+					case "LogRepeatSuppressionInterval":
+						logRepeatSuppressionInterval = parseIntegerParameter(parameters, lineNumber, 0, "Invalid log repeat suppression interval");
+						break;
 					case "PublicRSAKeyFile":
 						if ( parameters.size() == 2 ) {
-							EncodedKeySpec spec = new X509EncodedKeySpec( readFile( new File(parameters.get(1))) );
+							EncodedKeySpec spec = new X509EncodedKeySpec( readFile( sourceFile(sourceFiles, parameters.get(1)) ) );
 							try {
 								publicKey = keyFactory.generatePublic(spec);
 							} catch (InvalidKeySpecException e) {
@@ -261,7 +636,7 @@ public class Configuration {
 						break;
 					case "PrivateRSAKeyFile":
 						if ( parameters.size() == 2 ) {
-							EncodedKeySpec spec = new PKCS8EncodedKeySpec( readFile( new File(parameters.get(1))) );
+							EncodedKeySpec spec = new PKCS8EncodedKeySpec( readFile( sourceFile(sourceFiles, parameters.get(1)) ) );
 							try {
 								privateKey = keyFactory.generatePrivate(spec);
 							} catch (InvalidKeySpecException e) {
@@ -272,6 +647,204 @@ public class Configuration {
 							throw new ParseError(lineNumber, "Expected one parameter");
 						}
 						break;
+					case "PublicEd25519KeyFile":
+						if ( parameters.size() == 2 ) {
+							EncodedKeySpec spec = new X509EncodedKeySpec( readFile( sourceFile(sourceFiles, parameters.get(1)) ) );
+							try {
+								signingPublicKey = signingKeyFactory().generatePublic(spec);
+							} catch (InvalidKeySpecException e) {
+								throw new LoadException(e);
+							}
+						}
+						else {
+							throw new ParseError(lineNumber, "Expected one parameter");
+						}
+						break;
+					case "PrivateEd25519KeyFile":
+						if ( parameters.size() == 2 ) {
+							EncodedKeySpec spec = new PKCS8EncodedKeySpec( readFile( sourceFile(sourceFiles, parameters.get(1)) ) );
+							try {
+								signingPrivateKey = signingKeyFactory().generatePrivate(spec);
+							} catch (InvalidKeySpecException e) {
+								throw new LoadException(e);
+							}
+						}
+						else {
+							throw new ParseError(lineNumber, "Expected one parameter");
+						}
+						break;
+					case "ClientProgramFile":
+						if ( parameters.size() == 2 ) {
+							if ( clientProgramFragments != null ) {
+								throw new ParseError(lineNumber, "Client program already specified");
+							}
+							
+							// Se mapea en memoria, por lo que sólo puede reemplazarse renombrando otro archivo
+							clientProgramFragments = Collections.<ByteBuffer>singletonList( FragmentStore.map( mappedSourceFile(sourceFiles, mappedSourceFiles, parameters.get(1)) ) );
+						}
+						else {
+							throw new ParseError(lineNumber, "Expected one parameter");
+						}
+						break;
+					case "ClientProgramFragmentStore":
+						if ( parameters.size() == 2 ) {
+							if ( clientProgramFragments != null ) {
+								throw new ParseError(lineNumber, "Client program already specified");
+							}
+							
+							// El programa del cliente es la concatenación de los fragmentos.
+							// Se mapea en memoria, por lo que sólo puede reemplazarse renombrando otro archivo
+							FragmentStore fragmentStore = FragmentStore.open( mappedSourceFile(sourceFiles, mappedSourceFiles, parameters.get(1)) );
+							clientProgramFragments = new ArrayList<ByteBuffer>(fragmentStore.getFragmentCount());
+							for ( int i = 0 ; i < fragmentStore.getFragmentCount() ; i++ ) {
+								clientProgramFragments.add(fragmentStore.getFragment(i));
+							}
+						}
+						else {
+							throw new ParseError(lineNumber, "Expected one parameter");
+						}
+						break;
+					case "ClientProgramPoolLowWatermark":
+						clientProgramPoolLowWatermark = parseIntegerParameter(parameters, lineNumber, 0, "Invalid client program pool low watermark");
+						break;
+					case "ClientProgramPoolHighWatermark":
+						clientProgramPoolHighWatermark = parseIntegerParameter(parameters, lineNumber, 0, "Invalid client program pool high watermark");
+						break;
+					case "ClientProgramGeneratorThreads":
+						clientProgramGeneratorThreads = parseIntegerParameter(parameters, lineNumber, 1, "Invalid client program generator threads number");
+						break;
+					case "ClientProgramCompression":
+						// Comprime el programa al cargar, leyendo todo el archivo mapeado (Ver ClientProgramCompressor)
+						clientProgramCompressionLevel = parseIntegerParameter(parameters, lineNumber, Deflater.BEST_SPEED, "Invalid client program compression level");
+						if ( clientProgramCompressionLevel > Deflater.BEST_COMPRESSION ) {
+							throw new ParseError(lineNumber, "Invalid client program compression level");
+						}
+						break;
+					case "ClientProgramCompressionDictionary":
+						if ( parameters.size() == 2 ) {
+							// Se mapea en memoria, por lo que sólo puede reemplazarse renombrando otro archivo
+							clientProgramCompressionDictionary = FragmentStore.map( mappedSourceFile(sourceFiles, mappedSourceFiles, parameters.get(1)) );
+						}
+						else {
+							throw new ParseError(lineNumber, "Expected one parameter");
+						}
+						break;
+					case "ClientProgramDeltaVersions":
+						clientProgramDeltaVersions = parseIntegerParameter(parameters, lineNumber, 0, "Invalid client program delta versions number");
+						break;
+					case "ClientProgramDeltaMaxMemory":
+						// En MiB, acota las copias de las versiones y las codificaciones (Ver ClientProgramDeltaCache)
+						clientProgramDeltaMaxMemory = parseIntegerParameter(parameters, lineNumber, 1, "Invalid client program delta max memory");
+						break;
+					case "ServerEngine":
+						if ( parameters.size() == 2 ) {
+							switch ( parameters.get(1) ) {
+							case "Threads":
+								serverEngine = ServerEngine.THREADS;
+								break;
+							case "VirtualThreads":
+								if ( !WorkerExecutors.isVirtualThreadSupported() ) {
+									throw new ParseError(lineNumber, "Virtual threads are not supported by this Java runtime");
+								}
+								serverEngine = ServerEngine.VIRTUAL_THREADS;
+								break;
+							case "Selector":
+								serverEngine = ServerEngine.SELECTOR;
+								break;
+							default:
+								throw new ParseError(lineNumber, "Invalid server engine");
+							}
+						}
+						else {
+							throw new ParseError(lineNumber, "Expected one parameter");
+						}
+						break;
+					case "SelectorThreads":
+						selectorThreads = parseIntegerParameter(parameters, lineNumber, 1, "Invalid selector threads number");
+						break;
+					case "Backlog":
+						backlog = parseIntegerParameter(parameters, lineNumber, 1, "Invalid backlog");
+						break;
+					case "MaxWorkers":
+						maxWorkers = parseIntegerParameter(parameters, lineNumber, 0, "Invalid max workers number");
+						break;
+					case "MaxQueuedHandshakes":
+						maxQueuedHandshakes = parseIntegerParameter(parameters, lineNumber, 0, "Invalid max queued handshakes number");
+						break;
+					case "MaxConnectionRate":
+						maxConnectionRate = parseIntegerParameter(parameters, lineNumber, 0, "Invalid max connection rate");
+						break;
+					case "MaxConnectionsPerAddress":
+						maxConnectionsPerAddress = parseIntegerParameter(parameters, lineNumber, 0, "Invalid max connections per address number");
+						break;
+					case "MaxHandshakeRate":
+						maxHandshakeRate = parseIntegerParameter(parameters, lineNumber, 0, "Invalid max handshake rate");
+						break;
+					case "HandshakeFailurePenalty":
+						handshakeFailurePenalty = parseIntegerParameter(parameters, lineNumber, 0, "Invalid handshake failure penalty");
+						break;
+					case "HandshakeTimeout":
+						handshakeTimeout = parseIntegerParameter(parameters, lineNumber, 1, "Invalid handshake timeout");
+						break;
+					case "HandshakePhaseTimeout":
+						handshakePhaseTimeout = parseIntegerParameter(parameters, lineNumber, 1, "Invalid handshake phase timeout");
+						break;
+					case "DrainTimeout":
+						drainTimeout = parseIntegerParameter(parameters, lineNumber, 0, "Invalid drain timeout");
+						break;
+					case "SessionIdleTimeout":
+						sessionIdleTimeout = parseIntegerParameter(parameters, lineNumber, 1, "Invalid session idle timeout");
+						break;
+					case "SessionFrameBudget":
+						sessionFrameBudget = parseIntegerParameter(parameters, lineNumber, 0, "Invalid session frame budget");
+						break;
+					case "MaxSessionStreams":
+						maxSessionStreams = parseIntegerParameter(parameters, lineNumber, 1, "Invalid max session streams number");
+						break;
+					case "CryptoContextPoolSize":
+						cryptoContextPoolSize = parseIntegerParameter(parameters, lineNumber, 1, "Invalid crypto context pool size");
+						break;
+					case "EphemeralKeyLifetime":
+						ephemeralKeyLifetime = parseIntegerParameter(parameters, lineNumber, 0, "Invalid ephemeral key lifetime");
+						break;
+					case "CryptoThreads":
+						cryptoThreads = parseIntegerParameter(parameters, lineNumber, 0, "Invalid crypto threads number");
+						break;
+					case "BufferPoolSize":
+						bufferPoolSize = parseIntegerParameter(parameters, lineNumber, 1, "Invalid buffer pool size");
+						break;
+					case "SessionCacheSize":
+						sessionCacheSize = parseIntegerParameter(parameters, lineNumber, 0, "Invalid session cache size");
+						break;
+					case "SessionLifetime":
+						sessionLifetime = parseIntegerParameter(parameters, lineNumber, 1, "Invalid session lifetime");
+						break;
+					case "MetricsLogInterval":
+						metricsLogInterval = parseIntegerParameter(parameters, lineNumber, 0, "Invalid metrics log interval");
+						break;
+					case "WarmUpIterations":
+						warmUpIterations = parseIntegerParameter(parameters, lineNumber, 0, "Invalid warm-up iterations number");
+						break;
+					case "KeyRotationGracePeriod":
+						keyRotationGracePeriod = parseIntegerParameter(parameters, lineNumber, 0, "Invalid key rotation grace period");
+						break;
+					case "ShedPolicy":
+						if ( parameters.size() == 2 ) {
+							switch ( parameters.get(1) ) {
+							case "Reject":
+								shedPolicy = ShedPolicy.REJECT;
+								break;
+							case "Close":
+								shedPolicy = ShedPolicy.CLOSE;
+								break;
+							default:
+								throw new ParseError(lineNumber, "Invalid shed policy");
+							}
+						}
+						else {
+							throw new ParseError(lineNumber, "Expected one parameter");
+						}
+						break;
 					default:
 						throw new ParseError(lineNumber, "Bad configuration option, '" + parameters.get(0) + "'");
 					}
@@ -287,7 +860,147 @@ public class Configuration {
 				throw new ParseError("Missing private key");
 			}
 			
-			this.keyPair = new KeyPair(publicKey, privateKey);
+			// Si se está rotando el par de claves, uno de los archivos puede
+			// estar actualizado y el otro no
+			if ( !((RSAPublicKey) publicKey).getModulus().equals(((RSAPrivateKey) privateKey).getModulus()) ) {
+				throw new ParseError("Public and private keys don't match");
+			}
+			
+			KeyPair keyPair = new KeyPair(publicKey, privateKey);
+			KeyPair signingKeyPair;
+			
+			if ( ( signingPublicKey != null ) && ( signingPrivateKey != null ) ) {
+				signingKeyPair = new KeyPair(signingPublicKey, signingPrivateKey);
+			}
+			else if ( ( signingPublicKey == null ) && ( signingPrivateKey == null ) ) {
+				signingKeyPair = null;
+			}
+			else {
+				throw new ParseError("Missing Ed25519 public or private key");
+			}
+			
+			if ( clientProgramFragments != null ) {
+				if ( clientProgramPoolLowWatermark > clientProgramPoolHighWatermark ) {
+					throw new ParseError("Client program pool low watermark is greater than the high watermark");
+				}
+				
+				clientProgramPool = new ClientProgramPool("clientPrograms", new MaskedClientProgramGenerator(clientProgramFragments), clientProgramPoolLowWatermark, clientProgramPoolHighWatermark, clientProgramGeneratorThreads);
+				
+				// El programa comprimido se enmascara igual, para los clientes que lo pidan
+				if ( clientProgramCompressionLevel != 0 ) {
+					// El Deflater se libera enseguida, la configuración sólo conserva el resultado
+					ClientProgramCompressor compressor = new ClientProgramCompressor(clientProgramCompressionLevel, clientProgramCompressionDictionary);
+					List<ByteBuffer> compressedClientProgramFragments;
+					try {
+						compressedClientProgramFragments = compressor.compress(clientProgramFragments);
+					} finally {
+						compressor.close();
+					}
+					
+					compressedClientProgramPool = new ClientProgramPool("compressedClientPrograms", new MaskedClientProgramGenerator(compressedClientProgramFragments), clientProgramPoolLowWatermark, clientProgramPoolHighWatermark, clientProgramGeneratorThreads);
+					compressedClientProgramSize = compressedClientProgramFragments.get(0).remaining();
+				}
+				
+				// Las versiones anteriores se conservan al recargar
+				if ( clientProgramDeltaVersions != 0 ) {
+					long clientProgramDeltaMaxMemoryBytes = clientProgramDeltaMaxMemory * 1024L * 1024L;
+					
+					if ( ( previousConfiguration != null ) && ( previousConfiguration.clientProgramDeltaCache != null ) && ( previousConfiguration.clientProgramDeltaCache.getMaxPreviousVersions() == clientProgramDeltaVersions ) &&
+							( previousConfiguration.clientProgramDeltaCache.getMaxMemory() == clientProgramDeltaMaxMemoryBytes ) ) {
+						clientProgramDeltaCache = previousConfiguration.clientProgramDeltaCache;
+					}
+					else {
+						clientProgramDeltaCache = new ClientProgramDeltaCache(clientProgramDeltaVersions, clientProgramDeltaMaxMemoryBytes);
+					}
+				}
+			}
+			else if ( clientProgramCompressionLevel != 0 ) {
+				throw new ParseError("Client program compression requires a client program");
+			}
+			else if ( clientProgramDeltaVersions != 0 ) {
+				throw new ParseError("Client program delta encoding requires a client program");
+			}
+			
+			CryptoContextPool cryptoContextPool = null;
+			CryptoContextPool retiredCryptoContextPool = null;
+			long retiredCryptoContextPoolDeadline = 0;
+			
+			if ( previousConfiguration != null ) {
+				final CryptoContextPool previousCryptoContextPool = previousConfiguration.cryptoContextPool;
+				
+				if ( previousCryptoContextPool.getKeyPair().getPublic().equals(keyPair.getPublic()) ) {
+					// Conservar los contextos y la clave efímera actual si nada cambió
+					if ( previousCryptoContextPool.hasSameSettings(keyPair, signingKeyPair, TimeUnit.SECONDS.toNanos(ephemeralKeyLifetime), cryptoContextPoolSize) ) {
+						cryptoContextPool = previousCryptoContextPool;
+					}
+					
+					// Continuar el período de gracia de la rotación anterior, si hay
+					retiredCryptoContextPool = previousConfiguration.retiredCryptoContextPool;
+					retiredCryptoContextPoolDeadline = previousConfiguration.retiredCryptoContextPoolDeadline;
+				}
+				else if ( keyRotationGracePeriod != 0 ) {
+					retiredCryptoContextPool = previousCryptoContextPool;
+					retiredCryptoContextPoolDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(keyRotationGracePeriod);
+				}
+			}
+			
+			if ( cryptoContextPool == null ) {
+				cryptoContextPool = new CryptoContextPool(keyPair, signingKeyPair, TimeUnit.SECONDS.toNanos(ephemeralKeyLifetime), cryptoContextPoolSize);
+			}
+			
+			this.serverConfigFile = serverConfigFile;
+			this.sourceFiles = Collections.unmodifiableList(sourceFiles);
+			this.mappedSourceFiles = Collections.unmodifiableList(mappedSourceFiles);
+			{
+				List<ListenEndpoint> listenEndpoints = new ArrayList<ListenEndpoint>();
+				
+				if ( listenAddresses.isEmpty() ) {
+					listenEndpoints.add(new ListenEndpoint(listenAddress, listenPort, acceptorThreads));
+				}
+				else {
+					for ( int i = 0 ; i < listenAddresses.size() ; i++ ) {
+						Integer acceptors = listenAcceptors.get(i);
+						listenEndpoints.add(new ListenEndpoint(listenAddresses.get(i).getAddress(), listenAddresses.get(i).getPort(), ( acceptors != null ) ? acceptors : acceptorThreads));
+					}
+				}
+				
+				this.listenEndpoints = Collections.unmodifiableList(listenEndpoints);
+			}
+			this.logFile = logFile;
+			this.logBufferSize = logBufferSize;
+			this.logRepeatSuppressionInterval = logRepeatSuppressionInterval;
+			this.keyPair = keyPair;
+			this.signingKeyPair = signingKeyPair;
+			this.serverEngine = serverEngine;
+			this.selectorThreads = selectorThreads;
+			this.backlog = backlog;
+			this.maxWorkers = maxWorkers;
+			this.maxQueuedHandshakes = maxQueuedHandshakes;
+			this.shedPolicy = shedPolicy;
+			this.maxConnectionRate = maxConnectionRate;
+			this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+			this.maxHandshakeRate = maxHandshakeRate;
+			this.handshakeFailurePenalty = handshakeFailurePenalty;
+			this.handshakeTimeout = handshakeTimeout;
+			this.handshakePhaseTimeout = handshakePhaseTimeout;
+			this.drainTimeout = drainTimeout;
+			this.sessionIdleTimeout = sessionIdleTimeout;
+			this.sessionFrameBudget = sessionFrameBudget;
+			this.maxSessionStreams = maxSessionStreams;
+			this.cryptoContextPool = cryptoContextPool;
+			this.retiredCryptoContextPool = retiredCryptoContextPool;
+			this.retiredCryptoContextPoolDeadline = retiredCryptoContextPoolDeadline;
+			this.cryptoThreads = cryptoThreads;
+			this.bufferPoolSize = bufferPoolSize;
+			this.clientProgramPool = clientProgramPool;
+			this.compressedClientProgramPool = compressedClientProgramPool;
+			this.clientProgramDeltaCache = clientProgramDeltaCache;
+			this.clientProgramFragments = clientProgramFragments;
+			this.compressedClientProgramSize = compressedClientProgramSize;
+			this.sessionCacheSize = sessionCacheSize;
+			this.sessionLifetime = sessionLifetime;
+			this.metricsLogInterval = metricsLogInterval;
+			this.warmUpIterations = warmUpIterations;
 		} catch (IOException e) {
 			throw new LoadException(e);
 		} finally {
@@ -313,17 +1026,86 @@ public class Configuration {
 	}
 	
 	/**
-	 * @post Devuelve la dirección de escucha
+	 * @post Inicia los pools de programas del cliente, si hay, y establece
+	 * 		 el programa como versión actual de la caché de versiones, si hay.
+	 * 		 Se hace al publicar la configuración, para que una configuración
+	 * 		 inválida no cambie la versión actual
+	 */
+	public void startClientProgramPools() {
+		if ( this.clientProgramPool != null ) {
+			this.clientProgramPool.start();
+		}
+		
+		if ( this.compressedClientProgramPool != null ) {
+			this.compressedClientProgramPool.start();
+		}
+		
+		if ( this.clientProgramDeltaCache != null ) {
+			this.clientProgramDeltaCache.setCurrent(this.clientProgramFragments, this.compressedClientProgramSize);
+		}
+	}
+	
+	/**
+	 * @post Detiene los pools de programas del cliente, si hay
+	 */
+	private void shutdownClientProgramPools() {
+		if ( this.clientProgramPool != null ) {
+			this.clientProgramPool.shutdown();
+		}
+		
+		if ( this.compressedClientProgramPool != null ) {
+			this.compressedClientProgramPool.shutdown();
+		}
+	}
+	
+	/**
+	 * @post Devuelve el archivo de configuración y los archivos
+	 * 		 a los que hace referencia
 	 */
-	public InetAddress getListenAddress() {
-		return this.listenAddress;
+	public List<File> getSourceFiles() {
+		return this.sourceFiles;
 	}
 	
 	/**
-	 * @post Devuelve el puerto de escucha
+	 * @post Devuelve los archivos a los que hace referencia que se mapean
+	 * 		 en memoria (El programa del cliente, el almacén de fragmentos
+	 * 		 y el diccionario de compresión).
+	 * 		 Mientras estén en uso no pueden modificarse, porque el servidor
+	 * 		 leería el contenido cambiado o fallaría al leer más allá del
+	 * 		 final de un archivo truncado. Sólo pueden reemplazarse creando
+	 * 		 el archivo nuevo con otro nombre y renombrándolo, de forma que
+	 * 		 el mapeo anterior sigue apuntando al archivo anterior
 	 */
-	public int getListenPort() {
-		return this.listenPort;
+	public List<File> getMappedSourceFiles() {
+		return this.mappedSourceFiles;
+	}
+	
+	/**
+	 * @post Devuelve si los parámetros que sólo se aplican al reiniciar
+	 * 		 son los mismos que los de la configuración especificada
+	 */
+	public boolean hasSameRestartSettings(Configuration other) {
+		return Objects.equals(this.logFile, other.logFile) &&
+				( this.logBufferSize == other.logBufferSize ) &&
+				( this.logRepeatSuppressionInterval == other.logRepeatSuppressionInterval ) &&
+				( this.serverEngine == other.serverEngine ) &&
+				( this.selectorThreads == other.selectorThreads ) &&
+				( this.maxWorkers == other.maxWorkers ) &&
+				( this.maxQueuedHandshakes == other.maxQueuedHandshakes ) &&
+				( this.shedPolicy == other.shedPolicy ) &&
+				( this.cryptoThreads == other.cryptoThreads ) &&
+				( this.bufferPoolSize == other.bufferPoolSize ) &&
+				( this.sessionCacheSize == other.sessionCacheSize ) &&
+				( this.sessionLifetime == other.sessionLifetime ) &&
+				( this.metricsLogInterval == other.metricsLogInterval );
+	}
+	
+	/**
+	 * @post Devuelve los puntos de escucha: los de las directivas Listen,
+	 * 		 o el de ListenAddress y Port si no hay ninguna
+	 */
+	public List<ListenEndpoint> getListenEndpoints() {
+		return this.listenEndpoints;
 	}
 	
 	/**
@@ -332,4 +1114,236 @@ public class Configuration {
 	public KeyPair getKeyPair() {
 		return this.keyPair;
 	}
+	
+	/**
+	 * @post Devuelve el par de claves de firma para el intercambio de
+	 * 		 claves efímeras, o null si no fue configurado
+	 */
+	public KeyPair getSigningKeyPair() {
+		return this.signingKeyPair;
+	}
+	
+	/**
+	 * @post Devuelve el motor del servidor
+	 */
+	public ServerEngine getServerEngine() {
+		return this.serverEngine;
+	}
+	
+	/**
+	 * @post Devuelve el número de hilos con selectores
+	 * 		 (Sólo para el motor con selectores)
+	 */
+	public int getSelectorThreads() {
+		return this.selectorThreads;
+	}
+	
+	/**
+	 * @post Devuelve la longitud máxima de la cola de conexiones
+	 * 		 pendientes de aceptar
+	 */
+	public int getBacklog() {
+		return this.backlog;
+	}
+	
+	/**
+	 * @post Devuelve el número máximo de trabajadores, o cero si no
+	 * 		 hay límite
+	 */
+	public int getMaxWorkers() {
+		return this.maxWorkers;
+	}
+	
+	/**
+	 * @post Devuelve el número máximo de conexiones aceptadas que
+	 * 		 esperan un trabajador libre
+	 */
+	public int getMaxQueuedHandshakes() {
+		return this.maxQueuedHandshakes;
+	}
+	
+	/**
+	 * @post Devuelve la política de descarte de conexiones
+	 */
+	public ShedPolicy getShedPolicy() {
+		return this.shedPolicy;
+	}
+	
+	/**
+	 * @post Devuelve el número máximo de conexiones por segundo de cada
+	 * 		 dirección de origen, o cero si no hay límite.
+	 * 		 Se admiten ráfagas de hasta un segundo
+	 */
+	public int getMaxConnectionRate() {
+		return this.maxConnectionRate;
+	}
+	
+	/**
+	 * @post Devuelve el número máximo de conexiones simultáneas de cada
+	 * 		 dirección de origen, o cero si no hay límite
+	 */
+	public int getMaxConnectionsPerAddress() {
+		return this.maxConnectionsPerAddress;
+	}
+	
+	/**
+	 * @post Devuelve el número máximo de establecimientos de sesión por segundo
+	 * 		 con la clave privada (Versiones 0 y 1 del protocolo) de cada
+	 * 		 dirección de origen, o cero si no hay límite.
+	 * 		 Se admiten ráfagas de hasta un segundo
+	 */
+	public int getMaxHandshakeRate() {
+		return this.maxHandshakeRate;
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de establecimientos de sesión que se le
+	 * 		 descuentan a la dirección de origen por cada clave de sesión
+	 * 		 inválida, además del propio
+	 */
+	public int getHandshakeFailurePenalty() {
+		return this.handshakeFailurePenalty;
+	}
+	
+	/**
+	 * @post Devuelve el tiempo máximo en segundos desde que se acepta una
+	 * 		 conexión hasta que se establece la sesión
+	 */
+	public int getHandshakeTimeout() {
+		return this.handshakeTimeout;
+	}
+	
+	/**
+	 * @post Devuelve el tiempo máximo en segundos de cada espera al cliente:
+	 * 		 cada mensaje del establecimiento de sesión, y cada fragmento
+	 * 		 del programa del cliente
+	 */
+	public int getHandshakePhaseTimeout() {
+		return this.handshakePhaseTimeout;
+	}
+	
+	/**
+	 * @post Devuelve el tiempo máximo en segundos que se espera que terminen
+	 * 		 las conexiones en curso al detener el servidor, antes de cerrarlas
+	 */
+	public int getDrainTimeout() {
+		return this.drainTimeout;
+	}
+	
+	/**
+	 * @post Devuelve el tiempo máximo en segundos que una sesión persistente
+	 * 		 espera la siguiente solicitud antes de cerrarse
+	 */
+	public int getSessionIdleTimeout() {
+		return this.sessionIdleTimeout;
+	}
+	
+	/**
+	 * @post Devuelve la cantidad máxima de tramas que se reciben en una
+	 * 		 sesión persistente, o 0 si no hay máximo
+	 */
+	public int getSessionFrameBudget() {
+		return this.sessionFrameBudget;
+	}
+	
+	/**
+	 * @post Devuelve la cantidad máxima de flujos abiertos a la vez en una
+	 * 		 sesión persistente
+	 */
+	public int getMaxSessionStreams() {
+		return this.maxSessionStreams;
+	}
+	
+	/**
+	 * @post Devuelve el pool de contextos criptográficos del par de claves
+	 */
+	CryptoContextPool getCryptoContextPool() {
+		return this.cryptoContextPool;
+	}
+	
+	/**
+	 * @post Devuelve el pool de contextos criptográficos del par de claves
+	 * 		 anterior a la última rotación, o null si no hay o si terminó
+	 * 		 el período de gracia
+	 */
+	CryptoContextPool getRetiredCryptoContextPool() {
+		if ( ( this.retiredCryptoContextPool != null ) && ( this.retiredCryptoContextPoolDeadline - System.nanoTime() > 0 ) ) {
+			return this.retiredCryptoContextPool;
+		}
+		else {
+			return null;
+		}
+	}
+	
+	/**
+	 * @post Devuelve el número de hilos de la etapa de descifrado,
+	 * 		 o cero si se descifra en los hilos de E/S
+	 */
+	public int getCryptoThreads() {
+		return this.cryptoThreads;
+	}
+	
+	/**
+	 * @post Devuelve la cantidad máxima de buffers libres del
+	 * 		 establecimiento de sesión
+	 */
+	public int getBufferPoolSize() {
+		return this.bufferPoolSize;
+	}
+	
+	/**
+	 * @post Devuelve el pool de programas del cliente, o null si no
+	 * 		 fue configurado el programa del cliente
+	 */
+	public ClientProgramPool getClientProgramPool() {
+		return this.clientProgramPool;
+	}
+	
+	/**
+	 * @post Devuelve el pool de programas del cliente comprimidos, o null
+	 * 		 si no fue configurada la compresión
+	 */
+	public ClientProgramPool getCompressedClientProgramPool() {
+		return this.compressedClientProgramPool;
+	}
+	
+	/**
+	 * @post Devuelve la caché de versiones del programa del cliente para
+	 * 		 enviarlo codificado respecto de la versión que tiene el cliente,
+	 * 		 o null si no fue configurada
+	 */
+	public ClientProgramDeltaCache getClientProgramDeltaCache() {
+		return this.clientProgramDeltaCache;
+	}
+	
+	/**
+	 * @post Devuelve la cantidad máxima de sesiones reanudables,
+	 * 		 o cero si no se reanudan sesiones
+	 */
+	public int getSessionCacheSize() {
+		return this.sessionCacheSize;
+	}
+	
+	/**
+	 * @post Devuelve el tiempo de vida en segundos de las sesiones reanudables
+	 */
+	public int getSessionLifetime() {
+		return this.sessionLifetime;
+	}
+	
+	/**
+	 * @post Devuelve el intervalo en segundos entre registros de
+	 * 		 las métricas de las etapas, o cero si no se registran
+	 */
+	public int getMetricsLogInterval() {
+		return this.metricsLogInterval;
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de establecimientos de sesión sintéticos
+	 * 		 que se hacen antes de aceptar conexiones
+	 */
+	public int getWarmUpIterations() {
+		return this.warmUpIterations;
+	}
 }
@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.arielcarrizo.dynarmor.server.Configuration.LoadException;
+import com.arielcarrizo.dynarmor.server.Configuration.ParseError;
+
+/**
+ * Observador de los archivos de la configuración
+ * 
+ * Recarga la configuración cuando cambia el archivo de configuración
+ * o alguno de los archivos a los que hace referencia (Claves, programa
+ * del cliente, etc.). Espera a que dejen de cambiar durante un intervalo,
+ * para no recargarla con una rotación de claves a medio escribir.
+ * Si la configuración nueva no es válida, la anterior sigue vigente.
+ * 
+ * Los archivos mapeados en memoria (Ver Configuration.getMappedSourceFiles())
+ * sólo se recargan cuando se reemplazan renombrando otro archivo. Si se
+ * modifican en el lugar se advierte y no se recarga, porque el mapeo de la
+ * configuración vigente ya ve el contenido a medio escribir
+ * @author ariel
+ *
+ */
+final class ConfigurationWatcher implements Runnable {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	// Tiempo sin cambios antes de recargar, en milisegundos
+	private final static long SETTLE_TIME = 500;
+	
+	/**
+	 * Receptor de las configuraciones recargadas
+	 */
+	public interface Listener {
+		/**
+		 * @post Aplica la configuración nueva especificada, que reemplazó
+		 * 		 a la anterior especificada
+		 */
+		public void reloaded(Configuration previousConfiguration, Configuration configuration);
+	}
+	
+	private final Listener listener;
+	private final WatchService watchService;
+	
+	// Directorios observados, y archivos observados en ellos
+	private final Map<Path, WatchKey> watchedDirectories;
+	private final Set<Path> watchedFiles;
+	private final Set<Path> mappedFiles;
+	
+	/**
+	 * @pre El receptor no puede ser nulo, y la configuración tiene que
+	 * 		haber sido cargada
+	 * @post Crea el observador con el receptor especificado, que observa
+	 * 		 los archivos de la configuración actual
+	 */
+	public ConfigurationWatcher(Listener listener) throws IOException {
+		if ( listener == null ) {
+			throw new NullPointerException();
+		}
+		
+		this.listener = listener;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.watchedDirectories = new HashMap<Path, WatchKey>();
+		this.watchedFiles = new HashSet<Path>();
+		this.mappedFiles = new HashSet<Path>();
+		
+		this.watch(Configuration.instance());
+	}
+	
+	/**
+	 * @post Observa los archivos de la configuración especificada, y deja
+	 * 		 de observar los directorios que ya no tienen archivos observados
+	 */
+	private void watch(Configuration configuration) throws IOException {
+		this.watchedFiles.clear();
+		this.mappedFiles.clear();
+		
+		Set<Path> directories = new HashSet<Path>();
+		for ( File eachFile : configuration.getSourceFiles() ) {
+			Path path = eachFile.toPath().toAbsolutePath().normalize();
+			this.watchedFiles.add(path);
+			directories.add(path.getParent());
+		}
+		
+		for ( File eachFile : configuration.getMappedSourceFiles() ) {
+			this.mappedFiles.add(eachFile.toPath().toAbsolutePath().normalize());
+		}
+		
+		Iterator<Map.Entry<Path, WatchKey>> iterator = this.watchedDirectories.entrySet().iterator();
+		while ( iterator.hasNext() ) {
+			Map.Entry<Path, WatchKey> eachEntry = iterator.next();
+			if ( !directories.contains(eachEntry.getKey()) ) {
+				eachEntry.getValue().cancel();
+				iterator.remove();
+			}
+		}
+		
+		// Las rotaciones suelen reemplazar el archivo, por lo que se observa su creación también
+		for ( Path eachDirectory : directories ) {
+			if ( !this.watchedDirectories.containsKey(eachDirectory) ) {
+				this.watchedDirectories.put(eachDirectory, eachDirectory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+			}
+		}
+	}
+	
+	/**
+	 * @post Consume los eventos de la clave especificada, y devuelve
+	 * 		 si alguno corresponde a un archivo observado
+	 */
+	private boolean consume(WatchKey key) {
+		boolean changed = false;
+		Path directory = (Path) key.watchable();
+		
+		for ( WatchEvent<?> eachEvent : key.pollEvents() ) {
+			if ( eachEvent.kind() == StandardWatchEventKinds.OVERFLOW ) {
+				changed = true;
+			}
+			else {
+				Path path = directory.resolve((Path) eachEvent.context());
+				
+				if ( this.watchedFiles.contains(path) ) {
+					if ( ( eachEvent.kind() == StandardWatchEventKinds.ENTRY_MODIFY ) && this.mappedFiles.contains(path) ) {
+						LOGGER.warning("Memory mapped file modified in place, it has to be replaced by renaming: '" + path + "'");
+					}
+					else {
+						changed = true;
+					}
+				}
+			}
+		}
+		
+		key.reset();
+		return changed;
+	}
+	
+	/**
+	 * @post Recarga la configuración, y se la pasa al receptor
+	 */
+	private void reload() {
+		Configuration previousConfiguration = Configuration.instance();
+		Configuration configuration;
+		
+		try {
+			configuration = Configuration.reload();
+		} catch (LoadException e) {
+			LOGGER.severe("Cannot reload server config file: '" + e.getCause() + "'");
+			return;
+		} catch (ParseError e) {
+			LOGGER.severe("Server config file parse error: \"" + e.getMessage() + "\"");
+			return;
+		}
+		
+		LOGGER.info("Configuration reloaded");
+		
+		if ( !configuration.hasSameRestartSettings(previousConfiguration) ) {
+			LOGGER.warning("Some configuration changes will be applied on restart");
+		}
+		
+		try {
+			this.listener.reloaded(previousConfiguration, configuration);
+		} catch (RuntimeException e) {
+			LOGGER.severe("Cannot apply reloaded configuration: '" + e + "'");
+		}
+		
+		try {
+			this.watch(configuration);
+		} catch (IOException e) {
+			LOGGER.severe("Cannot watch configuration files: '" + e + "'");
+		}
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while ( true ) {
+				if ( this.consume(this.watchService.take()) ) {
+					// Esperar a que dejen de cambiar
+					WatchKey key;
+					while ( ( key = this.watchService.poll(SETTLE_TIME, TimeUnit.MILLISECONDS) ) != null ) {
+						this.consume(key);
+					}
+					
+					this.reload();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Terminar
+		}
+	}
+	
+	/**
+	 * @post Empieza a observar los archivos en un hilo propio
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "dynarmor-configuration-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
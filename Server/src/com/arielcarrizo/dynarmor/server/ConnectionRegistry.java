@@ -0,0 +1,334 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Registro de las conexiones en curso, con su estado y el instante
+ * en que fueron aceptadas.
+ * 
+ * Las conexiones se guardan en un conjunto concurrente, que sólo bloquea
+ * la cubeta que modifica, y la cantidad de conexiones en cada estado se
+ * cuenta con sumadores repartidos entre celdas, por lo que los hilos que
+ * aceptan y atienden conexiones casi no compiten entre sí.
+ * 
+ * Permite esperar a que terminen todas las conexiones, y cerrar
+ * las que quedan, para detener el servidor sin cortar los
+ * establecimientos de sesión en curso. Mientras se espera, las
+ * sesiones persistentes inactivas se cierran apenas quedan inactivas
+ * @author ariel
+ *
+ */
+final class ConnectionRegistry implements ConnectionRegistryMXBean {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	/**
+	 * Estado de una conexión
+	 */
+	public enum State {
+		/**
+		 * Aceptada, esperando un trabajador
+		 */
+		QUEUED,
+		
+		/**
+		 * Esperando que el cliente envíe o reciba datos,
+		 * incluyendo el envío del programa del cliente
+		 */
+		AWAITING_CLIENT,
+		
+		/**
+		 * Procesando en el servidor, incluyendo la espera
+		 * de la etapa criptográfica
+		 */
+		PROCESSING,
+		
+		/**
+		 * Sesión persistente esperando la siguiente solicitud,
+		 * puede cerrarse sin perder trabajo
+		 */
+		IDLE
+	}
+	
+	/**
+	 * Conexión registrada
+	 */
+	public final class Connection {
+		private final Closeable closeable;
+		private final long startTime;
+		private volatile State state;
+		
+		private Connection(Closeable closeable, long startTime) {
+			this.closeable = closeable;
+			this.startTime = startTime;
+			this.state = State.QUEUED;
+		}
+		
+		/**
+		 * @pre Sólo puede ser llamado por el hilo que atiende la conexión,
+		 * 		y la conexión no tiene que haber sido quitada del registro
+		 * @post Cambia el estado de la conexión por el especificado
+		 */
+		public void setState(State state) {
+			State previousState = this.state;
+			
+			if ( previousState != state ) {
+				ConnectionRegistry.this.stateCounts[previousState.ordinal()].decrement();
+				ConnectionRegistry.this.stateCounts[state.ordinal()].increment();
+				this.state = state;
+				
+				if ( ( state == State.IDLE ) && ConnectionRegistry.this.isDraining ) {
+					this.close();
+				}
+			}
+		}
+		
+		/**
+		 * @post Devuelve el estado de la conexión
+		 */
+		public State getState() {
+			return this.state;
+		}
+		
+		/**
+		 * @post Devuelve el instante en que fue aceptada la conexión, en nanosegundos
+		 */
+		public long getStartTime() {
+			return this.startTime;
+		}
+		
+		/**
+		 * @pre Sólo puede ser llamado por el hilo que atiende la conexión,
+		 * 		una sola vez
+		 * @post Quita la conexión del registro
+		 */
+		public void unregister() {
+			ConnectionRegistry.this.unregister(this);
+		}
+		
+		/**
+		 * @post Cierra la conexión, lo que interrumpe la lectura o escritura en curso
+		 */
+		private void close() {
+			try {
+				this.closeable.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Client connection error: ''{0}''", (Object) e);
+			}
+		}
+	}
+	
+	private final Set<Connection> connections;
+	private final LongAdder[] stateCounts;
+	
+	private volatile boolean isDraining;
+	private volatile boolean isClosed;
+	
+	/**
+	 * @post Crea el registro vacío
+	 */
+	public ConnectionRegistry() {
+		this.connections = ConcurrentHashMap.newKeySet();
+		
+		this.stateCounts = new LongAdder[State.values().length];
+		for ( int i = 0 ; i < this.stateCounts.length ; i++ ) {
+			this.stateCounts[i] = new LongAdder();
+		}
+		
+		this.isDraining = false;
+		this.isClosed = false;
+	}
+	
+	/**
+	 * @pre La conexión no puede ser nula
+	 * @post Registra la conexión especificada como encolada, y la devuelve.
+	 * 		 Si ya se cerraron las conexiones del registro, la cierra
+	 */
+	public Connection register(Closeable closeable) {
+		if ( closeable == null ) {
+			throw new NullPointerException();
+		}
+		
+		Connection connection = new Connection(closeable, System.nanoTime());
+		this.stateCounts[State.QUEUED.ordinal()].increment();
+		this.connections.add(connection);
+		
+		// Pudo haber sido aceptada mientras se cerraban las demás
+		if ( this.isClosed ) {
+			connection.close();
+		}
+		
+		return connection;
+	}
+	
+	/**
+	 * @post Quita la conexión especificada del registro
+	 */
+	private void unregister(Connection connection) {
+		if ( this.connections.remove(connection) ) {
+			this.stateCounts[connection.state.ordinal()].decrement();
+			
+			if ( this.isDraining && this.connections.isEmpty() ) {
+				synchronized ( this ) {
+					this.notifyAll();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @pre El tiempo no puede ser negativo
+	 * @post Espera a que no queden conexiones, hasta el tiempo máximo en
+	 * 		 nanosegundos especificado, y devuelve si no quedan.
+	 * 		 Mientras tanto cierra las conexiones inactivas
+	 */
+	public boolean awaitEmpty(long timeout) throws InterruptedException {
+		final long deadline = System.nanoTime() + timeout;
+		
+		synchronized ( this ) {
+			this.isDraining = true;
+			
+			// Las que quedan inactivas después se cierran al cambiar de estado
+			for ( Connection eachConnection : this.connections ) {
+				if ( eachConnection.getState() == State.IDLE ) {
+					eachConnection.close();
+				}
+			}
+			
+			while ( !this.connections.isEmpty() ) {
+				long remaining = deadline - System.nanoTime();
+				if ( remaining <= 0 ) {
+					return false;
+				}
+				
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * @post Cierra las conexiones registradas, y las que se registren
+	 * 		 después. Devuelve la cantidad de conexiones cerradas
+	 */
+	public int closeAll() {
+		this.isClosed = true;
+		
+		int closedConnections = 0;
+		for ( Connection eachConnection : this.connections ) {
+			eachConnection.close();
+			closedConnections++;
+		}
+		
+		return closedConnections;
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de conexiones en el estado especificado
+	 */
+	public long getConnections(State state) {
+		return this.stateCounts[state.ordinal()].sum();
+	}
+	
+	@Override
+	public int getActiveConnections() {
+		return this.connections.size();
+	}
+	
+	@Override
+	public long getQueuedConnections() {
+		return this.getConnections(State.QUEUED);
+	}
+	
+	@Override
+	public long getAwaitingClientConnections() {
+		return this.getConnections(State.AWAITING_CLIENT);
+	}
+	
+	@Override
+	public long getProcessingConnections() {
+		return this.getConnections(State.PROCESSING);
+	}
+	
+	@Override
+	public long getIdleConnections() {
+		return this.getConnections(State.IDLE);
+	}
+	
+	@Override
+	public long getOldestConnectionAge() {
+		long now = System.nanoTime();
+		long oldestAge = 0;
+		
+		for ( Connection eachConnection : this.connections ) {
+			oldestAge = Math.max(oldestAge, now - eachConnection.getStartTime());
+		}
+		
+		return TimeUnit.NANOSECONDS.toMillis(oldestAge);
+	}
+	
+	@Override
+	public boolean isDraining() {
+		return this.isDraining;
+	}
+	
+	/**
+	 * @post Publica el registro en el servidor de MBeans de la plataforma
+	 */
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(HandshakeMetrics.DOMAIN + ":type=ConnectionRegistry"));
+	}
+	
+	@Override
+	public String toString() {
+		return "connections [active=" + this.getActiveConnections() +
+				", queued=" + this.getQueuedConnections() +
+				", awaitingClient=" + this.getAwaitingClientConnections() +
+				", processing=" + this.getProcessingConnections() +
+				", idle=" + this.getIdleConnections() +
+				", oldestAge=" + this.getOldestConnectionAge() + " ms]";
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+/**
+ * Vista de JMX del registro de conexiones en curso
+ * @author ariel
+ *
+ */
+public interface ConnectionRegistryMXBean {
+	/**
+	 * @post Devuelve el número de conexiones en curso
+	 */
+	public int getActiveConnections();
+	
+	/**
+	 * @post Devuelve el número de conexiones aceptadas que esperan un trabajador
+	 */
+	public long getQueuedConnections();
+	
+	/**
+	 * @post Devuelve el número de conexiones que esperan que el cliente
+	 * 		 envíe o reciba datos
+	 */
+	public long getAwaitingClientConnections();
+	
+	/**
+	 * @post Devuelve el número de conexiones que se están procesando
+	 * 		 en el servidor
+	 */
+	public long getProcessingConnections();
+	
+	/**
+	 * @post Devuelve el número de sesiones persistentes que esperan
+	 * 		 la siguiente solicitud
+	 */
+	public long getIdleConnections();
+	
+	/**
+	 * @post Devuelve el tiempo en milisegundos desde que se aceptó la
+	 * 		 conexión en curso más antigua, o cero si no hay
+	 */
+	public long getOldestConnectionAge();
+	
+	/**
+	 * @post Devuelve si el servidor está esperando que terminen las
+	 * 		 conexiones en curso para detenerse
+	 */
+	public boolean isDraining();
+}
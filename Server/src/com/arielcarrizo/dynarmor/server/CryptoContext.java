@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Contexto criptográfico reutilizable
+ * 
+ * Contiene el resumidor de mensajes y el cifrador RSA inicializado
+ * con la clave privada del par de claves de su pool.
+ * Sólo puede ser usado por un hilo a la vez
+ * @author ariel
+ *
+ */
+final class CryptoContext {
+	private final CryptoContextPool pool;
+	
+	private final MessageDigest messageDigest;
+	private final Cipher rsaDecryptCipher;
+	
+	// Se crean cuando se usan por primera vez
+	private KeyPairGenerator keyExchangeKeyPairGenerator;
+	private KeyAgreement keyAgreement;
+	private Signature signature;
+	private Mac mac;
+	private Cipher channelCipher;
+	
+	/**
+	 * @post Crea el contexto para el pool especificado
+	 */
+	CryptoContext(CryptoContextPool pool) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+		this.pool = pool;
+		this.messageDigest = SessionEncryptionSettings.newMessageDigest();
+		this.rsaDecryptCipher = Cipher.getInstance(SessionEncryptionSettings.RSA_SETUP);
+		this.rsaDecryptCipher.init(Cipher.DECRYPT_MODE, pool.getKeyPair().getPrivate());
+		
+		this.keyExchangeKeyPairGenerator = null;
+		this.keyAgreement = null;
+		this.signature = null;
+		this.mac = null;
+		this.channelCipher = null;
+	}
+	
+	/**
+	 * @post Devuelve el pool al que pertenece
+	 */
+	CryptoContextPool getPool() {
+		return this.pool;
+	}
+	
+	/**
+	 * @post Devuelve el par de claves
+	 */
+	public KeyPair getKeyPair() {
+		return this.pool.getKeyPair();
+	}
+	
+	/**
+	 * @post Devuelve el resumidor de mensajes para verificar la clave de sesión
+	 */
+	public MessageDigest getMessageDigest() {
+		return this.messageDigest;
+	}
+	
+	/**
+	 * @post Devuelve el cifrador RSA, inicializado para descifrar
+	 * 		 con la clave privada
+	 */
+	public Cipher getRSADecryptCipher() {
+		return this.rsaDecryptCipher;
+	}
+	
+	/**
+	 * @post Vuelve a inicializar el cifrador RSA, después de
+	 * 		 una operación fallida
+	 */
+	public void resetRSADecryptCipher() throws InvalidKeyException {
+		this.rsaDecryptCipher.init(Cipher.DECRYPT_MODE, this.pool.getKeyPair().getPrivate());
+	}
+	
+	/**
+	 * @post Devuelve el generador de pares de claves efímeras
+	 * 		 para el intercambio de claves
+	 */
+	public KeyPairGenerator getKeyExchangeKeyPairGenerator() throws NoSuchAlgorithmException {
+		if ( this.keyExchangeKeyPairGenerator == null ) {
+			this.keyExchangeKeyPairGenerator = KeyPairGenerator.getInstance(SessionEncryptionSettings.KEY_EXCHANGE_ALGORITHM);
+		}
+		return this.keyExchangeKeyPairGenerator;
+	}
+	
+	/**
+	 * @post Devuelve el acuerdo de claves para el intercambio de claves
+	 */
+	public KeyAgreement getKeyAgreement() throws NoSuchAlgorithmException {
+		if ( this.keyAgreement == null ) {
+			this.keyAgreement = KeyAgreement.getInstance(SessionEncryptionSettings.KEY_EXCHANGE_ALGORITHM);
+		}
+		return this.keyAgreement;
+	}
+	
+	/**
+	 * @pre El pool tiene que tener un par de claves de firma
+	 * @post Devuelve el firmador, inicializado con la clave privada de firma
+	 */
+	public Signature getSignature() throws NoSuchAlgorithmException, InvalidKeyException {
+		if ( this.signature == null ) {
+			this.signature = Signature.getInstance(SessionEncryptionSettings.SIGNATURE_ALGORITHM);
+		}
+		this.signature.initSign(this.pool.getSigningKeyPair().getPrivate());
+		return this.signature;
+	}
+	
+	/**
+	 * @post Devuelve el código de autenticación de mensajes para la
+	 * 		 derivación de claves, sin inicializar
+	 */
+	public Mac getMac() throws NoSuchAlgorithmException {
+		if ( this.mac == null ) {
+			this.mac = Mac.getInstance(SessionEncryptionSettings.MAC_ALGORITHM);
+		}
+		return this.mac;
+	}
+	
+	/**
+	 * @post Devuelve el cifrador del canal cifrado, sin inicializar
+	 */
+	public Cipher getChannelCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+		if ( this.channelCipher == null ) {
+			this.channelCipher = Cipher.getInstance(SessionEncryptionSettings.CHANNEL_CIPHER);
+		}
+		return this.channelCipher;
+	}
+	
+	/**
+	 * @post Devuelve el contexto a su pool
+	 */
+	public void release() {
+		this.pool.release(this);
+	}
+}
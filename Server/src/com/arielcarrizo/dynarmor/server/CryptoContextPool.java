@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAKey;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Pool de contextos criptográficos para un par de claves
+ * 
+ * No depende del hilo que lo usa, por lo que sirve tanto para
+ * hilos de plataforma como para hilos virtuales.
+ * Cada configuración tiene su pool, de forma que al recargarla
+ * las conexiones en curso terminan con los contextos de la clave
+ * con la que empezaron
+ * @author ariel
+ *
+ */
+final class CryptoContextPool {
+	private final KeyPair keyPair;
+	private final byte[] encodedPublicKeyFlight;
+	private final int encryptedSessionKeyLength;
+	private final KeyPair signingKeyPair;
+	private final byte[] encodedSigningPublicKey;
+	private final long ephemeralKeyLifetime;
+	private final int capacity;
+	
+	private final AtomicReference<ECDHKeyExchange> currentKeyExchange;
+	
+	private final Queue<CryptoContext> idleContexts;
+	private final AtomicInteger idleContextsCount;
+	
+	/**
+	 * @pre El par de claves RSA no puede ser nulo y la capacidad tiene que ser positiva
+	 * @post Crea el pool con el par de claves RSA, el par de claves de firma
+	 * 		 (Puede ser nulo si no se soporta el intercambio de claves efímeras),
+	 * 		 el tiempo de vida de las claves efímeras del servidor en nanosegundos
+	 * 		 y el número máximo de contextos libres especificados
+	 */
+	public CryptoContextPool(KeyPair keyPair, KeyPair signingKeyPair, long ephemeralKeyLifetime, int capacity) {
+		if ( keyPair == null ) {
+			throw new NullPointerException();
+		}
+		
+		if ( capacity < 1 ) {
+			throw new IllegalArgumentException("Invalid capacity");
+		}
+		
+		this.keyPair = keyPair;
+		
+		// Versión aceptada, longitud y clave pública
+		{
+			byte[] publicKeyData = keyPair.getPublic().getEncoded();
+			this.encodedPublicKeyFlight = ByteBuffer.allocate(1 + 4 + publicKeyData.length)
+					.put((byte) 0)
+					.putInt(publicKeyData.length)
+					.put(publicKeyData)
+					.array();
+		}
+		
+		// Todo criptograma RSA tiene la longitud del módulo
+		this.encryptedSessionKeyLength = ( ((RSAKey) keyPair.getPublic()).getModulus().bitLength() + 7 ) / 8;
+		
+		this.signingKeyPair = signingKeyPair;
+		
+		if ( signingKeyPair != null ) {
+			this.encodedSigningPublicKey = signingKeyPair.getPublic().getEncoded();
+		}
+		else {
+			this.encodedSigningPublicKey = null;
+		}
+		
+		this.ephemeralKeyLifetime = ephemeralKeyLifetime;
+		this.capacity = capacity;
+		this.currentKeyExchange = new AtomicReference<ECDHKeyExchange>(null);
+		this.idleContexts = new ConcurrentLinkedQueue<CryptoContext>();
+		this.idleContextsCount = new AtomicInteger(0);
+	}
+	
+	/**
+	 * @post Devuelve el par de claves
+	 */
+	public KeyPair getKeyPair() {
+		return this.keyPair;
+	}
+	
+	/**
+	 * @post Devuelve la respuesta codificada de la versión 0 del protocolo:
+	 * 		 Versión aceptada, longitud y clave pública.
+	 * 		 No puede ser modificada
+	 */
+	public byte[] getEncodedPublicKeyFlight() {
+		return this.encodedPublicKeyFlight;
+	}
+	
+	/**
+	 * @post Devuelve la longitud de los datos cifrados de la clave de sesión
+	 * 		 con la clave pública, que es la del módulo
+	 */
+	public int getEncryptedSessionKeyLength() {
+		return this.encryptedSessionKeyLength;
+	}
+	
+	/**
+	 * @post Devuelve el par de claves de firma, o null si no hay
+	 */
+	public KeyPair getSigningKeyPair() {
+		return this.signingKeyPair;
+	}
+	
+	/**
+	 * @post Devuelve la clave pública de firma codificada, o null si no hay
+	 */
+	public byte[] getEncodedSigningPublicKey() {
+		return this.encodedSigningPublicKey;
+	}
+	
+	/**
+	 * @post Devuelve el tiempo de vida de las claves efímeras del servidor,
+	 * 		 en nanosegundos
+	 */
+	public long getEphemeralKeyLifetime() {
+		return this.ephemeralKeyLifetime;
+	}
+	
+	/**
+	 * @post Devuelve el número máximo de contextos libres
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+	
+	/**
+	 * @post Devuelve si el pool fue creado con los pares de claves, el tiempo
+	 * 		 de vida de las claves efímeras y la capacidad especificados
+	 */
+	boolean hasSameSettings(KeyPair keyPair, KeyPair signingKeyPair, long ephemeralKeyLifetime, int capacity) {
+		return isSameKeyPair(this.keyPair, keyPair) && isSameKeyPair(this.signingKeyPair, signingKeyPair) &&
+				( this.ephemeralKeyLifetime == ephemeralKeyLifetime ) && ( this.capacity == capacity );
+	}
+	
+	private static boolean isSameKeyPair(KeyPair keyPair1, KeyPair keyPair2) {
+		if ( ( keyPair1 != null ) && ( keyPair2 != null ) ) {
+			return keyPair1.getPublic().equals(keyPair2.getPublic()) && keyPair1.getPrivate().equals(keyPair2.getPrivate());
+		}
+		else {
+			return keyPair1 == keyPair2;
+		}
+	}
+	
+	/**
+	 * @post Devuelve el intercambio de claves con la clave efímera vigente,
+	 * 		 o null si no hay
+	 */
+	ECDHKeyExchange getCurrentKeyExchange() {
+		return this.currentKeyExchange.get();
+	}
+	
+	/**
+	 * @post Reemplaza el intercambio de claves con la clave efímera vigente
+	 */
+	void setCurrentKeyExchange(ECDHKeyExchange keyExchange) {
+		this.currentKeyExchange.set(keyExchange);
+	}
+	
+	/**
+	 * @post Obtiene un contexto libre, o crea uno nuevo si no hay
+	 * 		 ninguno. Hay que devolverlo con release() al terminar de usarlo
+	 */
+	public CryptoContext acquire() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+		CryptoContext context = this.idleContexts.poll();
+		
+		if ( context != null ) {
+			this.idleContextsCount.decrementAndGet();
+		}
+		else {
+			context = new CryptoContext(this);
+		}
+		
+		return context;
+	}
+	
+	/**
+	 * @pre El contexto tiene que pertenecer a este pool, y no puede
+	 * 		ser usado después de devolverlo
+	 * @post Devuelve el contexto al pool, o lo descarta si el pool está lleno
+	 */
+	void release(CryptoContext context) {
+		if ( context.getPool() != this ) {
+			throw new IllegalArgumentException("Context from another pool");
+		}
+		
+		if ( this.idleContextsCount.incrementAndGet() <= this.capacity ) {
+			this.idleContexts.add(context);
+		}
+		else {
+			this.idleContextsCount.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Etapa de descifrado de la clave de sesión
+ * 
+ * Separa el descifrado RSA, que es la operación más costosa del
+ * establecimiento de sesión, de los hilos que atienden los sockets.
+ * Los hilos de E/S le entregan los datos cifrados y continúan
+ * cuando la clave de sesión está lista
+ * @author ariel
+ *
+ */
+final class CryptoStage {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	private final Executor executor;
+	private final StageMetrics metrics;
+	
+	private CryptoStage(Executor executor) {
+		this.executor = executor;
+		this.metrics = new StageMetrics("crypto");
+	}
+	
+	/**
+	 * @post Crea la etapa, descifrando en el hilo que entrega los datos
+	 */
+	public static CryptoStage inline() {
+		return new CryptoStage(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+	}
+	
+	/**
+	 * @pre El número de hilos tiene que ser positivo
+	 * @post Crea la etapa, descifrando en un pool con robo de trabajo
+	 * 		 con el número de hilos especificado
+	 */
+	public static CryptoStage pooled(int threads) {
+		return new CryptoStage(new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true));
+	}
+	
+	/**
+	 * @post Devuelve las métricas de la etapa
+	 */
+	public StageMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * Tarea criptográfica, que se ejecuta con un contexto del pool
+	 */
+	public interface Task<T> {
+		/**
+		 * @post Ejecuta la tarea con el contexto especificado
+		 */
+		T run(CryptoContext cryptoContext) throws GeneralSecurityException;
+	}
+	
+	/**
+	 * @pre El pool y la tarea no pueden ser nulos
+	 * @post Ejecuta la tarea especificada con un contexto del pool especificado
+	 */
+	public <T> CompletableFuture<T> submit(final CryptoContextPool cryptoContextPool, final Task<T> task) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		
+		this.metrics.submitted();
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					CryptoStage.this.metrics.started();
+					try {
+						CryptoContext cryptoContext = cryptoContextPool.acquire();
+						try {
+							result.complete(task.run(cryptoContext));
+						} finally {
+							cryptoContext.release();
+						}
+					} catch (Throwable e) {
+						result.completeExceptionally(e);
+					} finally {
+						CryptoStage.this.metrics.finished();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.metrics.cancelled();
+			result.completeExceptionally(e);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @post Hace lo mismo que submit, esperando el resultado.
+	 * 		 Si es interrumpido devuelve null
+	 */
+	public <T> T submitAndWait(CryptoContextPool cryptoContextPool, Task<T> task) throws GeneralSecurityException {
+		try {
+			return this.submit(cryptoContextPool, task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.warning("Interrupted while waiting for crypto stage");
+			return null;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			
+			if ( cause instanceof GeneralSecurityException ) {
+				throw (GeneralSecurityException) cause;
+			}
+			else if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			}
+			else if ( cause instanceof Error ) {
+				throw (Error) cause;
+			}
+			else {
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+	
+	/**
+	 * @pre El pool y los datos cifrados no pueden ser nulos
+	 * @post Descifra y verifica los datos de la clave de sesión con un contexto
+	 * 		 del pool especificado, o del pool del par de claves anterior a la
+	 * 		 rotación si no es nulo y falla, esperando el resultado.
+	 * 		 El segundo descifrado se cobra como otro establecimiento de sesión
+	 * 		 de la dirección especificada en el limitador especificado.
+	 * 		 Registra las fases y el resultado si no es válido en las métricas
+	 * 		 especificadas.
+	 * 		 Devuelve la clave y el IV concatenados, o null si no son válidos
+	 */
+	public byte[] decodeSessionKeyAndWait(CryptoContextPool cryptoContextPool, final CryptoContextPool retiredCryptoContextPool, final byte[] encryptedSessionKeyData, final HandshakeMetrics metrics, final SourceAddressLimiter sourceAddressLimiter, final InetAddress address) throws GeneralSecurityException {
+		return this.submitAndWait(cryptoContextPool, new Task<byte[]>() {
+			@Override
+			public byte[] run(CryptoContext cryptoContext) throws GeneralSecurityException {
+				return SessionKeyDecoder.decode(cryptoContext, retiredCryptoContextPool, encryptedSessionKeyData, metrics, sourceAddressLimiter, address);
+			}
+		});
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Intercambio de claves efímeras X25519 (Versión 1 del protocolo)
+ * 
+ * Reemplaza el transporte de la clave de sesión cifrada con RSA por un
+ * acuerdo de claves efímeras, firmado con la clave de firma del servidor.
+ * 
+ * Servidor: Cadena "mágica"
+ * Cliente: Versión de protocolo (1)
+ * Servidor: Versión aceptada (0), longitud y clave pública de firma (X.509),
+ * 			 clave pública efímera (32 bytes), firma Ed25519 de la cadena "mágica",
+ * 			 la versión y la clave pública efímera (64 bytes)
+ * Cliente: Clave pública efímera (32 bytes), confirmación de la clave (64 bytes)
+ * 
+ * La clave AES, el IV y la clave de confirmación se derivan del secreto
+ * compartido con HKDF-SHA512, usando las dos claves públicas efímeras como sal.
+ * La confirmación es el HMAC-SHA512 de las dos claves públicas efímeras
+ * 
+ * La firma Ed25519 cuesta más que el acuerdo de claves, por lo que la clave
+ * efímera del servidor, con su firma, se reutiliza durante el tiempo de vida
+ * configurado. La clave efímera del cliente es nueva en cada conexión
+ * @author ariel
+ *
+ */
+final class ECDHKeyExchange {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	public final static int PUBLIC_KEY_LENGTH = 32;
+	public final static int SIGNATURE_LENGTH = 64;
+	public final static int CONFIRMATION_LENGTH = 64;
+	
+	private final static int AES_KEY_IV_LENGTH = (SessionEncryptionSettings.AES_SESSION_KEY_BITS_SIZE + SessionEncryptionSettings.AES_SESSION_IV_BITS_SIZE) / 8;
+	private final static byte[] HKDF_INFO = "dynarmor session v1".getBytes(StandardCharsets.US_ASCII);
+	
+	private final PrivateKey ephemeralPrivateKey;
+	private final byte[] serverPublicKey;
+	private final byte[] encodedServerFlight;
+	
+	private final long expirationTime;
+	
+	private ECDHKeyExchange(PrivateKey ephemeralPrivateKey, byte[] serverPublicKey, byte[] encodedServerFlight, long expirationTime) {
+		this.ephemeralPrivateKey = ephemeralPrivateKey;
+		this.serverPublicKey = serverPublicKey;
+		this.encodedServerFlight = encodedServerFlight;
+		this.expirationTime = expirationTime;
+	}
+	
+	/**
+	 * @pre El pool del contexto tiene que tener un par de claves de firma
+	 * @post Devuelve el intercambio de claves con la clave efímera vigente del pool
+	 * 		 del contexto especificado, o con una nueva si venció
+	 * 
+	 * Es inmutable, por lo que puede ser usado por varias conexiones a la vez
+	 */
+	public static ECDHKeyExchange start(CryptoContext cryptoContext) throws GeneralSecurityException {
+		CryptoContextPool cryptoContextPool = cryptoContext.getPool();
+		
+		ECDHKeyExchange current = cryptoContextPool.getCurrentKeyExchange();
+		if ( ( current != null ) && ( System.nanoTime() - current.expirationTime < 0 ) ) {
+			return current;
+		}
+		
+		ECDHKeyExchange keyExchange = generate(cryptoContext, System.nanoTime() + cryptoContextPool.getEphemeralKeyLifetime());
+		cryptoContextPool.setCurrentKeyExchange(keyExchange);
+		
+		return keyExchange;
+	}
+	
+	/**
+	 * @post Genera el par de claves efímeras del servidor, firma la
+	 * 		 clave pública y codifica la respuesta del servidor
+	 */
+	private static ECDHKeyExchange generate(CryptoContext cryptoContext, long expirationTime) throws GeneralSecurityException {
+		KeyPair ephemeralKeyPair = cryptoContext.getKeyExchangeKeyPairGenerator().generateKeyPair();
+		byte[] serverPublicKey = encodePublicKey( (XECPublicKey) ephemeralKeyPair.getPublic() );
+		
+		Signature signer = cryptoContext.getSignature();
+		signer.update(MultiThreadedServer.MAGICPROTOCOLHEADER);
+		signer.update(ByteBuffer.allocate(4).putInt(MultiThreadedServer.PROTOCOLVERSION_ECDH).array());
+		signer.update(serverPublicKey);
+		
+		byte[] signature = signer.sign();
+		
+		byte[] signingPublicKeyData = cryptoContext.getPool().getEncodedSigningPublicKey();
+		byte[] encodedServerFlight = ByteBuffer.allocate(1 + 4 + signingPublicKeyData.length + PUBLIC_KEY_LENGTH + SIGNATURE_LENGTH)
+				.put((byte) 0)
+				.putInt(signingPublicKeyData.length)
+				.put(signingPublicKeyData)
+				.put(serverPublicKey)
+				.put(signature)
+				.array();
+		
+		return new ECDHKeyExchange(ephemeralKeyPair.getPrivate(), serverPublicKey, encodedServerFlight, expirationTime);
+	}
+	
+	/**
+	 * @post Devuelve la respuesta codificada del servidor: Versión aceptada,
+	 * 		 longitud y clave pública de firma, clave pública efímera y firma.
+	 * 		 No puede ser modificada
+	 */
+	public byte[] getEncodedServerFlight() {
+		return this.encodedServerFlight;
+	}
+	
+	/**
+	 * @pre La clave pública del cliente y la confirmación tienen que tener
+	 * 		la longitud correspondiente
+	 * @post Deriva la clave de sesión con la clave pública efímera del cliente,
+	 * 		 y verifica la confirmación.
+	 * 		 Devuelve la clave y el IV concatenados, o null si no son válidos
+	 */
+	public byte[] finish(CryptoContext cryptoContext, byte[] clientPublicKey, byte[] confirmation) throws GeneralSecurityException {
+		byte[] sharedSecret;
+		
+		// El contexto es exclusivo de este hilo, el intercambio de claves no
+		KeyAgreement keyAgreement = cryptoContext.getKeyAgreement();
+		keyAgreement.init(this.ephemeralPrivateKey);
+		try {
+			keyAgreement.doPhase(decodePublicKey(clientPublicKey), true);
+		} catch (InvalidKeyException e) {
+			LOGGER.log(Level.WARNING, "Invalid client key exchange public key: ''{0}''", (Object) e);
+			return null;
+		}
+		sharedSecret = keyAgreement.generateSecret();
+		
+		Mac mac = cryptoContext.getMac();
+		
+		byte[] salt = new byte[PUBLIC_KEY_LENGTH * 2];
+		System.arraycopy(this.serverPublicKey, 0, salt, 0, PUBLIC_KEY_LENGTH);
+		System.arraycopy(clientPublicKey, 0, salt, PUBLIC_KEY_LENGTH, PUBLIC_KEY_LENGTH);
+		
+		byte[] keyMaterial = HKDF.derive(mac, salt, sharedSecret, HKDF_INFO, AES_KEY_IV_LENGTH + CONFIRMATION_LENGTH);
+		Arrays.fill(sharedSecret, (byte) 0);
+		
+		byte[] aesKey_iv = Arrays.copyOfRange(keyMaterial, 0, AES_KEY_IV_LENGTH);
+		
+		// Verificar que el cliente haya derivado la misma clave
+		mac.init(new SecretKeySpec(keyMaterial, AES_KEY_IV_LENGTH, CONFIRMATION_LENGTH, SessionEncryptionSettings.MAC_ALGORITHM));
+		Arrays.fill(keyMaterial, (byte) 0);
+		
+		if ( MessageDigest.isEqual(mac.doFinal(salt), confirmation) ) {
+			return aesKey_iv;
+		}
+		else {
+			LOGGER.warning("Tampered key exchange confirmation");
+			return null;
+		}
+	}
+	
+	/**
+	 * @post Codifica la clave pública X25519 especificada como en el RFC 7748
+	 * 		 (Little endian, 32 bytes)
+	 */
+	static byte[] encodePublicKey(XECPublicKey publicKey) {
+		byte[] bigEndian = publicKey.getU().toByteArray();
+		byte[] encoded = new byte[PUBLIC_KEY_LENGTH];
+		
+		for ( int i = 0 ; ( i < PUBLIC_KEY_LENGTH ) && ( i < bigEndian.length ) ; i++ ) {
+			encoded[i] = bigEndian[bigEndian.length - 1 - i];
+		}
+		
+		return encoded;
+	}
+	
+	/**
+	 * @post Decodifica la clave pública X25519 especificada, codificada como en el RFC 7748
+	 */
+	static PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+		byte[] bigEndian = new byte[PUBLIC_KEY_LENGTH];
+		
+		for ( int i = 0 ; i < PUBLIC_KEY_LENGTH ; i++ ) {
+			bigEndian[i] = encoded[PUBLIC_KEY_LENGTH - 1 - i];
+		}
+		bigEndian[0] &= 0x7F;
+		
+		return KeyFactory.getInstance(SessionEncryptionSettings.KEY_EXCHANGE_ALGORITHM).generatePublic(
+				new XECPublicKeySpec(NamedParameterSpec.X25519, new BigInteger(1, bigEndian))
+		);
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derivación de claves HKDF (RFC 5869)
+ * @author ariel
+ *
+ */
+final class HKDF {
+	private HKDF() {};
+	
+	/**
+	 * @pre El código de autenticación de mensajes no puede ser nulo
+	 * @post Deriva la cantidad de bytes especificada con el código de autenticación
+	 * 		 de mensajes, la sal (Puede estar vacía), el material de clave y la
+	 * 		 información especificados
+	 */
+	public static byte[] derive(Mac mac, byte[] salt, byte[] inputKeyMaterial, byte[] info, int length) throws InvalidKeyException {
+		// Extracción (Sin sal equivale a una sal de ceros)
+		if ( salt.length == 0 ) {
+			salt = new byte[mac.getMacLength()];
+		}
+		mac.init(new SecretKeySpec(salt, mac.getAlgorithm()));
+		byte[] pseudoRandomKey = mac.doFinal(inputKeyMaterial);
+		
+		// Expansión
+		mac.init(new SecretKeySpec(pseudoRandomKey, mac.getAlgorithm()));
+		Arrays.fill(pseudoRandomKey, (byte) 0);
+		
+		byte[] output = new byte[length];
+		byte[] block = new byte[0];
+		int offset = 0;
+		for ( int i = 1 ; offset < length ; i++ ) {
+			mac.update(block);
+			mac.update(info);
+			mac.update((byte) i);
+			block = mac.doFinal();
+			
+			int blockLength = Math.min(block.length, length - offset);
+			System.arraycopy(block, 0, output, offset, blockLength);
+			offset += blockLength;
+		}
+		
+		return output;
+	}
+}
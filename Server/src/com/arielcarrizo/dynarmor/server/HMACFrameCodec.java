@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Codificador de tramas autenticadas con HMAC, compatible con la capa de
+ * HMAC del cliente (hmac_layer.c)
+ * 
+ * Cada trama es el mensaje seguido de la etiqueta de TAG_SIZE bytes:
+ * SHA-512(clave XOR opad || SHA-512(clave XOR ipad || mensaje))
+ * La clave tiene el tamaño de bloque de SHA-512, como la genera el cliente.
+ * 
+ * Los bloques de la clave con ipad y opad se calculan una sola vez, y
+ * en cada trama se reutilizan el resumen y los arrays de las etiquetas,
+ * de forma que codificar o verificar una trama no reserva memoria.
+ * No es seguro usarlo desde varios hilos a la vez
+ * @author ariel
+ *
+ */
+final class HMACFrameCodec {
+	public final static int BLOCK_SIZE = 128;
+	public final static int KEY_SIZE = BLOCK_SIZE;
+	public final static int TAG_SIZE = 64;
+	
+	private final static byte IPAD = 0x36;
+	private final static byte OPAD = 0x5c;
+	
+	private final MessageDigest messageDigest;
+	private final byte[] innerKeyPad;
+	private final byte[] outerKeyPad;
+	
+	private final byte[] innerHash;
+	private final byte[] tag;
+	
+	/**
+	 * @pre La clave no puede ser nula
+	 * @post Crea el codificador con la clave especificada, de KEY_SIZE bytes
+	 */
+	public HMACFrameCodec(byte[] key) {
+		if ( key.length != KEY_SIZE ) {
+			throw new IllegalArgumentException("Invalid HMAC key size");
+		}
+		
+		this.messageDigest = SessionEncryptionSettings.newMessageDigest();
+		
+		if ( this.messageDigest.getDigestLength() != TAG_SIZE ) {
+			throw new IllegalStateException("Unexpected message digest length");
+		}
+		
+		this.innerKeyPad = new byte[BLOCK_SIZE];
+		this.outerKeyPad = new byte[BLOCK_SIZE];
+		
+		for ( int i = 0 ; i < BLOCK_SIZE ; i++ ) {
+			this.innerKeyPad[i] = (byte) ( key[i] ^ IPAD );
+			this.outerKeyPad[i] = (byte) ( key[i] ^ OPAD );
+		}
+		
+		this.innerHash = new byte[TAG_SIZE];
+		this.tag = new byte[TAG_SIZE];
+	}
+	
+	/**
+	 * @post Devuelve el tamaño de la trama codificada para el tamaño
+	 * 		 de mensaje especificado
+	 */
+	public static int getFrameSize(int messageSize) {
+		return messageSize + TAG_SIZE;
+	}
+	
+	/**
+	 * @pre El buffer no puede ser nulo
+	 * @post Calcula la etiqueta del mensaje entre la posición y el límite del buffer,
+	 * 		 y la deja en el array de etiqueta
+	 */
+	private void computeTag(ByteBuffer message) {
+		final MessageDigest messageDigest = this.messageDigest;
+		
+		int position = message.position();
+		
+		messageDigest.update(this.innerKeyPad);
+		messageDigest.update(message);
+		message.position(position);
+		
+		try {
+			messageDigest.digest(this.innerHash, 0, TAG_SIZE);
+			
+			messageDigest.update(this.outerKeyPad);
+			messageDigest.update(this.innerHash);
+			messageDigest.digest(this.tag, 0, TAG_SIZE);
+		} catch ( DigestException e ) {
+			// Los arrays tienen el tamaño del resumen
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @pre El buffer no puede ser nulo
+	 * @post Codifica como trama el mensaje entre la posición y el límite
+	 * 		 del buffer, escribiendo la etiqueta a continuación y extendiendo
+	 * 		 el límite hasta ella. La posición no cambia.
+	 * 		 Si no hay lugar para la etiqueta después del límite lanza
+	 * 		 IllegalArgumentException sin modificar el buffer
+	 */
+	public void encode(ByteBuffer frame) {
+		if ( frame.capacity() - frame.limit() < TAG_SIZE ) {
+			throw new IllegalArgumentException("No room for the HMAC tag after the message: " + ( frame.capacity() - frame.limit() ) + " bytes free, " + TAG_SIZE + " needed");
+		}
+		
+		this.computeTag(frame);
+		
+		int limit = frame.limit();
+		frame.limit(limit + TAG_SIZE);
+		
+		for ( int i = 0 ; i < TAG_SIZE ; i++ ) {
+			frame.put(limit + i, this.tag[i]);
+		}
+	}
+	
+	/**
+	 * @pre El buffer no puede ser nulo
+	 * @post Verifica la trama entre la posición y el límite del buffer.
+	 * 		 Si es auténtica quita la etiqueta, dejando el límite al final
+	 * 		 del mensaje, y devuelve true. Si no lo es, o es más corta que
+	 * 		 la etiqueta, devuelve false sin modificar el buffer.
+	 * 		 La comparación de la etiqueta es de tiempo constante
+	 */
+	public boolean decode(ByteBuffer frame) {
+		if ( frame.remaining() < TAG_SIZE ) {
+			return false;
+		}
+		
+		int limit = frame.limit();
+		int messageLimit = limit - TAG_SIZE;
+		
+		frame.limit(messageLimit);
+		this.computeTag(frame);
+		frame.limit(limit);
+		
+		int difference = 0;
+		for ( int i = 0 ; i < TAG_SIZE ; i++ ) {
+			difference |= frame.get(messageLimit + i) ^ this.tag[i];
+		}
+		
+		if ( difference == 0 ) {
+			frame.limit(messageLimit);
+			return true;
+		}
+		else {
+			return false;
+		}
+	}
+	
+	/**
+	 * @post Borra la clave. El codificador no puede ser usado después
+	 */
+	public void destroy() {
+		Arrays.fill(this.innerKeyPad, (byte) 0);
+		Arrays.fill(this.outerKeyPad, (byte) 0);
+		Arrays.fill(this.innerHash, (byte) 0);
+		Arrays.fill(this.tag, (byte) 0);
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Codificador del establecimiento de sesión sobre un socket bloqueante
+ * 
+ * Lee y escribe a través de buffers del pool, de forma que cada envío del
+ * protocolo se escribe en el socket con una sola llamada al hacer flush(),
+ * y los enteros se leen del buffer en lugar de byte por byte del socket
+ * @author ariel
+ *
+ */
+final class HandshakeCodec {
+	private final ByteBufferPool bufferPool;
+	private ByteBuffer inputBuffer;
+	private ByteBuffer outputBuffer;
+	
+	private final DataInputStream input;
+	private final DataOutputStream output;
+	
+	/**
+	 * @pre El socket y el pool no pueden ser nulos
+	 * @post Crea el codificador para el socket especificado, con buffers
+	 * 		 del pool especificado
+	 */
+	public HandshakeCodec(Socket socket, ByteBufferPool bufferPool) throws IOException {
+		final InputStream socketInput = socket.getInputStream();
+		final OutputStream socketOutput = socket.getOutputStream();
+		
+		this.bufferPool = bufferPool;
+		this.inputBuffer = bufferPool.acquire();
+		this.outputBuffer = bufferPool.acquire();
+		
+		// El buffer de lectura empieza vacío
+		this.inputBuffer.flip();
+		
+		this.input = new DataInputStream(new InputStream() {
+			@Override
+			public int read() throws IOException {
+				if ( !HandshakeCodec.this.inputBuffer.hasRemaining() && !this.fill() ) {
+					return -1;
+				}
+				
+				return HandshakeCodec.this.inputBuffer.get() & 0xFF;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				ByteBuffer inputBuffer = HandshakeCodec.this.inputBuffer;
+				
+				if ( len == 0 ) {
+					return 0;
+				}
+				
+				if ( !inputBuffer.hasRemaining() ) {
+					// Si no entra en el buffer, leer directamente
+					if ( len >= inputBuffer.capacity() ) {
+						return socketInput.read(b, off, len);
+					}
+					else if ( !this.fill() ) {
+						return -1;
+					}
+				}
+				
+				int readBytes = Math.min(len, inputBuffer.remaining());
+				inputBuffer.get(b, off, readBytes);
+				return readBytes;
+			}
+			
+			@Override
+			public int available() throws IOException {
+				return HandshakeCodec.this.inputBuffer.remaining() + socketInput.available();
+			}
+			
+			@Override
+			public void close() throws IOException {
+				socketInput.close();
+			}
+			
+			/**
+			 * @post Llena el buffer con lo que haya disponible en el socket.
+			 * 		 Devuelve false si se llegó al final del flujo
+			 */
+			private boolean fill() throws IOException {
+				ByteBuffer inputBuffer = HandshakeCodec.this.inputBuffer;
+				
+				int readBytes = socketInput.read(inputBuffer.array(), 0, inputBuffer.capacity());
+				if ( readBytes < 0 ) {
+					return false;
+				}
+				
+				inputBuffer.position(0);
+				inputBuffer.limit(readBytes);
+				return true;
+			}
+		});
+		
+		this.output = new DataOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				if ( !HandshakeCodec.this.outputBuffer.hasRemaining() ) {
+					this.drain();
+				}
+				
+				HandshakeCodec.this.outputBuffer.put((byte) b);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer outputBuffer = HandshakeCodec.this.outputBuffer;
+				
+				if ( len > outputBuffer.remaining() ) {
+					this.drain();
+					
+					// Si no entra en el buffer, escribir directamente
+					if ( len >= outputBuffer.capacity() ) {
+						socketOutput.write(b, off, len);
+						return;
+					}
+				}
+				
+				outputBuffer.put(b, off, len);
+			}
+			
+			@Override
+			public void flush() throws IOException {
+				this.drain();
+				socketOutput.flush();
+			}
+			
+			@Override
+			public void close() throws IOException {
+				try {
+					this.flush();
+				} finally {
+					socketOutput.close();
+				}
+			}
+			
+			/**
+			 * @post Escribe en el socket el contenido del buffer
+			 */
+			private void drain() throws IOException {
+				ByteBuffer outputBuffer = HandshakeCodec.this.outputBuffer;
+				
+				if ( outputBuffer.position() > 0 ) {
+					socketOutput.write(outputBuffer.array(), 0, outputBuffer.position());
+					outputBuffer.clear();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * @post Devuelve el flujo de entrada
+	 */
+	public DataInputStream getInput() {
+		return this.input;
+	}
+	
+	/**
+	 * @post Devuelve el flujo de salida. Lo escrito se envía al hacer flush()
+	 */
+	public DataOutputStream getOutput() {
+		return this.output;
+	}
+	
+	/**
+	 * @pre Los flujos tienen que estar cerrados, y no pueden ser usados después
+	 * @post Devuelve los buffers al pool
+	 */
+	public void release() {
+		if ( this.inputBuffer != null ) {
+			this.bufferPool.release(this.inputBuffer);
+			this.bufferPool.release(this.outputBuffer);
+			this.inputBuffer = null;
+			this.outputBuffer = null;
+		}
+	}
+}
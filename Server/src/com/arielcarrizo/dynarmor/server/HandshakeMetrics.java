@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Métricas del establecimiento de sesión: histogramas de latencia
+ * de cada fase y contadores de cada resultado.
+ * 
+ * Es compartido por todos los motores del servidor. Registrar una
+ * fase o un resultado no reserva memoria ni toma bloqueos
+ * @author ariel
+ *
+ */
+final class HandshakeMetrics {
+	final static String DOMAIN = "com.arielcarrizo.dynarmor";
+	
+	/**
+	 * Fase del establecimiento de sesión
+	 */
+	public enum Phase {
+		/**
+		 * Envío de la cadena "mágica" y recepción de la versión de protocolo
+		 */
+		MAGIC_VERSION("magicVersion"),
+		
+		/**
+		 * Envío de la clave pública (Versión 0 del protocolo)
+		 */
+		PUBLIC_KEY_SEND("publicKeySend"),
+		
+		/**
+		 * Recepción de la clave de sesión cifrada
+		 */
+		SESSION_KEY_READ("sessionKeyRead"),
+		
+		/**
+		 * Descifrado RSA de la clave de sesión
+		 */
+		RSA_DECRYPT("rsaDecrypt"),
+		
+		/**
+		 * Verificación del hash de la clave de sesión
+		 */
+		HASH_VERIFY("hashVerify");
+		
+		private final String name;
+		
+		private Phase(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * @post Devuelve el nombre con el que se publica
+		 */
+		public String getName() {
+			return this.name;
+		}
+	}
+	
+	/**
+	 * Resultado del establecimiento de sesión
+	 */
+	public enum Outcome {
+		ACCEPTED,
+		REJECTED_VERSION,
+		OVERSIZED_KEY,
+		DECRYPT_FAILURE,
+		TAMPERED
+	}
+	
+	private final LatencyHistogram[] phases;
+	private final AtomicLongArray outcomes;
+	
+	/**
+	 * @post Crea las métricas vacías
+	 */
+	public HandshakeMetrics() {
+		this.phases = new LatencyHistogram[Phase.values().length];
+		for ( int i = 0 ; i < this.phases.length ; i++ ) {
+			this.phases[i] = new LatencyHistogram();
+		}
+		
+		this.outcomes = new AtomicLongArray(Outcome.values().length);
+	}
+	
+	/**
+	 * @post Registra la fase especificada, que empezó en el instante especificado
+	 * 		 en nanosegundos, y devuelve el instante actual para usarlo como
+	 * 		 comienzo de la fase siguiente
+	 */
+	public long record(Phase phase, long startTime) {
+		long now = System.nanoTime();
+		this.phases[phase.ordinal()].record(now - startTime);
+		return now;
+	}
+	
+	/**
+	 * @post Registra el resultado especificado
+	 */
+	public void count(Outcome outcome) {
+		this.outcomes.incrementAndGet(outcome.ordinal());
+	}
+	
+	/**
+	 * @post Devuelve el histograma de la fase especificada
+	 */
+	public LatencyHistogram getHistogram(Phase phase) {
+		return this.phases[phase.ordinal()];
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de veces que se registró el resultado especificado
+	 */
+	public long getCount(Outcome outcome) {
+		return this.outcomes.get(outcome.ordinal());
+	}
+	
+	/**
+	 * @pre Las métricas de las etapas no pueden ser nulas
+	 * @post Publica los histogramas de cada fase, y los contadores junto con
+	 * 		 las métricas de la etapa de E/S y de la etapa de descifrado
+	 * 		 especificadas, en el servidor de MBeans de la plataforma
+	 */
+	public void registerMBeans(final StageMetrics ioMetrics, final StageMetrics cryptoMetrics) throws JMException {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		
+		for ( Phase eachPhase : Phase.values() ) {
+			mbeanServer.registerMBean(this.getHistogram(eachPhase), new ObjectName(DOMAIN + ":type=HandshakePhase,name=" + eachPhase.getName()));
+		}
+		
+		mbeanServer.registerMBean(new HandshakeMetricsMXBean() {
+			@Override
+			public long getAccepted() {
+				return HandshakeMetrics.this.getCount(Outcome.ACCEPTED);
+			}
+			
+			@Override
+			public long getRejectedVersion() {
+				return HandshakeMetrics.this.getCount(Outcome.REJECTED_VERSION);
+			}
+			
+			@Override
+			public long getOversizedKey() {
+				return HandshakeMetrics.this.getCount(Outcome.OVERSIZED_KEY);
+			}
+			
+			@Override
+			public long getDecryptFailures() {
+				return HandshakeMetrics.this.getCount(Outcome.DECRYPT_FAILURE);
+			}
+			
+			@Override
+			public long getTampered() {
+				return HandshakeMetrics.this.getCount(Outcome.TAMPERED);
+			}
+			
+			@Override
+			public int getActiveConnections() {
+				return ioMetrics.getActive();
+			}
+			
+			@Override
+			public int getQueuedConnections() {
+				return ioMetrics.getQueueDepth();
+			}
+			
+			@Override
+			public int getActiveCryptoTasks() {
+				return cryptoMetrics.getActive();
+			}
+			
+			@Override
+			public int getQueuedCryptoTasks() {
+				return cryptoMetrics.getQueueDepth();
+			}
+			
+			@Override
+			public int getThreadCount() {
+				return threads.getThreadCount();
+			}
+			
+			@Override
+			public int getPeakThreadCount() {
+				return threads.getPeakThreadCount();
+			}
+		}, new ObjectName(DOMAIN + ":type=Handshake"));
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+/**
+ * Vista de JMX de los contadores del establecimiento de sesión
+ * y del estado del servidor
+ * @author ariel
+ *
+ */
+public interface HandshakeMetricsMXBean {
+	/**
+	 * @post Devuelve el número de sesiones establecidas
+	 */
+	public long getAccepted();
+	
+	/**
+	 * @post Devuelve el número de conexiones con versión de protocolo rechazada
+	 */
+	public long getRejectedVersion();
+	
+	/**
+	 * @post Devuelve el número de conexiones con longitud inválida de la
+	 * 		 clave de sesión cifrada
+	 */
+	public long getOversizedKey();
+	
+	/**
+	 * @post Devuelve el número de claves de sesión que no se pudieron descifrar
+	 */
+	public long getDecryptFailures();
+	
+	/**
+	 * @post Devuelve el número de claves de sesión descifradas cuyo hash no coincide
+	 */
+	public long getTampered();
+	
+	/**
+	 * @post Devuelve el número de conexiones en curso
+	 */
+	public int getActiveConnections();
+	
+	/**
+	 * @post Devuelve el número de conexiones aceptadas que esperan un trabajador
+	 */
+	public int getQueuedConnections();
+	
+	/**
+	 * @post Devuelve el número de tareas en curso de la etapa de descifrado
+	 */
+	public int getActiveCryptoTasks();
+	
+	/**
+	 * @post Devuelve el número de tareas encoladas de la etapa de descifrado
+	 */
+	public int getQueuedCryptoTasks();
+	
+	/**
+	 * @post Devuelve el número de hilos vivos
+	 */
+	public int getThreadCount();
+	
+	/**
+	 * @post Devuelve el número máximo de hilos vivos desde el inicio
+	 */
+	public int getPeakThreadCount();
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.interfaces.XECPublicKey;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Calentamiento del establecimiento de sesión
+ * 
+ * Hace establecimientos de sesión sintéticos en memoria, del lado del
+ * cliente y del servidor, con las claves de un pool, de forma que la
+ * búsqueda de proveedores, la carga de clases y la compilación de los
+ * caminos de descifrado RSA, resumen, intercambio de claves y cifrado
+ * del canal no las paguen las primeras conexiones.
+ * Además verifica que las claves funcionen, y deja en el pool un
+ * contexto libre por cada contexto que puede guardar
+ * @author ariel
+ *
+ */
+final class HandshakeWarmUp {
+	private final static byte[] HKDF_INFO = "dynarmor session v1".getBytes(StandardCharsets.US_ASCII);
+	
+	// Tamaño del programa sintético que se envía por el canal
+	private final static int CHANNEL_DATA_SIZE = SealedChunkEncoder.CHUNK_SIZE * 2;
+	
+	private final static int AES_KEY_IV_LENGTH = (SessionEncryptionSettings.AES_SESSION_KEY_BITS_SIZE + SessionEncryptionSettings.AES_SESSION_IV_BITS_SIZE) / 8;
+	
+	private final CryptoContextPool cryptoContextPool;
+	private final SecureRandom random;
+	
+	// Lado del cliente
+	private final Cipher clientRSACipher;
+	private final MessageDigest clientMessageDigest;
+	private final KeyPairGenerator clientKeyPairGenerator;
+	private final KeyAgreement clientKeyAgreement;
+	private final Mac clientMac;
+	
+	private final ByteBuffer channelData;
+	private final ByteBuffer channelRecord;
+	
+	private HandshakeWarmUp(CryptoContextPool cryptoContextPool) throws GeneralSecurityException {
+		this.cryptoContextPool = cryptoContextPool;
+		this.random = new SecureRandom();
+		
+		this.clientRSACipher = Cipher.getInstance(SessionEncryptionSettings.RSA_SETUP);
+		this.clientRSACipher.init(Cipher.ENCRYPT_MODE, cryptoContextPool.getKeyPair().getPublic());
+		this.clientMessageDigest = SessionEncryptionSettings.newMessageDigest();
+		
+		if ( cryptoContextPool.getSigningKeyPair() != null ) {
+			this.clientKeyPairGenerator = KeyPairGenerator.getInstance(SessionEncryptionSettings.KEY_EXCHANGE_ALGORITHM);
+			this.clientKeyAgreement = KeyAgreement.getInstance(SessionEncryptionSettings.KEY_EXCHANGE_ALGORITHM);
+			this.clientMac = Mac.getInstance(SessionEncryptionSettings.MAC_ALGORITHM);
+		}
+		else {
+			this.clientKeyPairGenerator = null;
+			this.clientKeyAgreement = null;
+			this.clientMac = null;
+		}
+		
+		this.channelData = ByteBuffer.allocate(CHANNEL_DATA_SIZE);
+		this.channelRecord = ByteBuffer.allocate(SealedChunkEncoder.MAX_RECORD_SIZE);
+	}
+	
+	/**
+	 * @pre El pool no puede ser nulo, y las iteraciones no pueden ser negativas
+	 * @post Hace la cantidad de establecimientos de sesión especificada, o uno por
+	 * 		 cada contexto que puede guardar el pool si son más, repartidos entre
+	 * 		 esos contextos. Devuelve la cantidad de establecimientos hechos.
+	 * 		 Si alguno falla lanza GeneralSecurityException
+	 */
+	public static int run(CryptoContextPool cryptoContextPool, int iterations) throws GeneralSecurityException {
+		HandshakeWarmUp warmUp = new HandshakeWarmUp(cryptoContextPool);
+		
+		CryptoContext[] contexts = new CryptoContext[cryptoContextPool.getCapacity()];
+		try {
+			for ( int i = 0 ; i < contexts.length ; i++ ) {
+				contexts[i] = cryptoContextPool.acquire();
+			}
+			
+			iterations = Math.max(iterations, contexts.length);
+			for ( int i = 0 ; i < iterations ; i++ ) {
+				warmUp.handshake(contexts[i % contexts.length]);
+			}
+		} finally {
+			for ( CryptoContext eachContext : contexts ) {
+				if ( eachContext != null ) {
+					eachContext.release();
+				}
+			}
+		}
+		
+		return iterations;
+	}
+	
+	/**
+	 * @post Hace un establecimiento de sesión con el contexto especificado
+	 */
+	private void handshake(CryptoContext cryptoContext) throws GeneralSecurityException {
+		byte[] aesKey_iv = this.rsaHandshake(cryptoContext);
+		
+		if ( this.clientKeyPairGenerator != null ) {
+			aesKey_iv = this.keyExchangeHandshake(cryptoContext);
+		}
+		
+		// Enviar el programa sintético por el canal cifrado
+		SealedChunkEncoder encoder = new SealedChunkEncoder(cryptoContext.getChannelCipher(), aesKey_iv);
+		this.channelData.clear();
+		
+		while ( !encoder.isFinished() ) {
+			this.channelRecord.clear();
+			encoder.encode(this.channelData, this.channelRecord);
+		}
+	}
+	
+	/**
+	 * @post Hace un establecimiento de sesión de la versión 0 del protocolo,
+	 * 		 y devuelve la clave de sesión
+	 */
+	private byte[] rsaHandshake(CryptoContext cryptoContext) throws GeneralSecurityException {
+		byte[] aesKey_iv = new byte[AES_KEY_IV_LENGTH];
+		this.random.nextBytes(aesKey_iv);
+		
+		this.clientRSACipher.update(aesKey_iv);
+		byte[] encryptedSessionKeyData = this.clientRSACipher.doFinal(this.clientMessageDigest.digest(aesKey_iv));
+		
+		byte[] decodedAesKey_iv = SessionKeyDecoder.decode(cryptoContext, null, encryptedSessionKeyData);
+		if ( !Arrays.equals(aesKey_iv, decodedAesKey_iv) ) {
+			throw new GeneralSecurityException("Warm-up session key decoding failed");
+		}
+		
+		return decodedAesKey_iv;
+	}
+	
+	/**
+	 * @post Hace un establecimiento de sesión de la versión 1 del protocolo,
+	 * 		 y devuelve la clave de sesión
+	 */
+	private byte[] keyExchangeHandshake(CryptoContext cryptoContext) throws GeneralSecurityException {
+		ECDHKeyExchange keyExchange = ECDHKeyExchange.start(cryptoContext);
+		
+		byte[] serverFlight = keyExchange.getEncodedServerFlight();
+		int serverPublicKeyOffset = serverFlight.length - ECDHKeyExchange.SIGNATURE_LENGTH - ECDHKeyExchange.PUBLIC_KEY_LENGTH;
+		byte[] serverPublicKey = Arrays.copyOfRange(serverFlight, serverPublicKeyOffset, serverPublicKeyOffset + ECDHKeyExchange.PUBLIC_KEY_LENGTH);
+		
+		// Derivar la clave del lado del cliente
+		KeyPair clientKeyPair = this.clientKeyPairGenerator.generateKeyPair();
+		byte[] clientPublicKey = ECDHKeyExchange.encodePublicKey( (XECPublicKey) clientKeyPair.getPublic() );
+		
+		this.clientKeyAgreement.init(clientKeyPair.getPrivate());
+		this.clientKeyAgreement.doPhase(ECDHKeyExchange.decodePublicKey(serverPublicKey), true);
+		byte[] sharedSecret = this.clientKeyAgreement.generateSecret();
+		
+		byte[] salt = new byte[ECDHKeyExchange.PUBLIC_KEY_LENGTH * 2];
+		System.arraycopy(serverPublicKey, 0, salt, 0, ECDHKeyExchange.PUBLIC_KEY_LENGTH);
+		System.arraycopy(clientPublicKey, 0, salt, ECDHKeyExchange.PUBLIC_KEY_LENGTH, ECDHKeyExchange.PUBLIC_KEY_LENGTH);
+		
+		byte[] keyMaterial = HKDF.derive(this.clientMac, salt, sharedSecret, HKDF_INFO, AES_KEY_IV_LENGTH + ECDHKeyExchange.CONFIRMATION_LENGTH);
+		this.clientMac.init(new SecretKeySpec(keyMaterial, AES_KEY_IV_LENGTH, ECDHKeyExchange.CONFIRMATION_LENGTH, SessionEncryptionSettings.MAC_ALGORITHM));
+		byte[] confirmation = this.clientMac.doFinal(salt);
+		
+		byte[] aesKey_iv = keyExchange.finish(cryptoContext, clientPublicKey, confirmation);
+		if ( !Arrays.equals(Arrays.copyOf(keyMaterial, AES_KEY_IV_LENGTH), aesKey_iv) ) {
+			throw new GeneralSecurityException("Warm-up key exchange failed");
+		}
+		
+		return aesKey_iv;
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias sin bloqueos
+ * 
+ * Cada potencia de dos se divide en ocho intervalos, con un error
+ * relativo de hasta 6%. Registrar una latencia no reserva memoria,
+ * sólo incrementa contadores atómicos
+ * @author ariel
+ *
+ */
+final class LatencyHistogram implements LatencyHistogramMXBean {
+	private final static int SUB_BUCKET_BITS = 3;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private final static int BUCKETS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+	
+	private final AtomicLongArray buckets;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+	
+	/**
+	 * @post Crea el histograma vacío
+	 */
+	public LatencyHistogram() {
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.sum = new AtomicLong(0);
+		this.max = new AtomicLong(0);
+	}
+	
+	/**
+	 * @post Devuelve el intervalo de la latencia especificada
+	 */
+	private static int bucketOf(long nanos) {
+		if ( nanos < SUB_BUCKETS ) {
+			return (int) nanos;
+		}
+		else {
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			int subBucket = (int) ( nanos >>> ( exponent - SUB_BUCKET_BITS ) ) - SUB_BUCKETS;
+			return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+		}
+	}
+	
+	/**
+	 * @post Devuelve el valor medio del intervalo especificado, en nanosegundos
+	 */
+	private static long bucketValue(int bucket) {
+		if ( bucket < SUB_BUCKETS ) {
+			return bucket;
+		}
+		else {
+			int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+			long width = 1L << ( exponent - SUB_BUCKET_BITS );
+			return ( SUB_BUCKETS + bucket % SUB_BUCKETS ) * width + width / 2;
+		}
+	}
+	
+	/**
+	 * @post Registra la latencia especificada, en nanosegundos
+	 */
+	public void record(long nanos) {
+		if ( nanos < 0 ) {
+			nanos = 0;
+		}
+		
+		this.buckets.incrementAndGet(bucketOf(nanos));
+		this.sum.addAndGet(nanos);
+		
+		long currentMax;
+		while ( nanos > ( currentMax = this.max.get() ) ) {
+			if ( this.max.compareAndSet(currentMax, nanos) ) {
+				break;
+			}
+		}
+	}
+	
+	@Override
+	public long getCount() {
+		long count = 0;
+		for ( int i = 0 ; i < BUCKETS ; i++ ) {
+			count += this.buckets.get(i);
+		}
+		return count;
+	}
+	
+	private static double toMicros(long nanos) {
+		return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+	}
+	
+	/**
+	 * @post Devuelve el percentil especificado, en microsegundos
+	 */
+	public double getPercentileMicros(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for ( int i = 0 ; i < BUCKETS ; i++ ) {
+			counts[i] = this.buckets.get(i);
+			count += counts[i];
+		}
+		
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long accumulated = 0;
+		for ( int i = 0 ; i < BUCKETS ; i++ ) {
+			accumulated += counts[i];
+			if ( ( accumulated >= rank ) && ( accumulated != 0 ) ) {
+				return toMicros(Math.min(bucketValue(i), this.max.get()));
+			}
+		}
+		
+		return 0;
+	}
+	
+	@Override
+	public double getMeanMicros() {
+		long count = this.getCount();
+		return ( count != 0 ) ? toMicros(this.sum.get()) / count : 0;
+	}
+	
+	@Override
+	public double getP50Micros() {
+		return this.getPercentileMicros(50);
+	}
+	
+	@Override
+	public double getP90Micros() {
+		return this.getPercentileMicros(90);
+	}
+	
+	@Override
+	public double getP99Micros() {
+		return this.getPercentileMicros(99);
+	}
+	
+	@Override
+	public double getP999Micros() {
+		return this.getPercentileMicros(99.9);
+	}
+	
+	@Override
+	public double getMaxMicros() {
+		return toMicros(this.max.get());
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("[count=%d, p50=%.1fus, p99=%.1fus, max=%.1fus]", this.getCount(), this.getP50Micros(), this.getP99Micros(), this.getMaxMicros());
+	}
+}
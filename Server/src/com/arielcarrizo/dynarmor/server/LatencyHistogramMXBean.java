@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+/**
+ * Vista de JMX de un histograma de latencias, en microsegundos
+ * @author ariel
+ *
+ */
+public interface LatencyHistogramMXBean {
+	/**
+	 * @post Devuelve la cantidad de latencias registradas
+	 */
+	public long getCount();
+	
+	/**
+	 * @post Devuelve la latencia media
+	 */
+	public double getMeanMicros();
+	
+	/**
+	 * @post Devuelve la mediana de las latencias
+	 */
+	public double getP50Micros();
+	
+	/**
+	 * @post Devuelve el percentil 90 de las latencias
+	 */
+	public double getP90Micros();
+	
+	/**
+	 * @post Devuelve el percentil 99 de las latencias
+	 */
+	public double getP99Micros();
+	
+	/**
+	 * @post Devuelve el percentil 99.9 de las latencias
+	 */
+	public double getP999Micros();
+	
+	/**
+	 * @post Devuelve la latencia máxima
+	 */
+	public double getMaxMicros();
+}
@@ -33,22 +33,208 @@
 package com.arielcarrizo.dynarmor.server;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+
+import com.arielcarrizo.dynarmor.server.Configuration.ListenEndpoint;
 import com.arielcarrizo.dynarmor.server.Configuration.LoadException;
 import com.arielcarrizo.dynarmor.server.Configuration.ParseError;
+import com.arielcarrizo.dynarmor.server.Configuration.ServerEngine;
 
 public final class Launcher {
 	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 	
 	private Launcher() {};
 	
+	/**
+	 * @post Registra periódicamente las métricas especificadas,
+	 * 		 con el intervalo en segundos especificado
+	 */
+	private static void startMetricsLog(int interval, final Object... metrics) {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "dynarmor-metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				LOGGER.info("Stage metrics: " + Arrays.toString(metrics));
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * @post Devuelve si cambiaron los puntos de escucha o la longitud de la
+	 * 		 cola de conexiones pendientes entre las configuraciones especificadas
+	 */
+	private static boolean isListenEndpointChanged(Configuration previousConfiguration, Configuration configuration) {
+		return !previousConfiguration.getListenEndpoints().equals(configuration.getListenEndpoints()) ||
+				( previousConfiguration.getBacklog() != configuration.getBacklog() );
+	}
+	
+	/**
+	 * @post Devuelve si los sockets de servidor soportan SO_REUSEPORT
+	 */
+	private static boolean isReusePortSupported() throws IOException {
+		ServerSocket serverSocket = new ServerSocket();
+		try {
+			return serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} finally {
+			serverSocket.close();
+		}
+	}
+	
+	/**
+	 * @post Devuelve si los puntos de escucha de la configuración especificada
+	 * 		 se pueden ligar mientras siguen abiertos los de la configuración
+	 * 		 anterior especificada. Sin SO_REUSEPORT no se puede ligar otro
+	 * 		 socket a una dirección y un puerto en uso, por lo que esos cambios
+	 * 		 (Como la longitud de la cola o los hilos que aceptan conexiones)
+	 * 		 se aplican al reiniciar
+	 */
+	private static boolean canBindAlongside(Configuration previousConfiguration, Configuration configuration) throws IOException {
+		if ( isReusePortSupported() ) {
+			return true;
+		}
+		
+		for ( ListenEndpoint eachEndpoint : configuration.getListenEndpoints() ) {
+			for ( ListenEndpoint eachPreviousEndpoint : previousConfiguration.getListenEndpoints() ) {
+				if ( eachEndpoint.getAddress().equals(eachPreviousEndpoint.getAddress()) && ( eachEndpoint.getPort() == eachPreviousEndpoint.getPort() ) && ( eachEndpoint.getPort() != 0 ) ) {
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @post Abre los sockets de servidor de los puntos de escucha especificados,
+	 * 		 con la longitud de la cola de conexiones pendientes especificada.
+	 * 		 Devuelve un socket por cada hilo que acepta conexiones, ligados con
+	 * 		 SO_REUSEPORT para que el sistema reparta las conexiones entre ellos.
+	 * 		 Si no está soportado, los hilos de cada punto comparten un socket.
+	 * 		 Se liga con SO_REUSEPORT aunque haya un solo hilo, para que al
+	 * 		 recargar la configuración los sockets nuevos se puedan ligar al
+	 * 		 mismo puerto mientras los anteriores siguen abiertos
+	 */
+	private static List<ServerSocket> bindServerSockets(List<ListenEndpoint> listenEndpoints, int backlog) throws IOException {
+		List<ServerSocket> serverSockets = new ArrayList<ServerSocket>();
+		List<ServerSocket> openedServerSockets = new ArrayList<ServerSocket>();
+		
+		try {
+			for ( ListenEndpoint eachEndpoint : listenEndpoints ) {
+				ServerSocket serverSocket = null;
+				boolean reusePort = false;
+				
+				for ( int i = 0 ; i < eachEndpoint.getAcceptors() ; i++ ) {
+					if ( ( serverSocket == null ) || reusePort ) {
+						// Con el puerto 0, los demás sockets se ligan al puerto asignado al primero
+						int port = ( serverSocket != null ) ? serverSocket.getLocalPort() : eachEndpoint.getPort();
+						
+						serverSocket = new ServerSocket();
+						openedServerSockets.add(serverSocket);
+						
+						reusePort = serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+						if ( reusePort ) {
+							serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+						}
+						
+						serverSocket.bind(new InetSocketAddress(eachEndpoint.getAddress(), port), backlog);
+					}
+					
+					serverSockets.add(serverSocket);
+				}
+				
+				logListening(eachEndpoint, reusePort);
+			}
+		} catch (IOException e) {
+			for ( ServerSocket eachServerSocket : openedServerSockets ) {
+				eachServerSocket.close();
+			}
+			
+			throw e;
+		}
+		
+		return serverSockets;
+	}
+	
+	/**
+	 * @post Hace lo mismo que bindServerSockets, con canales de servidor
+	 */
+	private static List<ServerSocketChannel> bindServerChannels(List<ListenEndpoint> listenEndpoints, int backlog) throws IOException {
+		List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
+		List<ServerSocketChannel> openedServerChannels = new ArrayList<ServerSocketChannel>();
+		
+		try {
+			for ( ListenEndpoint eachEndpoint : listenEndpoints ) {
+				ServerSocketChannel serverChannel = null;
+				boolean reusePort = false;
+				
+				for ( int i = 0 ; i < eachEndpoint.getAcceptors() ; i++ ) {
+					if ( ( serverChannel == null ) || reusePort ) {
+						// Con el puerto 0, los demás canales se ligan al puerto asignado al primero
+						int port = ( serverChannel != null ) ? serverChannel.socket().getLocalPort() : eachEndpoint.getPort();
+						
+						serverChannel = ServerSocketChannel.open();
+						openedServerChannels.add(serverChannel);
+						
+						reusePort = serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+						if ( reusePort ) {
+							serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+						}
+						
+						serverChannel.bind(new InetSocketAddress(eachEndpoint.getAddress(), port), backlog);
+					}
+					
+					serverChannels.add(serverChannel);
+				}
+				
+				logListening(eachEndpoint, reusePort);
+			}
+		} catch (IOException e) {
+			for ( ServerSocketChannel eachServerChannel : openedServerChannels ) {
+				eachServerChannel.close();
+			}
+			
+			throw e;
+		}
+		
+		return serverChannels;
+	}
+	
+	private static void logListening(ListenEndpoint listenEndpoint, boolean reusePort) {
+		if ( ( listenEndpoint.getAcceptors() > 1 ) && !reusePort ) {
+			LOGGER.warning("SO_REUSEPORT is not supported, the " + listenEndpoint.getAcceptors() + " acceptor threads of " + listenEndpoint + " share one socket");
+		}
+		
+		LOGGER.info("Listening on " + listenEndpoint + " with " + listenEndpoint.getAcceptors() + " acceptor threads");
+	}
+	
 	public static void main(String[] args) {
 		if ( args != null ) {
 			File serverConfigFile = null;
@@ -97,8 +283,201 @@ public final class Launcher {
 		LOGGER.info("Starting dynarmor server");
 		
 		try {
-			ServerSocket serverSocket = new ServerSocket(Configuration.instance().getListenPort(), 10, Configuration.instance().getListenAddress() );
-			(new Thread( new MultiThreadedServer(serverSocket) ) ).start();
+			final Configuration configuration = Configuration.instance();
+			
+			final CryptoStage cryptoStage;
+			if ( configuration.getCryptoThreads() != 0 ) {
+				cryptoStage = CryptoStage.pooled(configuration.getCryptoThreads());
+			}
+			else {
+				cryptoStage = CryptoStage.inline();
+			}
+			
+			final SessionCache sessionCache;
+			if ( configuration.getSessionCacheSize() != 0 ) {
+				sessionCache = new SessionCache(configuration.getSessionCacheSize(), TimeUnit.SECONDS.toNanos(configuration.getSessionLifetime()), SessionResumption.RESUMPTION_KEY_LENGTH);
+			}
+			else {
+				sessionCache = null;
+			}
+			
+			final ServerServices services = new ServerServices(cryptoStage, sessionCache,
+					new ByteBufferPool(ServerServices.HANDSHAKE_BUFFER_SIZE, configuration.getBufferPoolSize()),
+					new ByteBufferPool(SealedChunkEncoder.MAX_RECORD_SIZE, configuration.getBufferPoolSize())
+			);
+			
+			configuration.startClientProgramPools();
+			
+			// Calentar el establecimiento de sesión antes de aceptar conexiones
+			{
+				long warmUpStartTime = System.nanoTime();
+				int warmUpHandshakes;
+				try {
+					warmUpHandshakes = HandshakeWarmUp.run(configuration.getCryptoContextPool(), configuration.getWarmUpIterations());
+				} catch (GeneralSecurityException e) {
+					LOGGER.severe("Warm-up handshake failed: '" + e + "'");
+					System.exit(5);
+					return;
+				}
+				
+				LOGGER.info("Warm-up finished: " + warmUpHandshakes + " handshakes in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - warmUpStartTime) + " ms");
+			}
+			
+			final StageMetrics ioMetrics;
+			final ConnectionRegistry connectionRegistry;
+			final ConfigurationWatcher.Listener reloadListener;
+			
+			switch ( configuration.getServerEngine() ) {
+			case THREADS:
+			case VIRTUAL_THREADS:
+				{
+					Executor workerExecutor;
+					if ( configuration.getServerEngine() == ServerEngine.VIRTUAL_THREADS ) {
+						workerExecutor = WorkerExecutors.virtualThreadPerTask();
+						
+						if ( configuration.getMaxWorkers() != 0 ) {
+							workerExecutor = WorkerExecutors.limited(workerExecutor, configuration.getMaxWorkers());
+						}
+					}
+					else {
+						if ( configuration.getMaxWorkers() != 0 ) {
+							workerExecutor = WorkerExecutors.bounded(configuration.getMaxWorkers(), configuration.getMaxQueuedHandshakes());
+						}
+						else {
+							workerExecutor = WorkerExecutors.threadPerTask();
+						}
+					}
+					
+					List<ServerSocket> serverSockets = bindServerSockets(configuration.getListenEndpoints(), configuration.getBacklog());
+					final MultiThreadedServer server = new MultiThreadedServer(serverSockets, workerExecutor, configuration.getShedPolicy(), services);
+					ioMetrics = server.getIOMetrics();
+					connectionRegistry = server.getConnectionRegistry();
+					(new Thread( server ) ).start();
+					
+					// Al detener el proceso, dejar terminar los establecimientos de sesión en curso
+					Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+						@Override
+						public void run() {
+							LOGGER.info("Draining " + connectionRegistry.getActiveConnections() + " connections");
+							
+							try {
+								int closedConnections = server.drain(TimeUnit.SECONDS.toNanos(Configuration.instance().getDrainTimeout()));
+								
+								if ( closedConnections != 0 ) {
+									LOGGER.warning("Drain timeout expired, " + closedConnections + " connections closed");
+								}
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+					}, "dynarmor-drain"));
+					
+					reloadListener = new ConfigurationWatcher.Listener() {
+						@Override
+						public void reloaded(Configuration previousConfiguration, Configuration configuration) {
+							if ( isListenEndpointChanged(previousConfiguration, configuration) ) {
+								try {
+									if ( canBindAlongside(previousConfiguration, configuration) ) {
+										server.rebind( bindServerSockets(configuration.getListenEndpoints(), configuration.getBacklog()) );
+									}
+									else {
+										LOGGER.warning("SO_REUSEPORT is not supported, listen changes on the same address and port will be applied on restart");
+									}
+								} catch (IOException e) {
+									LOGGER.severe("Cannot create server socket, keeping the previous one: '" + e + "'");
+								}
+							}
+						}
+					};
+				}
+				break;
+			case SELECTOR:
+				{
+					List<ServerSocketChannel> serverChannels = bindServerChannels(configuration.getListenEndpoints(), configuration.getBacklog());
+					final SelectorServer server = new SelectorServer(serverChannels, configuration.getSelectorThreads(), services);
+					ioMetrics = server.getIOMetrics();
+					connectionRegistry = null;
+					(new Thread( server ) ).start();
+					
+					reloadListener = new ConfigurationWatcher.Listener() {
+						@Override
+						public void reloaded(Configuration previousConfiguration, Configuration configuration) {
+							if ( isListenEndpointChanged(previousConfiguration, configuration) ) {
+								try {
+									if ( canBindAlongside(previousConfiguration, configuration) ) {
+										server.rebind( bindServerChannels(configuration.getListenEndpoints(), configuration.getBacklog()) );
+									}
+									else {
+										LOGGER.warning("SO_REUSEPORT is not supported, listen changes on the same address and port will be applied on restart");
+									}
+								} catch (IOException e) {
+									LOGGER.severe("Cannot create server socket, keeping the previous one: '" + e + "'");
+								}
+							}
+						}
+					};
+				}
+				break;
+			default:
+				throw new IllegalStateException();
+			}
+			
+			try {
+				services.getHandshakeMetrics().registerMBeans(ioMetrics, cryptoStage.getMetrics());
+				services.getSourceAddressLimiter().registerMBean();
+				
+				if ( connectionRegistry != null ) {
+					connectionRegistry.registerMBean();
+				}
+			} catch (JMException e) {
+				LOGGER.warning("Cannot register handshake metrics MBeans: '" + e + "'");
+			}
+			
+			LOGGER.info("Ready to accept connections, " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after start");
+			
+			if ( configuration.getMetricsLogInterval() != 0 ) {
+				List<Object> metrics = new ArrayList<Object>();
+				metrics.add(ioMetrics);
+				metrics.add(cryptoStage.getMetrics());
+				
+				if ( connectionRegistry != null ) {
+					metrics.add(connectionRegistry);
+				}
+				
+				if ( sessionCache != null ) {
+					metrics.add(sessionCache);
+				}
+				
+				metrics.add(services.getSourceAddressLimiter());
+				
+				// Los pools de programas del cliente cambian al recargar la configuración
+				metrics.add(new Object() {
+					@Override
+					public String toString() {
+						Configuration configuration = Configuration.instance();
+						
+						if ( configuration.getClientProgramPool() == null ) {
+							return "clientPrograms [disabled]";
+						}
+						
+						String clientPrograms = configuration.getClientProgramPool().toString();
+						
+						if ( configuration.getCompressedClientProgramPool() != null ) {
+							clientPrograms += ", " + configuration.getCompressedClientProgramPool();
+						}
+						
+						if ( configuration.getClientProgramDeltaCache() != null ) {
+							clientPrograms += ", " + configuration.getClientProgramDeltaCache();
+						}
+						
+						return clientPrograms;
+					}
+				});
+				
+				startMetricsLog(configuration.getMetricsLogInterval(), metrics.toArray());
+			}
+			
+			new ConfigurationWatcher(reloadListener).start();
 		}
 		catch ( IOException e ) {
 			LOGGER.severe("Cannot create server socket: '" + e + "'");
@@ -38,26 +38,199 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.arielcarrizo.dynarmor.server.Configuration.ShedPolicy;
+
 public class MultiThreadedServer implements Runnable {
 	final static byte[] MAGICPROTOCOLHEADER = { (byte) 0xAF, (byte) 0xEA, 0x39, (byte) 0xE0, 0x67, 0x10, 0x20, (byte) 0xC9, 0x2F, (byte) 0xEB };
 	final static int PROTOCOLVERSION = 0;
 	
+	// Versión con intercambio de claves efímeras (Ver ECDHKeyExchange)
+	final static int PROTOCOLVERSION_ECDH = 1;
+	
+	// Versión que reanuda una sesión emitida anteriormente (Ver SessionResumption)
+	final static int PROTOCOLVERSION_RESUME = 2;
+	
+	// Los 8 bits menos significativos de la versión de protocolo indican el establecimiento
+	// de sesión, y el resto las opciones solicitadas por el cliente
+	final static int PROTOCOLVERSION_HANDSHAKE_MASK = 0xFF;
+	
+	// Opción que pide un identificador de sesión para reanudarla después
+	final static int PROTOCOLOPTION_SESSION_ID = 0x100;
+	
+	// Opción que pide el programa del cliente comprimido (Ver ClientProgramCompressor)
+	final static int PROTOCOLOPTION_COMPRESSION = 0x200;
+	
+	// Opción que pide mantener la conexión abierta después del programa del cliente (Ver SessionMultiplexer)
+	final static int PROTOCOLOPTION_PERSISTENT_SESSION = 0x400;
+	
+	// Opciones soportadas
+	final static int PROTOCOLOPTIONS_SUPPORTED = PROTOCOLOPTION_SESSION_ID | PROTOCOLOPTION_COMPRESSION | PROTOCOLOPTION_PERSISTENT_SESSION;
+	
+	// Código de retorno enviado en lugar de la aceptación de la versión cuando el servidor está saturado
+	final static byte SERVER_BUSY = 2;
+	
+	// Cadena "mágica" seguida del código de servidor ocupado
+	final static byte[] SERVER_BUSY_REPLY = serverBusyReply();
+	
+	// Espera en milisegundos después de un error al aceptar (Por ejemplo, sin descriptores
+	// libres), que se duplica con cada error seguido hasta el máximo
+	final static long MIN_ACCEPT_BACKOFF = 10;
+	final static long MAX_ACCEPT_BACKOFF = 100;
+	
 	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 	
-	private final ServerSocket serverSocket;
+	private final Executor workerExecutor;
+	private final ShedPolicy shedPolicy;
+	private final ServerServices services;
+	private final StageMetrics ioMetrics;
+	private final ConnectionRegistry connectionRegistry;
+	
+	// Reemplazados enteros al cambiar los sockets de servidor
+	private List<Acceptor> acceptors;
+	private int acceptorThreads;
+	private boolean isRunning;
 	
-	protected Thread runningThread;
-	protected boolean isStopped;
+	protected volatile Thread runningThread;
+	protected volatile boolean isStopped;
+	
+	/**
+	 * Acepta conexiones de un socket de servidor, en su propio hilo
+	 */
+	private final class Acceptor implements Runnable {
+		private final ServerSocket serverSocket;
+		private volatile boolean isClosed;
+		
+		public Acceptor(ServerSocket serverSocket) {
+			this.serverSocket = serverSocket;
+			this.isClosed = false;
+		}
+		
+		@Override
+		public void run() {
+			long acceptBackoff = MIN_ACCEPT_BACKOFF;
+			
+			while ( !this.isClosed ) {
+				Socket clientSocket = null;
+				
+				try {
+					clientSocket = this.serverSocket.accept();
+				} catch ( IOException e ) {
+					if ( !this.isClosed ) {
+						LOGGER.log(Level.WARNING, "Error accepting client connection: ''{0}''", (Object) e);
+						acceptBackoff = MultiThreadedServer.backOffAccept(acceptBackoff);
+						continue;
+					}
+					else {
+						// Fue reemplazado o el servidor se detuvo
+						return;
+					}
+				}
+				
+				acceptBackoff = MIN_ACCEPT_BACKOFF;
+				
+				// Descartar las conexiones que superan los límites de su dirección de origen
+				final SourceAddressLimiter sourceAddressLimiter = MultiThreadedServer.this.services.getSourceAddressLimiter();
+				SourceAddressLimiter.Source source = sourceAddressLimiter.acquireConnection(clientSocket.getInetAddress());
+				if ( source == null ) {
+					MultiThreadedServer.this.shed(clientSocket);
+					continue;
+				}
+				
+				ConnectionRegistry.Connection connection = MultiThreadedServer.this.connectionRegistry.register(clientSocket);
+				try {
+					MultiThreadedServer.this.workerExecutor.execute( new WorkerRunnable(clientSocket, source, connection, MultiThreadedServer.this.services, MultiThreadedServer.this.ioMetrics) );
+				} catch ( RejectedExecutionException e ) {
+					connection.unregister();
+					sourceAddressLimiter.releaseConnection(source);
+					MultiThreadedServer.this.ioMetrics.cancelled();
+					MultiThreadedServer.this.shed(clientSocket);
+				}
+			}
+		}
+		
+		/**
+		 * @post Deja de aceptar conexiones y cierra el socket.
+		 * 		 Puede compartir el socket con otros, cerrarlo
+		 * 		 más de una vez no tiene efecto
+		 */
+		public void close() {
+			this.isClosed = true;
+			
+			try {
+				this.serverSocket.close();
+			} catch ( IOException e ) {
+				LOGGER.severe("Error closing server socket: '" + e + "'");
+			}
+		}
+	}
 	
 	/**
 	 * @pre El socket no puede ser nulo
-	 * @post Crea el servidor con el socket de servidor especificado
+	 * @post Crea el servidor con el socket de servidor especificado,
+	 * 		 con un hilo por conexión
 	 */
 	public MultiThreadedServer(ServerSocket serverSocket) {
-		if ( serverSocket != null ) {
-			this.serverSocket = serverSocket;
+		this(serverSocket, WorkerExecutors.threadPerTask());
+	}
+	
+	/**
+	 * @pre El socket y el ejecutor no pueden ser nulos
+	 * @post Crea el servidor con el socket de servidor y el ejecutor
+	 * 		 de trabajadores especificados
+	 */
+	public MultiThreadedServer(ServerSocket serverSocket, Executor workerExecutor) {
+		this(serverSocket, workerExecutor, ShedPolicy.REJECT);
+	}
+	
+	/**
+	 * @pre El socket, el ejecutor y la política de descarte no pueden ser nulos
+	 * @post Crea el servidor con el socket de servidor, el ejecutor
+	 * 		 de trabajadores y la política de descarte especificados.
+	 * 		 Las conexiones que el ejecutor rechace se descartan con la política especificada
+	 */
+	public MultiThreadedServer(ServerSocket serverSocket, Executor workerExecutor, ShedPolicy shedPolicy) {
+		this(serverSocket, workerExecutor, shedPolicy, ServerServices.defaults());
+	}
+	
+	/**
+	 * @pre El socket, el ejecutor, la política de descarte y los servicios
+	 * 		no pueden ser nulos
+	 * @post Crea el servidor con el socket de servidor, el ejecutor
+	 * 		 de trabajadores, la política de descarte y los servicios
+	 * 		 especificados
+	 */
+	MultiThreadedServer(ServerSocket serverSocket, Executor workerExecutor, ShedPolicy shedPolicy, ServerServices services) {
+		this(Collections.singletonList(serverSocket), workerExecutor, shedPolicy, services);
+	}
+	
+	/**
+	 * @pre Los sockets, el ejecutor, la política de descarte y los servicios
+	 * 		no pueden ser nulos, y tiene que haber por lo menos un socket
+	 * @post Crea el servidor con los sockets de servidor, el ejecutor
+	 * 		 de trabajadores, la política de descarte y los servicios
+	 * 		 especificados.
+	 * 		 Cada socket se atiende con su propio hilo. Un socket puede
+	 * 		 repetirse para atenderlo con más de un hilo
+	 */
+	MultiThreadedServer(List<ServerSocket> serverSockets, Executor workerExecutor, ShedPolicy shedPolicy, ServerServices services) {
+		if ( ( serverSockets != null ) && ( workerExecutor != null ) && ( shedPolicy != null ) && ( services != null ) ) {
+			this.workerExecutor = workerExecutor;
+			this.shedPolicy = shedPolicy;
+			this.services = services;
+			this.ioMetrics = new StageMetrics("io");
+			this.connectionRegistry = new ConnectionRegistry();
+			this.acceptors = this.newAcceptors(serverSockets);
+			this.acceptorThreads = 0;
+			this.isRunning = false;
 			this.runningThread = null;
 			this.isStopped = false;
 		}
@@ -65,42 +238,175 @@ public class MultiThreadedServer implements Runnable {
 			throw new NullPointerException();
 		}
 	}
-
+	
+	private static byte[] serverBusyReply() {
+		byte[] reply = Arrays.copyOf(MAGICPROTOCOLHEADER, MAGICPROTOCOLHEADER.length + 1);
+		reply[MAGICPROTOCOLHEADER.length] = SERVER_BUSY;
+		return reply;
+	}
+	
+	/**
+	 * @post Espera la cantidad de milisegundos especificada después de un
+	 * 		 error al aceptar una conexión, para no insistir mientras
+	 * 		 persiste, y devuelve la espera para el próximo error seguido
+	 */
+	static long backOffAccept(long acceptBackoff) {
+		try {
+			Thread.sleep(acceptBackoff);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		return Math.min(acceptBackoff * 2, MAX_ACCEPT_BACKOFF);
+	}
+	
+	/**
+	 * @post Crea los aceptadores de los sockets especificados
+	 */
+	private List<Acceptor> newAcceptors(List<ServerSocket> serverSockets) {
+		if ( serverSockets.isEmpty() ) {
+			throw new IllegalArgumentException("Missing server socket");
+		}
+		
+		List<Acceptor> acceptors = new ArrayList<Acceptor>(serverSockets.size());
+		for ( ServerSocket eachServerSocket : serverSockets ) {
+			if ( eachServerSocket == null ) {
+				throw new NullPointerException();
+			}
+			
+			acceptors.add(new Acceptor(eachServerSocket));
+		}
+		
+		return acceptors;
+	}
+	
+	/**
+	 * @post Arranca un hilo por cada aceptador especificado
+	 */
+	private void startAcceptors(List<Acceptor> acceptors) {
+		for ( Acceptor eachAcceptor : acceptors ) {
+			new Thread(eachAcceptor, "dynarmor-acceptor-" + ( this.acceptorThreads++ ) ).start();
+		}
+	}
+	
+	/**
+	 * @post Acepta conexiones hasta que el servidor se detiene
+	 */
 	@Override
 	public void run() {
-		synchronized(this) {
-			this.runningThread = Thread.currentThread();
-		}
+		this.runningThread = Thread.currentThread();
 		
-		while ( !this.isStopped() ) {
-			Socket clientSocket = null;
+		synchronized ( this ) {
+			if ( !this.isStopped() ) {
+				this.isRunning = true;
+				this.startAcceptors(this.acceptors);
+			}
 			
-			try {
-				clientSocket = this.serverSocket.accept();
-			} catch ( IOException e ) {
-				if ( !this.isStopped() ) {
-					LOGGER.warning("Error accepting client connection: '" + e + "'");
-				}
-				else {
+			while ( !this.isStopped() ) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
 					return;
 				}
 			}
-			
-			new Thread( new WorkerRunnable(clientSocket) ).start();
 		}
 	}
 	
-	private synchronized boolean isStopped() {
+	/**
+	 * @post Descarta la conexión especificada antes de hacer cualquier
+	 * 		 operación criptográfica, porque el servidor está saturado o
+	 * 		 porque supera los límites de su dirección de origen
+	 * 
+	 * Se ejecuta en el hilo que acepta las conexiones, y los datos
+	 * enviados caben en el buffer de envío de un socket nuevo, por lo
+	 * que no se bloquea
+	 */
+	private void shed(Socket clientSocket) {
+		try {
+			if ( this.shedPolicy == ShedPolicy.REJECT ) {
+				OutputStream output = clientSocket.getOutputStream();
+				output.write(SERVER_BUSY_REPLY);
+				output.flush();
+			}
+		} catch ( IOException e ) {
+			LOGGER.log(Level.WARNING, "Client connection error: ''{0}''", (Object) e);
+		} finally {
+			try {
+				clientSocket.close();
+			} catch ( IOException e ) {
+				LOGGER.log(Level.WARNING, "Client connection error: ''{0}''", (Object) e);
+			}
+		}
+	}
+	
+	/**
+	 * @post Devuelve las métricas de la etapa de E/S
+	 */
+	StageMetrics getIOMetrics() {
+		return this.ioMetrics;
+	}
+	
+	/**
+	 * @post Devuelve el registro de conexiones en curso
+	 */
+	ConnectionRegistry getConnectionRegistry() {
+		return this.connectionRegistry;
+	}
+	
+	private boolean isStopped() {
 		return this.isStopped;
 	}
 	
+	/**
+	 * @pre Los sockets no pueden ser nulos, y tiene que haber por lo menos uno
+	 * @post Reemplaza los sockets de servidor por los especificados, y cierra
+	 * 		 los anteriores.
+	 * 		 Las conexiones ya aceptadas no se ven afectadas
+	 */
+	synchronized void rebind(List<ServerSocket> serverSockets) {
+		if ( this.isStopped() ) {
+			throw new IllegalStateException("Server stopped");
+		}
+		
+		List<Acceptor> previousAcceptors = this.acceptors;
+		this.acceptors = this.newAcceptors(serverSockets);
+		
+		if ( this.isRunning ) {
+			this.startAcceptors(this.acceptors);
+		}
+		
+		for ( Acceptor eachAcceptor : previousAcceptors ) {
+			eachAcceptor.close();
+		}
+	}
+	
 	public synchronized void stop() {
 		this.isStopped = true;
 		
-		try {
-			this.serverSocket.close();
-		} catch ( IOException e ) {
-			LOGGER.severe("Error closing server socket: '" + e + "'");
+		for ( Acceptor eachAcceptor : this.acceptors ) {
+			eachAcceptor.close();
 		}
+		
+		this.notifyAll();
+	}
+	
+	/**
+	 * @pre El tiempo no puede ser negativo
+	 * @post Deja de aceptar conexiones, espera que terminen las conexiones
+	 * 		 en curso hasta el tiempo máximo en nanosegundos especificado,
+	 * 		 y cierra las que quedan.
+	 * 		 Devuelve la cantidad de conexiones cerradas
+	 */
+	public int drain(long timeout) throws InterruptedException {
+		if ( timeout < 0 ) {
+			throw new IllegalArgumentException("Invalid drain timeout");
+		}
+		
+		this.stop();
+		
+		// También cierra las que se aceptaron mientras se detenía
+		this.connectionRegistry.awaitEmpty(timeout);
+		return this.connectionRegistry.closeAll();
 	}
 }
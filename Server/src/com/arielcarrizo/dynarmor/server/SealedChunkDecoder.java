@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decodificador del canal cifrado con AES-GCM
+ * 
+ * Verifica y descifra los fragmentos con el formato de SealedChunkEncoder,
+ * en el orden en que fueron codificados
+ * @author ariel
+ *
+ */
+final class SealedChunkDecoder {
+	private final Cipher cipher;
+	private final SecretKeySpec key;
+	private final byte[] baseNonce;
+	private final byte[] nonce;
+	private final byte[] header;
+	
+	private long sequenceNumber;
+	
+	/**
+	 * @pre El cifrador no puede ser usado por otro codificador o decodificador
+	 * 		mientras se use este, y la clave con el IV tiene que tener la longitud
+	 * 		de la sesión
+	 * @post Crea el decodificador con el cifrador AES-GCM y la clave de sesión
+	 * 		 con el IV concatenados especificados
+	 */
+	public SealedChunkDecoder(Cipher cipher, byte[] aesKey_iv) {
+		this.cipher = cipher;
+		this.key = new SecretKeySpec(aesKey_iv, 0, SealedChunkEncoder.KEY_SIZE, "AES");
+		this.baseNonce = Arrays.copyOfRange(aesKey_iv, SealedChunkEncoder.KEY_SIZE, SealedChunkEncoder.KEY_SIZE + SealedChunkEncoder.NONCE_SIZE);
+		this.nonce = new byte[SealedChunkEncoder.NONCE_SIZE];
+		this.header = new byte[SealedChunkEncoder.HEADER_SIZE];
+		this.sequenceNumber = 0;
+	}
+	
+	/**
+	 * @post Devuelve si la longitud sin cifrar especificada, leída de la
+	 * 		 cabecera de un fragmento, es válida
+	 */
+	public static boolean isValidLength(int length) {
+		return ( length >= 0 ) && ( length <= SealedChunkEncoder.CHUNK_SIZE );
+	}
+	
+	/**
+	 * @pre La longitud tiene que ser válida
+	 * @post Devuelve el tamaño del fragmento cifrado con la etiqueta de
+	 * 		 autenticación que sigue a la cabecera, para la longitud
+	 * 		 sin cifrar especificada
+	 */
+	public static int getBodySize(int length) {
+		return length + SealedChunkEncoder.TAG_SIZE;
+	}
+	
+	/**
+	 * @pre La longitud tiene que ser válida, la entrada tiene que tener el
+	 * 		fragmento cifrado con la etiqueta, y la salida lugar para la
+	 * 		longitud sin cifrar
+	 * @post Verifica y descifra el siguiente fragmento, con la longitud sin
+	 * 		 cifrar de su cabecera y el fragmento cifrado especificados, en
+	 * 		 la salida especificada, avanzando ambas.
+	 * 		 Si no es auténtico lanza AEADBadTagException
+	 */
+	public void decode(int length, ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+		this.header[0] = (byte) ( length >>> 24 );
+		this.header[1] = (byte) ( length >>> 16 );
+		this.header[2] = (byte) ( length >>> 8 );
+		this.header[3] = (byte) length;
+		
+		SealedChunkEncoder.chunkNonce(this.baseNonce, this.sequenceNumber++, this.nonce);
+		
+		this.cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(SessionEncryptionSettings.CHANNEL_TAG_BITS_SIZE, this.nonce));
+		this.cipher.updateAAD(this.header);
+		
+		int inputLimit = input.limit();
+		input.limit(input.position() + getBodySize(length));
+		try {
+			this.cipher.doFinal(input, output);
+		} finally {
+			input.limit(inputLimit);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Codificador del canal cifrado con AES-GCM
+ * 
+ * Divide los datos en fragmentos de hasta CHUNK_SIZE bytes, y cada
+ * fragmento se envía como:
+ * Longitud del fragmento sin cifrar (Entero de 4 bytes), fragmento cifrado
+ * seguido de la etiqueta de autenticación de 16 bytes
+ * 
+ * La longitud es el dato adicional autenticado. El nonce de 12 bytes son los
+ * primeros 12 bytes del IV de sesión, con los últimos 8 bytes combinados con
+ * XOR con el número de fragmento, de forma que nunca se repite y los
+ * fragmentos no pueden reordenarse. El final de los datos se indica con un
+ * fragmento de longitud cero, también autenticado, para que no puedan
+ * truncarse
+ * @author ariel
+ *
+ */
+final class SealedChunkEncoder {
+	public final static int CHUNK_SIZE = 16384;
+	public final static int HEADER_SIZE = 4;
+	public final static int TAG_SIZE = SessionEncryptionSettings.CHANNEL_TAG_BITS_SIZE / 8;
+	
+	// Tamaño máximo de un fragmento codificado
+	public final static int MAX_RECORD_SIZE = HEADER_SIZE + CHUNK_SIZE + TAG_SIZE;
+	
+	final static int NONCE_SIZE = SessionEncryptionSettings.CHANNEL_NONCE_BITS_SIZE / 8;
+	final static int KEY_SIZE = SessionEncryptionSettings.AES_SESSION_KEY_BITS_SIZE / 8;
+	
+	private final Cipher cipher;
+	private final SecretKeySpec key;
+	private final byte[] baseNonce;
+	private final byte[] nonce;
+	private final byte[] header;
+	
+	private long sequenceNumber;
+	private boolean isFinished;
+	
+	/**
+	 * @pre El cifrador no puede ser usado por otro codificador mientras se
+	 * 		use este, y la clave con el IV tiene que tener la longitud de la sesión
+	 * @post Crea el codificador con el cifrador AES-GCM y la clave de sesión
+	 * 		 con el IV concatenados especificados
+	 */
+	public SealedChunkEncoder(Cipher cipher, byte[] aesKey_iv) {
+		this.cipher = cipher;
+		this.key = new SecretKeySpec(aesKey_iv, 0, KEY_SIZE, "AES");
+		this.baseNonce = Arrays.copyOfRange(aesKey_iv, KEY_SIZE, KEY_SIZE + NONCE_SIZE);
+		this.nonce = new byte[NONCE_SIZE];
+		this.header = new byte[HEADER_SIZE];
+		this.sequenceNumber = 0;
+		this.isFinished = false;
+	}
+	
+	/**
+	 * @post Calcula el nonce del fragmento con el número especificado
+	 * 		 a partir del nonce base, en el nonce especificado
+	 */
+	static void chunkNonce(byte[] baseNonce, long sequenceNumber, byte[] nonce) {
+		System.arraycopy(baseNonce, 0, nonce, 0, NONCE_SIZE);
+		for ( int i = 0 ; i < 8 ; i++ ) {
+			nonce[NONCE_SIZE - 1 - i] ^= (byte) ( sequenceNumber >>> ( i * 8 ) );
+		}
+	}
+	
+	/**
+	 * @post Devuelve si ya se codificó el fragmento final
+	 */
+	public boolean isFinished() {
+		return this.isFinished;
+	}
+	
+	/**
+	 * @pre No se codificó el fragmento final, y la salida tiene que tener lugar
+	 * 		para MAX_RECORD_SIZE bytes
+	 * @post Codifica el siguiente fragmento de la entrada especificada en
+	 * 		 la salida especificada, avanzando ambas.
+	 * 		 Si la entrada no tiene más datos, codifica el fragmento final
+	 */
+	public void encode(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+		if ( this.isFinished ) {
+			throw new IllegalStateException("Already finished");
+		}
+		
+		int length = Math.min(input.remaining(), CHUNK_SIZE);
+		
+		this.header[0] = (byte) ( length >>> 24 );
+		this.header[1] = (byte) ( length >>> 16 );
+		this.header[2] = (byte) ( length >>> 8 );
+		this.header[3] = (byte) length;
+		output.put(this.header);
+		
+		chunkNonce(this.baseNonce, this.sequenceNumber++, this.nonce);
+		
+		this.cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(SessionEncryptionSettings.CHANNEL_TAG_BITS_SIZE, this.nonce));
+		this.cipher.updateAAD(this.header);
+		
+		int inputLimit = input.limit();
+		input.limit(input.position() + length);
+		try {
+			this.cipher.doFinal(input, output);
+		} finally {
+			input.limit(inputLimit);
+		}
+		
+		if ( length == 0 ) {
+			this.isFinished = true;
+		}
+	}
+}
@@ -0,0 +1,1064 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgram;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramPool;
+
+/**
+ * Conexión de cliente atendida por un bucle de eventos con selector
+ * 
+ * Realiza el mismo establecimiento de sesión que WorkerRunnable,
+ * y atiende la sesión persistente si el cliente la pide,
+ * como una máquina de estados que avanza a medida que el canal
+ * está listo para leer o escribir.
+ * Lee y escribe con buffers del pool, y cada respuesta se acumula
+ * en el buffer de escritura y se envía con una sola escritura
+ * @author ariel
+ *
+ */
+final class SelectorConnection {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	/**
+	 * Fase del establecimiento de sesión
+	 */
+	private enum Phase {
+		/**
+		 * Esperando el número de versión de protocolo
+		 */
+		READ_VERSION,
+		
+		/**
+		 * Esperando la longitud de los datos cifrados de la clave de sesión
+		 */
+		READ_SESSION_KEY_LENGTH,
+		
+		/**
+		 * Esperando los datos cifrados de la clave de sesión
+		 */
+		READ_SESSION_KEY,
+		
+		/**
+		 * Esperando la clave pública efímera del cliente y la confirmación
+		 */
+		READ_KEY_EXCHANGE,
+		
+		/**
+		 * Esperando el identificador de sesión a reanudar y la prueba
+		 */
+		READ_RESUMPTION,
+		
+		/**
+		 * Esperando el resultado de la etapa de descifrado
+		 */
+		AWAIT_CRYPTO_STAGE,
+		
+		/**
+		 * Enviando el programa del cliente por el canal cifrado
+		 */
+		SEND_CLIENT_PROGRAM,
+		
+		/**
+		 * Sesión persistente: esperando la longitud de la siguiente trama
+		 */
+		READ_SESSION_FRAME_LENGTH,
+		
+		/**
+		 * Sesión persistente: esperando la trama cifrada
+		 */
+		READ_SESSION_FRAME,
+		
+		/**
+		 * Enviando los últimos datos antes de cerrar la conexión
+		 */
+		CLOSING
+	}
+	
+	private final SelectorEventLoop eventLoop;
+	private final SocketChannel clientChannel;
+	private final SourceAddressLimiter.Source source;
+	
+	private SelectionKey selectionKey;
+	
+	private Phase phase;
+	private ByteBuffer pooledInputBuffer;
+	private ByteBuffer pooledOutputBuffer;
+	private ByteBuffer inputBuffer;
+	private ByteBuffer outputBuffer;
+	
+	private Configuration configuration;
+	private int options;
+	private ECDHKeyExchange keyExchange;
+	private byte[] nonce;
+	
+	private CryptoContext channelCryptoContext;
+	private ByteBuffer channelBuffer;
+	private SealedChunkEncoder channelEncoder;
+	private ByteBuffer clientProgramCode;
+	
+	// Sesión persistente (Ver SessionMultiplexer)
+	private byte[] sessionKey;
+	private boolean isCompressed;
+	private SessionMultiplexer session;
+	private ByteBuffer sessionInputBuffer;
+	private int sessionFrameLength;
+	private long sessionIdleTimeout;
+	private boolean isSessionIdle;
+	
+	private long phaseStartTime;
+	private boolean isClosed;
+	
+	// Cierran la conexión al vencer, desde el hilo del bucle de eventos
+	private final TimingWheel.Task expiryTask;
+	private TimingWheel.Timeout handshakeDeadline;
+	private TimingWheel.Timeout phaseDeadline;
+	private long phaseTimeout;
+	
+	/**
+	 * @post Crea la conexión con el bucle de eventos, el canal y el estado
+	 * 		 de su dirección de origen especificados. Libera la conexión
+	 * 		 en el limitador al cerrarse
+	 */
+	public SelectorConnection(SelectorEventLoop eventLoop, SocketChannel clientChannel, SourceAddressLimiter.Source source) {
+		this.eventLoop = eventLoop;
+		this.clientChannel = clientChannel;
+		this.source = source;
+		this.selectionKey = null;
+		this.phase = null;
+		this.pooledInputBuffer = null;
+		this.pooledOutputBuffer = null;
+		this.inputBuffer = null;
+		this.outputBuffer = null;
+		this.configuration = null;
+		this.options = 0;
+		this.keyExchange = null;
+		this.nonce = null;
+		this.channelCryptoContext = null;
+		this.channelBuffer = null;
+		this.channelEncoder = null;
+		this.clientProgramCode = null;
+		this.sessionKey = null;
+		this.isCompressed = false;
+		this.session = null;
+		this.sessionInputBuffer = null;
+		this.sessionFrameLength = 0;
+		this.sessionIdleTimeout = 0;
+		this.isSessionIdle = false;
+		this.phaseStartTime = 0;
+		this.isClosed = false;
+		
+		this.expiryTask = new TimingWheel.Task() {
+			@Override
+			public void expired(final TimingWheel.Timeout timeout) {
+				SelectorConnection.this.eventLoop.execute(new SelectorEventLoop.Task() {
+					@Override
+					public void run() {
+						// Pudo haber sido cancelado mientras tanto
+						if ( ( timeout == SelectorConnection.this.handshakeDeadline ) || ( timeout == SelectorConnection.this.phaseDeadline ) ) {
+							try {
+								SelectorConnection.this.timeout();
+							} catch (RuntimeException e) {
+								SelectorEventLoop.logUnexpectedException(e);
+								SelectorConnection.this.close();
+							}
+						}
+					}
+					
+					@Override
+					public void abort() {
+						// La conexión se cierra con las demás del selector
+					}
+				});
+			}
+		};
+		this.handshakeDeadline = null;
+		this.phaseDeadline = null;
+		this.phaseTimeout = 0;
+	}
+	
+	static void logClientConnectionException(IOException e) {
+		LOGGER.log(Level.WARNING, "Client connection error: ''{0}''", (Object) e);
+	}
+	
+	/**
+	 * @pre Tiene que ser llamado desde el hilo del bucle de eventos
+	 * @post Registra la conexión en el selector y envía la cadena "mágica"
+	 */
+	public void start() throws IOException {
+		this.selectionKey = this.clientChannel.register(this.eventLoop.getSelector(), 0, this);
+		
+		this.eventLoop.getIOMetrics().submitted();
+		this.eventLoop.getIOMetrics().started();
+		
+		// Cada respuesta se envía completa, no hace falta esperar el ACK de la anterior
+		this.clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		
+		ByteBufferPool bufferPool = this.eventLoop.getServices().getBufferPool();
+		this.pooledInputBuffer = bufferPool.acquire();
+		this.pooledOutputBuffer = bufferPool.acquire();
+		this.outputBuffer = this.pooledOutputBuffer;
+		
+		// Limitar la duración de todo el establecimiento de sesión, y de
+		// cada espera al cliente
+		Configuration configuration = Configuration.instance();
+		this.phaseTimeout = TimeUnit.SECONDS.toNanos(configuration.getHandshakePhaseTimeout());
+		this.handshakeDeadline = this.eventLoop.getServices().getTimingWheel().schedule(this.expiryTask, TimeUnit.SECONDS.toNanos(configuration.getHandshakeTimeout()));
+		
+		this.phaseStartTime = System.nanoTime();
+		this.expect(4, Phase.READ_VERSION);
+		this.reserve(MultiThreadedServer.MAGICPROTOCOLHEADER.length).put(MultiThreadedServer.MAGICPROTOCOLHEADER);
+		this.flush();
+	}
+	
+	/**
+	 * @post Empieza una espera al cliente, que cierra la conexión si
+	 * 		 no termina antes del tiempo máximo de cada espera
+	 */
+	private void awaitClient() {
+		this.awaitClient(this.phaseTimeout);
+	}
+	
+	/**
+	 * @post Empieza una espera al cliente, que cierra la conexión si
+	 * 		 no termina antes del tiempo en nanosegundos especificado
+	 */
+	private void awaitClient(long timeout) {
+		this.stopAwaitingClient();
+		this.phaseDeadline = this.eventLoop.getServices().getTimingWheel().schedule(this.expiryTask, timeout);
+	}
+	
+	/**
+	 * @post Termina la espera al cliente, si hay
+	 */
+	private void stopAwaitingClient() {
+		if ( this.phaseDeadline != null ) {
+			this.phaseDeadline.cancel();
+			this.phaseDeadline = null;
+		}
+	}
+	
+	/**
+	 * @post Deja de limitar la duración de todo el establecimiento de sesión
+	 */
+	private void cancelHandshakeDeadline() {
+		if ( this.handshakeDeadline != null ) {
+			this.handshakeDeadline.cancel();
+			this.handshakeDeadline = null;
+		}
+	}
+	
+	/**
+	 * @pre Tiene que ser llamado desde el hilo del bucle de eventos
+	 * @post Atiende el evento de la clave de selección especificada
+	 */
+	public void handle(SelectionKey key) {
+		try {
+			if ( key.isWritable() ) {
+				this.flush();
+			}
+			
+			if ( key.isValid() && key.isReadable() ) {
+				this.read();
+			}
+		} catch (IOException e) {
+			if ( this.isSessionIdle ) {
+				// El cliente cerró la sesión inactiva
+				LOGGER.log(Level.FINE, "Idle session closed: ''{0}''", (Object) e);
+			}
+			else {
+				logClientConnectionException(e);
+			}
+			this.close();
+		}
+	}
+	
+	/**
+	 * @post Cierra la conexión por vencimiento del establecimiento de
+	 * 		 sesión, de una espera al cliente o de la inactividad de la
+	 * 		 sesión persistente
+	 */
+	public void timeout() {
+		if ( this.isSessionIdle ) {
+			LOGGER.fine("Idle session timed out");
+		}
+		else {
+			logClientConnectionException(new SocketTimeoutException("Handshake deadline expired"));
+		}
+		this.close();
+	}
+	
+	/**
+	 * @post Cierra la conexión
+	 */
+	public void close() {
+		if ( this.isClosed ) {
+			return;
+		}
+		this.isClosed = true;
+		
+		this.cancelHandshakeDeadline();
+		this.stopAwaitingClient();
+		
+		if ( this.selectionKey != null ) {
+			this.selectionKey.cancel();
+			this.eventLoop.getIOMetrics().finished();
+		}
+		
+		try {
+			this.clientChannel.close();
+		} catch (IOException e) {
+			logClientConnectionException(e);
+		}
+		
+		this.eventLoop.getServices().getSourceAddressLimiter().releaseConnection(this.source);
+		this.releaseChannel();
+		
+		if ( this.sessionInputBuffer != null ) {
+			this.eventLoop.getServices().getChannelBufferPool().release(this.sessionInputBuffer);
+			this.sessionInputBuffer = null;
+		}
+		this.session = null;
+		this.sessionKey = null;
+		
+		if ( this.pooledInputBuffer != null ) {
+			ByteBufferPool bufferPool = this.eventLoop.getServices().getBufferPool();
+			bufferPool.release(this.pooledInputBuffer);
+			bufferPool.release(this.pooledOutputBuffer);
+			this.pooledInputBuffer = null;
+			this.pooledOutputBuffer = null;
+		}
+		
+		this.inputBuffer = null;
+		this.outputBuffer = null;
+	}
+	
+	/**
+	 * @post Espera la cantidad de bytes especificada para la fase especificada.
+	 * 		 Usa el buffer del pool, salvo que no alcance
+	 */
+	private void expect(int length, Phase phase) {
+		this.phase = phase;
+		this.awaitClient();
+		
+		if ( length <= this.pooledInputBuffer.capacity() ) {
+			this.inputBuffer = this.pooledInputBuffer;
+			this.inputBuffer.clear();
+			this.inputBuffer.limit(length);
+		}
+		else {
+			this.inputBuffer = ByteBuffer.allocate(length);
+		}
+	}
+	
+	/**
+	 * @post Devuelve el buffer de escritura, con lugar para la cantidad de bytes
+	 * 		 especificada a continuación de los datos pendientes.
+	 * 		 Lo que se escriba se envía con flush()
+	 */
+	private ByteBuffer reserve(int length) {
+		if ( this.outputBuffer.remaining() < length ) {
+			ByteBuffer largerBuffer = ByteBuffer.allocate(this.outputBuffer.position() + length);
+			this.outputBuffer.flip();
+			largerBuffer.put(this.outputBuffer);
+			this.outputBuffer = largerBuffer;
+		}
+		
+		return this.outputBuffer;
+	}
+	
+	/**
+	 * @post Cierra la conexión una vez enviados los datos pendientes
+	 */
+	private void closeAfterSending() throws IOException {
+		this.phase = Phase.CLOSING;
+		this.awaitClient();
+		this.flush();
+	}
+	
+	/**
+	 * @post Envía los datos pendientes, y una vez enviados espera los datos
+	 * 		 de la fase actual, o cierra la conexión si se está cerrando.
+	 * 		 Si se está enviando el programa del cliente, o hay tramas de la
+	 * 		 sesión persistente para enviar, cifra el siguiente fragmento cada
+	 * 		 vez que se termina de enviar el anterior
+	 */
+	private void flush() throws IOException {
+		for (;;) {
+			this.outputBuffer.flip();
+			try {
+				this.clientChannel.write(this.outputBuffer);
+			} finally {
+				this.outputBuffer.compact();
+			}
+			
+			if ( this.outputBuffer.position() != 0 ) {
+				break;
+			}
+			
+			try {
+				if ( this.phase == Phase.SEND_CLIENT_PROGRAM ) {
+					if ( this.channelEncoder.isFinished() ) {
+						if ( this.sessionKey != null ) {
+							// El buffer del canal queda para las tramas de la sesión
+							this.channelCryptoContext.release();
+							this.channelCryptoContext = null;
+							this.channelEncoder = null;
+							this.clientProgramCode = null;
+							
+							this.startSession();
+						}
+						else {
+							this.outputBuffer = this.pooledOutputBuffer;
+							this.releaseChannel();
+							this.phase = Phase.CLOSING;
+						}
+					}
+					else {
+						this.channelEncoder.encode(this.clientProgramCode, this.outputBuffer);
+						
+						// Cada fragmento tiene el tiempo de una espera para enviarse
+						this.awaitClient();
+					}
+				}
+				else if ( ( this.session != null ) && this.session.hasOutput() ) {
+					this.session.encode(this.outputBuffer);
+					this.awaitClient();
+				}
+				else {
+					break;
+				}
+			} catch (GeneralSecurityException e) {
+				LOGGER.severe(e.toString());
+				this.close();
+				return;
+			}
+		}
+		
+		if ( this.outputBuffer.position() == 0 ) {
+			// Volver al buffer del pool si hizo falta uno más grande
+			this.outputBuffer = ( this.channelBuffer != null ) ? this.channelBuffer : this.pooledOutputBuffer;
+			
+			if ( this.phase == Phase.CLOSING ) {
+				this.close();
+				return;
+			}
+			
+			if ( this.session != null ) {
+				if ( this.session.isFinished() ) {
+					this.close();
+					return;
+				}
+				
+				// Sin tramas para enviar, esperar la siguiente solicitud
+				// con el tiempo de inactividad de la sesión
+				if ( ( this.phase == Phase.READ_SESSION_FRAME_LENGTH ) && ( this.inputBuffer.position() == 0 ) && this.session.isIdle() ) {
+					this.awaitClient(this.sessionIdleTimeout);
+					this.isSessionIdle = true;
+				}
+			}
+		}
+		
+		this.updateInterestOps();
+	}
+	
+	/**
+	 * @post Atiende la escritura si hay datos pendientes, y la lectura si
+	 * 		 se esperan datos del cliente
+	 */
+	private void updateInterestOps() {
+		int interestOps = 0;
+		
+		if ( this.outputBuffer.position() > 0 ) {
+			interestOps |= SelectionKey.OP_WRITE;
+		}
+		
+		if ( ( this.phase != Phase.AWAIT_CRYPTO_STAGE ) && ( this.phase != Phase.SEND_CLIENT_PROGRAM ) && ( this.phase != Phase.CLOSING ) ) {
+			interestOps |= SelectionKey.OP_READ;
+		}
+		
+		this.selectionKey.interestOps(interestOps);
+	}
+	
+	/**
+	 * @post Lee los datos esperados, y los atiende si están completos.
+	 * 		 En la sesión persistente atiende todas las tramas recibidas
+	 * 		 antes de enviar las respuestas, para que se intercalen
+	 */
+	private void read() throws IOException {
+		for (;;) {
+			int readBytes = this.clientChannel.read(this.inputBuffer);
+			
+			if ( readBytes < 0 ) {
+				throw new EOFException();
+			}
+			else if ( readBytes > 0 ) {
+				this.isSessionIdle = false;
+			}
+			
+			if ( this.inputBuffer.hasRemaining() ) {
+				break;
+			}
+			
+			this.stopAwaitingClient();
+			this.inputBuffer.flip();
+			this.onInput(this.inputBuffer);
+			
+			if ( this.isClosed || ( ( this.phase != Phase.READ_SESSION_FRAME_LENGTH ) && ( this.phase != Phase.READ_SESSION_FRAME ) ) ) {
+				break;
+			}
+		}
+		
+		if ( !this.isClosed && ( this.session != null ) ) {
+			this.flush();
+		}
+	}
+	
+	private void onInput(ByteBuffer input) throws IOException {
+		final HandshakeMetrics handshakeMetrics = this.eventLoop.getServices().getHandshakeMetrics();
+		
+		switch ( this.phase ) {
+		case READ_VERSION:
+			{
+				// Recibir número de versión de protocolo del cliente, si
+				// no es soportada, rechazar
+				int protocolVersion = input.getInt();
+				int handshake = protocolVersion & MultiThreadedServer.PROTOCOLVERSION_HANDSHAKE_MASK;
+				this.options = protocolVersion & ~MultiThreadedServer.PROTOCOLVERSION_HANDSHAKE_MASK;
+				this.phaseStartTime = handshakeMetrics.record(HandshakeMetrics.Phase.MAGIC_VERSION, this.phaseStartTime);
+				
+				this.configuration = Configuration.instance();
+				
+				if ( ( this.options & ~MultiThreadedServer.PROTOCOLOPTIONS_SUPPORTED ) != 0 ) {
+					// Indicar que la versión fue rechazada
+					this.reserve(1).put((byte) 1);
+					handshakeMetrics.count(HandshakeMetrics.Outcome.REJECTED_VERSION);
+					this.closeAfterSending();
+				}
+				else if ( ( ( handshake == MultiThreadedServer.PROTOCOLVERSION ) || ( handshake == MultiThreadedServer.PROTOCOLVERSION_ECDH ) ) &&
+						!this.eventLoop.getServices().getSourceAddressLimiter().tryHandshake(this.clientChannel.socket().getInetAddress()) ) {
+					// Rechazar antes de la operación con la clave privada, que es la más costosa
+					this.reserve(1).put(MultiThreadedServer.SERVER_BUSY);
+					this.closeAfterSending();
+				}
+				else if ( handshake == MultiThreadedServer.PROTOCOLVERSION ) {
+					// Indicar que la versión fue aceptada y enviar la clave pública
+					byte[] publicKeyFlight = this.configuration.getCryptoContextPool().getEncodedPublicKeyFlight();
+					this.reserve(publicKeyFlight.length).put(publicKeyFlight);
+					
+					this.expect(4, Phase.READ_SESSION_KEY_LENGTH);
+					this.flush();
+					this.phaseStartTime = handshakeMetrics.record(HandshakeMetrics.Phase.PUBLIC_KEY_SEND, this.phaseStartTime);
+				}
+				else if ( ( handshake == MultiThreadedServer.PROTOCOLVERSION_ECDH ) && ( this.configuration.getCryptoContextPool().getSigningKeyPair() != null ) ) {
+					// Generar y firmar la clave efímera
+					this.submitToCryptoStage(new CryptoStage.Task<ECDHKeyExchange>() {
+						@Override
+						public ECDHKeyExchange run(CryptoContext cryptoContext) throws GeneralSecurityException {
+							return ECDHKeyExchange.start(cryptoContext);
+						}
+					}, new CryptoStageCallback<ECDHKeyExchange>() {
+						@Override
+						public void accept(ECDHKeyExchange keyExchange) throws IOException {
+							SelectorConnection.this.onKeyExchangeStarted(keyExchange);
+						}
+					});
+				}
+				else if ( ( handshake == MultiThreadedServer.PROTOCOLVERSION_RESUME ) && ( this.eventLoop.getServices().getSessionCache() != null ) ) {
+					// Indicar que la versión fue aceptada y enviar el desafío
+					this.nonce = SessionResumption.newNonce();
+					
+					this.reserve(1 + SessionResumption.NONCE_LENGTH).put((byte) 0).put(this.nonce);
+					
+					this.expect(SessionCache.SESSION_ID_LENGTH + SessionResumption.PROOF_LENGTH, Phase.READ_RESUMPTION);
+					this.flush();
+				}
+				else {
+					// Indicar que la versión fue rechazada
+					this.reserve(1).put((byte) 1);
+					handshakeMetrics.count(HandshakeMetrics.Outcome.REJECTED_VERSION);
+					this.closeAfterSending();
+				}
+			}
+			break;
+		case READ_SESSION_KEY_LENGTH:
+			{
+				int encryptedMessageLength = input.getInt();
+				if ( SessionKeyDecoder.isValidEncryptedLength(encryptedMessageLength) ) {
+					this.expect(encryptedMessageLength, Phase.READ_SESSION_KEY);
+				}
+				else {
+					LOGGER.warning("Invalid client encrypted session key data size");
+					handshakeMetrics.count(HandshakeMetrics.Outcome.OVERSIZED_KEY);
+					this.close();
+				}
+			}
+			break;
+		case READ_SESSION_KEY:
+			{
+				final byte[] encryptedSessionKeyData = new byte[input.remaining()];
+				input.get(encryptedSessionKeyData);
+				handshakeMetrics.record(HandshakeMetrics.Phase.SESSION_KEY_READ, this.phaseStartTime);
+				
+				final CryptoContextPool retiredCryptoContextPool = this.configuration.getRetiredCryptoContextPool();
+				final SourceAddressLimiter sourceAddressLimiter = this.eventLoop.getServices().getSourceAddressLimiter();
+				final InetAddress address = this.clientChannel.socket().getInetAddress();
+				
+				this.submitToCryptoStage(new CryptoStage.Task<byte[]>() {
+					@Override
+					public byte[] run(CryptoContext cryptoContext) throws GeneralSecurityException {
+						return SessionKeyDecoder.decode(cryptoContext, retiredCryptoContextPool, encryptedSessionKeyData, handshakeMetrics, sourceAddressLimiter, address);
+					}
+				}, new CryptoStageCallback<byte[]>() {
+					@Override
+					public void accept(byte[] aesKey_iv) throws IOException {
+						SelectorConnection.this.onSessionKey(aesKey_iv);
+					}
+				});
+			}
+			break;
+		case READ_KEY_EXCHANGE:
+			{
+				final byte[] clientPublicKey = new byte[ECDHKeyExchange.PUBLIC_KEY_LENGTH];
+				final byte[] confirmation = new byte[ECDHKeyExchange.CONFIRMATION_LENGTH];
+				input.get(clientPublicKey);
+				input.get(confirmation);
+				
+				final ECDHKeyExchange keyExchange = this.keyExchange;
+				this.keyExchange = null;
+				
+				this.submitToCryptoStage(new CryptoStage.Task<byte[]>() {
+					@Override
+					public byte[] run(CryptoContext cryptoContext) throws GeneralSecurityException {
+						return keyExchange.finish(cryptoContext, clientPublicKey, confirmation);
+					}
+				}, new CryptoStageCallback<byte[]>() {
+					@Override
+					public void accept(byte[] aesKey_iv) throws IOException {
+						SelectorConnection.this.onSessionKey(aesKey_iv);
+					}
+				});
+			}
+			break;
+		case READ_SESSION_FRAME_LENGTH:
+			{
+				int length = input.getInt();
+				if ( !SealedChunkDecoder.isValidLength(length) ) {
+					throw new ProtocolException("Invalid session frame length");
+				}
+				
+				this.sessionFrameLength = length;
+				this.expectSessionInput(SealedChunkDecoder.getBodySize(length), Phase.READ_SESSION_FRAME);
+				this.awaitClient();
+			}
+			break;
+		case READ_SESSION_FRAME:
+			{
+				try {
+					this.session.onRecord(this.sessionFrameLength, input, Configuration.instance());
+				} catch (GeneralSecurityException e) {
+					LOGGER.severe(e.toString());
+					this.close();
+					return;
+				}
+				
+				this.expectSessionInput(4, Phase.READ_SESSION_FRAME_LENGTH);
+				this.awaitClient();
+				this.takeSessionClientPrograms();
+			}
+			break;
+		case READ_RESUMPTION:
+			{
+				final byte[] sessionId = new byte[SessionCache.SESSION_ID_LENGTH];
+				final byte[] proof = new byte[SessionResumption.PROOF_LENGTH];
+				input.get(sessionId);
+				input.get(proof);
+				
+				final byte[] nonce = this.nonce;
+				this.nonce = null;
+				
+				final SessionCache sessionCache = this.eventLoop.getServices().getSessionCache();
+				
+				this.submitToCryptoStage(new CryptoStage.Task<byte[]>() {
+					@Override
+					public byte[] run(CryptoContext cryptoContext) throws GeneralSecurityException {
+						return SessionResumption.resume(cryptoContext, sessionCache, nonce, sessionId, proof);
+					}
+				}, new CryptoStageCallback<byte[]>() {
+					@Override
+					public void accept(byte[] aesKey_iv) throws IOException {
+						SelectorConnection.this.onResumed(aesKey_iv);
+					}
+				});
+			}
+			break;
+		default:
+			throw new IllegalStateException();
+		}
+	}
+	
+	/**
+	 * Continuación después de una tarea de la etapa de descifrado
+	 */
+	private interface CryptoStageCallback<T> {
+		void accept(T result) throws IOException;
+	}
+	
+	/**
+	 * @post Entrega la tarea especificada a la etapa de descifrado, sin atender
+	 * 		 el canal mientras tanto, y continúa con el resultado en el hilo
+	 * 		 del bucle de eventos
+	 */
+	private <T> void submitToCryptoStage(CryptoStage.Task<T> task, final CryptoStageCallback<T> callback) {
+		this.phase = Phase.AWAIT_CRYPTO_STAGE;
+		this.updateInterestOps();
+		
+		this.eventLoop.getServices().getCryptoStage().submit(this.configuration.getCryptoContextPool(), task).whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(final T result, final Throwable e) {
+				SelectorConnection.this.eventLoop.execute(new SelectorEventLoop.Task() {
+					@Override
+					public void run() {
+						if ( SelectorConnection.this.isClosed ) {
+							return;
+						}
+						
+						if ( e != null ) {
+							LOGGER.severe(e.toString());
+							SelectorConnection.this.close();
+						}
+						else {
+							try {
+								callback.accept(result);
+							} catch (IOException e) {
+								logClientConnectionException(e);
+								SelectorConnection.this.close();
+							} catch (RuntimeException e) {
+								SelectorEventLoop.logUnexpectedException(e);
+								SelectorConnection.this.close();
+							}
+						}
+					}
+					
+					@Override
+					public void abort() {
+						// La conexión se cierra con las demás del selector
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * @post Indica que la versión fue aceptada y envía la clave pública de firma,
+	 * 		 la clave pública efímera y la firma
+	 */
+	private void onKeyExchangeStarted(ECDHKeyExchange keyExchange) throws IOException {
+		this.keyExchange = keyExchange;
+		
+		byte[] serverFlight = keyExchange.getEncodedServerFlight();
+		this.reserve(serverFlight.length).put(serverFlight);
+		
+		this.expect(ECDHKeyExchange.PUBLIC_KEY_LENGTH + ECDHKeyExchange.CONFIRMATION_LENGTH, Phase.READ_KEY_EXCHANGE);
+		this.flush();
+	}
+	
+	/**
+	 * @post Indica si la sesión fue reanudada, y continúa con la clave
+	 * 		 de sesión derivada
+	 */
+	private void onResumed(byte[] aesKey_iv) throws IOException {
+		if ( aesKey_iv != null ) {
+			this.reserve(1).put((byte) 0);
+			this.onSessionKey(aesKey_iv);
+		}
+		else {
+			this.reserve(1).put((byte) 1);
+			this.closeAfterSending();
+		}
+	}
+	
+	/**
+	 * @post Empieza a enviar el programa especificado por el canal cifrado con
+	 * 		 la clave de sesión especificada (Ver SealedChunkEncoder), a
+	 * 		 continuación de los datos pendientes
+	 */
+	private void sendClientProgram(byte[] aesKey_iv, ClientProgram clientProgram) throws IOException {
+		try {
+			this.channelCryptoContext = this.configuration.getCryptoContextPool().acquire();
+			this.channelEncoder = new SealedChunkEncoder(this.channelCryptoContext.getChannelCipher(), aesKey_iv);
+		} catch (GeneralSecurityException e) {
+			LOGGER.severe(e.toString());
+			this.close();
+			return;
+		}
+		
+		this.clientProgramCode = clientProgram.getCode();
+		
+		// Los fragmentos se codifican en el buffer del canal
+		this.channelBuffer = this.eventLoop.getServices().getChannelBufferPool().acquire();
+		this.outputBuffer.flip();
+		this.channelBuffer.put(this.outputBuffer);
+		this.pooledOutputBuffer.clear();
+		this.outputBuffer = this.channelBuffer;
+		
+		this.phase = Phase.SEND_CLIENT_PROGRAM;
+		this.awaitClient();
+		this.flush();
+	}
+	
+	/**
+	 * @post Empieza la sesión persistente a continuación de los datos
+	 * 		 pendientes, con la clave de sesión guardada
+	 */
+	private void startSession() throws IOException, GeneralSecurityException {
+		final ByteBufferPool channelBufferPool = this.eventLoop.getServices().getChannelBufferPool();
+		final Configuration configuration = Configuration.instance();
+		
+		CryptoContext cryptoContext = this.configuration.getCryptoContextPool().acquire();
+		try {
+			this.session = new SessionMultiplexer(cryptoContext.getMac(), this.sessionKey, this.isCompressed, configuration.getMaxSessionStreams(), configuration.getSessionFrameBudget());
+		} finally {
+			cryptoContext.release();
+		}
+		this.sessionKey = null;
+		this.sessionIdleTimeout = TimeUnit.SECONDS.toNanos(configuration.getSessionIdleTimeout());
+		
+		// Las tramas se codifican en el buffer del canal
+		if ( this.channelBuffer == null ) {
+			this.channelBuffer = channelBufferPool.acquire();
+			this.outputBuffer.flip();
+			this.channelBuffer.put(this.outputBuffer);
+			this.pooledOutputBuffer.clear();
+			this.outputBuffer = this.channelBuffer;
+		}
+		
+		this.sessionInputBuffer = channelBufferPool.acquire();
+		this.expectSessionInput(4, Phase.READ_SESSION_FRAME_LENGTH);
+	}
+	
+	/**
+	 * @post Espera la cantidad de bytes especificada de la sesión persistente,
+	 * 		 para la fase especificada, en el buffer de entrada de la sesión
+	 */
+	private void expectSessionInput(int length, Phase phase) {
+		this.phase = phase;
+		this.inputBuffer = this.sessionInputBuffer;
+		this.inputBuffer.clear();
+		this.inputBuffer.limit(length);
+	}
+	
+	/**
+	 * @post Responde las solicitudes de programas del cliente de la sesión
+	 * 		 persistente con los programas listos.
+	 * 		 Si no hay, genera el siguiente en la etapa de descifrado, sin
+	 * 		 leer tramas mientras tanto, y continúa con las demás
+	 */
+	private void takeSessionClientPrograms() {
+		while ( this.session.getPendingClientPrograms() != 0 ) {
+			final ClientProgramPool clientProgramPool = this.session.getClientProgramPool(Configuration.instance());
+			
+			ClientProgram clientProgram = ( clientProgramPool != null ) ? clientProgramPool.poll() : null;
+			if ( ( clientProgram != null ) || ( clientProgramPool == null ) ) {
+				this.session.onClientProgram(clientProgram);
+			}
+			else {
+				final Phase phase = this.phase;
+				
+				this.submitToCryptoStage(new CryptoStage.Task<ClientProgram>() {
+					@Override
+					public ClientProgram run(CryptoContext cryptoContext) throws GeneralSecurityException {
+						return clientProgramPool.take();
+					}
+				}, new CryptoStageCallback<ClientProgram>() {
+					@Override
+					public void accept(ClientProgram clientProgram) throws IOException {
+						SelectorConnection.this.phase = phase;
+						SelectorConnection.this.session.onClientProgram(clientProgram);
+						SelectorConnection.this.takeSessionClientPrograms();
+						SelectorConnection.this.flush();
+					}
+				});
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @post Libera los recursos del canal cifrado, si los tiene
+	 */
+	private void releaseChannel() {
+		if ( this.channelCryptoContext != null ) {
+			this.channelCryptoContext.release();
+			this.channelCryptoContext = null;
+		}
+		
+		if ( this.channelBuffer != null ) {
+			this.eventLoop.getServices().getChannelBufferPool().release(this.channelBuffer);
+			this.channelBuffer = null;
+		}
+		
+		this.channelEncoder = null;
+		this.clientProgramCode = null;
+	}
+	
+	/**
+	 * @post Continúa con el programa del cliente si hay, o cierra la conexión
+	 * 		 una vez enviados los datos pendientes.
+	 * 		 Si no hay programas listos, lo genera en la etapa de descifrado,
+	 * 		 para no demorar el bucle de eventos
+	 */
+	private void onSessionEstablished(final byte[] aesKey_iv) throws IOException {
+		ClientProgramPool selectedClientProgramPool = this.configuration.getClientProgramPool();
+		
+		// Indicar si el programa del cliente se envía comprimido
+		if ( ( this.options & MultiThreadedServer.PROTOCOLOPTION_COMPRESSION ) != 0 ) {
+			if ( this.configuration.getCompressedClientProgramPool() != null ) {
+				this.reserve(1).put((byte) 0);
+				selectedClientProgramPool = this.configuration.getCompressedClientProgramPool();
+			}
+			else {
+				this.reserve(1).put((byte) 1);
+			}
+		}
+		
+		final ClientProgramPool clientProgramPool = selectedClientProgramPool;
+		
+		// Mantener la conexión para las siguientes solicitudes
+		if ( ( this.options & MultiThreadedServer.PROTOCOLOPTION_PERSISTENT_SESSION ) != 0 ) {
+			this.sessionKey = aesKey_iv;
+			this.isCompressed = ( clientProgramPool != null ) && ( clientProgramPool == this.configuration.getCompressedClientProgramPool() );
+		}
+		
+		if ( clientProgramPool != null ) {
+			ClientProgram clientProgram = clientProgramPool.poll();
+			
+			if ( clientProgram != null ) {
+				this.sendClientProgram(aesKey_iv, clientProgram);
+			}
+			else {
+				this.submitToCryptoStage(new CryptoStage.Task<ClientProgram>() {
+					@Override
+					public ClientProgram run(CryptoContext cryptoContext) throws GeneralSecurityException {
+						return clientProgramPool.take();
+					}
+				}, new CryptoStageCallback<ClientProgram>() {
+					@Override
+					public void accept(ClientProgram clientProgram) throws IOException {
+						SelectorConnection.this.sendClientProgram(aesKey_iv, clientProgram);
+					}
+				});
+			}
+		}
+		else if ( this.sessionKey != null ) {
+			try {
+				this.startSession();
+			} catch (GeneralSecurityException e) {
+				LOGGER.severe(e.toString());
+				this.close();
+				return;
+			}
+			this.flush();
+		}
+		else {
+			this.closeAfterSending();
+		}
+	}
+	
+	/**
+	 * @post Continúa con la clave de sesión establecida, o cierra la
+	 * 		 conexión si no es válida
+	 */
+	private void onSessionKey(final byte[] aesKey_iv) throws IOException {
+		if ( aesKey_iv != null ) {
+			this.eventLoop.getServices().getHandshakeMetrics().count(HandshakeMetrics.Outcome.ACCEPTED);
+			
+			// La sesión fue establecida, sólo se limita cada espera al cliente
+			this.cancelHandshakeDeadline();
+			
+			if ( ( this.options & MultiThreadedServer.PROTOCOLOPTION_SESSION_ID ) != 0 ) {
+				final SessionCache sessionCache = this.eventLoop.getServices().getSessionCache();
+				
+				// Emitir identificador de sesión, si hay caché de sesiones
+				if ( sessionCache != null ) {
+					this.submitToCryptoStage(new CryptoStage.Task<byte[]>() {
+						@Override
+						public byte[] run(CryptoContext cryptoContext) throws GeneralSecurityException {
+							return SessionResumption.issue(cryptoContext, sessionCache, aesKey_iv);
+						}
+					}, new CryptoStageCallback<byte[]>() {
+						@Override
+						public void accept(byte[] sessionId) throws IOException {
+							SelectorConnection.this.onSessionIdIssued(sessionId, aesKey_iv);
+						}
+					});
+				}
+				else {
+					this.reserve(1).put((byte) 1);
+					this.onSessionEstablished(aesKey_iv);
+				}
+			}
+			else {
+				this.onSessionEstablished(aesKey_iv);
+			}
+		}
+		else {
+			this.eventLoop.getServices().getSourceAddressLimiter().handshakeFailed(this.clientChannel.socket().getInetAddress());
+			this.closeAfterSending();
+		}
+	}
+	
+	/**
+	 * @post Envía el identificador de sesión emitido, y continúa con
+	 * 		 la clave de sesión especificada
+	 */
+	private void onSessionIdIssued(byte[] sessionId, byte[] aesKey_iv) throws IOException {
+		this.reserve(1 + SessionCache.SESSION_ID_LENGTH).put((byte) 0).put(sessionId);
+		this.onSessionEstablished(aesKey_iv);
+	}
+}
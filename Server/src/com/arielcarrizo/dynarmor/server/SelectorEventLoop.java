@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bucle de eventos con selector
+ * 
+ * Atiende las conexiones que le fueron asignadas, y ejecuta
+ * en su hilo las tareas encoladas desde otros hilos.
+ * Al detenerse cierra las conexiones registradas en el selector, y aborta
+ * las tareas pendientes o que se encolen después, para que las
+ * asignaciones sin registrar también liberen su canal
+ * @author ariel
+ *
+ */
+final class SelectorEventLoop implements Runnable {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	private final Selector selector;
+	private final Queue<Task> pendingTasks;
+	
+	private final ServerServices services;
+	private final StageMetrics ioMetrics;
+	
+	private volatile boolean isStopped;
+	
+	/**
+	 * Tarea a ejecutar en el hilo del bucle de eventos
+	 */
+	interface Task extends Runnable {
+		/**
+		 * @post Libera lo que la tarea tenga a su cargo, en lugar de
+		 * 		 ejecutarla porque el bucle de eventos se detuvo.
+		 * 		 Puede ser llamado desde cualquier hilo
+		 */
+		void abort();
+	}
+	
+	/**
+	 * @post Crea el bucle de eventos con los servicios del servidor y
+	 * 		 las métricas de la etapa de E/S especificados
+	 */
+	public SelectorEventLoop(ServerServices services, StageMetrics ioMetrics) throws IOException {
+		this.selector = Selector.open();
+		this.services = services;
+		this.ioMetrics = ioMetrics;
+		this.pendingTasks = new ConcurrentLinkedQueue<Task>();
+		this.isStopped = false;
+	}
+	
+	/**
+	 * @post Encola la tarea especificada para que sea ejecutada
+	 * 		 en el hilo del bucle de eventos.
+	 * 		 Si el bucle de eventos se detuvo la aborta
+	 */
+	public void execute(Task task) {
+		this.pendingTasks.add(task);
+		
+		// El bucle pudo haber abortado las pendientes antes de encolarla
+		if ( this.isStopped ) {
+			this.abortPendingTasks();
+		}
+		else {
+			this.selector.wakeup();
+		}
+	}
+	
+	/**
+	 * @post Aborta las tareas pendientes
+	 */
+	private void abortPendingTasks() {
+		Task eachTask;
+		while ( ( eachTask = this.pendingTasks.poll() ) != null ) {
+			try {
+				eachTask.abort();
+			} catch (RuntimeException e) {
+				logUnexpectedException(e);
+			}
+		}
+	}
+	
+	/**
+	 * @pre El estado de la dirección de origen tiene que haber sido devuelto
+	 * 		por el limitador de los servicios
+	 * @post Asigna el canal de cliente especificado al bucle de eventos,
+	 * 		 con el estado de su dirección de origen especificado
+	 */
+	public void register(final SocketChannel clientChannel, final SourceAddressLimiter.Source source) {
+		this.execute(new Task() {
+			@Override
+			public void run() {
+				SelectorConnection connection = null;
+				
+				try {
+					clientChannel.configureBlocking(false);
+					connection = new SelectorConnection(SelectorEventLoop.this, clientChannel, source);
+					connection.start();
+				} catch (IOException e) {
+					SelectorConnection.logClientConnectionException(e);
+					this.abort(connection);
+				} catch (RuntimeException e) {
+					logUnexpectedException(e);
+					this.abort(connection);
+				}
+			}
+			
+			@Override
+			public void abort() {
+				this.abort(null);
+			}
+			
+			/**
+			 * @post Cierra la conexión especificada, o el canal si no
+			 * 		 llegó a crearse
+			 */
+			private void abort(SelectorConnection connection) {
+				if ( connection != null ) {
+					connection.close();
+				}
+				else {
+					SelectorEventLoop.this.services.getSourceAddressLimiter().releaseConnection(source);
+					
+					try {
+						clientChannel.close();
+					} catch (IOException e) {
+						SelectorConnection.logClientConnectionException(e);
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * @post Registra la excepción inesperada especificada, que sólo
+	 * 		 termina la conexión en la que ocurrió
+	 */
+	static void logUnexpectedException(RuntimeException e) {
+		LOGGER.log(Level.SEVERE, "Unexpected error in selector event loop", e);
+	}
+	
+	/**
+	 * @post Devuelve los servicios del servidor
+	 */
+	ServerServices getServices() {
+		return this.services;
+	}
+	
+	/**
+	 * @post Devuelve las métricas de la etapa de E/S
+	 */
+	StageMetrics getIOMetrics() {
+		return this.ioMetrics;
+	}
+	
+	/**
+	 * @post Devuelve el selector
+	 */
+	Selector getSelector() {
+		return this.selector;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while ( !this.isStopped ) {
+				this.selector.select();
+				
+				Task eachTask;
+				while ( ( eachTask = this.pendingTasks.poll() ) != null ) {
+					// Las tareas de una conexión la cierran si fallan
+					try {
+						eachTask.run();
+					} catch (RuntimeException e) {
+						logUnexpectedException(e);
+					}
+				}
+				
+				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+				while ( selectedKeys.hasNext() ) {
+					SelectionKey eachKey = selectedKeys.next();
+					selectedKeys.remove();
+					
+					if ( eachKey.isValid() ) {
+						SelectorConnection connection = (SelectorConnection) eachKey.attachment();
+						
+						try {
+							connection.handle(eachKey);
+						} catch (RuntimeException e) {
+							logUnexpectedException(e);
+							connection.close();
+						}
+					}
+				}
+			}
+		} catch ( IOException | ClosedSelectorException e ) {
+			if ( !this.isStopped ) {
+				LOGGER.severe("Selector error: '" + e + "'");
+			}
+		} finally {
+			// Si terminó por un error, las tareas que se encolen se abortan
+			this.isStopped = true;
+			this.abortPendingTasks();
+			
+			for ( SelectionKey eachKey : this.selector.keys() ) {
+				( (SelectorConnection) eachKey.attachment() ).close();
+			}
+			
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				LOGGER.severe("Error closing selector: '" + e + "'");
+			}
+		}
+	}
+	
+	/**
+	 * @post Detiene el bucle de eventos, cerrando todas sus conexiones
+	 */
+	public void stop() {
+		this.isStopped = true;
+		this.selector.wakeup();
+	}
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Servidor con E/S no bloqueante
+ * 
+ * Acepta las conexiones en uno o más hilos y las reparte
+ * entre un número reducido de bucles de eventos con selectores,
+ * en los que se realiza el establecimiento de la sesión
+ * @author ariel
+ *
+ */
+public class SelectorServer implements Runnable {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	private final SelectorEventLoop[] eventLoops;
+	private final StageMetrics ioMetrics;
+	
+	private final AtomicInteger nextEventLoop;
+	
+	// Reemplazados enteros al cambiar los canales de servidor
+	private List<Acceptor> acceptors;
+	private int acceptorThreads;
+	private boolean isRunning;
+	
+	private volatile boolean isStopped;
+	
+	/**
+	 * Acepta conexiones de un canal de servidor, en su propio hilo,
+	 * y las reparte entre los bucles de eventos
+	 */
+	private final class Acceptor implements Runnable {
+		private final ServerSocketChannel serverChannel;
+		private volatile boolean isClosed;
+		
+		public Acceptor(ServerSocketChannel serverChannel) {
+			this.serverChannel = serverChannel;
+			this.isClosed = false;
+		}
+		
+		@Override
+		public void run() {
+			final SelectorEventLoop[] eventLoops = SelectorServer.this.eventLoops;
+			long acceptBackoff = MultiThreadedServer.MIN_ACCEPT_BACKOFF;
+			
+			while ( !this.isClosed ) {
+				SocketChannel clientChannel;
+				
+				try {
+					clientChannel = this.serverChannel.accept();
+				} catch ( IOException e ) {
+					if ( !this.isClosed ) {
+						LOGGER.log(Level.WARNING, "Error accepting client connection: ''{0}''", (Object) e);
+						acceptBackoff = MultiThreadedServer.backOffAccept(acceptBackoff);
+						continue;
+					}
+					else {
+						// Fue reemplazado o el servidor se detuvo
+						return;
+					}
+				}
+				
+				acceptBackoff = MultiThreadedServer.MIN_ACCEPT_BACKOFF;
+				
+				SelectorEventLoop eventLoop = eventLoops[( SelectorServer.this.nextEventLoop.getAndIncrement() & Integer.MAX_VALUE ) % eventLoops.length];
+				
+				// Rechazar las conexiones que superan los límites de su dirección de origen
+				SourceAddressLimiter.Source source = eventLoop.getServices().getSourceAddressLimiter().acquireConnection(clientChannel.socket().getInetAddress());
+				if ( source != null ) {
+					eventLoop.register(clientChannel, source);
+				}
+				else {
+					reject(clientChannel);
+				}
+			}
+		}
+		
+		/**
+		 * @post Envía la cadena "mágica" y el código de servidor ocupado,
+		 * 		 y cierra la conexión.
+		 * 		 El canal todavía es bloqueante, pero los datos caben en el
+		 * 		 buffer de envío de un socket nuevo, por lo que no se bloquea
+		 */
+		private void reject(SocketChannel clientChannel) {
+			try {
+				clientChannel.write(ByteBuffer.wrap(MultiThreadedServer.SERVER_BUSY_REPLY));
+			} catch ( IOException e ) {
+				SelectorConnection.logClientConnectionException(e);
+			} finally {
+				try {
+					clientChannel.close();
+				} catch ( IOException e ) {
+					SelectorConnection.logClientConnectionException(e);
+				}
+			}
+		}
+		
+		/**
+		 * @post Deja de aceptar conexiones y cierra el canal.
+		 * 		 Puede compartir el canal con otros, cerrarlo
+		 * 		 más de una vez no tiene efecto
+		 */
+		public void close() {
+			this.isClosed = true;
+			
+			try {
+				this.serverChannel.close();
+			} catch ( IOException e ) {
+				LOGGER.severe("Error closing server socket: '" + e + "'");
+			}
+		}
+	}
+	
+	/**
+	 * @pre El canal no puede ser nulo, y el número de hilos tiene que ser positivo
+	 * @post Crea el servidor con el canal de servidor y el número de
+	 * 		 hilos con selectores especificados, que descifran la clave
+	 * 		 de sesión en su propio hilo
+	 */
+	public SelectorServer(ServerSocketChannel serverChannel, int selectorThreads) throws IOException {
+		this(Collections.singletonList(serverChannel), selectorThreads, ServerServices.defaults());
+	}
+	
+	/**
+	 * @pre Los canales y los servicios no pueden ser nulos, tiene que haber
+	 * 		por lo menos un canal, y el número de hilos tiene que ser positivo
+	 * @post Crea el servidor con los canales de servidor, el número de
+	 * 		 hilos con selectores y los servicios especificados.
+	 * 		 Cada canal se atiende con su propio hilo. Un canal puede
+	 * 		 repetirse para atenderlo con más de un hilo
+	 */
+	SelectorServer(List<ServerSocketChannel> serverChannels, int selectorThreads, ServerServices services) throws IOException {
+		if ( ( serverChannels == null ) || ( services == null ) ) {
+			throw new NullPointerException();
+		}
+		
+		if ( selectorThreads < 1 ) {
+			throw new IllegalArgumentException("Invalid selector threads number");
+		}
+		
+		this.eventLoops = new SelectorEventLoop[selectorThreads];
+		this.ioMetrics = new StageMetrics("io");
+		
+		for ( int i = 0 ; i < this.eventLoops.length ; i++ ) {
+			this.eventLoops[i] = new SelectorEventLoop(services, this.ioMetrics);
+		}
+		
+		this.nextEventLoop = new AtomicInteger(0);
+		this.acceptors = this.newAcceptors(serverChannels);
+		this.acceptorThreads = 0;
+		this.isRunning = false;
+		this.isStopped = false;
+	}
+	
+	/**
+	 * @post Crea los aceptadores de los canales especificados
+	 */
+	private List<Acceptor> newAcceptors(List<ServerSocketChannel> serverChannels) {
+		if ( serverChannels.isEmpty() ) {
+			throw new IllegalArgumentException("Missing server channel");
+		}
+		
+		List<Acceptor> acceptors = new ArrayList<Acceptor>(serverChannels.size());
+		for ( ServerSocketChannel eachServerChannel : serverChannels ) {
+			if ( eachServerChannel == null ) {
+				throw new NullPointerException();
+			}
+			
+			acceptors.add(new Acceptor(eachServerChannel));
+		}
+		
+		return acceptors;
+	}
+	
+	/**
+	 * @post Arranca un hilo por cada aceptador especificado
+	 */
+	private void startAcceptors(List<Acceptor> acceptors) {
+		for ( Acceptor eachAcceptor : acceptors ) {
+			new Thread(eachAcceptor, "dynarmor-acceptor-" + ( this.acceptorThreads++ ) ).start();
+		}
+	}
+	
+	/**
+	 * @post Arranca los bucles de eventos y acepta conexiones hasta que
+	 * 		 el servidor se detiene
+	 */
+	@Override
+	public void run() {
+		synchronized ( this ) {
+			if ( !this.isStopped ) {
+				for ( int i = 0 ; i < this.eventLoops.length ; i++ ) {
+					new Thread( this.eventLoops[i], "dynarmor-selector-" + i ).start();
+				}
+				
+				this.isRunning = true;
+				this.startAcceptors(this.acceptors);
+			}
+			
+			while ( !this.isStopped ) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @post Devuelve las métricas de la etapa de E/S
+	 */
+	StageMetrics getIOMetrics() {
+		return this.ioMetrics;
+	}
+	
+	/**
+	 * @pre Los canales no pueden ser nulos, y tiene que haber por lo menos uno
+	 * @post Reemplaza los canales de servidor por los especificados, y cierra
+	 * 		 los anteriores.
+	 * 		 Las conexiones ya aceptadas no se ven afectadas
+	 */
+	synchronized void rebind(List<ServerSocketChannel> serverChannels) {
+		if ( this.isStopped ) {
+			throw new IllegalStateException("Server stopped");
+		}
+		
+		List<Acceptor> previousAcceptors = this.acceptors;
+		this.acceptors = this.newAcceptors(serverChannels);
+		
+		if ( this.isRunning ) {
+			this.startAcceptors(this.acceptors);
+		}
+		
+		for ( Acceptor eachAcceptor : previousAcceptors ) {
+			eachAcceptor.close();
+		}
+	}
+	
+	public synchronized void stop() {
+		this.isStopped = true;
+		
+		for ( Acceptor eachAcceptor : this.acceptors ) {
+			eachAcceptor.close();
+		}
+		
+		for ( SelectorEventLoop eachEventLoop : this.eventLoops ) {
+			eachEventLoop.stop();
+		}
+		
+		this.notifyAll();
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Servicios compartidos por todas las conexiones del servidor
+ * @author ariel
+ *
+ */
+final class ServerServices {
+	// Tamaño de los buffers del establecimiento de sesión, suficiente para
+	// la clave pública y la clave de sesión cifrada con claves RSA de hasta 8192 bits
+	public final static int HANDSHAKE_BUFFER_SIZE = 2048;
+	
+	// Precisión de los vencimientos de las conexiones, y cantidad de ranuras de la rueda
+	private final static long TIMING_WHEEL_TICK = TimeUnit.MILLISECONDS.toNanos(100);
+	private final static int TIMING_WHEEL_TICKS = 512;
+	
+	/**
+	 * Servicios por omisión, creados al usarlos por primera vez
+	 */
+	private final static class DefaultsHolder {
+		private final static ServerServices INSTANCE;
+		
+		static {
+			int capacity = Runtime.getRuntime().availableProcessors() * 2;
+			INSTANCE = new ServerServices(CryptoStage.inline(), null, new ByteBufferPool(HANDSHAKE_BUFFER_SIZE, capacity), new ByteBufferPool(SealedChunkEncoder.MAX_RECORD_SIZE, capacity));
+		}
+	}
+	
+	private final CryptoStage cryptoStage;
+	private final SessionCache sessionCache;
+	private final ByteBufferPool bufferPool;
+	private final ByteBufferPool channelBufferPool;
+	private final HandshakeMetrics handshakeMetrics;
+	private final SourceAddressLimiter sourceAddressLimiter;
+	private final TimingWheel timingWheel;
+	
+	/**
+	 * @pre La etapa de descifrado y los pools de buffers no pueden ser nulos
+	 * @post Crea los servicios con la etapa de descifrado, la caché de
+	 * 		 sesiones (Puede ser nula si no se reanudan sesiones), el pool
+	 * 		 de buffers del establecimiento de sesión y el pool de buffers
+	 * 		 del canal cifrado especificados
+	 */
+	public ServerServices(CryptoStage cryptoStage, SessionCache sessionCache, ByteBufferPool bufferPool, ByteBufferPool channelBufferPool) {
+		if ( ( cryptoStage == null ) || ( bufferPool == null ) || ( channelBufferPool == null ) ) {
+			throw new NullPointerException();
+		}
+		
+		if ( channelBufferPool.getBufferSize() < SealedChunkEncoder.MAX_RECORD_SIZE ) {
+			throw new IllegalArgumentException("Channel buffers are too small");
+		}
+		
+		this.cryptoStage = cryptoStage;
+		this.sessionCache = sessionCache;
+		this.bufferPool = bufferPool;
+		this.channelBufferPool = channelBufferPool;
+		this.handshakeMetrics = new HandshakeMetrics();
+		this.sourceAddressLimiter = new SourceAddressLimiter();
+		this.timingWheel = new TimingWheel("dynarmor-timing-wheel", TIMING_WHEEL_TICK, TIMING_WHEEL_TICKS);
+	}
+	
+	/**
+	 * @post Devuelve los servicios por omisión, que descifran en el hilo
+	 * 		 de la conexión y no reanudan sesiones.
+	 * 		 Son compartidos, para no crear un hilo de vencimientos cada vez
+	 */
+	public static ServerServices defaults() {
+		return DefaultsHolder.INSTANCE;
+	}
+	
+	/**
+	 * @post Devuelve la etapa de descifrado
+	 */
+	public CryptoStage getCryptoStage() {
+		return this.cryptoStage;
+	}
+	
+	/**
+	 * @post Devuelve la caché de sesiones, o null si no se reanudan sesiones
+	 */
+	public SessionCache getSessionCache() {
+		return this.sessionCache;
+	}
+	
+	/**
+	 * @post Devuelve el pool de buffers del establecimiento de sesión
+	 */
+	public ByteBufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+	
+	/**
+	 * @post Devuelve el pool de buffers del canal cifrado, con lugar
+	 * 		 para un fragmento codificado
+	 */
+	public ByteBufferPool getChannelBufferPool() {
+		return this.channelBufferPool;
+	}
+	
+	/**
+	 * @post Devuelve las métricas del establecimiento de sesión
+	 */
+	public HandshakeMetrics getHandshakeMetrics() {
+		return this.handshakeMetrics;
+	}
+	
+	/**
+	 * @post Devuelve los límites por dirección de origen
+	 */
+	public SourceAddressLimiter getSourceAddressLimiter() {
+		return this.sourceAddressLimiter;
+	}
+	
+	/**
+	 * @post Devuelve la rueda de temporización de los vencimientos
+	 * 		 de las conexiones
+	 */
+	public TimingWheel getTimingWheel() {
+		return this.timingWheel;
+	}
+}
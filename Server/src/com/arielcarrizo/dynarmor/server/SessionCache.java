@@ -0,0 +1,388 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caché de sesiones para la reanudación de sesiones
+ * 
+ * Asocia identificadores de sesión de 16 bytes con un secreto de longitud
+ * fija. Tiene un número máximo de entradas, que vencen después del tiempo
+ * de vida especificado, y cuando está llena descarta la usada hace más tiempo.
+ * 
+ * Está dividida en segmentos con su propio cerrojo, que se reparten el número
+ * máximo de entradas, y cada segmento guarda sus entradas en arreglos
+ * reservados al crearla, por lo que buscar, agregar y descartar entradas no
+ * reserva memoria. Cada segmento descarta la entrada usada hace más tiempo
+ * al llenarse su parte, aunque a otros les quede lugar
+ * @author ariel
+ *
+ */
+final class SessionCache {
+	public final static int SESSION_ID_LENGTH = 16;
+	
+	private final static int MAX_SEGMENTS = 16;
+	private final static int NONE = -1;
+	
+	/**
+	 * Segmento de la caché, con una tabla de dispersión encadenada
+	 * y una lista de uso, sobre arreglos
+	 */
+	private final static class Segment extends ReentrantLock {
+		private static final long serialVersionUID = 2712302479328145727L;
+		
+		private final int secretLength;
+		
+		private final long[] idHigh;
+		private final long[] idLow;
+		private final long[] expirationTime;
+		private final byte[] secrets;
+		
+		private final int[] buckets;
+		private final int[] nextInBucket;
+		
+		// Lista de uso, del más reciente al más antiguo
+		private final int[] newer;
+		private final int[] older;
+		private int newest;
+		private int oldest;
+		
+		// Entradas libres, enlazadas con nextInBucket
+		private int freeEntries;
+		
+		Segment(int capacity, int secretLength) {
+			this.secretLength = secretLength;
+			
+			this.idHigh = new long[capacity];
+			this.idLow = new long[capacity];
+			this.expirationTime = new long[capacity];
+			this.secrets = new byte[capacity * secretLength];
+			
+			int bucketsCount = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+			this.buckets = new int[bucketsCount];
+			Arrays.fill(this.buckets, NONE);
+			
+			this.nextInBucket = new int[capacity];
+			this.newer = new int[capacity];
+			this.older = new int[capacity];
+			this.newest = NONE;
+			this.oldest = NONE;
+			
+			for ( int i = 0 ; i < capacity ; i++ ) {
+				this.nextInBucket[i] = ( i + 1 < capacity ) ? i + 1 : NONE;
+			}
+			this.freeEntries = 0;
+		}
+		
+		private int bucket(long hash) {
+			return (int) hash & ( this.buckets.length - 1 );
+		}
+		
+		int find(long hash, long high, long low) {
+			for ( int i = this.buckets[this.bucket(hash)] ; i != NONE ; i = this.nextInBucket[i] ) {
+				if ( ( this.idHigh[i] == high ) && ( this.idLow[i] == low ) ) {
+					return i;
+				}
+			}
+			return NONE;
+		}
+		
+		void copySecret(int entry, byte[] output) {
+			System.arraycopy(this.secrets, entry * this.secretLength, output, 0, this.secretLength);
+		}
+		
+		boolean isExpired(int entry, long now) {
+			return now - this.expirationTime[entry] >= 0;
+		}
+		
+		void touch(int entry) {
+			if ( this.newest != entry ) {
+				this.unlinkUse(entry);
+				this.linkNewest(entry);
+			}
+		}
+		
+		/**
+		 * @post Agrega la entrada, y devuelve si tuvo que descartar la más antigua
+		 */
+		boolean add(long hash, long high, long low, byte[] secret, long expirationTime) {
+			boolean evicted = false;
+			
+			int entry = this.freeEntries;
+			if ( entry != NONE ) {
+				this.freeEntries = this.nextInBucket[entry];
+			}
+			else {
+				entry = this.oldest;
+				this.unlinkBucket(entry);
+				this.unlinkUse(entry);
+				evicted = true;
+			}
+			
+			this.idHigh[entry] = high;
+			this.idLow[entry] = low;
+			this.expirationTime[entry] = expirationTime;
+			System.arraycopy(secret, 0, this.secrets, entry * this.secretLength, this.secretLength);
+			
+			int bucket = this.bucket(hash);
+			this.nextInBucket[entry] = this.buckets[bucket];
+			this.buckets[bucket] = entry;
+			
+			this.linkNewest(entry);
+			
+			return evicted;
+		}
+		
+		void remove(int entry) {
+			this.unlinkBucket(entry);
+			this.unlinkUse(entry);
+			Arrays.fill(this.secrets, entry * this.secretLength, ( entry + 1 ) * this.secretLength, (byte) 0);
+			
+			this.nextInBucket[entry] = this.freeEntries;
+			this.freeEntries = entry;
+		}
+		
+		private void unlinkBucket(int entry) {
+			int bucket = this.bucket(hash(this.idHigh[entry], this.idLow[entry]));
+			
+			if ( this.buckets[bucket] == entry ) {
+				this.buckets[bucket] = this.nextInBucket[entry];
+			}
+			else {
+				int previous = this.buckets[bucket];
+				while ( this.nextInBucket[previous] != entry ) {
+					previous = this.nextInBucket[previous];
+				}
+				this.nextInBucket[previous] = this.nextInBucket[entry];
+			}
+		}
+		
+		private void linkNewest(int entry) {
+			this.newer[entry] = NONE;
+			this.older[entry] = this.newest;
+			
+			if ( this.newest != NONE ) {
+				this.newer[this.newest] = entry;
+			}
+			else {
+				this.oldest = entry;
+			}
+			this.newest = entry;
+		}
+		
+		private void unlinkUse(int entry) {
+			if ( this.newer[entry] != NONE ) {
+				this.older[this.newer[entry]] = this.older[entry];
+			}
+			else {
+				this.newest = this.older[entry];
+			}
+			
+			if ( this.older[entry] != NONE ) {
+				this.newer[this.older[entry]] = this.newer[entry];
+			}
+			else {
+				this.oldest = this.newer[entry];
+			}
+		}
+	}
+	
+	private final Segment[] segments;
+	private final long timeToLive;
+	private final int secretLength;
+	
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+	private final LongAdder expirations;
+	
+	/**
+	 * @pre El número máximo de entradas, el tiempo de vida y la longitud
+	 * 		de los secretos tienen que ser positivos
+	 * @post Crea la caché con el número máximo de entradas, el tiempo de vida
+	 * 		 en nanosegundos y la longitud de los secretos especificados
+	 */
+	public SessionCache(int maxEntries, long timeToLive, int secretLength) {
+		if ( ( maxEntries < 1 ) || ( timeToLive < 1 ) || ( secretLength < 1 ) ) {
+			throw new IllegalArgumentException();
+		}
+		
+		int segmentsCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxEntries));
+		
+		// Las capacidades suman exactamente el máximo, los primeros segmentos se quedan con el resto
+		int segmentCapacity = maxEntries / segmentsCount;
+		int remainder = maxEntries % segmentsCount;
+		
+		this.segments = new Segment[segmentsCount];
+		for ( int i = 0 ; i < segmentsCount ; i++ ) {
+			this.segments[i] = new Segment(( i < remainder ) ? segmentCapacity + 1 : segmentCapacity, secretLength);
+		}
+		
+		this.timeToLive = timeToLive;
+		this.secretLength = secretLength;
+		
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.expirations = new LongAdder();
+	}
+	
+	private static long readLong(byte[] data, int offset) {
+		long value = 0;
+		for ( int i = 0 ; i < 8 ; i++ ) {
+			value = ( value << 8 ) | ( data[offset + i] & 0xFF );
+		}
+		return value;
+	}
+	
+	private static long hash(long high, long low) {
+		long hash = ( high * 0x9E3779B97F4A7C15L ) ^ low;
+		return hash ^ ( hash >>> 29 );
+	}
+	
+	private Segment segment(long hash) {
+		return this.segments[(int) ( hash >>> 48 ) & ( this.segments.length - 1 )];
+	}
+	
+	/**
+	 * @post Devuelve la longitud de los secretos
+	 */
+	public int getSecretLength() {
+		return this.secretLength;
+	}
+	
+	/**
+	 * @pre El identificador tiene que tener SESSION_ID_LENGTH bytes, y el
+	 * 		buffer de salida tiene que tener lugar para el secreto
+	 * @post Busca la sesión con el identificador especificado, y si está vigente
+	 * 		 copia su secreto en el buffer de salida.
+	 * 		 Devuelve si la encontró
+	 */
+	public boolean get(byte[] sessionId, byte[] secretOutput) {
+		long high = readLong(sessionId, 0);
+		long low = readLong(sessionId, 8);
+		long hash = hash(high, low);
+		
+		Segment segment = this.segment(hash);
+		segment.lock();
+		try {
+			int entry = segment.find(hash, high, low);
+			
+			if ( entry != NONE ) {
+				if ( !segment.isExpired(entry, System.nanoTime()) ) {
+					segment.touch(entry);
+					segment.copySecret(entry, secretOutput);
+					this.hits.increment();
+					return true;
+				}
+				else {
+					segment.remove(entry);
+					this.expirations.increment();
+				}
+			}
+		} finally {
+			segment.unlock();
+		}
+		
+		this.misses.increment();
+		return false;
+	}
+	
+	/**
+	 * @pre El identificador tiene que tener SESSION_ID_LENGTH bytes, y el
+	 * 		secreto la longitud de los secretos
+	 * @post Agrega la sesión con el identificador y el secreto especificados,
+	 * 		 reemplazando la que tenga el mismo identificador
+	 */
+	public void put(byte[] sessionId, byte[] secret) {
+		long high = readLong(sessionId, 0);
+		long low = readLong(sessionId, 8);
+		long hash = hash(high, low);
+		
+		Segment segment = this.segment(hash);
+		segment.lock();
+		try {
+			int entry = segment.find(hash, high, low);
+			if ( entry != NONE ) {
+				segment.remove(entry);
+			}
+			
+			if ( segment.add(hash, high, low, secret, System.nanoTime() + this.timeToLive) ) {
+				this.evictions.increment();
+			}
+		} finally {
+			segment.unlock();
+		}
+	}
+	
+	/**
+	 * @post Devuelve el número de búsquedas con éxito
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+	
+	/**
+	 * @post Devuelve el número de búsquedas sin éxito
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+	
+	/**
+	 * @post Devuelve el número de sesiones descartadas por falta de lugar
+	 */
+	public long getEvictions() {
+		return this.evictions.sum();
+	}
+	
+	/**
+	 * @post Devuelve el número de sesiones descartadas por vencimiento
+	 */
+	public long getExpirations() {
+		return this.expirations.sum();
+	}
+	
+	@Override
+	public String toString() {
+		long hits = this.getHits();
+		long lookups = hits + this.getMisses();
+		
+		return "sessionCache [hits=" + hits + ", misses=" + this.getMisses() +
+				", hitRate=" + ( lookups != 0 ? ( hits * 100 / lookups ) : 0 ) + "%" +
+				", evictions=" + this.getEvictions() + ", expirations=" + this.getExpirations() + "]";
+	}
+}
@@ -43,11 +43,27 @@ final class SessionEncryptionSettings {
 	public final static int AES_SESSION_KEY_BITS_SIZE = 256;
 	public final static int AES_SESSION_IV_BITS_SIZE = 128;
 	
-	public final static MessageDigest MESSAGE_DIGEST;
+	public final static String MESSAGE_DIGEST_ALGORITHM = "SHA-512";
 	
-	static {
+	// Intercambio de claves efímeras (Versión 1 del protocolo)
+	public final static String KEY_EXCHANGE_ALGORITHM = "X25519";
+	public final static String SIGNATURE_ALGORITHM = "Ed25519";
+	public final static String MAC_ALGORITHM = "HmacSHA512";
+	
+	// Canal cifrado por el que se envía el programa del cliente
+	public final static String CHANNEL_CIPHER = "AES/GCM/NoPadding";
+	public final static int CHANNEL_NONCE_BITS_SIZE = 96;
+	public final static int CHANNEL_TAG_BITS_SIZE = 128;
+	
+	/**
+	 * @post Crea un resumidor de mensajes para verificar la clave de sesión
+	 * 
+	 * No es seguro compartirlo entre hilos, por lo que cada
+	 * conexión tiene que usar el suyo
+	 */
+	public static MessageDigest newMessageDigest() {
 		try {
-			MESSAGE_DIGEST = MessageDigest.getInstance("SHA-512");
+			return MessageDigest.getInstance(MESSAGE_DIGEST_ALGORITHM);
 		} catch (NoSuchAlgorithmException e) {
 			throw new RuntimeException(e);
 		}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Descifrado y verificación de los datos de la clave de sesión
+ * (Versión 0 del protocolo)
+ * 
+ * Es compartido por todos los motores del servidor
+ * @author ariel
+ *
+ */
+final class SessionKeyDecoder {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	private final static int MAX_ENCRYPTED_SESSION_KEY_LENGTH = 1024 * 10;
+	
+	// Resultados de los datos que no son válidos, se comparan por identidad
+	private final static byte[] DECRYPT_FAILURE = new byte[0];
+	private final static byte[] TAMPERED = new byte[0];
+	
+	private SessionKeyDecoder() {};
+	
+	/**
+	 * @post Devuelve si la longitud de los datos cifrados de la clave
+	 * 		 de sesión es válida
+	 */
+	public static boolean isValidEncryptedLength(int encryptedMessageLength) {
+		return ( encryptedMessageLength >= 1 ) && ( encryptedMessageLength <= MAX_ENCRYPTED_SESSION_KEY_LENGTH );
+	}
+	
+	/**
+	 * @post Devuelve si el resultado especificado es la clave y el IV
+	 */
+	private static boolean isValid(byte[] aesKey_iv) {
+		return ( aesKey_iv != DECRYPT_FAILURE ) && ( aesKey_iv != TAMPERED );
+	}
+	
+	/**
+	 * @pre El contexto y los datos cifrados no pueden ser nulos
+	 * @post Descifra los datos de la clave de sesión con la clave privada del contexto
+	 * 		 especificado, y verifica que no hayan sido modificados.
+	 * 		 Si no son válidos y se especifica el pool del par de claves anterior
+	 * 		 a la rotación, lo intenta con la clave privada de ese pool.
+	 * 		 Devuelve la clave y el IV concatenados, o null si no son válidos
+	 */
+	public static byte[] decode(CryptoContext context, CryptoContextPool retiredCryptoContextPool, byte[] encryptedSessionKeyData) throws GeneralSecurityException {
+		return decode(context, retiredCryptoContextPool, encryptedSessionKeyData, null);
+	}
+	
+	/**
+	 * @pre El contexto y los datos cifrados no pueden ser nulos
+	 * @post Hace lo mismo que decode, registrando las fases de descifrado y de
+	 * 		 verificación y el resultado si no es válido en las métricas
+	 * 		 especificadas (Pueden ser nulas)
+	 */
+	public static byte[] decode(CryptoContext context, CryptoContextPool retiredCryptoContextPool, byte[] encryptedSessionKeyData, HandshakeMetrics metrics) throws GeneralSecurityException {
+		return decode(context, retiredCryptoContextPool, encryptedSessionKeyData, metrics, null, null);
+	}
+	
+	/**
+	 * @pre El contexto y los datos cifrados no pueden ser nulos, y si se especifica
+	 * 		 el limitador también la dirección
+	 * @post Hace lo mismo que decode con métricas.
+	 * 		 Sólo descifra con las claves privadas cuyo módulo tiene la longitud de
+	 * 		 los datos cifrados, y si las dos la tienen, el segundo descifrado se
+	 * 		 cobra como otro establecimiento de sesión de la dirección especificada
+	 * 		 en el limitador especificado (Puede ser nulo), para que los datos
+	 * 		 basura no cuesten dos operaciones con la clave privada por cada uno
+	 */
+	public static byte[] decode(CryptoContext context, CryptoContextPool retiredCryptoContextPool, byte[] encryptedSessionKeyData, HandshakeMetrics metrics, SourceAddressLimiter sourceAddressLimiter, InetAddress address) throws GeneralSecurityException {
+		byte[] aesKey_iv = DECRYPT_FAILURE;
+		boolean isCurrentKeyTried = false;
+		
+		if ( encryptedSessionKeyData.length == context.getPool().getEncryptedSessionKeyLength() ) {
+			aesKey_iv = decode(context, encryptedSessionKeyData, metrics);
+			isCurrentKeyTried = true;
+		}
+		
+		// El cliente pudo haber cifrado con la clave anterior
+		if ( !isValid(aesKey_iv) && ( retiredCryptoContextPool != null ) && ( encryptedSessionKeyData.length == retiredCryptoContextPool.getEncryptedSessionKeyLength() ) ) {
+			if ( !isCurrentKeyTried || ( sourceAddressLimiter == null ) || sourceAddressLimiter.tryHandshake(address) ) {
+				CryptoContext retiredContext = retiredCryptoContextPool.acquire();
+				try {
+					aesKey_iv = decode(retiredContext, encryptedSessionKeyData, metrics);
+				} finally {
+					retiredContext.release();
+				}
+			}
+			else {
+				LOGGER.fine("Retired key decryption rejected by handshake rate");
+			}
+		}
+		
+		if ( !isValid(aesKey_iv) ) {
+			LOGGER.warning("Invalid encrypted session key data");
+			
+			if ( metrics != null ) {
+				metrics.count( ( aesKey_iv == DECRYPT_FAILURE ) ? HandshakeMetrics.Outcome.DECRYPT_FAILURE : HandshakeMetrics.Outcome.TAMPERED );
+			}
+			
+			return null;
+		}
+		
+		return aesKey_iv;
+	}
+	
+	/**
+	 * @post Descifra los datos de la clave de sesión con la clave privada del contexto
+	 * 		 especificado, y verifica que no hayan sido modificados.
+	 * 		 Devuelve la clave y el IV concatenados, o DECRYPT_FAILURE o TAMPERED
+	 * 		 si no son válidos
+	 */
+	private static byte[] decode(CryptoContext context, byte[] encryptedSessionKeyData, HandshakeMetrics metrics) throws InvalidKeyException {
+		byte[] decryptedSessionKeyData = null;
+		long phaseStartTime = System.nanoTime();
+		
+		try {
+			decryptedSessionKeyData = context.getRSADecryptCipher().doFinal(encryptedSessionKeyData);
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Cannot decrypt session key data: ''{0}''", (Object) e);
+			context.resetRSADecryptCipher();
+		}
+		
+		if ( metrics != null ) {
+			phaseStartTime = metrics.record(HandshakeMetrics.Phase.RSA_DECRYPT, phaseStartTime);
+		}
+		
+		if ( decryptedSessionKeyData != null ) {
+			/**
+			 * Extrae la clave y el IV, y verifica
+			 * que no hayan sido modificados
+			 */
+			MessageDigest md = context.getMessageDigest();
+			
+			int offset = 0;
+			byte[] aesKey_iv = Arrays.copyOfRange(decryptedSessionKeyData, offset, offset += (SessionEncryptionSettings.AES_SESSION_KEY_BITS_SIZE + SessionEncryptionSettings.AES_SESSION_IV_BITS_SIZE) / 8);
+			byte[] hash = Arrays.copyOfRange(decryptedSessionKeyData, offset, offset += md.getDigestLength());
+			
+			// Calcular hash y verificar que sea igual
+			boolean isValid = Arrays.equals(hash, md.digest(aesKey_iv));
+			
+			if ( metrics != null ) {
+				metrics.record(HandshakeMetrics.Phase.HASH_VERIFY, phaseStartTime);
+			}
+			
+			if ( isValid ) {
+				return aesKey_iv;
+			}
+			else {
+				LOGGER.fine("Tampered encrypted session key");
+				return TAMPERED;
+			}
+		}
+		
+		return DECRYPT_FAILURE;
+	}
+}
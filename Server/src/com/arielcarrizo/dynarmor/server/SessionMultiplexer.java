@@ -0,0 +1,481 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgram;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramDelta;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramDeltaCache;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramPool;
+
+/**
+ * Sesión persistente multiplexada
+ * 
+ * Si el cliente la pide con la opción de protocolo correspondiente, al
+ * terminar el programa del cliente la conexión queda abierta, y ambos
+ * extremos intercambian tramas por el canal cifrado (Ver SealedChunkEncoder),
+ * una trama por fragmento. Cada sentido usa su propia clave y su propio IV,
+ * derivados de la clave de sesión con HKDF-SHA512 (Sin sal, información
+ * "dynarmor persistent session"): los primeros 48 bytes son los del
+ * servidor al cliente, y los siguientes los del cliente al servidor.
+ * 
+ * Cada trama es:
+ * Identificador de flujo (Entero de 4 bytes), tipo (1 byte),
+ * indicadores (1 byte), contenido
+ * 
+ * El cliente abre un flujo con una trama de solicitud, cuyo contenido es
+ * el tipo de solicitud (1 byte) seguido de sus datos, con un identificador
+ * positivo que no esté en uso. El servidor responde con tramas de datos,
+ * la última con el indicador de fin de flujo, o con una trama de error con
+ * el código de error (1 byte).
+ * Las respuestas de los flujos abiertos se envían intercaladas, una trama
+ * de cada uno por vez, de forma que una respuesta larga no demora a las
+ * demás. Las tramas de control (Identificador cero) y las de error se
+ * envían antes que las de datos.
+ * 
+ * La solicitud de programa del cliente puede llevar el resumen SHA-512 del
+ * programa que el cliente ya tiene, sin enmascarar ni comprimir. En ese caso
+ * la respuesta empieza con un byte que indica si es el programa completo
+ * (PROGRAM_FULL) o su codificación respecto del que tiene el cliente
+ * (PROGRAM_DELTA, Ver ClientProgramDelta), enmascarada como los programas.
+ * Se envía el programa completo si no se conserva esa versión (Ver
+ * ClientProgramDeltaCache).
+ * 
+ * Las tramas de ping, con hasta 8 bytes de contenido, se responden con
+ * una de pong con el mismo contenido.
+ * Si el cliente acumula más de MAX_PENDING_CONTROL_FRAMES respuestas de
+ * control (pongs y errores de solicitud) sin leerlas, la sesión termina con
+ * error de protocolo.
+ * La trama de cierre indica que no se atenderán más solicitudes, con el
+ * motivo (1 byte) y el último identificador de flujo atendido (Entero de
+ * 4 bytes). El servidor la envía al agotarse las tramas permitidas por
+ * sesión, y cierra la conexión una vez enviadas las respuestas pendientes.
+ * El cliente la envía para terminar la sesión de la misma forma.
+ * 
+ * No es seguro usarlo desde varios hilos a la vez
+ * @author ariel
+ *
+ */
+final class SessionMultiplexer {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	// Tipos de trama
+	final static byte FRAME_REQUEST = 0;
+	final static byte FRAME_DATA = 1;
+	final static byte FRAME_ERROR = 2;
+	final static byte FRAME_PING = 3;
+	final static byte FRAME_PONG = 4;
+	final static byte FRAME_GOAWAY = 5;
+	
+	// Indica la última trama de un flujo
+	final static byte FLAG_END_STREAM = 1;
+	
+	// Tipos de solicitud
+	final static byte REQUEST_CLIENT_PROGRAM = 0;
+	final static byte REQUEST_STATUS_REPORT = 1;
+	
+	// Códigos de error
+	final static byte ERROR_UNSUPPORTED_REQUEST = 1;
+	final static byte ERROR_TOO_MANY_STREAMS = 2;
+	final static byte ERROR_NO_CLIENT_PROGRAM = 3;
+	
+	// Motivos de cierre
+	final static byte GOAWAY_CLIENT_DONE = 0;
+	final static byte GOAWAY_FRAME_BUDGET = 1;
+	
+	// Contenido de la respuesta a una solicitud de programa con resumen
+	final static byte PROGRAM_FULL = 0;
+	final static byte PROGRAM_DELTA = 1;
+	
+	final static int FRAME_HEADER_SIZE = 6;
+	final static int MAX_PING_PAYLOAD = 8;
+	final static int MAX_PENDING_CONTROL_FRAMES = 64;
+	final static int MAX_FRAME_PAYLOAD = SealedChunkEncoder.CHUNK_SIZE - FRAME_HEADER_SIZE;
+	
+	private final static int AES_KEY_IV_LENGTH = (SessionEncryptionSettings.AES_SESSION_KEY_BITS_SIZE + SessionEncryptionSettings.AES_SESSION_IV_BITS_SIZE) / 8;
+	private final static byte[] HKDF_INFO = "dynarmor persistent session".getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * Flujo abierto por una solicitud
+	 */
+	private final static class Stream {
+		private final int id;
+		private ByteBuffer response;
+		
+		// Byte que precede a la respuesta, o -1 si no hay
+		private int responsePrefix;
+		
+		public Stream(int id) {
+			this.id = id;
+			this.response = null;
+			this.responsePrefix = -1;
+		}
+	}
+	
+	private final SealedChunkEncoder encoder;
+	private final SealedChunkDecoder decoder;
+	private final ByteBuffer inputFrame;
+	private final ByteBuffer outputFrame;
+	
+	private final boolean isCompressed;
+	private final int maxStreams;
+	private final int frameBudget;
+	
+	private final Map<Integer, Stream> streams;
+	private final ArrayDeque<byte[]> controlFrames;
+	private final ArrayDeque<Stream> sendingStreams;
+	private final ArrayDeque<Stream> clientProgramStreams;
+	
+	private int receivedFrames;
+	private int lastStreamId;
+	private boolean isGoingAway;
+	
+	/**
+	 * @pre El código de autenticación de mensajes no puede ser usado por otro
+	 * 		hilo mientras se crea, la clave con el IV tiene que tener la
+	 * 		longitud de la sesión, y el máximo de flujos tiene que ser positivo
+	 * @post Crea la sesión con el código de autenticación de mensajes para
+	 * 		 derivar las claves, la clave de sesión con el IV concatenados,
+	 * 		 si los programas del cliente se envían comprimidos, el máximo de
+	 * 		 flujos abiertos a la vez y el máximo de tramas recibidas
+	 * 		 (0 si no hay) especificados
+	 */
+	public SessionMultiplexer(Mac mac, byte[] aesKey_iv, boolean isCompressed, int maxStreams, int frameBudget) throws GeneralSecurityException {
+		if ( maxStreams < 1 ) {
+			throw new IllegalArgumentException("Invalid max streams number");
+		}
+		
+		byte[] keyMaterial = HKDF.derive(mac, new byte[0], aesKey_iv, HKDF_INFO, AES_KEY_IV_LENGTH * 2);
+		byte[] serverKey_iv = Arrays.copyOfRange(keyMaterial, 0, AES_KEY_IV_LENGTH);
+		byte[] clientKey_iv = Arrays.copyOfRange(keyMaterial, AES_KEY_IV_LENGTH, AES_KEY_IV_LENGTH * 2);
+		Arrays.fill(keyMaterial, (byte) 0);
+		
+		// La sesión puede durar mucho, por lo que tiene sus propios cifradores
+		// en lugar de retener un contexto criptográfico del pool
+		this.encoder = new SealedChunkEncoder(Cipher.getInstance(SessionEncryptionSettings.CHANNEL_CIPHER), serverKey_iv);
+		this.decoder = new SealedChunkDecoder(Cipher.getInstance(SessionEncryptionSettings.CHANNEL_CIPHER), clientKey_iv);
+		Arrays.fill(serverKey_iv, (byte) 0);
+		Arrays.fill(clientKey_iv, (byte) 0);
+		
+		this.inputFrame = ByteBuffer.allocate(SealedChunkEncoder.CHUNK_SIZE);
+		this.outputFrame = ByteBuffer.allocate(SealedChunkEncoder.CHUNK_SIZE);
+		
+		this.isCompressed = isCompressed;
+		this.maxStreams = maxStreams;
+		this.frameBudget = frameBudget;
+		
+		this.streams = new HashMap<Integer, Stream>();
+		this.controlFrames = new ArrayDeque<byte[]>();
+		this.sendingStreams = new ArrayDeque<Stream>();
+		this.clientProgramStreams = new ArrayDeque<Stream>();
+		
+		this.receivedFrames = 0;
+		this.lastStreamId = 0;
+		this.isGoingAway = false;
+	}
+	
+	/**
+	 * @pre La longitud tiene que ser válida (Ver SealedChunkDecoder),
+	 * 		la entrada tiene que tener el fragmento cifrado con la etiqueta,
+	 * 		y la configuración no puede ser nula
+	 * @post Verifica, descifra y atiende la trama con la longitud sin cifrar
+	 * 		 y el fragmento cifrado especificados, con las codificaciones
+	 * 		 diferenciales del programa del cliente de la configuración
+	 * 		 especificada.
+	 * 		 Si no es auténtica o no respeta el protocolo lanza ProtocolException
+	 */
+	public void onRecord(int length, ByteBuffer input, Configuration configuration) throws GeneralSecurityException, ProtocolException {
+		this.inputFrame.clear();
+		try {
+			this.decoder.decode(length, input, this.inputFrame);
+		} catch (AEADBadTagException e) {
+			throw new ProtocolException("Invalid session frame authentication tag");
+		}
+		this.inputFrame.flip();
+		
+		if ( this.inputFrame.remaining() < FRAME_HEADER_SIZE ) {
+			throw new ProtocolException("Truncated session frame");
+		}
+		
+		int streamId = this.inputFrame.getInt();
+		byte type = this.inputFrame.get();
+		this.inputFrame.get(); // Sin indicadores definidos para el cliente
+		
+		// Después del cierre sólo se atienden los pings
+		if ( this.isGoingAway && ( type == FRAME_REQUEST ) ) {
+			return;
+		}
+		
+		switch ( type ) {
+		case FRAME_REQUEST:
+			this.onRequest(streamId, this.inputFrame, configuration);
+			break;
+		case FRAME_PING:
+			{
+				if ( this.inputFrame.remaining() > MAX_PING_PAYLOAD ) {
+					throw new ProtocolException("Oversized session ping");
+				}
+				
+				byte[] payload = new byte[this.inputFrame.remaining()];
+				this.inputFrame.get(payload);
+				this.addClientControlFrame(newFrame(0, FRAME_PONG, (byte) 0, payload));
+			}
+			break;
+		case FRAME_PONG:
+			break;
+		case FRAME_GOAWAY:
+			this.isGoingAway = true;
+			break;
+		default:
+			throw new ProtocolException("Invalid session frame type");
+		}
+		
+		// Agotar las tramas permitidas termina la sesión, pero se
+		// responden las solicitudes ya recibidas
+		if ( ( ++this.receivedFrames == this.frameBudget ) && !this.isGoingAway ) {
+			this.isGoingAway = true;
+			this.controlFrames.add(newFrame(0, FRAME_GOAWAY, (byte) 0, new byte[] {
+					GOAWAY_FRAME_BUDGET,
+					(byte) ( this.lastStreamId >>> 24 ), (byte) ( this.lastStreamId >>> 16 ), (byte) ( this.lastStreamId >>> 8 ), (byte) this.lastStreamId
+			}));
+		}
+	}
+	
+	/**
+	 * @post Atiende la solicitud con el identificador de flujo y el contenido
+	 * 		 especificados, con la configuración especificada
+	 */
+	private void onRequest(int streamId, ByteBuffer payload, Configuration configuration) throws GeneralSecurityException, ProtocolException {
+		if ( ( streamId <= 0 ) || this.streams.containsKey(streamId) ) {
+			throw new ProtocolException("Invalid session stream id");
+		}
+		
+		if ( !payload.hasRemaining() ) {
+			throw new ProtocolException("Missing session request type");
+		}
+		
+		this.lastStreamId = streamId;
+		
+		if ( this.streams.size() >= this.maxStreams ) {
+			this.addClientControlFrame(newFrame(streamId, FRAME_ERROR, FLAG_END_STREAM, new byte[] { ERROR_TOO_MANY_STREAMS }));
+			return;
+		}
+		
+		byte requestType = payload.get();
+		
+		switch ( requestType ) {
+		case REQUEST_CLIENT_PROGRAM:
+			{
+				Stream stream = new Stream(streamId);
+				this.streams.put(streamId, stream);
+				
+				if ( payload.hasRemaining() ) {
+					if ( payload.remaining() != ClientProgramDelta.HASH_SIZE ) {
+						throw new ProtocolException("Invalid client program hash");
+					}
+					
+					byte[] baseHash = new byte[ClientProgramDelta.HASH_SIZE];
+					payload.get(baseHash);
+					
+					ClientProgramDeltaCache deltaCache = configuration.getClientProgramDeltaCache();
+					ClientProgram delta = ( deltaCache != null ) ? deltaCache.takeDelta(baseHash, this.isCompressed) : null;
+					
+					if ( delta != null ) {
+						stream.responsePrefix = PROGRAM_DELTA;
+						stream.response = delta.getCode();
+						this.sendingStreams.add(stream);
+						break;
+					}
+					
+					stream.responsePrefix = PROGRAM_FULL;
+				}
+				
+				// El motor obtiene el programa y lo entrega con onClientProgram
+				this.clientProgramStreams.add(stream);
+			}
+			break;
+		case REQUEST_STATUS_REPORT:
+			{
+				if ( LOGGER.isLoggable(Level.FINE) ) {
+					LOGGER.fine("Client status report: " + payload.remaining() + " bytes");
+				}
+				
+				Stream stream = new Stream(streamId);
+				stream.response = ByteBuffer.allocate(0);
+				this.streams.put(streamId, stream);
+				this.sendingStreams.add(stream);
+			}
+			break;
+		default:
+			this.addClientControlFrame(newFrame(streamId, FRAME_ERROR, FLAG_END_STREAM, new byte[] { ERROR_UNSUPPORTED_REQUEST }));
+		}
+	}
+	
+	/**
+	 * @post Encola la trama de control especificada, provocada por el cliente.
+	 * 		 Si ya hay MAX_PENDING_CONTROL_FRAMES pendientes lanza
+	 * 		 ProtocolException
+	 */
+	private void addClientControlFrame(byte[] frame) throws ProtocolException {
+		if ( this.controlFrames.size() >= MAX_PENDING_CONTROL_FRAMES ) {
+			throw new ProtocolException("Too many pending session control frames");
+		}
+		
+		this.controlFrames.add(frame);
+	}
+	
+	/**
+	 * @post Crea una trama con el identificador de flujo, el tipo,
+	 * 		 los indicadores y el contenido especificados
+	 */
+	private static byte[] newFrame(int streamId, byte type, byte flags, byte[] payload) {
+		return ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length).putInt(streamId).put(type).put(flags).put(payload).array();
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de solicitudes que esperan un programa
+	 * 		 del cliente
+	 */
+	public int getPendingClientPrograms() {
+		return this.clientProgramStreams.size();
+	}
+	
+	/**
+	 * @post Devuelve el pool de programas del cliente de la configuración
+	 * 		 especificada que corresponde a la sesión, comprimidos o no,
+	 * 		 o null si no hay
+	 */
+	public ClientProgramPool getClientProgramPool(Configuration configuration) {
+		return this.isCompressed ? configuration.getCompressedClientProgramPool() : configuration.getClientProgramPool();
+	}
+	
+	/**
+	 * @pre Tiene que haber solicitudes que esperan un programa del cliente
+	 * @post Responde la solicitud más antigua que espera un programa
+	 * 		 del cliente con el programa especificado, o con un error
+	 * 		 si es nulo
+	 */
+	public void onClientProgram(ClientProgram clientProgram) {
+		Stream stream = this.clientProgramStreams.remove();
+		
+		if ( clientProgram != null ) {
+			stream.response = clientProgram.getCode();
+			this.sendingStreams.add(stream);
+		}
+		else {
+			this.streams.remove(stream.id);
+			this.controlFrames.add(newFrame(stream.id, FRAME_ERROR, FLAG_END_STREAM, new byte[] { ERROR_NO_CLIENT_PROGRAM }));
+		}
+	}
+	
+	/**
+	 * @post Devuelve si hay tramas para enviar
+	 */
+	public boolean hasOutput() {
+		return !this.controlFrames.isEmpty() || !this.sendingStreams.isEmpty();
+	}
+	
+	/**
+	 * @pre Tiene que haber tramas para enviar, y la salida tiene que tener
+	 * 		lugar para SealedChunkEncoder.MAX_RECORD_SIZE bytes
+	 * @post Codifica la siguiente trama en la salida especificada: la
+	 * 		 siguiente trama de control si hay, o la siguiente trama del
+	 * 		 siguiente flujo con respuesta pendiente
+	 */
+	public void encode(ByteBuffer output) throws GeneralSecurityException {
+		this.outputFrame.clear();
+		
+		if ( !this.controlFrames.isEmpty() ) {
+			this.outputFrame.put(this.controlFrames.remove());
+		}
+		else {
+			Stream stream = this.sendingStreams.remove();
+			ByteBuffer response = stream.response;
+			int prefixLength = ( stream.responsePrefix >= 0 ) ? 1 : 0;
+			int length = Math.min(response.remaining(), MAX_FRAME_PAYLOAD - prefixLength);
+			boolean isLast = ( length == response.remaining() );
+			
+			this.outputFrame.putInt(stream.id).put(FRAME_DATA).put(isLast ? FLAG_END_STREAM : 0);
+			
+			if ( prefixLength != 0 ) {
+				this.outputFrame.put((byte) stream.responsePrefix);
+				stream.responsePrefix = -1;
+			}
+			
+			int responseLimit = response.limit();
+			response.limit(response.position() + length);
+			this.outputFrame.put(response);
+			response.limit(responseLimit);
+			
+			if ( isLast ) {
+				this.streams.remove(stream.id);
+			}
+			else {
+				this.sendingStreams.add(stream);
+			}
+		}
+		
+		this.outputFrame.flip();
+		this.encoder.encode(this.outputFrame, output);
+	}
+	
+	/**
+	 * @post Devuelve si no hay flujos abiertos ni tramas para enviar,
+	 * 		 es decir si se espera la siguiente solicitud
+	 */
+	public boolean isIdle() {
+		return this.streams.isEmpty() && !this.hasOutput();
+	}
+	
+	/**
+	 * @post Devuelve si la sesión terminó: se recibió o se envió la trama de
+	 * 		 cierre, y no quedan flujos abiertos ni tramas para enviar
+	 */
+	public boolean isFinished() {
+		return this.isGoingAway && this.isIdle();
+	}
+}
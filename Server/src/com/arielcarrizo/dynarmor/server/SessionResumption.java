@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Reanudación de sesiones
+ * 
+ * Después de establecer la clave de sesión, si el cliente lo pidió con la
+ * opción PROTOCOLOPTION_SESSION_ID, el servidor le envía un código de estado
+ * (0 si fue emitido, 1 si no hay caché de sesiones) y un identificador de sesión
+ * de 16 bytes. Ambos derivan de la clave y el IV la clave de reanudación con
+ * HKDF-SHA512 (Sin sal, información "dynarmor resumption").
+ * 
+ * Para reanudarla (Versión PROTOCOLVERSION_RESUME):
+ * Servidor: Cadena "mágica"
+ * Cliente: Versión de protocolo
+ * Servidor: Versión aceptada (0), nonce de 32 bytes
+ * Cliente: Identificador de sesión, prueba de 64 bytes: HMAC-SHA512 con la clave
+ * 			de reanudación del nonce seguido del identificador
+ * Servidor: 0 si fue reanudada, o 1 si la sesión no existe, venció o la prueba
+ * 			 no es válida, en cuyo caso el cliente tiene que volver a conectarse
+ * 			 con el establecimiento de sesión completo
+ * 
+ * La nueva clave y el IV se derivan de la clave de reanudación con HKDF-SHA512,
+ * con el nonce como sal e información "dynarmor session resume", de forma que
+ * no se repiten entre conexiones
+ * @author ariel
+ *
+ */
+final class SessionResumption {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	public final static int NONCE_LENGTH = 32;
+	public final static int PROOF_LENGTH = 64;
+	public final static int RESUMPTION_KEY_LENGTH = 64;
+	
+	private final static int AES_KEY_IV_LENGTH = (SessionEncryptionSettings.AES_SESSION_KEY_BITS_SIZE + SessionEncryptionSettings.AES_SESSION_IV_BITS_SIZE) / 8;
+	
+	private final static byte[] RESUMPTION_KEY_INFO = "dynarmor resumption".getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] RESUMED_SESSION_INFO = "dynarmor session resume".getBytes(StandardCharsets.US_ASCII);
+	
+	private final static SecureRandom RANDOM = new SecureRandom();
+	
+	private SessionResumption() {};
+	
+	/**
+	 * @post Genera un nonce para el desafío de reanudación
+	 */
+	public static byte[] newNonce() {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		RANDOM.nextBytes(nonce);
+		return nonce;
+	}
+	
+	/**
+	 * @pre La caché y la clave con el IV no pueden ser nulos
+	 * @post Registra una sesión nueva en la caché especificada, con la clave de
+	 * 		 reanudación derivada de la clave y el IV especificados.
+	 * 		 Devuelve su identificador
+	 */
+	public static byte[] issue(CryptoContext cryptoContext, SessionCache sessionCache, byte[] aesKey_iv) throws GeneralSecurityException {
+		byte[] sessionId = new byte[SessionCache.SESSION_ID_LENGTH];
+		RANDOM.nextBytes(sessionId);
+		
+		byte[] resumptionKey = HKDF.derive(cryptoContext.getMac(), new byte[0], aesKey_iv, RESUMPTION_KEY_INFO, RESUMPTION_KEY_LENGTH);
+		sessionCache.put(sessionId, resumptionKey);
+		Arrays.fill(resumptionKey, (byte) 0);
+		
+		return sessionId;
+	}
+	
+	/**
+	 * @pre Los parámetros no pueden ser nulos, y tienen que tener la longitud correspondiente
+	 * @post Verifica la prueba de posesión de la clave de reanudación de la sesión
+	 * 		 especificada, y deriva la nueva clave de sesión.
+	 * 		 Devuelve la clave y el IV concatenados, o null si no es válida
+	 */
+	public static byte[] resume(CryptoContext cryptoContext, SessionCache sessionCache, byte[] nonce, byte[] sessionId, byte[] proof) throws GeneralSecurityException {
+		byte[] resumptionKey = new byte[RESUMPTION_KEY_LENGTH];
+		
+		if ( !sessionCache.get(sessionId, resumptionKey) ) {
+			return null;
+		}
+		
+		try {
+			Mac mac = cryptoContext.getMac();
+			mac.init(new SecretKeySpec(resumptionKey, mac.getAlgorithm()));
+			mac.update(nonce);
+			mac.update(sessionId);
+			
+			if ( MessageDigest.isEqual(mac.doFinal(), proof) ) {
+				return HKDF.derive(mac, nonce, resumptionKey, RESUMED_SESSION_INFO, AES_KEY_IV_LENGTH);
+			}
+			else {
+				LOGGER.warning("Invalid session resumption proof");
+				return null;
+			}
+		} finally {
+			Arrays.fill(resumptionKey, (byte) 0);
+		}
+	}
+}
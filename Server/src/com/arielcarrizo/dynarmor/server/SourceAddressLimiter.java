@@ -0,0 +1,388 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.lang.management.ManagementFactory;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Límites por dirección de origen: tasa de conexiones, conexiones
+ * simultáneas y tasa de establecimientos de sesión con la clave privada.
+ * 
+ * Las tasas se controlan con cubetas de fichas, cuya capacidad es la
+ * tasa por segundo. Los límites se leen de la configuración vigente en
+ * cada consulta, y un límite en cero no se controla.
+ * El estado de cada dirección se guarda en un mapa concurrente, y se
+ * descarta cuando no tiene conexiones y sus cubetas están llenas, es
+ * decir cuando descartarlo no cambia ninguna decisión
+ * @author ariel
+ *
+ */
+final class SourceAddressLimiter implements SourceAddressLimiterMXBean {
+	// Intervalo mínimo entre recorridos del mapa para descartar direcciones inactivas
+	private final static long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+	
+	/**
+	 * Motivo de rechazo
+	 */
+	private enum Rejection {
+		CONNECTION_RATE,
+		CONCURRENT_CONNECTIONS,
+		HANDSHAKE_RATE,
+		PENALIZED_HANDSHAKE
+	}
+	
+	/**
+	 * Cubeta de fichas, con capacidad igual a la tasa por segundo.
+	 * Tiene que usarse con el bloqueo de la dirección de origen
+	 */
+	private final static class TokenBucket {
+		private double tokens;
+		private long lastRefillTime;
+		
+		public TokenBucket(long now) {
+			this.tokens = Double.MAX_VALUE;
+			this.lastRefillTime = now;
+		}
+		
+		/**
+		 * @post Agrega las fichas acumuladas hasta el instante especificado
+		 * 		 con la tasa especificada, sin superar la capacidad
+		 */
+		private void refill(int rate, long now) {
+			this.tokens = Math.min(rate, this.tokens + ( now - this.lastRefillTime ) * (double) rate / TimeUnit.SECONDS.toNanos(1) );
+			this.lastRefillTime = now;
+		}
+		
+		/**
+		 * @post Toma una ficha, y devuelve si había
+		 */
+		public boolean tryTake(int rate, long now) {
+			this.refill(rate, now);
+			
+			if ( this.tokens >= 1.0d ) {
+				this.tokens -= 1.0d;
+				return true;
+			}
+			else {
+				return false;
+			}
+		}
+		
+		/**
+		 * @post Quita la cantidad de fichas especificada, aunque no haya
+		 */
+		public void take(int rate, int tokens, long now) {
+			this.refill(rate, now);
+			this.tokens -= tokens;
+		}
+		
+		/**
+		 * @post Devuelve si está llena en el instante especificado
+		 */
+		public boolean isFull(int rate, long now) {
+			return this.tokens + ( now - this.lastRefillTime ) * (double) rate / TimeUnit.SECONDS.toNanos(1) >= rate;
+		}
+	}
+	
+	/**
+	 * Estado de una dirección de origen, protegido por su propio bloqueo
+	 */
+	final static class Source {
+		private final TokenBucket connections;
+		private final TokenBucket handshakes;
+		private int activeConnections;
+		private boolean isEvicted;
+		
+		private Source(long now) {
+			this.connections = new TokenBucket(now);
+			this.handshakes = new TokenBucket(now);
+			this.activeConnections = 0;
+			this.isEvicted = false;
+		}
+	}
+	
+	// Devuelto para las conexiones que no se cuentan
+	final static Source UNTRACKED = new Source(0);
+	
+	private final Map<InetAddress, Source> sources;
+	private final Function<InetAddress, Source> newSource;
+	private final AtomicLong lastSweepTime;
+	private final AtomicLongArray rejections;
+	
+	/**
+	 * @post Crea el limitador sin estado
+	 */
+	public SourceAddressLimiter() {
+		this.sources = new ConcurrentHashMap<InetAddress, Source>();
+		this.newSource = new Function<InetAddress, Source>() {
+			@Override
+			public Source apply(InetAddress address) {
+				return new Source(System.nanoTime());
+			}
+		};
+		this.lastSweepTime = new AtomicLong(System.nanoTime());
+		this.rejections = new AtomicLongArray(Rejection.values().length);
+	}
+	
+	/**
+	 * @post Devuelve la dirección con la que se agrupan las conexiones de la
+	 * 		 dirección especificada.
+	 * 		 Las direcciones IPv6 se agrupan por prefijo /64, que es lo mínimo
+	 * 		 que se le asigna a un cliente
+	 */
+	private static InetAddress sourceAddress(InetAddress address) {
+		if ( address instanceof Inet6Address ) {
+			byte[] prefix = address.getAddress();
+			Arrays.fill(prefix, 8, 16, (byte) 0);
+			
+			try {
+				return InetAddress.getByAddress(prefix);
+			} catch (UnknownHostException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		else {
+			return address;
+		}
+	}
+	
+	/**
+	 * @post Devuelve el estado de la dirección especificada, creándolo si no hay.
+	 * 		 El llamador tiene que tomar su bloqueo y verificar que no haya sido
+	 * 		 descartado entretanto, y si fue descartado volver a pedirlo
+	 */
+	private Source source(InetAddress address, Configuration configuration, long now) {
+		this.sweepIfDue(configuration, now);
+		
+		InetAddress sourceAddress = sourceAddress(address);
+		Source source = this.sources.get(sourceAddress);
+		
+		if ( source == null ) {
+			source = this.sources.computeIfAbsent(sourceAddress, this.newSource);
+		}
+		
+		return source;
+	}
+	
+	/**
+	 * @post Descarta el estado de las direcciones sin conexiones y con las
+	 * 		 cubetas llenas, si pasó el intervalo desde el último recorrido.
+	 * 		 Lo hace un solo hilo a la vez
+	 */
+	private void sweepIfDue(Configuration configuration, long now) {
+		long lastSweepTime = this.lastSweepTime.get();
+		
+		if ( ( now - lastSweepTime >= SWEEP_INTERVAL ) && this.lastSweepTime.compareAndSet(lastSweepTime, now) ) {
+			int maxConnectionRate = configuration.getMaxConnectionRate();
+			int maxHandshakeRate = configuration.getMaxHandshakeRate();
+			
+			for ( Map.Entry<InetAddress, Source> eachEntry : this.sources.entrySet() ) {
+				Source eachSource = eachEntry.getValue();
+				
+				synchronized ( eachSource ) {
+					if ( ( eachSource.activeConnections == 0 ) && eachSource.connections.isFull(maxConnectionRate, now) && eachSource.handshakes.isFull(maxHandshakeRate, now) ) {
+						eachSource.isEvicted = true;
+						this.sources.remove(eachEntry.getKey(), eachSource);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @post Admite una conexión de la dirección especificada, si no supera
+	 * 		 la tasa de conexiones ni las conexiones simultáneas de la
+	 * 		 dirección. Devuelve el estado con el que hay que liberarla
+	 * 		 con releaseConnection(), o null si fue rechazada
+	 */
+	public Source acquireConnection(InetAddress address) {
+		Configuration configuration = Configuration.instance();
+		int maxConnectionRate = configuration.getMaxConnectionRate();
+		int maxConnections = configuration.getMaxConnectionsPerAddress();
+		
+		if ( ( maxConnectionRate == 0 ) && ( maxConnections == 0 ) ) {
+			return UNTRACKED;
+		}
+		
+		long now = System.nanoTime();
+		
+		for (;;) {
+			Source source = this.source(address, configuration, now);
+			
+			synchronized ( source ) {
+				if ( !source.isEvicted ) {
+					if ( ( maxConnections != 0 ) && ( source.activeConnections >= maxConnections ) ) {
+						this.rejections.incrementAndGet(Rejection.CONCURRENT_CONNECTIONS.ordinal());
+						return null;
+					}
+					
+					if ( ( maxConnectionRate != 0 ) && !source.connections.tryTake(maxConnectionRate, now) ) {
+						this.rejections.incrementAndGet(Rejection.CONNECTION_RATE.ordinal());
+						return null;
+					}
+					
+					source.activeConnections++;
+					return source;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @pre El estado tiene que haber sido devuelto por acquireConnection(),
+	 * 		y no puede liberarse más de una vez
+	 * @post Libera la conexión admitida con el estado especificado
+	 */
+	public void releaseConnection(Source source) {
+		if ( source != UNTRACKED ) {
+			synchronized ( source ) {
+				source.activeConnections--;
+			}
+		}
+	}
+	
+	/**
+	 * @post Devuelve si la dirección especificada puede hacer un establecimiento
+	 * 		 de sesión con la clave privada sin superar su tasa.
+	 * 		 Se consulta antes de la operación, para que rechazarlo sea barato
+	 */
+	public boolean tryHandshake(InetAddress address) {
+		Configuration configuration = Configuration.instance();
+		int maxHandshakeRate = configuration.getMaxHandshakeRate();
+		
+		if ( maxHandshakeRate == 0 ) {
+			return true;
+		}
+		
+		long now = System.nanoTime();
+		
+		for (;;) {
+			Source source = this.source(address, configuration, now);
+			
+			synchronized ( source ) {
+				if ( !source.isEvicted ) {
+					if ( source.handshakes.tryTake(maxHandshakeRate, now) ) {
+						return true;
+					}
+					else {
+						this.rejections.incrementAndGet(Rejection.HANDSHAKE_RATE.ordinal());
+						return false;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @post Penaliza a la dirección especificada por una clave de sesión
+	 * 		 inválida, quitándole las fichas de la penalización configurada
+	 * 		 de la tasa de establecimientos de sesión
+	 */
+	public void handshakeFailed(InetAddress address) {
+		Configuration configuration = Configuration.instance();
+		int maxHandshakeRate = configuration.getMaxHandshakeRate();
+		int penalty = configuration.getHandshakeFailurePenalty();
+		
+		if ( ( maxHandshakeRate == 0 ) || ( penalty == 0 ) ) {
+			return;
+		}
+		
+		long now = System.nanoTime();
+		
+		for (;;) {
+			Source source = this.source(address, configuration, now);
+			
+			synchronized ( source ) {
+				if ( !source.isEvicted ) {
+					source.handshakes.take(maxHandshakeRate, penalty, now);
+					this.rejections.incrementAndGet(Rejection.PENALIZED_HANDSHAKE.ordinal());
+					return;
+				}
+			}
+		}
+	}
+	
+	@Override
+	public long getRejectedByConnectionRate() {
+		return this.rejections.get(Rejection.CONNECTION_RATE.ordinal());
+	}
+	
+	@Override
+	public long getRejectedByConcurrentConnections() {
+		return this.rejections.get(Rejection.CONCURRENT_CONNECTIONS.ordinal());
+	}
+	
+	@Override
+	public long getRejectedByHandshakeRate() {
+		return this.rejections.get(Rejection.HANDSHAKE_RATE.ordinal());
+	}
+	
+	@Override
+	public long getPenalizedHandshakes() {
+		return this.rejections.get(Rejection.PENALIZED_HANDSHAKE.ordinal());
+	}
+	
+	@Override
+	public int getTrackedSources() {
+		return this.sources.size();
+	}
+	
+	/**
+	 * @post Publica los contadores en el servidor de MBeans de la plataforma
+	 */
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(HandshakeMetrics.DOMAIN + ":type=SourceAddressLimiter"));
+	}
+	
+	@Override
+	public String toString() {
+		return "sourceAddressLimiter [sources=" + this.getTrackedSources() +
+				", rejectedByConnectionRate=" + this.getRejectedByConnectionRate() +
+				", rejectedByConcurrentConnections=" + this.getRejectedByConcurrentConnections() +
+				", rejectedByHandshakeRate=" + this.getRejectedByHandshakeRate() +
+				", penalizedHandshakes=" + this.getPenalizedHandshakes() + "]";
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+/**
+ * Vista de JMX de los límites por dirección de origen
+ * @author ariel
+ *
+ */
+public interface SourceAddressLimiterMXBean {
+	/**
+	 * @post Devuelve el número de conexiones rechazadas por superar
+	 * 		 la tasa de conexiones de su dirección de origen
+	 */
+	public long getRejectedByConnectionRate();
+	
+	/**
+	 * @post Devuelve el número de conexiones rechazadas por superar
+	 * 		 las conexiones simultáneas de su dirección de origen
+	 */
+	public long getRejectedByConcurrentConnections();
+	
+	/**
+	 * @post Devuelve el número de establecimientos de sesión rechazados
+	 * 		 antes de la operación con la clave privada, por superar la
+	 * 		 tasa de su dirección de origen
+	 */
+	public long getRejectedByHandshakeRate();
+	
+	/**
+	 * @post Devuelve el número de claves de sesión inválidas que
+	 * 		 fueron penalizadas
+	 */
+	public long getPenalizedHandshakes();
+	
+	/**
+	 * @post Devuelve el número de direcciones de origen con estado
+	 */
+	public int getTrackedSources();
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Métricas de una etapa del establecimiento de sesión
+ * 
+ * Cuenta las tareas encoladas, las que están en curso y las terminadas
+ * @author ariel
+ *
+ */
+final class StageMetrics {
+	private final String name;
+	
+	private final AtomicInteger queued;
+	private final AtomicInteger active;
+	private final LongAdder completed;
+	
+	/**
+	 * @post Crea las métricas de la etapa con el nombre especificado
+	 */
+	public StageMetrics(String name) {
+		this.name = name;
+		this.queued = new AtomicInteger(0);
+		this.active = new AtomicInteger(0);
+		this.completed = new LongAdder();
+	}
+	
+	/**
+	 * @post Registra una tarea encolada
+	 */
+	public void submitted() {
+		this.queued.incrementAndGet();
+	}
+	
+	/**
+	 * @post Registra una tarea encolada que fue descartada antes de empezar
+	 */
+	public void cancelled() {
+		this.queued.decrementAndGet();
+	}
+	
+	/**
+	 * @post Registra el comienzo de una tarea encolada
+	 */
+	public void started() {
+		this.queued.decrementAndGet();
+		this.active.incrementAndGet();
+	}
+	
+	/**
+	 * @post Registra el fin de una tarea en curso
+	 */
+	public void finished() {
+		this.active.decrementAndGet();
+		this.completed.increment();
+	}
+	
+	/**
+	 * @post Devuelve el nombre de la etapa
+	 */
+	public String getName() {
+		return this.name;
+	}
+	
+	/**
+	 * @post Devuelve el número de tareas encoladas que no empezaron
+	 */
+	public int getQueueDepth() {
+		return this.queued.get();
+	}
+	
+	/**
+	 * @post Devuelve el número de tareas en curso
+	 */
+	public int getActive() {
+		return this.active.get();
+	}
+	
+	/**
+	 * @post Devuelve el número de tareas terminadas
+	 */
+	public long getCompleted() {
+		return this.completed.sum();
+	}
+	
+	@Override
+	public String toString() {
+		return this.name + " [queued=" + this.getQueueDepth() + ", active=" + this.getActive() + ", completed=" + this.getCompleted() + "]";
+	}
+}
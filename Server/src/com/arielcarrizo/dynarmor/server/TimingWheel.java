@@ -0,0 +1,308 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rueda de temporización con dispersión (Hashed timing wheel)
+ * 
+ * Vence las tareas programadas de todas las conexiones con un solo hilo.
+ * Cada vuelta de la rueda tiene una cantidad fija de ranuras, y cada
+ * ranura una lista doblemente enlazada con las tareas que vencen en ella,
+ * en esa vuelta o en una posterior. Programar, cancelar y vencer una
+ * tarea es O(1), y la precisión es la duración de una ranura.
+ * 
+ * Las tareas nuevas y las canceladas se encolan, y el hilo de la rueda
+ * las agrega o las quita de sus ranuras en cada tic, así las listas
+ * sólo las modifica ese hilo.
+ * Las tareas vencidas se ejecutan en el hilo de la rueda, por lo que
+ * tienen que ser breves
+ * @author ariel
+ *
+ */
+final class TimingWheel {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	/**
+	 * Tarea que se ejecuta al vencer
+	 */
+	public interface Task {
+		/**
+		 * @post Atiende el vencimiento especificado, en el hilo de la rueda
+		 */
+		public void expired(Timeout timeout);
+	}
+	
+	/**
+	 * Vencimiento programado
+	 */
+	public final static class Timeout {
+		private final static int PENDING = 0;
+		private final static int CANCELLED = 1;
+		private final static int EXPIRED = 2;
+		
+		private final static AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+		
+		private final TimingWheel wheel;
+		private final Task task;
+		private final long deadline;
+		private volatile int state;
+		
+		// Sólo los usa el hilo de la rueda
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+		
+		private Timeout(TimingWheel wheel, Task task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+			this.state = PENDING;
+			this.remainingRounds = 0;
+			this.bucket = null;
+			this.previous = null;
+			this.next = null;
+		}
+		
+		/**
+		 * @post Cancela el vencimiento, y devuelve si todavía no había vencido
+		 * 		 ni había sido cancelado
+		 */
+		public boolean cancel() {
+			if ( STATE.compareAndSet(this, PENDING, CANCELLED) ) {
+				this.wheel.cancelledTimeouts.add(this);
+				return true;
+			}
+			else {
+				return false;
+			}
+		}
+		
+		/**
+		 * @post Devuelve si venció
+		 */
+		public boolean isExpired() {
+			return this.state == EXPIRED;
+		}
+		
+		/**
+		 * @post Ejecuta la tarea si no fue cancelado
+		 */
+		private void expire() {
+			if ( STATE.compareAndSet(this, PENDING, EXPIRED) ) {
+				try {
+					this.task.expired(this);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.SEVERE, "Timing wheel task error: ''{0}''", (Object) e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Ranura de la rueda, con la lista de vencimientos
+	 */
+	private final static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+		
+		public Bucket() {
+			this.head = null;
+			this.tail = null;
+		}
+		
+		public void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.previous = this.tail;
+			timeout.next = null;
+			
+			if ( this.tail != null ) {
+				this.tail.next = timeout;
+			}
+			else {
+				this.head = timeout;
+			}
+			
+			this.tail = timeout;
+		}
+		
+		public void remove(Timeout timeout) {
+			if ( timeout.previous != null ) {
+				timeout.previous.next = timeout.next;
+			}
+			else {
+				this.head = timeout.next;
+			}
+			
+			if ( timeout.next != null ) {
+				timeout.next.previous = timeout.previous;
+			}
+			else {
+				this.tail = timeout.previous;
+			}
+			
+			timeout.bucket = null;
+			timeout.previous = null;
+			timeout.next = null;
+		}
+		
+		/**
+		 * @post Vence los vencimientos de esta vuelta, y descuenta una
+		 * 		 vuelta a los demás
+		 */
+		public void expire() {
+			Timeout timeout = this.head;
+			
+			while ( timeout != null ) {
+				Timeout next = timeout.next;
+				
+				if ( timeout.remainingRounds <= 0 ) {
+					this.remove(timeout);
+					timeout.expire();
+				}
+				else {
+					timeout.remainingRounds--;
+				}
+				
+				timeout = next;
+			}
+		}
+	}
+	
+	private final long tickDuration;
+	private final Bucket[] buckets;
+	private final int mask;
+	
+	private final Queue<Timeout> pendingTimeouts;
+	private final Queue<Timeout> cancelledTimeouts;
+	
+	private final long startTime;
+	private final Thread worker;
+	
+	/**
+	 * @pre La duración de cada ranura tiene que ser positiva, y la cantidad
+	 * 		de ranuras tiene que ser una potencia de dos
+	 * @post Crea la rueda con la duración de cada ranura en nanosegundos y
+	 * 		 la cantidad de ranuras especificadas, y arranca su hilo con el
+	 * 		 nombre especificado
+	 */
+	public TimingWheel(String name, long tickDuration, int ticksPerWheel) {
+		if ( tickDuration <= 0 ) {
+			throw new IllegalArgumentException("Invalid tick duration");
+		}
+		
+		if ( ( ticksPerWheel <= 0 ) || ( Integer.bitCount(ticksPerWheel) != 1 ) ) {
+			throw new IllegalArgumentException("Ticks per wheel must be a power of two");
+		}
+		
+		this.tickDuration = tickDuration;
+		this.buckets = new Bucket[ticksPerWheel];
+		for ( int i = 0 ; i < this.buckets.length ; i++ ) {
+			this.buckets[i] = new Bucket();
+		}
+		this.mask = ticksPerWheel - 1;
+		
+		this.pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+		this.cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+		
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				TimingWheel.this.turn();
+			}
+		}, name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+	
+	/**
+	 * @pre La tarea no puede ser nula
+	 * @post Programa la tarea especificada para que venza después de la
+	 * 		 demora especificada en nanosegundos, o en el tic siguiente si
+	 * 		 no es positiva
+	 */
+	public Timeout schedule(Task task, long delay) {
+		if ( task == null ) {
+			throw new NullPointerException();
+		}
+		
+		Timeout timeout = new Timeout(this, task, System.nanoTime() + Math.max(delay, 0));
+		this.pendingTimeouts.add(timeout);
+		return timeout;
+	}
+	
+	/**
+	 * @post Avanza la rueda un tic por vez, indefinidamente
+	 */
+	private void turn() {
+		long tick = 0;
+		
+		for (;;) {
+			long tickDeadline = this.startTime + ( tick + 1 ) * this.tickDuration;
+			
+			long sleepTime;
+			while ( ( sleepTime = tickDeadline - System.nanoTime() ) > 0 ) {
+				LockSupport.parkNanos(this, sleepTime);
+			}
+			
+			// Quitar los cancelados antes de agregar los nuevos, porque
+			// los cancelados que todavía no se agregaron se descartan
+			Timeout eachTimeout;
+			while ( ( eachTimeout = this.cancelledTimeouts.poll() ) != null ) {
+				if ( eachTimeout.bucket != null ) {
+					eachTimeout.bucket.remove(eachTimeout);
+				}
+			}
+			
+			while ( ( eachTimeout = this.pendingTimeouts.poll() ) != null ) {
+				if ( eachTimeout.state == Timeout.PENDING ) {
+					// Los que ya vencieron van en la ranura actual
+					long expirationTick = Math.max(( eachTimeout.deadline - this.startTime ) / this.tickDuration, tick);
+					eachTimeout.remainingRounds = ( expirationTick - tick ) / this.buckets.length;
+					this.buckets[(int) ( expirationTick & this.mask )].add(eachTimeout);
+				}
+			}
+			
+			this.buckets[(int) ( tick & this.mask )].expire();
+			tick++;
+		}
+	}
+}
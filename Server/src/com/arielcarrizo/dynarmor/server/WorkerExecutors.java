@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ejecutores de los trabajadores del servidor con hilos
+ * @author ariel
+ *
+ */
+final class WorkerExecutors {
+	private WorkerExecutors() {};
+	
+	/**
+	 * @post Devuelve un ejecutor que crea un hilo de plataforma por tarea
+	 */
+	public static Executor threadPerTask() {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				new Thread(command).start();
+			}
+		};
+	}
+	
+	/**
+	 * @post Devuelve si el entorno de ejecución soporta hilos virtuales
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @pre El entorno de ejecución tiene que soportar hilos virtuales
+	 * @post Devuelve un ejecutor que crea un hilo virtual por tarea
+	 * 
+	 * Se obtiene por reflexión para poder compilar con versiones
+	 * anteriores de Java
+	 */
+	public static ExecutorService virtualThreadPerTask() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this Java runtime");
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * @pre El número máximo de trabajadores tiene que ser positivo
+	 * @post Devuelve un ejecutor con el número máximo de hilos de plataforma
+	 * 		 y de tareas en espera especificados.
+	 * 		 Si está saturado rechaza las tareas con RejectedExecutionException
+	 */
+	public static ExecutorService bounded(int maxWorkers, int maxQueuedTasks) {
+		final BlockingQueue<Runnable> queue;
+		if ( maxQueuedTasks > 0 ) {
+			queue = new ArrayBlockingQueue<Runnable>(maxQueuedTasks);
+		}
+		else {
+			queue = new SynchronousQueue<Runnable>();
+		}
+		
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60, TimeUnit.SECONDS, queue, new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		
+		return executor;
+	}
+	
+	/**
+	 * @pre El ejecutor no puede ser nulo y el número máximo de tareas
+	 * 		tiene que ser positivo
+	 * @post Devuelve un ejecutor que delega en el especificado, con
+	 * 		 el número máximo de tareas en ejecución especificado.
+	 * 		 Si está saturado rechaza las tareas con RejectedExecutionException
+	 */
+	public static Executor limited(final Executor executor, int maxRunningTasks) {
+		final Semaphore permits = new Semaphore(maxRunningTasks);
+		
+		return new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				if ( permits.tryAcquire() ) {
+					try {
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									command.run();
+								} finally {
+									permits.release();
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						permits.release();
+						throw e;
+					}
+				}
+				else {
+					throw new RejectedExecutionException("Too many running tasks");
+				}
+			}
+		};
+	}
+}
@@ -35,77 +35,303 @@ package com.arielcarrizo.dynarmor.server;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.security.InvalidKeyException;
-import java.security.KeyPair;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.util.Arrays;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgram;
+import com.arielcarrizo.dynarmor.server.clientprogram.ClientProgramPool;
 
 public class WorkerRunnable implements Runnable {
 	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 	
 	protected final Socket clientSocket;
 	
+	private final SourceAddressLimiter.Source source;
+	private final ConnectionRegistry.Connection connection;
+	private final ServerServices services;
+	private final CryptoStage cryptoStage;
+	private final StageMetrics ioMetrics;
+	private final HandshakeMetrics handshakeMetrics;
+	
+	// Cierran el socket al vencer, lo que interrumpe la lectura o escritura en curso
+	private final TimingWheel timingWheel;
+	private final TimingWheel.Task expiryTask;
+	private volatile boolean isExpired;
+	
+	private TimingWheel.Timeout handshakeDeadline;
+	private TimingWheel.Timeout phaseDeadline;
+	private long phaseTimeout;
+	
+	// La sesión persistente espera la siguiente solicitud
+	private boolean isSessionIdle;
+	
 	/**
-	 * @post Crea el runnable trabajador con el socket de cliente especificado
+	 * @pre El estado de la dirección de origen, la conexión registrada,
+	 * 		los servicios y las métricas no pueden ser nulos
+	 * @post Crea el runnable trabajador con el socket de cliente, el estado
+	 * 		 de su dirección de origen devuelto por el limitador de los
+	 * 		 servicios, la conexión en el registro de conexiones en curso,
+	 * 		 los servicios del servidor y las métricas de la etapa de E/S
+	 * 		 especificados.
+	 * 		 Queda registrado como encolado en las métricas, y libera la
+	 * 		 conexión en el limitador y la quita del registro al terminar
 	 */
-	public WorkerRunnable(Socket clientSocket) {
+	WorkerRunnable(Socket clientSocket, SourceAddressLimiter.Source source, ConnectionRegistry.Connection connection, ServerServices services, StageMetrics ioMetrics) {
 		this.clientSocket = clientSocket;
+		this.source = source;
+		this.connection = connection;
+		this.services = services;
+		this.cryptoStage = services.getCryptoStage();
+		this.ioMetrics = ioMetrics;
+		this.handshakeMetrics = services.getHandshakeMetrics();
+		
+		this.timingWheel = services.getTimingWheel();
+		this.expiryTask = new TimingWheel.Task() {
+			@Override
+			public void expired(TimingWheel.Timeout timeout) {
+				WorkerRunnable.this.isExpired = true;
+				
+				try {
+					WorkerRunnable.this.clientSocket.close();
+				} catch (IOException e) {
+					logClientConnectionException(e);
+				}
+			}
+		};
+		this.isExpired = false;
+		this.handshakeDeadline = null;
+		this.phaseDeadline = null;
+		this.phaseTimeout = 0;
+		this.isSessionIdle = false;
+		
+		this.ioMetrics.submitted();
 	}
 	
 	private static void logClientConnectionException(IOException e) {
-		LOGGER.warning("Client connection error: '" + e + "'");
+		LOGGER.log(Level.WARNING, "Client connection error: ''{0}''", (Object) e);
+	}
+	
+	/**
+	 * @post Empieza una espera al cliente, que cierra la conexión si
+	 * 		 no termina antes del tiempo máximo de cada espera
+	 */
+	private void awaitClient() {
+		this.awaitClient(this.phaseTimeout);
+	}
+	
+	/**
+	 * @post Empieza una espera al cliente, que cierra la conexión si
+	 * 		 no termina antes del tiempo en nanosegundos especificado
+	 */
+	private void awaitClient(long timeout) {
+		this.stopAwaitingClient();
+		this.phaseDeadline = this.timingWheel.schedule(this.expiryTask, timeout);
+		this.connection.setState(ConnectionRegistry.State.AWAITING_CLIENT);
+	}
+	
+	/**
+	 * @post Termina la espera al cliente, si hay
+	 */
+	private void stopAwaitingClient() {
+		if ( this.phaseDeadline != null ) {
+			this.phaseDeadline.cancel();
+			this.phaseDeadline = null;
+		}
+		
+		this.connection.setState(ConnectionRegistry.State.PROCESSING);
+	}
+	
+	/**
+	 * @post Envía el programa especificado por el canal cifrado con la clave
+	 * 		 de sesión especificada (Ver SealedChunkEncoder).
+	 * 		 Cada fragmento se escribe apenas se cifra, de forma que el cifrado
+	 * 		 del siguiente se superpone con el envío del anterior
+	 */
+	private void sendClientProgram(DataOutputStream output, CryptoContextPool cryptoContextPool, byte[] aesKey_iv, ClientProgram clientProgram) throws IOException, GeneralSecurityException {
+		final ByteBufferPool channelBufferPool = this.services.getChannelBufferPool();
+		
+		CryptoContext cryptoContext = cryptoContextPool.acquire();
+		ByteBuffer record = channelBufferPool.acquire();
+		try {
+			SealedChunkEncoder encoder = new SealedChunkEncoder(cryptoContext.getChannelCipher(), aesKey_iv);
+			ByteBuffer code = clientProgram.getCode();
+			
+			while ( !encoder.isFinished() ) {
+				record.clear();
+				encoder.encode(code, record);
+				
+				// Cada fragmento tiene el tiempo de una espera para enviarse
+				this.awaitClient();
+				output.write(record.array(), 0, record.position());
+			}
+			
+			output.flush();
+			this.stopAwaitingClient();
+		} finally {
+			channelBufferPool.release(record);
+			cryptoContext.release();
+		}
+	}
+	
+	/**
+	 * @post Atiende la sesión persistente con la clave de sesión especificada
+	 * 		 hasta que termina (Ver SessionMultiplexer).
+	 * 		 Antes de enviar cada trama atiende las tramas que ya llegaron,
+	 * 		 de forma que las respuestas de los flujos se intercalan
+	 */
+	private void runSession(DataInputStream input, DataOutputStream output, CryptoContextPool cryptoContextPool, byte[] aesKey_iv, boolean isCompressed) throws IOException, GeneralSecurityException {
+		final Configuration configuration = Configuration.instance();
+		final ByteBufferPool channelBufferPool = this.services.getChannelBufferPool();
+		final long idleTimeout = TimeUnit.SECONDS.toNanos(configuration.getSessionIdleTimeout());
+		
+		SessionMultiplexer session;
+		CryptoContext cryptoContext = cryptoContextPool.acquire();
+		try {
+			session = new SessionMultiplexer(cryptoContext.getMac(), aesKey_iv, isCompressed, configuration.getMaxSessionStreams(), configuration.getSessionFrameBudget());
+		} finally {
+			cryptoContext.release();
+		}
+		
+		ByteBuffer record = channelBufferPool.acquire();
+		try {
+			while ( !session.isFinished() ) {
+				// Responder las solicitudes de programas del cliente
+				while ( session.getPendingClientPrograms() != 0 ) {
+					ClientProgramPool clientProgramPool = session.getClientProgramPool(Configuration.instance());
+					session.onClientProgram( ( clientProgramPool != null ) ? clientProgramPool.take() : null );
+				}
+				
+				if ( session.hasOutput() && ( input.available() == 0 ) ) {
+					record.clear();
+					session.encode(record);
+					
+					this.awaitClient();
+					output.write(record.array(), 0, record.position());
+				}
+				else {
+					// Esperar la siguiente trama
+					output.flush();
+					
+					if ( session.isIdle() ) {
+						this.awaitClient(idleTimeout);
+						this.isSessionIdle = true;
+						this.connection.setState(ConnectionRegistry.State.IDLE);
+					}
+					else {
+						this.awaitClient();
+					}
+					
+					int length = input.readInt();
+					this.isSessionIdle = false;
+					this.connection.setState(ConnectionRegistry.State.AWAITING_CLIENT);
+					
+					if ( !SealedChunkDecoder.isValidLength(length) ) {
+						throw new ProtocolException("Invalid session frame length");
+					}
+					
+					int bodySize = SealedChunkDecoder.getBodySize(length);
+					input.readFully(record.array(), 0, bodySize);
+					this.stopAwaitingClient();
+					
+					record.clear();
+					record.limit(bodySize);
+					session.onRecord(length, record, Configuration.instance());
+				}
+			}
+			
+			output.flush();
+			this.stopAwaitingClient();
+		} finally {
+			channelBufferPool.release(record);
+		}
 	}
 	
 	@Override
 	public void run() {
-		// Esperar 30 segundos
+		this.ioMetrics.started();
+		this.connection.setState(ConnectionRegistry.State.PROCESSING);
 		try {
-			this.clientSocket.setSoTimeout(30*1000);
+			this.handshake();
+		} finally {
+			this.ioMetrics.finished();
+			this.services.getSourceAddressLimiter().releaseConnection(this.source);
+			this.connection.unregister();
+		}
+	}
+	
+	private void handshake() {
+		// Enviar cada respuesta completa sin esperar el ACK de la anterior
+		try {
+			this.clientSocket.setTcpNoDelay(true);
 		} catch (SocketException e) {
 			logClientConnectionException(e);
 		}
 		
+		// Limitar la duración de todo el establecimiento de sesión, y de
+		// cada espera al cliente
+		{
+			Configuration configuration = Configuration.instance();
+			this.phaseTimeout = TimeUnit.SECONDS.toNanos(configuration.getHandshakePhaseTimeout());
+			this.handshakeDeadline = this.timingWheel.schedule(this.expiryTask, TimeUnit.SECONDS.toNanos(configuration.getHandshakeTimeout()));
+		}
+		
+		HandshakeCodec codec = null;
 		DataInputStream input = null;
 		DataOutputStream output = null;
 		try {
-			input = new DataInputStream(this.clientSocket.getInputStream());
-			output = new DataOutputStream(this.clientSocket.getOutputStream());
+			codec = new HandshakeCodec(this.clientSocket, this.services.getBufferPool());
+			input = codec.getInput();
+			output = codec.getOutput();
 		} catch (IOException e) {
 			logClientConnectionException(e);
 		}
 		
 		try {
 			if ( ( input != null ) && ( output != null ) ) {
+				long phaseStartTime = System.nanoTime();
+				
 				// Enviar cadena "mágica"
+				this.awaitClient();
 				output.write(MultiThreadedServer.MAGICPROTOCOLHEADER);
+				output.flush();
 				
 				// Recibir número de versión de protocolo del cliente, si
-				// no es igual, rechazar
-				if ( input.readInt() == MultiThreadedServer.PROTOCOLVERSION ) {
-					output.writeByte(0); // Indicar que la versión fue aceptada
-					
-					KeyPair keyPair = Configuration.instance().getKeyPair();
-					PublicKey publicKey = keyPair.getPublic();
-					
-					// Enviar clave pública
-					{
-						byte[] publicKeyData = publicKey.getEncoded();
-						output.writeInt(publicKeyData.length);
-						output.write(publicKeyData);
-					}
-					
-					byte[] decryptedSessionKeyData = null;
+				// no es soportada, rechazar
+				int protocolVersion = input.readInt();
+				this.stopAwaitingClient();
+				int handshake = protocolVersion & MultiThreadedServer.PROTOCOLVERSION_HANDSHAKE_MASK;
+				int options = protocolVersion & ~MultiThreadedServer.PROTOCOLVERSION_HANDSHAKE_MASK;
+				phaseStartTime = this.handshakeMetrics.record(HandshakeMetrics.Phase.MAGIC_VERSION, phaseStartTime);
+				
+				final Configuration configuration = Configuration.instance();
+				final CryptoContextPool cryptoContextPool = configuration.getCryptoContextPool();
+				final SessionCache sessionCache = this.services.getSessionCache();
+				final SourceAddressLimiter sourceAddressLimiter = this.services.getSourceAddressLimiter();
+				
+				byte[] aesKey_iv = null;
+				
+				if ( ( options & ~MultiThreadedServer.PROTOCOLOPTIONS_SUPPORTED ) != 0 ) {
+					output.writeByte(1); // Indicar que la versión fue rechazada
+					this.handshakeMetrics.count(HandshakeMetrics.Outcome.REJECTED_VERSION);
+				}
+				else if ( ( ( handshake == MultiThreadedServer.PROTOCOLVERSION ) || ( handshake == MultiThreadedServer.PROTOCOLVERSION_ECDH ) ) &&
+						!sourceAddressLimiter.tryHandshake(this.clientSocket.getInetAddress()) ) {
+					// Rechazar antes de la operación con la clave privada, que es la más costosa
+					output.writeByte(MultiThreadedServer.SERVER_BUSY);
+				}
+				else if ( handshake == MultiThreadedServer.PROTOCOLVERSION ) {
+					// Indicar que la versión fue aceptada y enviar clave pública
+					this.awaitClient();
+					output.write(cryptoContextPool.getEncodedPublicKeyFlight());
+					output.flush();
+					phaseStartTime = this.handshakeMetrics.record(HandshakeMetrics.Phase.PUBLIC_KEY_SEND, phaseStartTime);
 					
 					{
 						/** 
@@ -115,54 +341,158 @@ public class WorkerRunnable implements Runnable {
 						byte[] encryptedSessionKeyData;
 						{
 							int encryptedMessageLength = input.readInt();
-							if ( ( encryptedMessageLength >= 1 ) && ( encryptedMessageLength <= 1024 * 10 ) ) {
+							if ( SessionKeyDecoder.isValidEncryptedLength(encryptedMessageLength) ) {
 								encryptedSessionKeyData = new byte[encryptedMessageLength];
 								input.readFully(encryptedSessionKeyData);
+								this.stopAwaitingClient();
+								this.handshakeMetrics.record(HandshakeMetrics.Phase.SESSION_KEY_READ, phaseStartTime);
 								
-								final Cipher cipher;
-								cipher = Cipher.getInstance(SessionEncryptionSettings.RSA_SETUP);
-								cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+								aesKey_iv = this.cryptoStage.decodeSessionKeyAndWait(cryptoContextPool, configuration.getRetiredCryptoContextPool(), encryptedSessionKeyData, this.handshakeMetrics, sourceAddressLimiter, this.clientSocket.getInetAddress());
 								
-								try {
-									decryptedSessionKeyData = cipher.doFinal(encryptedSessionKeyData);
-								} catch (Exception e) {
-									LOGGER.warning("Cannot decrypt session key data: '" + e + "'");
+								if ( aesKey_iv == null ) {
+									sourceAddressLimiter.handshakeFailed(this.clientSocket.getInetAddress());
 								}
 							}
 							else {
 								LOGGER.warning("Invalid client encrypted session key data size");
+								this.handshakeMetrics.count(HandshakeMetrics.Outcome.OVERSIZED_KEY);
 							}
 						}
 					}
+				}
+				else if ( ( handshake == MultiThreadedServer.PROTOCOLVERSION_ECDH ) && ( cryptoContextPool.getSigningKeyPair() != null ) ) {
+					// Generar y firmar la clave efímera
+					final ECDHKeyExchange keyExchange = this.cryptoStage.submitAndWait(cryptoContextPool, new CryptoStage.Task<ECDHKeyExchange>() {
+						@Override
+						public ECDHKeyExchange run(CryptoContext cryptoContext) throws GeneralSecurityException {
+							return ECDHKeyExchange.start(cryptoContext);
+						}
+					});
 					
-					if ( decryptedSessionKeyData != null ) {
-						/**
-						 * Extrae la clave y el IV, y verifica
-						 * que no hayan sido modificados
-						 */
-						MessageDigest md = SessionEncryptionSettings.MESSAGE_DIGEST;
+					if ( keyExchange != null ) {
+						// Indicar que la versión fue aceptada y enviar clave pública de firma,
+						// clave pública efímera y firma
+						this.awaitClient();
+						output.write(keyExchange.getEncodedServerFlight());
+						output.flush();
 						
-						int offset = 0;
-						byte[] aesKey_iv = Arrays.copyOfRange(decryptedSessionKeyData, offset, offset += (SessionEncryptionSettings.AES_SESSION_KEY_BITS_SIZE + SessionEncryptionSettings.AES_SESSION_IV_BITS_SIZE) / 8);
-						byte[] hash = Arrays.copyOfRange(decryptedSessionKeyData, offset, offset += md.getDigestLength());
+						// Recibir clave pública efímera del cliente y la confirmación
+						final byte[] clientPublicKey = new byte[ECDHKeyExchange.PUBLIC_KEY_LENGTH];
+						final byte[] confirmation = new byte[ECDHKeyExchange.CONFIRMATION_LENGTH];
+						input.readFully(clientPublicKey);
+						input.readFully(confirmation);
+						this.stopAwaitingClient();
 						
-						// Calcular hash y verificar que sea igual
-						if ( Arrays.equals(hash, md.digest(aesKey_iv)) ) {
-							
-						}
-						else {
-							LOGGER.warning("Tampered encrypted session key");
+						aesKey_iv = this.cryptoStage.submitAndWait(cryptoContextPool, new CryptoStage.Task<byte[]>() {
+							@Override
+							public byte[] run(CryptoContext cryptoContext) throws GeneralSecurityException {
+								return keyExchange.finish(cryptoContext, clientPublicKey, confirmation);
+							}
+						});
+						
+						if ( aesKey_iv == null ) {
+							sourceAddressLimiter.handshakeFailed(this.clientSocket.getInetAddress());
 						}
 					}
 				}
+				else if ( ( handshake == MultiThreadedServer.PROTOCOLVERSION_RESUME ) && ( sessionCache != null ) ) {
+					this.awaitClient();
+					output.writeByte(0); // Indicar que la versión fue aceptada
+					
+					// Enviar desafío
+					final byte[] nonce = SessionResumption.newNonce();
+					output.write(nonce);
+					output.flush();
+					
+					// Recibir identificador de sesión y prueba
+					final byte[] sessionId = new byte[SessionCache.SESSION_ID_LENGTH];
+					final byte[] proof = new byte[SessionResumption.PROOF_LENGTH];
+					input.readFully(sessionId);
+					input.readFully(proof);
+					this.stopAwaitingClient();
+					
+					aesKey_iv = this.cryptoStage.submitAndWait(cryptoContextPool, new CryptoStage.Task<byte[]>() {
+						@Override
+						public byte[] run(CryptoContext cryptoContext) throws GeneralSecurityException {
+							return SessionResumption.resume(cryptoContext, sessionCache, nonce, sessionId, proof);
+						}
+					});
+					
+					// Indicar si fue reanudada
+					output.writeByte( ( aesKey_iv != null ) ? 0 : 1 );
+				}
 				else {
 					output.writeByte(1); // Indicar que la versión fue rechazada
+					this.handshakeMetrics.count(HandshakeMetrics.Outcome.REJECTED_VERSION);
 				}
 				
+				if ( aesKey_iv != null ) {
+					this.handshakeMetrics.count(HandshakeMetrics.Outcome.ACCEPTED);
+					
+					// La sesión fue establecida, sólo se limita cada espera al cliente
+					this.handshakeDeadline.cancel();
+					
+					if ( ( options & MultiThreadedServer.PROTOCOLOPTION_SESSION_ID ) != 0 ) {
+						// Emitir identificador de sesión, si hay caché de sesiones
+						if ( sessionCache != null ) {
+							final byte[] sessionAesKey_iv = aesKey_iv;
+							byte[] sessionId = this.cryptoStage.submitAndWait(cryptoContextPool, new CryptoStage.Task<byte[]>() {
+								@Override
+								public byte[] run(CryptoContext cryptoContext) throws GeneralSecurityException {
+									return SessionResumption.issue(cryptoContext, sessionCache, sessionAesKey_iv);
+								}
+							});
+							
+							if ( sessionId != null ) {
+								output.writeByte(0);
+								output.write(sessionId);
+							}
+							else {
+								output.writeByte(1);
+							}
+						}
+						else {
+							output.writeByte(1);
+						}
+					}
+					
+					// Indicar si el programa del cliente se envía comprimido
+					ClientProgramPool clientProgramPool = configuration.getClientProgramPool();
+					boolean isCompressed = false;
+					if ( ( options & MultiThreadedServer.PROTOCOLOPTION_COMPRESSION ) != 0 ) {
+						if ( configuration.getCompressedClientProgramPool() != null ) {
+							output.writeByte(0);
+							clientProgramPool = configuration.getCompressedClientProgramPool();
+							isCompressed = true;
+						}
+						else {
+							output.writeByte(1);
+						}
+					}
+					
+					// Enviar el programa del cliente
+					if ( clientProgramPool != null ) {
+						this.sendClientProgram(output, cryptoContextPool, aesKey_iv, clientProgramPool.take());
+					}
+					
+					// Mantener la conexión para las siguientes solicitudes
+					if ( ( options & MultiThreadedServer.PROTOCOLOPTION_PERSISTENT_SESSION ) != 0 ) {
+						this.runSession(input, output, cryptoContextPool, aesKey_iv, isCompressed);
+					}
+				}
 			}
 		} catch (IOException e) {
-			logClientConnectionException(e);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+			if ( this.isSessionIdle ) {
+				// La sesión inactiva venció, la cerró el cliente o se cerró al detener el servidor
+				LOGGER.log(Level.FINE, "Idle session closed: ''{0}''", (Object) e);
+			}
+			else if ( this.isExpired ) {
+				logClientConnectionException(new SocketTimeoutException("Handshake deadline expired"));
+			}
+			else {
+				logClientConnectionException(e);
+			}
+		} catch (GeneralSecurityException e) {
 			LOGGER.severe(e.toString());
 		} finally {
 			if ( output != null ) {
@@ -186,6 +516,13 @@ public class WorkerRunnable implements Runnable {
 			} catch (IOException e) {
 				logClientConnectionException(e);
 			}
+			
+			if ( codec != null ) {
+				codec.release();
+			}
+			
+			this.handshakeDeadline.cancel();
+			this.stopAwaitingClient();
 		}
 	}
 	
@@ -32,6 +32,8 @@
 
 package com.arielcarrizo.dynarmor.server.clientprogram;
 
+import java.nio.ByteBuffer;
+
 /**
  * Programa del cliente
  * El código del programa es generado de forma dinámica
@@ -40,9 +42,37 @@ package com.arielcarrizo.dynarmor.server.clientprogram;
  */
 
 public class ClientProgram {
+	private final ByteBuffer code;
+	
 	/**
-	 * @post Devuelve el código de arranque
+	 * @pre El código no puede ser nulo, y no puede ser modificado después
+	 * @post Crea el programa con el código de arranque especificado,
+	 * 		 desde su posición hasta su límite
 	 */
+	public ClientProgram(ByteBuffer code) {
+		if ( code == null ) {
+			throw new NullPointerException();
+		}
+		
+		this.code = code.slice();
+	}
 	
+	/**
+	 * @post Devuelve el código de arranque, en un buffer propio del
+	 * 		 llamador, de forma que puede ser enviado a varios clientes
+	 * 		 a la vez. Su contenido no puede ser modificado
+	 * 
+	 * No es de sólo lectura porque el cifrado de buffers de sólo lectura
+	 * requiere copiarlos
+	 */
+	public ByteBuffer getCode() {
+		return this.code.duplicate();
+	}
 	
+	/**
+	 * @post Devuelve el tamaño del código de arranque en bytes
+	 */
+	public int getSize() {
+		return this.code.remaining();
+	}
 }
@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server.clientprogram;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Compresor del programa base
+ * 
+ * Comprime la concatenación de los fragmentos en un flujo zlib con el
+ * diccionario predefinido especificado, que el cliente tiene que tener
+ * para descomprimirlo (El flujo lleva el identificador del diccionario).
+ * Se comprime el programa base y no cada variante, porque las variantes
+ * enmascaradas no son compresibles.
+ * Se comprime al cargar la configuración, por lo que si el programa base está
+ * mapeado (Ver FragmentStore) se leen todas sus páginas, cargar deja de ser
+ * independiente de su tamaño, y el resultado queda en el heap
+ * @author ariel
+ *
+ */
+public final class ClientProgramCompressor {
+	private final static int OUTPUT_CHUNK_SIZE = 64 * 1024;
+	
+	private final ByteBuffer dictionary;
+	
+	// Se reutiliza entre compresiones
+	private final Deflater deflater;
+	
+	/**
+	 * @pre El nivel tiene que estar entre Deflater.BEST_SPEED y Deflater.BEST_COMPRESSION
+	 * @post Crea el compresor con el nivel y el diccionario especificados.
+	 * 		 El diccionario puede ser nulo
+	 */
+	public ClientProgramCompressor(int level, ByteBuffer dictionary) {
+		if ( ( level < Deflater.BEST_SPEED ) || ( level > Deflater.BEST_COMPRESSION ) ) {
+			throw new IllegalArgumentException("Invalid compression level");
+		}
+		
+		this.dictionary = ( dictionary != null ) ? dictionary.slice() : null;
+		this.deflater = new Deflater(level);
+	}
+	
+	/**
+	 * @pre Los fragmentos no pueden ser nulos y el compresor no tiene que
+	 * 		estar cerrado
+	 * @post Comprime la concatenación de los fragmentos especificados, en orden,
+	 * 		 y devuelve el resultado como un único fragmento
+	 */
+	public synchronized List<ByteBuffer> compress(List<ByteBuffer> fragments) {
+		this.deflater.reset();
+		
+		if ( this.dictionary != null ) {
+			this.deflater.setDictionary(this.dictionary.duplicate());
+		}
+		
+		ByteBuffer output = ByteBuffer.allocate(OUTPUT_CHUNK_SIZE);
+		
+		for ( ByteBuffer eachFragment : fragments ) {
+			this.deflater.setInput(eachFragment.duplicate());
+			
+			while ( !this.deflater.needsInput() ) {
+				output = this.deflateInto(output);
+			}
+		}
+		
+		this.deflater.finish();
+		while ( !this.deflater.finished() ) {
+			output = this.deflateInto(output);
+		}
+		
+		output.flip();
+		return Collections.singletonList(output);
+	}
+	
+	/**
+	 * @post Cierra el compresor, liberando la memoria nativa del Deflater.
+	 * 		 No se puede volver a usar
+	 */
+	public synchronized void close() {
+		this.deflater.end();
+	}
+	
+	/**
+	 * @post Comprime lo que pueda en el buffer especificado, agrandándolo
+	 * 		 si está lleno, y devuelve el buffer resultante
+	 */
+	private ByteBuffer deflateInto(ByteBuffer output) {
+		if ( !output.hasRemaining() ) {
+			if ( output.capacity() > Integer.MAX_VALUE / 2 ) {
+				throw new IllegalArgumentException("Client program too large");
+			}
+			
+			ByteBuffer grown = ByteBuffer.allocate(output.capacity() * 2);
+			output.flip();
+			grown.put(output);
+			output = grown;
+		}
+		
+		this.deflater.deflate(output);
+		return output;
+	}
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server.clientprogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codificación diferencial de un programa respecto de otro que el
+ * cliente ya tiene
+ * 
+ * Formato (Enteros big endian):
+ * Resumen del programa resultante (HASH_SIZE bytes), tamaño del programa
+ * resultante (Entero de 4 bytes), y una secuencia de operaciones:
+ * Copia (OPERATION_COPY, 1 byte), posición en el programa base (Entero de
+ * 4 bytes) y longitud (Entero de 4 bytes), o
+ * Inserción (OPERATION_INSERT, 1 byte), longitud (Entero de 4 bytes)
+ * y los bytes a insertar
+ * 
+ * Las coincidencias se buscan indexando los bloques de MATCH_SIZE bytes
+ * alineados del programa base, y se extienden en ambos sentidos
+ * @author ariel
+ *
+ */
+public final class ClientProgramDelta {
+	public final static byte OPERATION_COPY = 0;
+	public final static byte OPERATION_INSERT = 1;
+	
+	public final static int HASH_SIZE = 64;
+	public final static int HEADER_SIZE = HASH_SIZE + 4;
+	
+	// Longitud mínima de una copia
+	private final static int MATCH_SIZE = 16;
+	
+	// Tamaño máximo del índice, en programas grandes sólo reduce las coincidencias
+	private final static int MAX_TABLE_SIZE = 1 << 22;
+	
+	private ClientProgramDelta() {}
+	
+	/**
+	 * @post Devuelve el índice de un bloque con el hash especificado,
+	 * 		 para una tabla con la máscara especificada
+	 */
+	private static int slot(ByteBuffer data, int position, int mask) {
+		long hash = data.getLong(position) * 0x9E3779B97F4A7C15L + data.getLong(position + 8);
+		hash *= 0xC2B2AE3D27D4EB4FL;
+		return (int) ( hash >>> 32 ) & mask;
+	}
+	
+	/**
+	 * @pre Los programas y el resumen no pueden ser nulos, y el resumen
+	 * 		tiene que tener HASH_SIZE bytes
+	 * @post Codifica el programa destino respecto del programa base, con el
+	 * 		 resumen del programa destino especificado
+	 */
+	public static byte[] encode(byte[] base, byte[] target, byte[] targetHash) {
+		if ( targetHash.length != HASH_SIZE ) {
+			throw new IllegalArgumentException("Invalid client program hash size");
+		}
+		
+		final ByteBuffer baseData = ByteBuffer.wrap(base);
+		final ByteBuffer targetData = ByteBuffer.wrap(target);
+		
+		// Índice de los bloques alineados del programa base, con la posición más uno
+		int blocks = base.length / MATCH_SIZE;
+		int[] table = new int[Math.min(Integer.highestOneBit(Math.max(blocks, 1)) * 2, MAX_TABLE_SIZE)];
+		int mask = table.length - 1;
+		
+		for ( int i = 0 ; i < blocks * MATCH_SIZE ; i += MATCH_SIZE ) {
+			int eachSlot = slot(baseData, i, mask);
+			if ( table[eachSlot] == 0 ) {
+				table[eachSlot] = i + 1;
+			}
+		}
+		
+		ByteArrayOutputStream bytesOutput = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytesOutput);
+		
+		try {
+			output.write(targetHash);
+			output.writeInt(target.length);
+			
+			int literalStart = 0;
+			int position = 0;
+			
+			while ( position + MATCH_SIZE <= target.length ) {
+				int candidate = table[slot(targetData, position, mask)] - 1;
+				
+				if ( ( candidate >= 0 ) && ( baseData.getLong(candidate) == targetData.getLong(position) ) && ( baseData.getLong(candidate + 8) == targetData.getLong(position + 8) ) ) {
+					int matchStart = position;
+					int baseStart = candidate;
+					int matchEnd = position + MATCH_SIZE;
+					int baseEnd = candidate + MATCH_SIZE;
+					
+					while ( ( matchEnd < target.length ) && ( baseEnd < base.length ) && ( target[matchEnd] == base[baseEnd] ) ) {
+						matchEnd++;
+						baseEnd++;
+					}
+					
+					// Tomar de la copia lo que coincide al final de la inserción pendiente
+					while ( ( matchStart > literalStart ) && ( baseStart > 0 ) && ( target[matchStart - 1] == base[baseStart - 1] ) ) {
+						matchStart--;
+						baseStart--;
+					}
+					
+					writeInsert(output, target, literalStart, matchStart);
+					
+					output.writeByte(OPERATION_COPY);
+					output.writeInt(baseStart);
+					output.writeInt(matchEnd - matchStart);
+					
+					position = matchEnd;
+					literalStart = matchEnd;
+				}
+				else {
+					position++;
+				}
+			}
+			
+			writeInsert(output, target, literalStart, target.length);
+			output.flush();
+		} catch ( IOException e ) {
+			// No ocurre al escribir en memoria
+			throw new IllegalStateException(e);
+		}
+		
+		return bytesOutput.toByteArray();
+	}
+	
+	/**
+	 * @post Escribe la inserción de los bytes del programa destino entre
+	 * 		 las posiciones especificadas, si no está vacía
+	 */
+	private static void writeInsert(DataOutputStream output, byte[] target, int start, int end) throws IOException {
+		if ( end > start ) {
+			output.writeByte(OPERATION_INSERT);
+			output.writeInt(end - start);
+			output.write(target, start, end - start);
+		}
+	}
+	
+	/**
+	 * @pre El programa base y la codificación no pueden ser nulos
+	 * @post Reconstruye el programa destino a partir del programa base y la
+	 * 		 codificación especificados, como lo hace el cliente.
+	 * 		 No verifica el resumen. Si la codificación no es válida para
+	 * 		 el programa base lanza IllegalArgumentException
+	 */
+	public static byte[] apply(byte[] base, byte[] delta) {
+		ByteBuffer input = ByteBuffer.wrap(delta);
+		
+		if ( input.remaining() < HEADER_SIZE ) {
+			throw new IllegalArgumentException("Truncated client program delta");
+		}
+		
+		input.position(HASH_SIZE);
+		int targetSize = input.getInt();
+		if ( targetSize < 0 ) {
+			throw new IllegalArgumentException("Invalid client program delta size");
+		}
+		
+		byte[] target = new byte[targetSize];
+		int position = 0;
+		
+		try {
+			while ( input.hasRemaining() ) {
+				byte operation = input.get();
+				
+				if ( operation == OPERATION_COPY ) {
+					int offset = input.getInt();
+					int length = input.getInt();
+					
+					if ( ( offset < 0 ) || ( length < 0 ) || ( offset > base.length - length ) || ( length > targetSize - position ) ) {
+						throw new IllegalArgumentException("Invalid client program delta copy");
+					}
+					
+					System.arraycopy(base, offset, target, position, length);
+					position += length;
+				}
+				else if ( operation == OPERATION_INSERT ) {
+					int length = input.getInt();
+					
+					if ( ( length < 0 ) || ( length > targetSize - position ) ) {
+						throw new IllegalArgumentException("Invalid client program delta insert");
+					}
+					
+					input.get(target, position, length);
+					position += length;
+				}
+				else {
+					throw new IllegalArgumentException("Invalid client program delta operation");
+				}
+			}
+		} catch ( BufferUnderflowException e ) {
+			throw new IllegalArgumentException("Truncated client program delta");
+		}
+		
+		if ( position != targetSize ) {
+			throw new IllegalArgumentException("Incomplete client program delta");
+		}
+		
+		return target;
+	}
+}
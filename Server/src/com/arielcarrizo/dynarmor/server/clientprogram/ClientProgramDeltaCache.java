@@ -0,0 +1,367 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server.clientprogram;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Caché de versiones del programa del cliente para enviarlo codificado
+ * respecto de la versión que el cliente ya tiene (Ver ClientProgramDelta)
+ * 
+ * Cada versión se identifica con el resumen SHA-512 del programa sin
+ * enmascarar ni comprimir, que es lo que el cliente obtiene al cargarlo.
+ * Se conservan copias de la versión actual y de las últimas versiones
+ * anteriores, hasta el máximo especificado, y al cambiar la versión actual
+ * se codifica respecto de cada una, de forma que enviar una codificación
+ * diferencial sólo requiere enmascararla.
+ * Las codificaciones que no son menores que el programa completo se
+ * descartan, y en esos casos se envía el programa completo
+ * 
+ * Las copias de las versiones y las codificaciones se conservan en el heap,
+ * y su tamaño total no supera la memoria máxima especificada: se descartan
+ * las versiones más antiguas que no entran, y se codifica desde la versión
+ * más reciente mientras las codificaciones entren. Si la versión actual no
+ * entra sola, no se conserva ninguna versión y se envía siempre el programa
+ * completo. Además, mientras se establece la versión actual cada codificación
+ * usa temporalmente un índice de hasta 16 MiB y el buffer en el que se escribe.
+ * Establecerla se hace con el lock de la caché, pero generar las
+ * codificaciones no lo usa
+ * @author ariel
+ *
+ */
+public final class ClientProgramDeltaCache {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	public final static String HASH_ALGORITHM = "SHA-512";
+	
+	/**
+	 * Codificación respecto de una versión
+	 */
+	private final static class Delta {
+		private final ClientProgramGenerator generator;
+		private final int size;
+		
+		public Delta(byte[] delta) {
+			this.generator = new MaskedClientProgramGenerator(Collections.singletonList(ByteBuffer.wrap(delta)));
+			this.size = MaskedClientProgramGenerator.SEED_LENGTH + delta.length;
+		}
+	}
+	
+	/**
+	 * Codificaciones respecto de la versión actual, que se reemplazan
+	 * enteras al cambiarla
+	 */
+	private final static class Snapshot {
+		private final Map<ByteBuffer, Delta> deltas;
+		private final int fullSize;
+		private final int compressedFullSize;
+		private final long retainedBytes;
+		
+		public Snapshot(Map<ByteBuffer, Delta> deltas, int fullSize, int compressedFullSize, long retainedBytes) {
+			this.deltas = deltas;
+			this.fullSize = fullSize;
+			this.compressedFullSize = compressedFullSize;
+			this.retainedBytes = retainedBytes;
+		}
+	}
+	
+	private final int maxPreviousVersions;
+	private final long maxMemory;
+	
+	// Versiones por resumen, de la más antigua a la actual, y su tamaño total
+	private final LinkedHashMap<ByteBuffer, byte[]> versions;
+	private long versionsBytes;
+	private ByteBuffer currentHash;
+	
+	private volatile Snapshot snapshot;
+	
+	private final LongAdder encoded;
+	private final LongAdder encodingNanos;
+	private final LongAdder sent;
+	private final LongAdder sentNanos;
+	private final LongAdder fallbacks;
+	private final LongAdder savedBytes;
+	
+	/**
+	 * @pre La cantidad de versiones anteriores y la memoria máxima tienen
+	 * 		que ser positivas
+	 * @post Crea la caché con la cantidad máxima de versiones anteriores y
+	 * 		 la memoria máxima en bytes especificadas, sin versión actual
+	 */
+	public ClientProgramDeltaCache(int maxPreviousVersions, long maxMemory) {
+		if ( maxPreviousVersions < 1 ) {
+			throw new IllegalArgumentException("Invalid previous client program versions number");
+		}
+		
+		if ( maxMemory < 1 ) {
+			throw new IllegalArgumentException("Invalid client program delta cache memory");
+		}
+		
+		this.maxPreviousVersions = maxPreviousVersions;
+		this.maxMemory = maxMemory;
+		this.versions = new LinkedHashMap<ByteBuffer, byte[]>();
+		this.versionsBytes = 0;
+		this.currentHash = null;
+		this.snapshot = new Snapshot(Collections.<ByteBuffer, Delta>emptyMap(), 0, 0, 0);
+		
+		this.encoded = new LongAdder();
+		this.encodingNanos = new LongAdder();
+		this.sent = new LongAdder();
+		this.sentNanos = new LongAdder();
+		this.fallbacks = new LongAdder();
+		this.savedBytes = new LongAdder();
+	}
+	
+	/**
+	 * @post Devuelve la cantidad máxima de versiones anteriores
+	 */
+	public int getMaxPreviousVersions() {
+		return this.maxPreviousVersions;
+	}
+	
+	/**
+	 * @post Devuelve la memoria máxima de las versiones y las codificaciones,
+	 * 		 en bytes
+	 */
+	public long getMaxMemory() {
+		return this.maxMemory;
+	}
+	
+	/**
+	 * @pre Los fragmentos no pueden ser nulos, y su tamaño total no puede
+	 * 		superar los 2 GiB
+	 * @post Establece como versión actual la concatenación de los fragmentos
+	 * 		 especificados, con el tamaño comprimido especificado (-1 si no
+	 * 		 se comprime), y la codifica respecto de las versiones conservadas
+	 * 		 que entran en la memoria máxima.
+	 * 		 La versión actual anterior pasa a ser una versión anterior.
+	 * 		 Si es la misma versión no tiene efecto
+	 */
+	public synchronized void setCurrent(List<ByteBuffer> fragments, int compressedSize) {
+		int size = 0;
+		for ( ByteBuffer eachFragment : fragments ) {
+			size = Math.addExact(size, eachFragment.remaining());
+		}
+		
+		/**
+		 * Copiar el programa si entra en la memoria máxima, porque los fragmentos
+		 * pueden ser de un archivo mapeado que cambie, y resumir la copia
+		 */
+		byte[] program = null;
+		MessageDigest md = newMessageDigest();
+		
+		if ( size <= this.maxMemory ) {
+			program = new byte[size];
+			ByteBuffer programBuffer = ByteBuffer.wrap(program);
+			for ( ByteBuffer eachFragment : fragments ) {
+				programBuffer.put(eachFragment.duplicate());
+			}
+			
+			md.update(program);
+		}
+		else {
+			for ( ByteBuffer eachFragment : fragments ) {
+				md.update(eachFragment.duplicate());
+			}
+		}
+		
+		ByteBuffer hash = ByteBuffer.wrap(md.digest());
+		int fullSize = MaskedClientProgramGenerator.SEED_LENGTH + size;
+		int compressedFullSize = ( compressedSize >= 0 ) ? MaskedClientProgramGenerator.SEED_LENGTH + compressedSize : -1;
+		
+		if ( hash.equals(this.currentHash) ) {
+			this.snapshot = new Snapshot(this.snapshot.deltas, fullSize, compressedFullSize, this.snapshot.retainedBytes);
+			return;
+		}
+		
+		this.currentHash = hash;
+		
+		// La versión vuelve a ser la más reciente
+		byte[] previousCopy = this.versions.remove(hash);
+		if ( previousCopy != null ) {
+			this.versionsBytes -= previousCopy.length;
+		}
+		
+		if ( program == null ) {
+			LOGGER.warning("Client program too large for delta encoding: " + size + " bytes");
+			
+			this.versions.clear();
+			this.versionsBytes = 0;
+			this.snapshot = new Snapshot(Collections.<ByteBuffer, Delta>emptyMap(), fullSize, compressedFullSize, 0);
+			return;
+		}
+		
+		this.versions.put(hash, program);
+		this.versionsBytes += size;
+		
+		// La versión actual siempre entra, y es la última
+		Iterator<byte[]> versionsIterator = this.versions.values().iterator();
+		while ( ( this.versions.size() > this.maxPreviousVersions + 1 ) || ( this.versionsBytes > this.maxMemory ) ) {
+			this.versionsBytes -= versionsIterator.next().length;
+			versionsIterator.remove();
+		}
+		
+		// Desde la más reciente, que es la que más clientes tienen
+		List<Map.Entry<ByteBuffer, byte[]>> newestVersionsFirst = new ArrayList<Map.Entry<ByteBuffer, byte[]>>(this.versions.entrySet());
+		Collections.reverse(newestVersionsFirst);
+		
+		Map<ByteBuffer, Delta> deltas = new HashMap<ByteBuffer, Delta>();
+		long retainedBytes = this.versionsBytes;
+		
+		for ( Map.Entry<ByteBuffer, byte[]> eachVersion : newestVersionsFirst ) {
+			if ( retainedBytes + ClientProgramDelta.HEADER_SIZE > this.maxMemory ) {
+				break;
+			}
+			
+			long startTime = System.nanoTime();
+			byte[] delta = ClientProgramDelta.encode(eachVersion.getValue(), program, hash.array());
+			this.encodingNanos.add(System.nanoTime() - startTime);
+			this.encoded.increment();
+			
+			if ( ( delta.length < size ) && ( retainedBytes + delta.length <= this.maxMemory ) ) {
+				deltas.put(eachVersion.getKey(), new Delta(delta));
+				retainedBytes += delta.length;
+			}
+		}
+		
+		this.snapshot = new Snapshot(deltas, fullSize, compressedFullSize, retainedBytes);
+	}
+	
+	/**
+	 * @post Devuelve un resumen nuevo del algoritmo de las versiones
+	 */
+	public static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @pre El resumen no puede ser nulo
+	 * @post Genera la codificación enmascarada de la versión actual respecto
+	 * 		 de la versión con el resumen especificado, si se conserva y es menor
+	 * 		 que el programa completo, comprimido o no según se especifique.
+	 * 		 Si no, devuelve null y se tiene que enviar el programa completo
+	 */
+	public ClientProgram takeDelta(byte[] baseHash, boolean isCompressed) throws GeneralSecurityException {
+		final Snapshot snapshot = this.snapshot;
+		
+		Delta delta = snapshot.deltas.get(ByteBuffer.wrap(baseHash));
+		int fullSize = isCompressed ? snapshot.compressedFullSize : snapshot.fullSize;
+		
+		if ( ( delta == null ) || ( delta.size >= fullSize ) ) {
+			this.fallbacks.increment();
+			return null;
+		}
+		
+		long startTime = System.nanoTime();
+		ClientProgram clientProgram = delta.generator.generate();
+		this.sentNanos.add(System.nanoTime() - startTime);
+		this.sent.increment();
+		this.savedBytes.add(fullSize - delta.size);
+		
+		return clientProgram;
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de codificaciones enviadas
+	 */
+	public long getSentCount() {
+		return this.sent.sum();
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de solicitudes con versión base a las que
+	 * 		 se envió el programa completo
+	 */
+	public long getFallbackCount() {
+		return this.fallbacks.sum();
+	}
+	
+	/**
+	 * @post Devuelve los bytes ahorrados por las codificaciones enviadas,
+	 * 		 respecto de enviar el programa completo
+	 */
+	public long getSavedBytes() {
+		return this.savedBytes.sum();
+	}
+	
+	/**
+	 * @post Devuelve el tiempo medio en nanosegundos de generar cada
+	 * 		 codificación enviada, o cero si no se envió ninguna
+	 */
+	public long getMeanSentNanos() {
+		long sent = this.sent.sum();
+		return ( sent != 0 ) ? this.sentNanos.sum() / sent : 0;
+	}
+	
+	/**
+	 * @post Devuelve el tiempo medio en nanosegundos de codificar la versión
+	 * 		 actual respecto de cada versión, o cero si no se codificó ninguna
+	 */
+	public long getMeanEncodingNanos() {
+		long encoded = this.encoded.sum();
+		return ( encoded != 0 ) ? this.encodingNanos.sum() / encoded : 0;
+	}
+	
+	/**
+	 * @post Devuelve el tamaño de las copias de las versiones y de las
+	 * 		 codificaciones conservadas, en bytes
+	 */
+	public long getRetainedBytes() {
+		return this.snapshot.retainedBytes;
+	}
+	
+	@Override
+	public String toString() {
+		final Snapshot snapshot = this.snapshot;
+		
+		return String.format(Locale.ROOT, "clientProgramDeltas [bases=%d, retainedBytes=%d, sent=%d, fallbacks=%d, savedBytes=%d, meanSentNanos=%d, meanEncodingNanos=%d]",
+				snapshot.deltas.size(), snapshot.retainedBytes, this.getSentCount(), this.getFallbackCount(), this.getSavedBytes(), this.getMeanSentNanos(), this.getMeanEncodingNanos());
+	}
+}
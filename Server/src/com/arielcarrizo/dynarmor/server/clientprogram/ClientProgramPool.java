@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server.clientprogram;
+
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Pool de programas del cliente generados de antemano
+ * 
+ * Los hilos generadores llenan la cola de programas listos hasta la marca
+ * alta, y vuelven a llenarla cuando baja de la marca baja, de forma que
+ * el establecimiento de sesión sólo tiene que tomar uno de la cola.
+ * Si la cola está vacía, el programa se genera en el hilo que lo pide
+ * @author ariel
+ *
+ */
+public final class ClientProgramPool {
+	private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+	
+	private final String name;
+	private final ClientProgramGenerator generator;
+	private final int lowWatermark;
+	private final int highWatermark;
+	private final int generatorThreads;
+	
+	private final Queue<ClientProgram> readyPrograms;
+	
+	// Programas listos más los que se están generando
+	private final AtomicInteger reservedPrograms;
+	
+	private final AtomicInteger activeGenerators;
+	
+	// Se escribe con el bloqueo, pero se lee sin él al tomar programas
+	private volatile ExecutorService generatorExecutor;
+	
+	private final LongAdder generated;
+	private final LongAdder taken;
+	private final LongAdder generatedInline;
+	
+	/**
+	 * @pre El nombre y el generador no pueden ser nulos, las marcas no pueden ser negativas,
+	 * 		la marca baja no puede ser mayor que la alta, y tiene que haber
+	 * 		al menos un hilo generador
+	 * @post Crea el pool con el nombre, el generador, la marca baja, la marca alta
+	 * 		 y el número de hilos generadores especificados.
+	 * 		 No genera programas hasta que se llame a start()
+	 */
+	public ClientProgramPool(String name, ClientProgramGenerator generator, int lowWatermark, int highWatermark, int generatorThreads) {
+		if ( ( name == null ) || ( generator == null ) ) {
+			throw new NullPointerException();
+		}
+		
+		if ( ( lowWatermark < 0 ) || ( lowWatermark > highWatermark ) ) {
+			throw new IllegalArgumentException("Invalid watermarks");
+		}
+		
+		if ( generatorThreads < 1 ) {
+			throw new IllegalArgumentException("Invalid generator threads number");
+		}
+		
+		this.name = name;
+		this.generator = generator;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		this.generatorThreads = generatorThreads;
+		
+		this.readyPrograms = new ConcurrentLinkedQueue<ClientProgram>();
+		this.reservedPrograms = new AtomicInteger(0);
+		this.activeGenerators = new AtomicInteger(0);
+		this.generatorExecutor = null;
+		
+		this.generated = new LongAdder();
+		this.taken = new LongAdder();
+		this.generatedInline = new LongAdder();
+	}
+	
+	/**
+	 * @pre No puede haber sido iniciado
+	 * @post Inicia los hilos generadores, que llenan la cola hasta la marca alta
+	 */
+	public synchronized void start() {
+		if ( this.generatorExecutor != null ) {
+			throw new IllegalStateException("Already started");
+		}
+		
+		this.generatorExecutor = Executors.newFixedThreadPool(this.generatorThreads, new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(0);
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "dynarmor-" + ClientProgramPool.this.name + "-generator-" + this.threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		
+		this.refill();
+	}
+	
+	/**
+	 * @post Detiene los hilos generadores. Los programas se siguen
+	 * 		 generando en el hilo que los pide
+	 */
+	public synchronized void shutdown() {
+		if ( this.generatorExecutor != null ) {
+			this.generatorExecutor.shutdown();
+		}
+	}
+	
+	/**
+	 * @post Toma un programa listo, o devuelve null si no hay
+	 */
+	public ClientProgram poll() {
+		ClientProgram program = this.readyPrograms.poll();
+		
+		if ( program != null ) {
+			this.taken.increment();
+			
+			if ( this.reservedPrograms.decrementAndGet() < this.lowWatermark ) {
+				this.refill();
+			}
+		}
+		
+		return program;
+	}
+	
+	/**
+	 * @post Toma un programa listo, o lo genera en el hilo actual si no hay
+	 */
+	public ClientProgram take() throws GeneralSecurityException {
+		ClientProgram program = this.poll();
+		
+		if ( program == null ) {
+			this.generatedInline.increment();
+			this.refill();
+			program = this.generator.generate();
+		}
+		
+		return program;
+	}
+	
+	/**
+	 * @post Pide a los hilos generadores libres que llenen la cola
+	 */
+	private void refill() {
+		final ExecutorService generatorExecutor = this.generatorExecutor;
+		
+		if ( ( generatorExecutor == null ) || generatorExecutor.isShutdown() ) {
+			return;
+		}
+		
+		int active;
+		while ( ( active = this.activeGenerators.get() ) < this.generatorThreads ) {
+			if ( this.activeGenerators.compareAndSet(active, active + 1) ) {
+				try {
+					generatorExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							ClientProgramPool.this.generateUntilFull();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// Se detuvo mientras tanto, los programas se generan en el hilo que los pide
+					this.activeGenerators.decrementAndGet();
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @post Genera programas hasta llegar a la marca alta
+	 */
+	private void generateUntilFull() {
+		try {
+			while ( this.reservedPrograms.incrementAndGet() <= this.highWatermark ) {
+				ClientProgram program;
+				try {
+					program = this.generator.generate();
+				} catch (GeneralSecurityException | RuntimeException | InternalError e) {
+					// InternalError si el archivo mapeado fue truncado
+					this.reservedPrograms.decrementAndGet();
+					LOGGER.severe("Cannot generate client program: '" + e + "'");
+					return;
+				}
+				
+				this.readyPrograms.add(program);
+				this.generated.increment();
+			}
+			this.reservedPrograms.decrementAndGet();
+		} finally {
+			this.activeGenerators.decrementAndGet();
+		}
+		
+		// Si se tomaron programas mientras terminaba, volver a llenar la cola
+		if ( this.reservedPrograms.get() < this.lowWatermark ) {
+			this.refill();
+		}
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de programas listos
+	 */
+	public int getReadyCount() {
+		return this.readyPrograms.size();
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de programas generados por los hilos generadores
+	 */
+	public long getGeneratedCount() {
+		return this.generated.sum();
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de programas tomados de la cola
+	 */
+	public long getTakenCount() {
+		return this.taken.sum();
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de programas generados en el hilo
+	 * 		 que los pidió porque la cola estaba vacía
+	 */
+	public long getGeneratedInlineCount() {
+		return this.generatedInline.sum();
+	}
+	
+	@Override
+	public String toString() {
+		return this.name + " [ready=" + this.getReadyCount() + ", generated=" + this.getGeneratedCount() + ", taken=" + this.getTakenCount() + ", generatedInline=" + this.getGeneratedInlineCount() + "]";
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server.clientprogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Almacén de fragmentos de código de sólo lectura, mapeado en memoria
+ * 
+ * Formato del archivo (Enteros big endian):
+ * Cadena "mágica" "DYNF", versión de formato (Entero de 4 bytes),
+ * cantidad de fragmentos (Entero de 4 bytes), y por cada fragmento
+ * su posición en el archivo (Entero de 8 bytes) y su longitud
+ * (Entero de 4 bytes). Los datos de los fragmentos pueden estar en
+ * cualquier parte del archivo después del índice
+ * 
+ * Los fragmentos se devuelven como porciones del archivo mapeado, fuera
+ * del heap y sin copiarlos. Al abrirlo sólo se verifica la cabecera, y el
+ * sistema operativo carga cada página cuando se lee por primera vez, de forma
+ * que abrirlo no depende del tamaño del archivo (Salvo si se comprime
+ * el programa, ver ClientProgramCompressor).
+ * Mientras el almacén esté en uso, el archivo no puede modificarse en el
+ * lugar, sólo reemplazarse renombrando otro archivo
+ * @author ariel
+ *
+ */
+public final class FragmentStore {
+	private final static byte[] MAGIC = { 'D', 'Y', 'N', 'F' };
+	private final static int FORMAT_VERSION = 1;
+	
+	private final static int HEADER_SIZE = MAGIC.length + 4 + 4;
+	private final static int INDEX_ENTRY_SIZE = 8 + 4;
+	
+	private final MappedByteBuffer data;
+	private final int fragmentCount;
+	
+	private FragmentStore(MappedByteBuffer data, int fragmentCount) {
+		this.data = data;
+		this.fragmentCount = fragmentCount;
+	}
+	
+	/**
+	 * @post Mapea el archivo especificado en memoria, como almacén
+	 * 		 de fragmentos si tiene la cabecera correspondiente
+	 */
+	public static FragmentStore open(File file) throws IOException {
+		MappedByteBuffer data = map(file);
+		
+		if ( data.remaining() < HEADER_SIZE ) {
+			throw new IOException("Truncated fragment store header");
+		}
+		
+		for ( int i = 0 ; i < MAGIC.length ; i++ ) {
+			if ( data.get(i) != MAGIC[i] ) {
+				throw new IOException("Invalid fragment store");
+			}
+		}
+		
+		if ( data.getInt(MAGIC.length) != FORMAT_VERSION ) {
+			throw new IOException("Unsupported fragment store format version");
+		}
+		
+		int fragmentCount = data.getInt(MAGIC.length + 4);
+		if ( ( fragmentCount < 0 ) || ( ( (long) fragmentCount * INDEX_ENTRY_SIZE ) > data.remaining() - HEADER_SIZE ) ) {
+			throw new IOException("Invalid fragment store index");
+		}
+		
+		return new FragmentStore(data, fragmentCount);
+	}
+	
+	/**
+	 * @post Mapea el archivo especificado completo en memoria, para lectura.
+	 * 		 El archivo no puede superar los 2 GiB
+	 */
+	public static MappedByteBuffer map(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			// El mapeo sigue siendo válido después de cerrar el canal
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * @post Devuelve la cantidad de fragmentos
+	 */
+	public int getFragmentCount() {
+		return this.fragmentCount;
+	}
+	
+	/**
+	 * @pre El índice tiene que ser menor que la cantidad de fragmentos
+	 * @post Devuelve el fragmento con el índice especificado, en un buffer
+	 * 		 de sólo lectura propio del llamador que apunta al archivo mapeado
+	 */
+	public ByteBuffer getFragment(int index) throws IOException {
+		if ( ( index < 0 ) || ( index >= this.fragmentCount ) ) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		int entryPosition = HEADER_SIZE + index * INDEX_ENTRY_SIZE;
+		long offset = this.data.getLong(entryPosition);
+		int length = this.data.getInt(entryPosition + 8);
+		
+		if ( ( offset < HEADER_SIZE + (long) this.fragmentCount * INDEX_ENTRY_SIZE ) || ( length < 0 ) || ( offset + length > this.data.limit() ) ) {
+			throw new IOException("Invalid fragment store index entry " + index);
+		}
+		
+		ByteBuffer fragment = this.data.duplicate();
+		fragment.position((int) offset);
+		fragment.limit((int) offset + length);
+		return fragment.slice();
+	}
+}
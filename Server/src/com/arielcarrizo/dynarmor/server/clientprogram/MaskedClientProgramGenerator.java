@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2017 Ariel Favio Carrizo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'esferixis' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.arielcarrizo.dynarmor.server.clientprogram;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Generador de variantes enmascaradas de un programa
+ * 
+ * Cada variante es una semilla aleatoria de SEED_LENGTH bytes seguida del
+ * código del programa base, que es la concatenación de los fragmentos
+ * especificados, combinado con XOR con el flujo de AES-256-CTR
+ * con la semilla como clave y un contador inicial nulo. El cargador del
+ * cliente lo desenmascara con la semilla, de forma que cada cliente recibe
+ * un código distinto
+ * @author ariel
+ *
+ */
+public final class MaskedClientProgramGenerator implements ClientProgramGenerator {
+	public final static int SEED_LENGTH = 32;
+	
+	private final static String MASK_CIPHER = "AES/CTR/NoPadding";
+	
+	/**
+	 * Cifradores libres, compartidos por todos los generadores porque se
+	 * inicializan con una clave nueva en cada variante.
+	 * No dependen del hilo que los usa, por lo que sirven tanto para
+	 * hilos de plataforma como para hilos virtuales
+	 */
+	private final static int MAX_IDLE_CIPHERS = Runtime.getRuntime().availableProcessors();
+	private final static Queue<Cipher> IDLE_CIPHERS = new ConcurrentLinkedQueue<Cipher>();
+	private final static AtomicInteger IDLE_CIPHERS_COUNT = new AtomicInteger(0);
+	
+	private final ByteBuffer[] templateFragments;
+	private final int templateSize;
+	private final SecureRandom random;
+	
+	/**
+	 * @pre El programa base no puede ser nulo
+	 * @post Crea el generador con el programa base especificado
+	 */
+	public MaskedClientProgramGenerator(ClientProgram template) {
+		this(Collections.singletonList(template.getCode()));
+	}
+	
+	/**
+	 * @pre Los fragmentos no pueden ser nulos ni ser modificados después,
+	 * 		y su tamaño total no puede superar los 2 GiB
+	 * @post Crea el generador con el programa base formado por los fragmentos
+	 * 		 especificados, en orden. Los lee directamente de los buffers
+	 * 		 especificados, sin copiarlos
+	 */
+	public MaskedClientProgramGenerator(List<ByteBuffer> templateFragments) {
+		this.templateFragments = new ByteBuffer[templateFragments.size()];
+		
+		long templateSize = 0;
+		for ( int i = 0 ; i < this.templateFragments.length ; i++ ) {
+			this.templateFragments[i] = templateFragments.get(i).slice();
+			templateSize += this.templateFragments[i].remaining();
+		}
+		
+		if ( SEED_LENGTH + templateSize > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException("Client program too large");
+		}
+		
+		this.templateSize = (int) templateSize;
+		this.random = new SecureRandom();
+	}
+	
+	/**
+	 * @post Obtiene un cifrador libre, o crea uno nuevo si no hay ninguno.
+	 * 		 Hay que devolverlo con releaseCipher() al terminar de usarlo
+	 */
+	private static Cipher acquireCipher() throws GeneralSecurityException {
+		Cipher cipher = IDLE_CIPHERS.poll();
+		
+		if ( cipher != null ) {
+			IDLE_CIPHERS_COUNT.decrementAndGet();
+		}
+		else {
+			cipher = Cipher.getInstance(MASK_CIPHER);
+		}
+		
+		return cipher;
+	}
+	
+	/**
+	 * @pre El cifrador no puede ser usado después de devolverlo
+	 * @post Devuelve el cifrador a los libres, o lo descarta si ya hay
+	 * 		 demasiados
+	 */
+	private static void releaseCipher(Cipher cipher) {
+		if ( IDLE_CIPHERS_COUNT.incrementAndGet() <= MAX_IDLE_CIPHERS ) {
+			IDLE_CIPHERS.add(cipher);
+		}
+		else {
+			IDLE_CIPHERS_COUNT.decrementAndGet();
+		}
+	}
+	
+	@Override
+	public ClientProgram generate() throws GeneralSecurityException {
+		byte[] seed = new byte[SEED_LENGTH];
+		this.random.nextBytes(seed);
+		
+		ByteBuffer code = ByteBuffer.allocate(SEED_LENGTH + this.templateSize);
+		code.put(seed);
+		
+		// El flujo continúa de un fragmento al siguiente
+		Cipher cipher = acquireCipher();
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(seed, "AES"), new IvParameterSpec(new byte[16]));
+			for ( ByteBuffer eachFragment : this.templateFragments ) {
+				cipher.update(eachFragment.duplicate(), code);
+			}
+			cipher.doFinal();
+		} finally {
+			releaseCipher(cipher);
+		}
+		code.flip();
+		
+		return new ClientProgram(code);
+	}
+}